@@ -6,17 +6,137 @@ function isdefined(variable) {
     return (typeof(window[variable]) == "undefined")?  false: true;
 }
 
-function onTraceViewTreeLineClicked() {
-	var id = $(this).attr("id");
-	$("#" + id + "_c").toggle();
+/* Traceview tree: the items are loaded on demand, from chunk files (see TreeViewPlugin) */
+var tvtrChunks = {};
+var tvtrCallbacks = {};
+
+function tvtrChunk(id, data) {
+	tvtrChunks[id] = data;
+	var cbs = tvtrCallbacks[id];
+	delete tvtrCallbacks[id];
+	if (cbs) {
+		for (var i = 0; i < cbs.length; i++) {
+			cbs[i](data);
+		}
+	}
+}
+
+function tvtrLoad(dir, id, cb) {
+	if (tvtrChunks[id]) {
+		cb(tvtrChunks[id]);
+		return;
+	}
+	if (tvtrCallbacks[id]) {
+		tvtrCallbacks[id].push(cb);
+		return;
+	}
+	tvtrCallbacks[id] = [cb];
+	// Load it as a script, since reading local files directly is not allowed
+	var s = document.createElement("script");
+	s.type = "text/javascript";
+	s.src = dir + id + ".js";
+	document.getElementsByTagName("head")[0].appendChild(s);
+}
+
+function tvtrDur(dur) {
+	if (dur > 1500) {
+		return Math.floor(dur / 1000) + "ms";
+	}
+	return dur + "us";
+}
+
+function tvtrName(name) {
+	name = name.replace(/&/g, "&amp;").replace(/</g, "&lt;").replace(/>/g, "&gt;");
+	var idx = name.lastIndexOf(".");
+	var idx2 = name.lastIndexOf("(");
+	if (idx < 0 || idx2 < 0) return name;
+	return "<span class=\"traceview-name\">" + name.substring(0, idx + 1) + "</span>" +
+		name.substring(idx + 1, idx2) +
+		"<span class=\"traceview-param\">" + name.substring(idx2) + "</span>";
+}
+
+function tvtrRender(tree, box, items) {
+	var names = tvtrChunks["methods"];
+	for (var i = 0; i < items.length; i++) {
+		var item = items[i];
+		if (typeof item == "number") {
+			// The rest of the list is stored in another chunk
+			var more = $("<div class=\"tv_tr\">&nbsp;&nbsp;[more...]</div>");
+			more.click(tvtrMore(tree, box, more, item));
+			box.append(more);
+			continue;
+		}
+		var kids = item[4];
+		var node = $("<div class=\"tv_tr_n\"></div>");
+		if (item[2] < tree.minDur) {
+			node.addClass("tv_tr_short");
+		}
+		var line = $("<div class=\"tv_tr\"></div>");
+		line.html((kids == null ? "&nbsp;" : "+") + "&nbsp;[" + tvtrDur(item[1]) + "," + tvtrDur(item[2]) + "," + item[3] + "] " + tvtrName(names[item[0]]));
+		node.append(line);
+		if (kids != null) {
+			var c = $("<div class=\"tv_tr_c\"></div>").hide();
+			node.append(c);
+			line.click(tvtrToggle(tree, line, c, kids));
+		}
+		box.append(node);
+	}
 }
 
-function tvtrShow(id) {
-	$("#" + id + " .tv_tr_c").show();
+function tvtrMore(tree, box, more, id) {
+	return function() {
+		tvtrLoad(tree.dir, tree.prefix + id, function(data) {
+			more.remove();
+			tvtrRender(tree, box, data);
+		});
+	};
+}
+
+function tvtrToggle(tree, line, c, kids) {
+	var loaded = false;
+	return function() {
+		if (!loaded) {
+			loaded = true;
+			if (typeof kids == "number") {
+				tvtrLoad(tree.dir, tree.prefix + kids, function(data) {
+					tvtrRender(tree, c, data);
+				});
+			} else {
+				tvtrRender(tree, c, kids);
+			}
+		}
+		c.toggle();
+		var html = line.html();
+		line.html((c.is(":visible") ? "-" : "+") + html.substring(1));
+	};
+}
+
+function tvtrInit() {
+	var box = $(this);
+	var tree = {
+		dir : box.attr("data-dir"),
+		prefix : box.attr("data-prefix"),
+		minDur : parseInt(box.attr("data-mindur"))
+	};
+	tvtrLoad(tree.dir, "methods", function() {
+		tvtrLoad(tree.dir, box.attr("data-root"), function(data) {
+			tvtrRender(tree, box, data);
+		});
+	});
 }
 
 function tvtrHide(id) {
-	$("#" + id + " .tv_tr_c").hide();
+	$("#" + id + " .tv_tr_c:visible").each(function() {
+		$(this).prev().click();
+	});
+}
+
+function tvtrFilter(id, enabled) {
+	if (enabled) {
+		$("#" + id).addClass("tv_tr_hide_short");
+	} else {
+		$("#" + id).removeClass("tv_tr_hide_short");
+	}
 }
 
 function hideStackTrace() {
@@ -55,7 +175,7 @@ function main() {
     });
 	$(".tablesorter").tablesorter();
 	$(".tablednd").tableDnD();
-	$(".tv_tr").click(onTraceViewTreeLineClicked);
+	$(".tv_tree").each(tvtrInit);
 	$(".stacktrace-name-name").toggle(hideStackTrace, showStackTrace);
 }
 
@@ -43,6 +43,7 @@ public class Bug extends Lines {
 
     /* These are used in another report type, so they must be unique only within this group */
     public static final int PRIO_TRACEVIEW_DELAYED_DRAW = 50;
+    public static final int PRIO_TRACEVIEW_REGRESSION = 40;
     public static final int PRIO_TRACEVIEW_SLOW_METHOD = 30;
 
     private static BugComparator mComparator;
@@ -25,6 +25,7 @@ import com.sonyericsson.chkbugreport.plugins.FTracePlugin;
 import com.sonyericsson.chkbugreport.plugins.MainLogPlugin;
 import com.sonyericsson.chkbugreport.plugins.MemPlugin;
 import com.sonyericsson.chkbugreport.plugins.PackageInfoPlugin;
+import com.sonyericsson.chkbugreport.plugins.StackSamplePlugin;
 import com.sonyericsson.chkbugreport.plugins.StackTracePlugin;
 import com.sonyericsson.chkbugreport.plugins.SummaryPlugin;
 import com.sonyericsson.chkbugreport.plugins.SurfaceFlingerPlugin;
@@ -68,10 +69,18 @@ public class BugReport extends Report {
     private int mVerRel;
     private float mVer;
     private int mVerSdk;
+    private String mFTraceDatFile;
+    private String mEventLogBinFile;
+    private String mEventTagsFile;
+    private Vector<String> mStackSampleFiles = new Vector<String>();
+    private int mFTraceCritPid = -1;
+    private long mFTraceCritFrom = -1;
+    private long mFTraceCritTo = -1;
 
     {
         addPlugin(new MemPlugin());
         addPlugin(new StackTracePlugin());
+        addPlugin(new StackSamplePlugin());
         addPlugin(new SystemLogPlugin());
         addPlugin(new MainLogPlugin());
         addPlugin(new EventLogPlugin());
@@ -292,6 +301,9 @@ public class BugReport extends Report {
 
         }
 
+        // Wait for the database export running in the background
+        finishDBExport();
+
         printOut("DONE!");
     }
 
@@ -314,6 +326,9 @@ public class BugReport extends Report {
         printOut("Collecting process records...");
         collectProcessRecords();
 
+        // Export the bugs and processes into the database
+        exportData();
+
         // Create the header chapter
         printOut("Writing header...");
         writeHeaderChapter();
@@ -323,6 +338,24 @@ public class BugReport extends Report {
         copyRes(Util.COMMON_RES);
     }
 
+    private void exportData() {
+        DBExporter db = getDBExporter();
+        if (db == null) return;
+
+        DBExporter.Table bugs = db.createTable("bugs", "id int", "prio int", "ts int", "name varchar");
+        int cnt = getBugCount();
+        for (int i = 0; i < cnt; i++) {
+            Bug bug = getBug(i);
+            bugs.insert(i, bug.getPrio(), bug.getTimeStamp(), bug.getName());
+        }
+
+        DBExporter.Table procs = db.createTable("process_records", "pid int", "name varchar");
+        procs.addIndex("pid");
+        for (ProcessRecord pr : mProcessRecords) {
+            procs.insert(pr.getPid(), pr.getProcName());
+        }
+    }
+
     /**
      * Return the gathered information related to a process
      * @param pid The pid of the process
@@ -584,4 +617,75 @@ public class BugReport extends Report {
         return mVerSdk;
     }
 
+    /**
+     * Sets the binary ftrace file (trace.dat) to use instead of the ftrace section
+     */
+    public void setFTraceDatFile(String fileName) {
+        mFTraceDatFile = fileName;
+    }
+
+    public String getFTraceDatFile() {
+        return mFTraceDatFile;
+    }
+
+    /**
+     * Sets the binary event log file to use instead of the event log section
+     */
+    public void setEventLogBinFile(String fileName) {
+        mEventLogBinFile = fileName;
+    }
+
+    public String getEventLogBinFile() {
+        return mEventLogBinFile;
+    }
+
+    /**
+     * Sets the event-log-tags file used to resolve the tag ids of the binary event log
+     */
+    public void setEventTagsFile(String fileName) {
+        mEventTagsFile = fileName;
+    }
+
+    public String getEventTagsFile() {
+        return mEventTagsFile;
+    }
+
+    /**
+     * Adds a file containing VM trace dumps, to be aggregated as stack samples
+     */
+    public void addStackSampleFile(String fileName) {
+        mStackSampleFiles.add(fileName);
+    }
+
+    public Vector<String> getStackSampleFiles() {
+        return mStackSampleFiles;
+    }
+
+    /**
+     * Sets the task and the time window for the ftrace critical path analysis
+     * @param pid The pid of the task
+     * @param fromUS The start of the window in microseconds (or -1 for the start of the trace)
+     * @param toUS The end of the window in microseconds (or -1 for the end of the trace)
+     */
+    public void setFTraceCriticalPath(int pid, long fromUS, long toUS) {
+        mFTraceCritPid = pid;
+        mFTraceCritFrom = fromUS;
+        mFTraceCritTo = toUS;
+    }
+
+    /**
+     * Returns the pid of the task for the ftrace critical path analysis, or -1 if not set
+     */
+    public int getFTraceCritPid() {
+        return mFTraceCritPid;
+    }
+
+    public long getFTraceCritFrom() {
+        return mFTraceCritFrom;
+    }
+
+    public long getFTraceCritTo() {
+        return mFTraceCritTo;
+    }
+
 }
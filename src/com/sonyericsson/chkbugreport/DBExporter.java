@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports the parsed data into the SQLite database in the background.
+ *
+ * The plugins insert the rows into tables created here. The rows are collected in chunks,
+ * and the full chunks are passed through a queue to a dedicated writer thread, which
+ * executes the statements and commits after each chunk. The analysis never waits for the
+ * database: if the writer falls behind by more than QUEUE_SIZE chunks, the new chunks are
+ * dropped (this limits the memory used by the pending rows), and the number of dropped rows
+ * is reported at the end. The indexes are created only at the end, after the bulk load,
+ * which is much faster than updating them after every insert.
+ *
+ * If a database operation fails, the error is reported once, and the rest of the rows are
+ * dropped.
+ */
+public class DBExporter {
+
+    /** The default number of rows in a chunk (which is also the number of rows per commit) */
+    public static final int DEF_CHUNK_SIZE = 10000;
+
+    /** The maximum number of chunks waiting to be written */
+    private static final int QUEUE_SIZE = 8;
+
+    private Report mReport;
+    private Connection mConn;
+    private int mChunkSize;
+    private LinkedBlockingQueue<Job> mQueue = new LinkedBlockingQueue<Job>();
+    /** Each chunk in the queue holds a slot until it's written */
+    private Semaphore mChunkSlots = new Semaphore(QUEUE_SIZE);
+    private AtomicInteger mDroppedRows = new AtomicInteger();
+    private Thread mWriter;
+    private Vector<Table> mTables = new Vector<Table>();
+    private volatile boolean mFailed;
+    private boolean mFinished;
+
+    /** A database operation executed on the writer thread */
+    private static abstract class Job {
+        abstract void run() throws SQLException;
+    }
+
+    /** Writes a chunk of rows */
+    private static class Chunk extends Job {
+        private Table mTable;
+        private Object mRows[][];
+        private int mCount;
+
+        Chunk(Table table, Object rows[][], int count) {
+            mTable = table;
+            mRows = rows;
+            mCount = count;
+        }
+
+        @Override
+        void run() throws SQLException {
+            mTable.write(mRows, mCount);
+        }
+    }
+
+    /** Marks the end of the queue */
+    private final Job mEnd = new Job() {
+        @Override
+        void run() {
+        }
+    };
+
+    public DBExporter(Report report, Connection conn, int chunkSize) {
+        mReport = report;
+        mConn = conn;
+        mChunkSize = Math.max(1, chunkSize);
+        mWriter = new Thread("DBExporter") {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        };
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Creates a new table
+     * @param name The name of the table
+     * @param columns The column definitions, like "pid int" or "name varchar"
+     * @return The table, where the rows can be inserted
+     */
+    public synchronized Table createTable(String name, String... columns) {
+        Table table = new Table(name, columns);
+        mTables.add(table);
+        StringBuffer sql = new StringBuffer("CREATE TABLE " + name + " (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ");
+            sql.append(columns[i]);
+        }
+        sql.append(")");
+        execute(sql.toString());
+        return table;
+    }
+
+    /**
+     * Executes a statement (which doesn't return anything) on the writer thread
+     */
+    public void execute(final String sql) {
+        enqueue(new Job() {
+            @Override
+            void run() throws SQLException {
+                Statement stat = mConn.createStatement();
+                try {
+                    stat.execute(sql);
+                } finally {
+                    stat.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the remaining rows, creates the indexes, and waits until everything is saved.
+     * No more data can be exported after this.
+     */
+    public synchronized void finish() {
+        if (mFinished) return;
+        for (Table table : mTables) {
+            table.flush(true);
+        }
+        for (Table table : mTables) {
+            for (String index : table.mIndexes) {
+                execute(index);
+            }
+        }
+        enqueue(new Job() {
+            @Override
+            void run() throws SQLException {
+                mConn.commit();
+            }
+        });
+        enqueue(mEnd);
+        mFinished = true;
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            mReport.printErr("Interrupted while saving the database");
+            Thread.currentThread().interrupt();
+        }
+        if (mDroppedRows.get() > 0) {
+            mReport.printErr(mDroppedRows.get() + " rows were not saved in the database, since it could not keep up"
+                    + " with the analysis (a bigger --db-chunk might help)");
+        }
+    }
+
+    private void enqueue(Job job) {
+        if (mFailed && job != mEnd) return;
+        mQueue.add(job);
+    }
+
+    /**
+     * Passes a chunk of rows to the writer thread
+     * @param wait If true, waits for a free slot in the queue, otherwise the rows are dropped
+     *   if the queue is full
+     */
+    private void enqueueChunk(Chunk chunk, boolean wait) {
+        if (mFailed) return;
+        if (wait) {
+            try {
+                mChunkSlots.acquire();
+            } catch (InterruptedException e) {
+                mDroppedRows.addAndGet(chunk.mCount);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } else if (!mChunkSlots.tryAcquire()) {
+            mDroppedRows.addAndGet(chunk.mCount);
+            return;
+        }
+        mQueue.add(chunk);
+    }
+
+    private void writerLoop() {
+        while (true) {
+            Job job;
+            try {
+                job = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == mEnd) break;
+            if (!mFailed) { // otherwise just drain the queue
+                try {
+                    job.run();
+                } catch (SQLException e) {
+                    mReport.printErr("Error saving data in the database (the rest of the data is dropped): " + e);
+                    mFailed = true;
+                }
+            }
+            if (job instanceof Chunk) {
+                mChunkSlots.release();
+            }
+        }
+
+        // Cleanup
+        for (Table table : mTables) {
+            try {
+                if (table.mInsert != null) {
+                    table.mInsert.close();
+                }
+            } catch (SQLException e) {
+                // NOP
+            }
+        }
+    }
+
+    /**
+     * A table in the database. The rows are collected in chunks, the full chunks are
+     * written by the writer thread.
+     */
+    public class Table {
+
+        private String mName;
+        private int mColumnCount;
+        private Vector<String> mIndexes = new Vector<String>();
+        private Object mRows[][];
+        private int mCount;
+        /** Used only from the writer thread */
+        private PreparedStatement mInsert;
+
+        private Table(String name, String columns[]) {
+            mName = name;
+            mColumnCount = columns.length;
+            mRows = new Object[mChunkSize][];
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Adds an index on the given columns (it will be created after all the rows are saved)
+         */
+        public void addIndex(String... columns) {
+            StringBuffer sql = new StringBuffer("CREATE INDEX " + mName + "_idx" + mIndexes.size() + " ON " + mName + " (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ");
+                sql.append(columns[i]);
+            }
+            sql.append(")");
+            mIndexes.add(sql.toString());
+        }
+
+        /**
+         * Inserts a new row. The values can be Integer, Long, String, or null.
+         */
+        public synchronized void insert(Object... values) {
+            if (mFailed) return;
+            if (values.length != mColumnCount) {
+                throw new IllegalArgumentException("Wrong number of values for table " + mName);
+            }
+            mRows[mCount++] = values;
+            if (mCount == mRows.length) {
+                flush(false);
+            }
+        }
+
+        /**
+         * Passes the collected rows to the writer thread
+         * @param wait If false, the rows are dropped instead of waiting for the writer
+         */
+        synchronized void flush(boolean wait) {
+            if (mCount == 0) return;
+            Chunk chunk = new Chunk(this, mRows, mCount);
+            mRows = new Object[mChunkSize][];
+            mCount = 0;
+            enqueueChunk(chunk, wait);
+        }
+
+        private void write(Object rows[][], int count) throws SQLException {
+            if (mInsert == null) {
+                StringBuffer sql = new StringBuffer("INSERT INTO " + mName + " VALUES (");
+                for (int i = 0; i < mColumnCount; i++) {
+                    sql.append(i == 0 ? "?" : ",?");
+                }
+                sql.append(")");
+                mInsert = mConn.prepareStatement(sql.toString());
+            }
+            for (int i = 0; i < count; i++) {
+                Object row[] = rows[i];
+                for (int c = 0; c < mColumnCount; c++) {
+                    if (row[c] == null) {
+                        mInsert.setNull(c + 1, Types.NULL);
+                    } else {
+                        mInsert.setObject(c + 1, row[c]);
+                    }
+                }
+                mInsert.addBatch();
+            }
+            mInsert.executeBatch();
+            mConn.commit();
+        }
+
+    }
+
+}
@@ -18,13 +18,24 @@
  */
 package com.sonyericsson.chkbugreport;
 
+import com.sonyericsson.chkbugreport.plugins.BinaryEventLogReader;
+import com.sonyericsson.chkbugreport.plugins.FTraceDatReader;
+import com.sonyericsson.chkbugreport.plugins.SystraceReader;
+import com.sonyericsson.chkbugreport.traceview.TraceDiffReport;
 import com.sonyericsson.chkbugreport.traceview.TraceReport;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -34,13 +45,15 @@ public class Main {
     public static final int MODE_BUGREPORT = 0;
     public static final int MODE_TRACEVIEW = 1;
     public static final int MODE_MANUAL = 2;
+    public static final int MODE_TRACEVIEW_STATS = 3;
+    public static final int MODE_TRACEVIEW_DIFF = 4;
 
     private static final int B = 1;
     private static final int KB = 1024*B;
     private static final int MB = 1024*KB;
 
     public static final int NO_LIMIT = Integer.MAX_VALUE;
-    public static final int MAX_FTRACE_SIZE = 5*MB;
+    public static final int DEF_FTRACE_LIMIT = 5*MB;
     public static final int MAX_LOG_SIZE = 1*MB;
 
     private BugReport mDummy;
@@ -48,6 +61,15 @@ public class Main {
     private boolean mUseFrames = true;
     private boolean mSilent = false;
     private boolean mLimit = true;
+    private int mFTraceLimit = NO_LIMIT;
+    private int mFTraceCritPid = -1;
+    private long mFTraceCritFrom = -1;
+    private long mFTraceCritTo = -1;
+    private int mDBChunkSize = DBExporter.DEF_CHUNK_SIZE;
+    private String mEventTagsFile;
+    private String mBaseTraceFileName;
+    /* The ftrace dumps are loaded after all the options are parsed (so --ftrace-limit can come after -ft) */
+    private Vector<String> mFTraceFiles = new Vector<String>();
 
     public static void main(String[] args) {
         new Main().run(args);
@@ -68,14 +90,27 @@ public class Main {
                 }
                 if ("t".equals(key)) {
                     mMode = MODE_TRACEVIEW;
+                } else if ("ts".equals(key)) {
+                    mMode = MODE_TRACEVIEW_STATS;
+                } else if ("td".equals(key)) {
+                    mMode = MODE_TRACEVIEW_DIFF;
+                    mBaseTraceFileName = param;
                 } else if ("sl".equals(key)) {
                     addSection(Section.SYSTEM_LOG, param, MAX_LOG_SIZE);
                 } else if ("ml".equals(key)) {
                     addSection(Section.MAIN_LOG, param, MAX_LOG_SIZE);
                 } else if ("el".equals(key)) {
-                    addSection(Section.EVENT_LOG, param, MAX_LOG_SIZE);
+                    if (BinaryEventLogReader.isBinaryEventLog(param)) {
+                        addEventLogBin(param);
+                    } else {
+                        addSection(Section.EVENT_LOG, param, MAX_LOG_SIZE);
+                    }
                 } else if ("ft".equals(key)) {
-                    addSection(Section.FTRACE, param, MAX_FTRACE_SIZE);
+                    mFTraceFiles.add(param);
+                } else if ("st".equals(key)) {
+                    addSystrace(param);
+                } else if ("ss".equals(key)) {
+                    addStackSamples(param);
                 } else if ("ps".equals(key)) {
                     addSection(Section.PROCESSES, param, NO_LIMIT);
                 } else if ("pt".equals(key)) {
@@ -108,6 +143,14 @@ public class Main {
                     mLimit = false;
                 } else if ("-limit".equals(key)) {
                     mLimit = true;
+                } else if ("-ftrace-limit".equals(key)) {
+                    parseFTraceLimit(param);
+                } else if ("-ftrace-critpath".equals(key)) {
+                    parseCritPath(param);
+                } else if ("-db-chunk".equals(key)) {
+                    parseDBChunkSize(param);
+                } else if ("-event-tags".equals(key)) {
+                    mEventTagsFile = param;
                 } else {
                     System.err.println("Unknown option '" + key + "'!");
                     usage();
@@ -123,6 +166,14 @@ public class Main {
             }
         }
 
+        for (String ftrace : mFTraceFiles) {
+            if (FTraceDatReader.isTraceDat(ftrace)) {
+                addFTraceDat(ftrace);
+            } else {
+                addSection(Section.FTRACE, ftrace, mFTraceLimit);
+            }
+        }
+
         if (fileName == null) {
             usage();
             System.exit(1);
@@ -133,15 +184,25 @@ public class Main {
                 BugReport br = getDummyBugReport();
                 br.setUseFrames(mUseFrames);
                 br.setSilent(mSilent);
+                br.setDBChunkSize(mDBChunkSize);
+                br.setFTraceCriticalPath(mFTraceCritPid, mFTraceCritFrom, mFTraceCritTo);
+                br.setEventTagsFile(mEventTagsFile);
                 br.setFileName(fileName);
                 br.generate();
+            } else if (mMode == MODE_TRACEVIEW_DIFF) {
+                generateTraceDiff(mBaseTraceFileName, fileName);
             } else {
                 Report br = createReportInstance(fileName, mMode);
-                if (mMode != MODE_TRACEVIEW) {
+                if (mMode != MODE_TRACEVIEW && mMode != MODE_TRACEVIEW_STATS) {
                     // Traceview mode doesn't support frames yet
                     br.setUseFrames(mUseFrames);
                 }
                 br.setSilent(mSilent);
+                br.setDBChunkSize(mDBChunkSize);
+                if (br instanceof BugReport) {
+                    ((BugReport)br).setFTraceCriticalPath(mFTraceCritPid, mFTraceCritFrom, mFTraceCritTo);
+                    ((BugReport)br).setEventTagsFile(mEventTagsFile);
+                }
                 if (!loadReportFrom(br, fileName, mMode)) {
                     return;
                 }
@@ -153,6 +214,48 @@ public class Main {
         }
     }
 
+    private void generateTraceDiff(String baseFileName, String fileName) throws IOException {
+        if (baseFileName == null) {
+            System.err.println("Missing baseline trace file!");
+            usage();
+            System.exit(1);
+        }
+        final TraceReport base = new TraceReport(baseFileName);
+        final TraceReport target = new TraceReport(fileName);
+        base.setSilent(mSilent);
+        target.setSilent(mSilent);
+
+        // Load the two traces in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> resBase = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return loadReportFrom(base, base.getFileName(), MODE_TRACEVIEW);
+                }
+            });
+            Future<Boolean> resTarget = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return loadReportFrom(target, target.getFileName(), MODE_TRACEVIEW);
+                }
+            });
+            if (!resBase.get() || !resTarget.get()) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while loading the traces");
+        } catch (ExecutionException e) {
+            throw new IOException("Error loading the traces", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        Report br = new TraceDiffReport(fileName + "_diff", base, target);
+        br.setSilent(mSilent);
+        br.generate();
+    }
+
     private void scanDirForPartials(BugReport br, String param) {
         File dir = new File(param);
         File files[] = dir.listFiles();
@@ -234,6 +337,120 @@ public class Main {
         }
     }
 
+    /**
+     * Parses the parameter of the --ftrace-limit option: the size in megabytes (optional)
+     */
+    private void parseFTraceLimit(String param) {
+        if (param == null) {
+            mFTraceLimit = DEF_FTRACE_LIMIT;
+            return;
+        }
+        try {
+            long mb = Long.parseLong(param);
+            if (mb <= 0 || mb > Integer.MAX_VALUE / MB) {
+                throw new NumberFormatException();
+            }
+            mFTraceLimit = (int)mb * MB;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid parameter for --ftrace-limit: '" + param + "' (must be between 1 and " + (Integer.MAX_VALUE / MB) + ")!");
+            usage();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses the parameter of the --db-chunk option: the number of rows per transaction
+     */
+    private void parseDBChunkSize(String param) {
+        try {
+            if (param == null) {
+                throw new NumberFormatException();
+            }
+            mDBChunkSize = Integer.parseInt(param);
+            if (mDBChunkSize <= 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid parameter for --db-chunk: '" + param + "' (must be a positive number)!");
+            usage();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses the parameter of the --ftrace-critpath option: "pid" or "pid:from:to",
+     * where from and to are ftrace timestamps in seconds (like 1234.567890)
+     */
+    private void parseCritPath(String param) {
+        String fields[] = (param == null) ? new String[0] : param.split(":");
+        try {
+            if (fields.length != 1 && fields.length != 3) {
+                throw new NumberFormatException();
+            }
+            mFTraceCritPid = Integer.parseInt(fields[0]);
+            if (fields.length == 3) {
+                mFTraceCritFrom = Math.round(Double.parseDouble(fields[1]) * 1000000);
+                mFTraceCritTo = Math.round(Double.parseDouble(fields[2]) * 1000000);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid parameter for --ftrace-critpath: '" + param + "'!");
+            usage();
+            System.exit(1);
+        }
+    }
+
+    private void addSystrace(String fileName) {
+        mMode = MODE_MANUAL;
+        BugReport br = getDummyBugReport();
+        br.addHeaderLine(Section.FTRACE + ": " + fileName);
+        Section sec = new Section(br, Section.FTRACE);
+        try {
+            SystraceReader.read(fileName, sec);
+            br.addSection(sec);
+        } catch (IOException e) {
+            System.err.println("Error reading file '" + fileName + "' (it will be ignored): " + e);
+        }
+    }
+
+    /**
+     * Adds the VM trace dumps to aggregate: either a single file or all the files in a directory
+     */
+    private void addStackSamples(String fileName) {
+        mMode = MODE_MANUAL;
+        BugReport br = getDummyBugReport();
+        br.addHeaderLine("STACK SAMPLES: " + fileName);
+        File f = new File(fileName);
+        if (f.isDirectory()) {
+            File files[] = f.listFiles();
+            if (files == null) {
+                System.err.println("Error reading directory '" + fileName + "' (it will be ignored)");
+                return;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile()) {
+                    br.addStackSampleFile(file.getAbsolutePath());
+                }
+            }
+        } else {
+            br.addStackSampleFile(fileName);
+        }
+    }
+
+    private void addFTraceDat(String fileName) {
+        mMode = MODE_MANUAL;
+        BugReport br = getDummyBugReport();
+        br.addHeaderLine(Section.FTRACE + ": " + fileName);
+        br.setFTraceDatFile(fileName);
+    }
+
+    private void addEventLogBin(String fileName) {
+        mMode = MODE_MANUAL;
+        BugReport br = getDummyBugReport();
+        br.addHeaderLine(Section.EVENT_LOG + ": " + fileName);
+        br.setEventLogBinFile(fileName);
+    }
+
     private void parseMonkey(String fileName) {
         mMode = MODE_MANUAL;
         BugReport br = getDummyBugReport();
@@ -349,6 +566,8 @@ public class Main {
     protected Report createReportInstance(String fileName, int mode) {
         if (mode == MODE_TRACEVIEW) {
             return new TraceReport(fileName);
+        } else if (mode == MODE_TRACEVIEW_STATS) {
+            return new TraceReport(fileName, true);
         } else {
             return new BugReport(fileName);
         }
@@ -359,12 +578,19 @@ public class Main {
         System.err.println("  or");
         System.err.println("Usage: chkbugreport -t traceviewfile");
         System.err.println("  or");
+        System.err.println("Usage: chkbugreport -ts traceviewfile");
+        System.err.println("  (generates only the statistics and flame graphs, but uses much less memory)");
+        System.err.println("  or");
+        System.err.println("Usage: chkbugreport -td:basetraceviewfile traceviewfile");
+        System.err.println("  (compares the two traceview files, the first one being the baseline)");
+        System.err.println("  or");
         System.err.println("Usage: chkbugreport [sections] dummybugreportfile");
         System.err.println("Where dummybugreportfile does not exists, but will be used to generate");
         System.err.println("a folder name and sections must contain at least one of the following:");
         System.err.println("  -ds:file    - Use file as dumsys output (almost same as -pb)");
-        System.err.println("  -el:file    - Use file as event log");
-        System.err.println("  -ft:file    - Use file as ftrace dump");
+        System.err.println("  -el:file    - Use file as event log (text, or a binary event log buffer)");
+        System.err.println("  -ft:file    - Use file as ftrace dump (text output of the sched_switch");
+        System.err.println("                tracer or of the sched events, or a trace.dat file)");
         System.err.println("  -ps:file    - Use file as \"processes\" section");
         System.err.println("  -pt:file    - Use file as \"processes and threads\" section");
         System.err.println("  -ml:file    - Use file as main log");
@@ -373,6 +599,11 @@ public class Main {
         System.err.println("  -sl:file    - Use file as system log");
         System.err.println("  -sa:file    - Use file as \"vm traces at last anr\" section");
         System.err.println("  -sn:file    - Use file as \"vm traces just now\" section");
+        System.err.println("  -st:file    - Use file as systrace capture (systrace HTML file or atrace");
+        System.err.println("                output, the embedded trace can be compressed)");
+        System.err.println("  -ss:file    - Aggregate the stacks of all the VM trace dumps in file as");
+        System.err.println("                samples (file can be a directory as well, then all files");
+        System.err.println("                are used, and the option can be repeated)");
         System.err.println("Extra options:");
         System.err.println("  --frames    - Use HTML frames when processing bugreport (default)");
         System.err.println("  --no-frames - Don't use HTML frames when processing bugreport");
@@ -383,6 +614,18 @@ public class Main {
         System.err.println("                would be even bigger). This option (and --no-limit as well)");
         System.err.println("                must precede the other options in order to have effect.");
         System.err.println("  --no-limit  - Don't limit the input file size");
+        System.err.println("  --ftrace-limit[:MB] - Load only the last MB megabytes (default 5) of the");
+        System.err.println("                ftrace dump (by default the whole dump is loaded)");
+        System.err.println("  --ftrace-critpath:pid[:from:to] - Extract the critical path of the task");
+        System.err.println("                from the ftrace wakeups (the chain of tasks and waits it");
+        System.err.println("                depended on), optionally only between the two timestamps");
+        System.err.println("                (in seconds, as in the ftrace dump)");
+        System.err.println("  --db-chunk:rows - The number of rows saved in the SQLite database in one");
+        System.err.println("                transaction (default " + DBExporter.DEF_CHUNK_SIZE + "); rows are dropped");
+        System.err.println("                if the database cannot keep up with the analysis");
+        System.err.println("  --event-tags:file - Use file as event-log-tags file, to resolve the tag");
+        System.err.println("                names of the binary event log (by default the");
+        System.err.println("                event-log-tags file next to the event log is used)");
     }
 
 }
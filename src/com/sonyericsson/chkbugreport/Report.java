@@ -54,6 +54,8 @@ public abstract class Report {
     private HashMap<String, Object> mMetaInfos = new HashMap<String, Object>();
     private boolean mSQLFailed = false;
     private Connection mSQLConnection;
+    private DBExporter mDBExporter;
+    private int mDBChunkSize = DBExporter.DEF_CHUNK_SIZE;
     private boolean mUseFrames = false;
     private boolean mSilent = false;
     private int mNextChapterId = 1;
@@ -504,6 +506,38 @@ public abstract class Report {
         return mSQLConnection;
     }
 
+    /**
+     * Sets the number of rows saved in the database in one chunk (and one transaction)
+     */
+    public void setDBChunkSize(int rows) {
+        mDBChunkSize = rows;
+    }
+
+    /**
+     * Returns the exporter which saves the data in the SQL database in the background.
+     * If the database cannot be created, null will be returned.
+     * @return The exporter or null.
+     */
+    public synchronized DBExporter getDBExporter() {
+        if (mDBExporter == null) {
+            Connection conn = getSQLConnection();
+            if (conn != null) {
+                mDBExporter = new DBExporter(this, conn, mDBChunkSize);
+            }
+        }
+        return mDBExporter;
+    }
+
+    /**
+     * Waits until all the exported data is saved in the database
+     */
+    protected void finishDBExport() {
+        if (mDBExporter != null) {
+            printOut("Saving database...");
+            mDBExporter.finish();
+        }
+    }
+
     public int getBugCount() {
         return mBugs.size();
     }
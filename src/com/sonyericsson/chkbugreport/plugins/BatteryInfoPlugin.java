@@ -34,11 +34,13 @@ import javax.imageio.ImageIO;
 import com.sonyericsson.chkbugreport.Bug;
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Section;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.Downsampler;
 import com.sonyericsson.chkbugreport.util.DumpTree;
 import com.sonyericsson.chkbugreport.util.DumpTree.Node;
 import com.sonyericsson.chkbugreport.util.TableGen;
@@ -83,6 +85,10 @@ public class BatteryInfoPlugin extends Plugin {
 
     private Graphics2D mG;
 
+    /** The battery level and the signals, downsampled to the width of the chart */
+    private Downsampler mLevels;
+    private Downsampler mSignals[];
+
     static class Signal {
         public static final int TYPE_BIN = 0;
         public static final int TYPE_INT = 1;
@@ -215,11 +221,16 @@ public class BatteryInfoPlugin extends Plugin {
                 mG.drawString(s, GRAPH_PX + 1, yv);
             }
 
+            // The history is also saved in the database (if available)
+            DBExporter.Table dbHistory = null;
+            DBExporter db = br.getDBExporter();
+            if (db != null) {
+                dbHistory = db.createTable("battery_history", "ts int", "level int", "signals varchar");
+            }
+
             // Read the battery history and plot the chart
             mMaxTs = -1;
             long lastTs = -1;
-            int lastLevelX = -1;
-            int lastLevelY = -1;
             Color colLevel = new Color(0x000000);
             while (idx < cnt) {
                 String buff = sec.getLine(idx++);
@@ -232,18 +243,21 @@ public class BatteryInfoPlugin extends Plugin {
                 lastTs = ts;
                 if (mMaxTs == -1) {
                     mMaxTs = ts * 110 / 100;
+                    mLevels = new Downsampler(0, mMaxTs, GRAPH_PW);
+                    mSignals = new Downsampler[SIGNALS.length];
+                    for (int i = 0; i < SIGNALS.length; i++) {
+                        mSignals[i] = new Downsampler(0, mMaxTs, GRAPH_PW);
+                    }
                 }
                 // Read the battery level
                 String levelS = buff.substring(22, 25);
                 if (levelS.charAt(0) == ' ') continue; // there is a disturbance in the force...
                 int level = Integer.parseInt(levelS);
 
-                // Plot the level
-                int levelX = toX(ts);
-                int levelY = toY(level);
-                if (lastLevelX != -1 && lastLevelY != -1) {
-                    mG.setColor(colLevel);
-                    mG.drawLine(lastLevelX, lastLevelY, levelX, levelY);
+                // Collect the level
+                mLevels.addSample(ts, level);
+                if (dbHistory != null) {
+                    dbHistory.insert(ts, level, buff.length() > 35 ? buff.substring(35) : "");
                 }
 
                 // Parse the signal levels
@@ -266,9 +280,6 @@ public class BatteryInfoPlugin extends Plugin {
                         }
                     }
                 }
-
-                lastLevelX = levelX;
-                lastLevelY = levelY;
             }
 
             // Finish off every signal
@@ -276,6 +287,14 @@ public class BatteryInfoPlugin extends Plugin {
                 addSignal(lastTs, SIGNALS[i].getName(), -1);
             }
 
+            // Plot the level and the signals
+            if (mLevels != null) {
+                plotLevels(colLevel);
+                for (int i = 0; i < SIGNALS.length; i++) {
+                    plotSignal(i);
+                }
+            }
+
             // Draw labels on time axis
             long step = 30*60*1000L;
             int count = (int)(mMaxTs / step);
@@ -734,21 +753,57 @@ public class BatteryInfoPlugin extends Plugin {
             return;
         }
         if (sigValue != -1) {
-            int lastX = toX(sig.getTs());
-            int x = toX(ts);
+            mSignals[idx].addInterval(ts, sig.getTs(), sigValue);
+        } else {
+            // We are setting the first value, let's render the signal name here
+            mG.setColor(Color.BLACK);
+            mG.drawString(sig.getName(), GRAPH_PX, baseY);
+        }
+        sig.setValue(ts, value);
+    }
+
+    /**
+     * Plots the battery level: a line through the average levels, and a vertical bar where
+     * the level changed within one pixel column
+     */
+    private void plotLevels(Color col) {
+        int lastX = -1, lastY = -1;
+        mG.setColor(col);
+        for (int i = 0; i < GRAPH_PW; i++) {
+            if (!mLevels.hasData(i)) continue;
+            int x = GRAPH_PX - i;
+            int y = toY((int)Math.round(mLevels.getAvg(i)));
+            if (lastX != -1) {
+                mG.drawLine(lastX, lastY, x, y);
+            }
+            if (mLevels.getMin(i) != mLevels.getMax(i)) {
+                mG.drawLine(x, toY((int)mLevels.getMin(i)), x, toY((int)mLevels.getMax(i)));
+            }
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    private void plotSignal(int idx) {
+        Signal sig = SIGNALS[idx];
+        Downsampler values = mSignals[idx];
+        int offY = GRAPH_H + idx * GRAPH_SH;
+        int baseY = offY + GRAPH_SH - 2;
+        for (int i = 0; i < GRAPH_PW; i++) {
+            if (!values.hasData(i)) continue;
+            int x = GRAPH_PX - i;
             switch (sig.getType()) {
                 case Signal.TYPE_BIN:
-                    if (lastX == x) {
-                        // Signal is rendered too often, draw a gray area instead
+                    if (values.getMin(i) != values.getMax(i)) {
+                        // Signal is changing too often, draw a gray area instead
                         mG.setColor(COL_SIGNAL_PART);
                         mG.fillRect(x, offY, 1, baseY - offY + 1);
+                    } else if (values.getMax(i) == 0) {
+                        mG.setColor(COL_SIGNAL);
+                        mG.fillRect(x, baseY, 1, 1);
                     } else {
                         mG.setColor(COL_SIGNAL);
-                        if (sigValue == 0) {
-                            mG.drawLine(lastX + 1, baseY, x, baseY);
-                        } else {
-                            mG.fillRect(lastX + 1, offY, x - lastX, baseY - offY + 1);
-                        }
+                        mG.fillRect(x, offY, 1, baseY - offY + 1);
                     }
                     break;
                 case Signal.TYPE_INT:
@@ -756,16 +811,11 @@ public class BatteryInfoPlugin extends Plugin {
                     break;
                 case Signal.TYPE_PRC:
                     mG.setColor(COL_SIGNAL);
-                    int h = (baseY - offY) * sigValue /100;
-                    mG.fillRect(lastX, baseY - h, x - lastX + 1, baseY + 1);
+                    int h = (int)((baseY - offY) * values.getAvg(i) / 100);
+                    mG.fillRect(x, baseY - h, 1, h + 1);
                     break;
             }
-        } else {
-            // We are setting the first value, let's render the signal name here
-            mG.setColor(Color.BLACK);
-            mG.drawString(sig.getName(), GRAPH_PX, baseY);
         }
-        sig.setValue(ts, value);
     }
 
     private int findSignal(String s) {
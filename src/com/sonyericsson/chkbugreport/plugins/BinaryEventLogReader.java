@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary event log buffer (the raw content of /dev/log/events, for
+ * example as saved by "adb logcat -b events -B").
+ *
+ * The file is memory mapped and each entry (a logger_entry header followed by
+ * the tag id and the typed payload) is decoded in place. The values are passed
+ * to the listener as Integer, Long, Float, String or Object[] (for lists).
+ */
+public class BinaryEventLogReader {
+
+    /** The size of the header in the version 1 format (which doesn't store the size) */
+    private static final int HDR_SIZE_V1 = 20;
+
+    /** The largest entry accepted when detecting the format */
+    private static final int MAX_PAYLOAD = 5 * 1024;
+
+    /* Payload types */
+    private static final int TYPE_INT = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_STRING = 2;
+    private static final int TYPE_LIST = 3;
+    private static final int TYPE_FLOAT = 4;
+
+    /**
+     * Receives the decoded entries (in the order they are stored in the file)
+     */
+    public interface Listener {
+        void onEvent(int sec, int nsec, int pid, int tid, int tagId, Object value);
+    }
+
+    private String mFileName;
+    private int mErrors;
+
+    public BinaryEventLogReader(String fileName) {
+        mFileName = fileName;
+    }
+
+    /**
+     * Returns true if the file starts with a valid binary event log entry
+     */
+    public static boolean isBinaryEventLog(String fileName) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+            try {
+                byte buff[] = new byte[32];
+                int len = raf.read(buff);
+                if (len < buff.length) return false;
+                ByteBuffer bb = ByteBuffer.wrap(buff).order(ByteOrder.LITTLE_ENDIAN);
+                int payloadLen = bb.getShort(0) & 0xffff;
+                int hdrSize = getHeaderSize(bb.getShort(2) & 0xffff);
+                if (hdrSize < 0 || payloadLen < 5 || payloadLen > MAX_PAYLOAD) return false;
+                if (hdrSize + payloadLen > raf.length()) return false;
+                int type = bb.get(hdrSize + 4);
+                return type >= TYPE_INT && type <= TYPE_FLOAT;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of entries which could not be decoded in the last read()
+     */
+    public int getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Reads the file and calls the listener for every entry.
+     * @throws IOException if the file cannot be read
+     */
+    public void read(Listener listener) throws IOException {
+        mErrors = 0;
+        RandomAccessFile raf = new RandomAccessFile(mFileName, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), Integer.MAX_VALUE));
+            buff.order(ByteOrder.LITTLE_ENDIAN);
+            int size = buff.limit();
+            int pos = 0;
+            while (pos + HDR_SIZE_V1 <= size) {
+                int len = buff.getShort(pos) & 0xffff;
+                int hdrSize = getHeaderSize(buff.getShort(pos + 2) & 0xffff);
+                if (hdrSize < 0 || pos + hdrSize + len > size) {
+                    // Corrupted or truncated, nothing can be trusted after this
+                    mErrors++;
+                    break;
+                }
+                int pid = buff.getInt(pos + 4);
+                int tid = buff.getInt(pos + 8);
+                int sec = buff.getInt(pos + 12);
+                int nsec = buff.getInt(pos + 16);
+                int start = pos + hdrSize;
+                pos = start + len;
+                if (len < 4) {
+                    mErrors++;
+                    continue;
+                }
+
+                // Decode the payload (the limit protects from reading the next entry)
+                buff.limit(pos);
+                buff.position(start);
+                try {
+                    int tagId = buff.getInt();
+                    Object value = buff.hasRemaining() ? readValue(buff) : null;
+                    listener.onEvent(sec, nsec, pid, tid, tagId, value);
+                } catch (BufferUnderflowException e) {
+                    mErrors++;
+                } catch (IllegalArgumentException e) {
+                    mErrors++;
+                }
+                buff.limit(size);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int getHeaderSize(int hdrSize) {
+        if (hdrSize == 0) return HDR_SIZE_V1; // version 1 (the field is padding)
+        if (hdrSize < HDR_SIZE_V1 || hdrSize > 64) return -1;
+        return hdrSize;
+    }
+
+    private Object readValue(ByteBuffer buff) {
+        int type = buff.get();
+        switch (type) {
+            case TYPE_INT:
+                return buff.getInt();
+            case TYPE_LONG:
+                return buff.getLong();
+            case TYPE_FLOAT:
+                return buff.getFloat();
+            case TYPE_STRING: {
+                int len = buff.getInt();
+                if (len < 0 || len > buff.remaining()) throw new BufferUnderflowException();
+                byte data[] = new byte[len];
+                buff.get(data);
+                return decodeString(data);
+            }
+            case TYPE_LIST: {
+                int cnt = buff.get() & 0xff;
+                Object ret[] = new Object[cnt];
+                for (int i = 0; i < cnt; i++) {
+                    ret[i] = readValue(buff);
+                }
+                return ret;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    private static String decodeString(byte data[]) {
+        try {
+            return new String(data, "UTF-8");
+        } catch (IOException e) {
+            return new String(data); // cannot happen, UTF-8 is always supported
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.plugins.StackTracePlugin.Process;
+import com.sonyericsson.chkbugreport.plugins.StackTracePlugin.StackTrace;
+import com.sonyericsson.chkbugreport.util.IntArray;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+/**
+ * Finds the deadlocks in a set of processes, i.e. the cycles in the wait-for graph.
+ * The nodes are the threads, and each thread has an edge to the thread it's waiting on:
+ * either the owner of the monitor it's trying to lock (in the same process), or the thread
+ * handling its binder transaction (possibly in another process).
+ * All the cycles are found in a single pass with Tarjan's strongly connected components
+ * algorithm (implemented without recursion), so each thread and edge is visited only once.
+ * The detectors don't share any state, so several of them can be run in parallel.
+ */
+class DeadlockDetector implements Callable<Vector<Vector<StackTrace>>> {
+
+    private Vector<StackTrace> mNodes = new Vector<StackTrace>();
+    private IntIntMap mSysTidToNode = new IntIntMap();
+    private IntArray mEdgeFrom = new IntArray();
+    private IntArray mEdgeTo = new IntArray();
+
+    /**
+     * Adds all the threads of the process, and the edges between the threads waiting
+     * on a monitor and the owner of the monitor.
+     */
+    public void addProcess(Process p) {
+        int base = mNodes.size();
+        int cnt = p.getCount();
+        for (int i = 0; i < cnt; i++) {
+            StackTrace stack = p.get(i);
+            mNodes.add(stack);
+            int sysTid = stack.getSysTid();
+            if (sysTid > 0) {
+                mSysTidToNode.put(sysTid, base + i);
+            }
+        }
+        for (int i = 0; i < cnt; i++) {
+            int waitOn = p.get(i).getWaitOn();
+            if (waitOn < 0) continue;
+            int idx = p.indexOf(waitOn);
+            if (idx >= 0) {
+                addEdge(base + i, base + idx);
+            }
+        }
+    }
+
+    /**
+     * Adds an edge from the thread which made a synchronous binder call to the thread
+     * handling the call. Threads without stack trace are ignored.
+     * @param fromSysTid The linux thread id of the caller
+     * @param toSysTid The linux thread id of the thread handling the call
+     */
+    public void addBinderCall(int fromSysTid, int toSysTid) {
+        int from = mSysTidToNode.get(fromSysTid, -1);
+        int to = mSysTidToNode.get(toSysTid, -1);
+        if (from >= 0 && to >= 0) {
+            addEdge(from, to);
+        }
+    }
+
+    private void addEdge(int from, int to) {
+        mEdgeFrom.add(from);
+        mEdgeTo.add(to);
+    }
+
+    /**
+     * Returns the deadlocks. Each deadlock is the list of threads in the cycle (in the
+     * order they were added), and the deadlocks are sorted by their first thread.
+     */
+    @Override
+    public Vector<Vector<StackTrace>> call() {
+        int n = mNodes.size();
+        int edgeCnt = mEdgeFrom.size();
+
+        // Group the edges by the source node
+        int start[] = new int[n + 1];
+        for (int i = 0; i < edgeCnt; i++) {
+            start[mEdgeFrom.get(i) + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        int targets[] = new int[edgeCnt];
+        int fill[] = Arrays.copyOf(start, n);
+        for (int i = 0; i < edgeCnt; i++) {
+            targets[fill[mEdgeFrom.get(i)]++] = mEdgeTo.get(i);
+        }
+
+        // Tarjan's algorithm, using an explicit call stack
+        Vector<int[]> sccs = new Vector<int[]>();
+        int index[] = new int[n];
+        int low[] = new int[n];
+        boolean onStack[] = new boolean[n];
+        Arrays.fill(index, -1);
+        IntArray stack = new IntArray();
+        int callNode[] = new int[n];
+        int callEdge[] = new int[n];
+        int nextIndex = 0;
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0 || start[root] == start[root + 1]) continue;
+            int sp = 0;
+            index[root] = low[root] = nextIndex++;
+            stack.add(root);
+            onStack[root] = true;
+            callNode[sp] = root;
+            callEdge[sp] = start[root];
+            sp++;
+            while (sp > 0) {
+                int v = callNode[sp - 1];
+                int e = callEdge[sp - 1];
+                if (e < start[v + 1]) {
+                    callEdge[sp - 1]++;
+                    int w = targets[e];
+                    if (index[w] < 0) {
+                        index[w] = low[w] = nextIndex++;
+                        stack.add(w);
+                        onStack[w] = true;
+                        callNode[sp] = w;
+                        callEdge[sp] = start[w];
+                        sp++;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                sp--;
+                if (sp > 0) {
+                    int u = callNode[sp - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    IntArray scc = new IntArray();
+                    int w;
+                    do {
+                        w = stack.pop(-1);
+                        onStack[w] = false;
+                        scc.add(w);
+                    } while (w != v);
+                    if (scc.size() > 1 || hasEdge(start, targets, v, v)) {
+                        int nodes[] = scc.toArray();
+                        Arrays.sort(nodes);
+                        sccs.add(nodes);
+                    }
+                }
+            }
+        }
+
+        // Sort the deadlocks by their first thread, so the output doesn't depend on the traversal
+        int order[][] = sccs.toArray(new int[sccs.size()][]);
+        Arrays.sort(order, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] - b[0];
+            }
+        });
+        Vector<Vector<StackTrace>> ret = new Vector<Vector<StackTrace>>();
+        for (int nodes[] : order) {
+            Vector<StackTrace> deadlock = new Vector<StackTrace>();
+            for (int node : nodes) {
+                deadlock.add(mNodes.get(node));
+            }
+            ret.add(deadlock);
+        }
+        return ret;
+    }
+
+    private static boolean hasEdge(int start[], int targets[], int from, int to) {
+        for (int i = start[from]; i < start[from + 1]; i++) {
+            if (targets[i] == to) return true;
+        }
+        return false;
+    }
+
+}
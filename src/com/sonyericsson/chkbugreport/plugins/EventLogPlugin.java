@@ -21,10 +21,14 @@ package com.sonyericsson.chkbugreport.plugins;
 import com.sonyericsson.chkbugreport.Bug;
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Section;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.Downsampler;
+import com.sonyericsson.chkbugreport.util.IntArray;
+import com.sonyericsson.chkbugreport.util.LogLinearHistogram;
 
 import java.awt.Color;
 import java.awt.FontMetrics;
@@ -35,9 +39,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Vector;
 
@@ -55,6 +63,12 @@ public class EventLogPlugin extends LogPlugin {
     private static final int TAG_CONTENT_UPDATE_SAMPLE = 52003;
     private static final int TAG_BINDER_SAMPLE = 52004;
 
+    /** The maximum number of items shown on the sample statistics charts */
+    private static final int MAX_STATS_CHART_ROWS = 25;
+
+    /** The maximum number of lock contention entries shown in the process records */
+    private static final int MAX_LOCK_CONTENTION_PER_PROC = 10;
+
     private HashMap<String, MLLStat> mMLL = new HashMap<String, EventLogPlugin.MLLStat>();
     private Vector<ALTStat> mALT = new Vector<ALTStat>();
     /* db_sample stats */
@@ -65,12 +79,20 @@ public class EventLogPlugin extends LogPlugin {
     private HashMap<String, DBStat> mCUStats = new HashMap<String, EventLogPlugin.DBStat>();
     /* content_query_sample + content_update_stats */
     private HashMap<String, DBStat> mCTStats = new HashMap<String, EventLogPlugin.DBStat>();
+    /* binder_sample stats */
+    private HashMap<String, DBStat> mBinderStats = new HashMap<String, EventLogPlugin.DBStat>();
+    /* dvm_lock_sample stats */
+    private HashMap<String, DBStat> mLockStats = new HashMap<String, EventLogPlugin.DBStat>();
     /* Activity manager events */
     private Vector<AMData> mAMDatas = new Vector<AMData>();
     /* The next fake pid which can be allocated */
     private int mNextFakePid = 100000;
-    /* The collection of *_sample data */
-    private HashMap<String, Vector<SampleData>> mSDs = new HashMap<String, Vector<SampleData>>();
+    /* The lock contention collected from the dvm_lock_sample logs */
+    private LockContention mLocks = new LockContention();
+    /* The *_sample data, downsampled per event type and name */
+    private HashMap<String, SampleSeries> mSDs = new HashMap<String, SampleSeries>();
+    /* The number of buckets the *_sample data is downsampled to (the width of the graph) */
+    private static final int SAMPLE_GRAPH_W = 600;
 
     public EventLogPlugin() {
         super("Event", "event", Section.EVENT_LOG);
@@ -89,23 +111,99 @@ public class EventLogPlugin extends LogPlugin {
         mCQStats.clear();
         mCUStats.clear();
         mCTStats.clear();
+        mBinderStats.clear();
+        mLockStats.clear();
+        mLocks.clear();
         mAMDatas.clear();
         mNextFakePid = 100000;
         mSDs.clear();
         super.load(br);
     }
 
+    /**
+     * Exports the event log lines, and also the values of the events into the
+     * "event_fields" table (one row per value, linked to the log line by line_id).
+     */
+    @Override
+    protected void exportIntoDB(DBExporter db) {
+        super.exportIntoDB(db);
+        DBExporter.Table tbl = db.createTable("event_fields", "line_id int", "idx int", "value varchar");
+        tbl.addIndex("line_id");
+        int cnt = getParsedLineCount();
+        for (int i = 0; i < cnt; i++) {
+            LogLine sl = getParsedLine(i);
+            if (sl.ok && sl.fields != null) {
+                for (int j = 0; j < sl.fields.length; j++) {
+                    tbl.insert(i, j, sl.fields[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the binary event log (if one was specified). The tag ids are resolved with
+     * the event-log-tags file, and the typed values are stored directly in the fields.
+     */
+    @Override
+    protected boolean loadDecodedLines(final BugReport br, final Vector<LogLine> out) {
+        String fileName = br.getEventLogBinFile();
+        if (fileName == null) {
+            return false;
+        }
+
+        // Load the tag names
+        final EventTags tags = new EventTags();
+        String tagsFile = br.getEventTagsFile();
+        if (tagsFile == null) {
+            File f = new File(new File(fileName).getAbsoluteFile().getParentFile(), "event-log-tags");
+            if (f.isFile()) {
+                tagsFile = f.getPath();
+            }
+        }
+        if (tagsFile == null) {
+            br.printErr(TAG + "No event-log-tags file found, the events cannot be identified by name");
+        } else {
+            try {
+                tags.load(tagsFile);
+            } catch (IOException e) {
+                br.printErr(TAG + "Error reading event-log-tags file " + tagsFile + ": " + e);
+            }
+        }
+
+        // Decode the events
+        BinaryEventLogReader reader = new BinaryEventLogReader(fileName);
+        final Calendar cal = Calendar.getInstance();
+        try {
+            reader.read(new BinaryEventLogReader.Listener() {
+                @Override
+                public void onEvent(int sec, int nsec, int pid, int tid, int tagId, Object value) {
+                    String tag = tags.getName(tagId);
+                    if (tag == null) {
+                        tag = Integer.toString(tagId);
+                    }
+                    cal.setTimeInMillis(sec * 1000L + nsec / 1000000);
+                    out.add(new LogLine(br, cal, pid, tag, tagId, value));
+                }
+            });
+        } catch (IOException e) {
+            br.printErr(TAG + "Error reading binary event log " + fileName + ": " + e);
+            return false;
+        }
+        if (reader.getErrors() > 0) {
+            br.printErr(TAG + reader.getErrors() + " corrupted entries in binary event log " + fileName);
+        }
+        return true;
+    }
+
     @Override
     protected void generateExtra(BugReport rep, Chapter ch) {
         BugReport br = (BugReport)rep;
 
-        // Collect *_sample data in statistics
-        collectSampleStats();
-
         // Finish sub-chapters
         finishMainLoopLatency(br, ch);
         finishActivityLaunchTime(br, ch);
         finishDBStats(br, ch);
+        generateLockContention(br, ch);
         generateAMGraphs(br, ch);
         generateSampleDataGraphs(br, ch);
     }
@@ -327,17 +425,17 @@ public class EventLogPlugin extends LogPlugin {
             String name = null;
             if (eventType.equals("dvm_lock_sample")) {
                 // This is a bit different
-                duration = Integer.parseInt(sl.fields[fieldCount-2]);
+                duration = Integer.parseInt(sl.fields[getLockSampleTimeIdx(fieldCount)]);
                 perc = Integer.parseInt(sl.fields[fieldCount-1]);
                 name = sl.fields[0];
+                addLockContention(sl, false);
             } else {
                 duration = Integer.parseInt(sl.fields[fieldCount-3]);
                 perc = Integer.parseInt(sl.fields[fieldCount-1]);
                 name = sl.fields[0];
                 name = fixSampleDataName(name);
             }
-            SampleData sd = new SampleData(sl.ts, sl.pid, name, duration, perc);
-            addSampleData(eventType, sd);
+            addSampleData(eventType, sl, name, duration, perc);
         } catch (NumberFormatException e) {
             br.printErr(TAG + "addSampleData(eventType=" + eventType + "):" + e);
         }
@@ -356,29 +454,92 @@ public class EventLogPlugin extends LogPlugin {
         return name;
     }
 
-    private void addSampleData(String eventType, SampleData sd) {
-        Vector<SampleData> sds = mSDs.get(eventType);
-        if (sds == null) {
-            sds = new Vector<SampleData>();
-            mSDs.put(eventType, sds);
-        }
-        sds.add(sd);
+    /**
+     * Adds a sample to the downsampled graph data and to the statistics right away,
+     * so the individual samples don't need to be kept
+     */
+    private void addSampleData(String eventType, LogLine sl, String name, int duration, int perc) {
+        SampleSeries series = mSDs.get(eventType);
+        if (series == null) {
+            series = new SampleSeries();
+            mSDs.put(eventType, series);
+        }
+        Downsampler ds = series.names.get(name);
+        if (ds == null) {
+            ds = new Downsampler(getFirstTs(), getLastTs(), SAMPLE_GRAPH_W);
+            series.names.put(name, ds);
+        }
+        ds.addInterval(sl.ts - duration, sl.ts, perc);
+        series.count++;
+        addSampleStats(eventType, sl.pid, name, duration);
+    }
+
+    private void addSampleStats(String eventType, int pid, String name, int duration) {
+        if ("db_sample".equals(eventType)) {
+            addDBData(pid, name, duration, mDBStats);
+        } else if ("content_query_sample".equals(eventType)) {
+            addDBData(pid, name, duration, mCQStats);
+            addDBData(pid, name, duration, mCTStats);
+        } else if ("content_update_sample".equals(eventType)) {
+            addDBData(pid, name, duration, mCUStats);
+            addDBData(pid, name, duration, mCTStats);
+        } else if ("binder_sample".equals(eventType)) {
+            addDBData(pid, name, duration, mBinderStats);
+        }
+        // The lock contention stats are collected per lock site in addLockContention
     }
 
     private void addDvmLockSampleDataC(Report br, String eventType, LogLine sl) {
         int fieldCount = sl.fields.length;
         if (fieldCount < 4) return; // cannot handle these
         try {
-            int duration = extractIntValueFromCrashLogField(sl.fields[fieldCount-2]);
+            int duration = extractIntValueFromCrashLogField(sl.fields[getLockSampleTimeIdx(fieldCount)]);
             int perc = extractIntValueFromCrashLogField(sl.fields[fieldCount-1]);
             String name = extractValueFromCrashLogField(sl.fields[0]);
-            SampleData sd = new SampleData(sl.ts, sl.pid, name, duration, perc);
-            addSampleData(eventType, sd);
+            addSampleData(eventType, sl, name, duration, perc);
+            addLockContention(sl, true);
         } catch (NumberFormatException e) {
             br.printErr(TAG + "addSampleData(eventType=" + eventType + "):" + e);
         }
     }
 
+    /**
+     * Returns the index of the wait time in the fields of the dvm_lock_sample logs, which are:
+     * process, main thread flag, thread, wait time, file, line, [owner file, owner line,] sample percent
+     */
+    private int getLockSampleTimeIdx(int fieldCount) {
+        // Older, unknown formats: keep the old guess
+        return fieldCount >= 7 ? 3 : fieldCount - 2;
+    }
+
+    /**
+     * Adds a dvm_lock_sample log to the lock contention profile, and to the
+     * duration statistics of the site where the thread was waiting
+     * @param sl The log line (the fields are described at getLockSampleTimeIdx)
+     * @param crash True if the fields are in the format of the crash tool
+     */
+    private void addLockContention(LogLine sl, boolean crash) {
+        int fieldCount = sl.fields.length;
+        if (fieldCount < 7) return; // unknown format
+        String ownerFile = null;
+        int ownerLine = 0;
+        if (fieldCount >= 9) {
+            ownerFile = getLockSampleField(sl, 6, crash);
+            ownerLine = Integer.parseInt(getLockSampleField(sl, 7, crash));
+        }
+        boolean main = "1".equals(getLockSampleField(sl, 1, crash));
+        int wait = Integer.parseInt(getLockSampleField(sl, 3, crash));
+        int line = Integer.parseInt(getLockSampleField(sl, 5, crash));
+        LockContention.Entry entry = mLocks.add(sl.pid, getLockSampleField(sl, 0, crash), main,
+                getLockSampleField(sl, 4, crash), line, ownerFile, ownerLine, wait);
+        addDBData(sl.pid, entry.getWaiterSite(), wait, mLockStats);
+    }
+
+    private String getLockSampleField(LogLine sl, int idx, boolean crash) {
+        String s = sl.fields[idx];
+        return crash ? extractValueFromCrashLogField(s) : s;
+    }
+
     private void addGenericSampleDataC(Report br, String eventType, LogLine sl) {
         int fieldCount = sl.fields.length;
         if (fieldCount < 4) return; // cannot handle these
@@ -387,8 +548,7 @@ public class EventLogPlugin extends LogPlugin {
             int perc = extractIntValueFromCrashLogField(sl.fields[fieldCount-1]);
             String name = extractValueFromCrashLogField(sl.fields[0]);
             name = fixSampleDataName(name);
-            SampleData sd = new SampleData(sl.ts, sl.pid, name, duration, perc);
-            addSampleData(eventType, sd);
+            addSampleData(eventType, sl, name, duration, perc);
         } catch (NumberFormatException e) {
             br.printErr(TAG + "addSampleData(eventType=" + eventType + "):" + e);
         }
@@ -620,23 +780,6 @@ public class EventLogPlugin extends LogPlugin {
         chALT.addLine("<table>");
     }
 
-    private void collectSampleStats() {
-        collectSampleStats("db_sample", mDBStats);
-        collectSampleStats("content_query_sample", mCQStats);
-        collectSampleStats("content_query_sample", mCTStats);
-        collectSampleStats("content_update_sample", mCUStats);
-        collectSampleStats("content_update_sample", mCTStats);
-    }
-
-
-    private void collectSampleStats(String eventType, HashMap<String, DBStat> stats) {
-        Vector<SampleData> datas = mSDs.get(eventType);
-        if (datas == null) return;
-        for (SampleData sd : datas) {
-            addDBData(sd.pid, sd.name, sd.duration, stats);
-        }
-    }
-
     private void addDBData(int pid, String db, int time, HashMap<String, DBStat> stats) {
         DBStat stat = stats.get(db);
         if (stat == null) {
@@ -649,31 +792,42 @@ public class EventLogPlugin extends LogPlugin {
         if (time > stat.maxTime) {
             stat.maxTime = time;
         }
+        stat.times.add(time);
         if (!stat.pids.contains(pid)) {
             stat.pids.add(pid);
         }
     }
 
     private void finishDBStats(BugReport br, Chapter ch) {
-        writeDBStats(mDBStats, "Stats - Direct DB access", br, ch);
-        writeDBStats(mCQStats, "Stats - Content query", br, ch);
-        writeDBStats(mCUStats, "Stats - Content update", br, ch);
-        writeDBStats(mCTStats, "Stats - Content query + update", br, ch);
+        writeDBStats(mDBStats, "Stats - Direct DB access", "Database", "db", br, ch);
+        writeDBStats(mCQStats, "Stats - Content query", "Database", "cq", br, ch);
+        writeDBStats(mCUStats, "Stats - Content update", "Database", "cu", br, ch);
+        writeDBStats(mCTStats, "Stats - Content query + update", "Database", "ct", br, ch);
+        writeDBStats(mBinderStats, "Stats - Binder calls", "Interface", "binder", br, ch);
+        writeDBStats(mLockStats, "Stats - Lock contention", "Waiting at", "lock", br, ch);
     }
 
-    private void writeDBStats(HashMap<String,DBStat> stats, String title, BugReport br, Chapter ch) {
+    private void writeDBStats(HashMap<String,DBStat> stats, String title, String keyName, String id, BugReport br, Chapter ch) {
         if (stats.size() == 0) return;
 
         Chapter chDB = new Chapter(br, title);
         ch.addChapter(chDB);
+        String fn = br.getRelDataDir() + "sample_stats_" + id + ".png";
+        if (writeDBStatsChart(br, fn, stats)) {
+            chDB.addLine("<p>Duration percentiles of the slowest items (ordered by the 99th percentile, on a logarithmic scale):</p>");
+            chDB.addLine("<div><img src=\"" + fn + "\"/></div>");
+        }
         chDB.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data. Shift+click to sort on multiple columns.)</div>");
         chDB.addLine("<table class=\"mll tablesorter\">");
         chDB.addLine("<thead>");
         chDB.addLine("<tr>");
-        chDB.addLine("<th>Database</td>");
+        chDB.addLine("<th>" + keyName + "</td>");
         chDB.addLine("<th>Total(ms)</td>");
         chDB.addLine("<th>Max(ms)</td>");
         chDB.addLine("<th>Avg(ms)</td>");
+        chDB.addLine("<th>P50(ms)</td>");
+        chDB.addLine("<th>P90(ms)</td>");
+        chDB.addLine("<th>P99(ms)</td>");
         chDB.addLine("<th>Samples</td>");
         chDB.addLine("<th>Pids</td>");
         chDB.addLine("</tr>");
@@ -684,10 +838,13 @@ public class EventLogPlugin extends LogPlugin {
         for (DBStat db : stats.values()) {
             odd = !odd;
             chDB.addLine("<tr class=\"mll-" + (odd ? "odd" : "even") + "\">");
-            chDB.addLine("<td>" + db.db + "</td>");
+            chDB.addLine("<td>" + Util.escape(db.db) + "</td>");
             chDB.addLine("<td>" + db.totalTime + "</td>");
             chDB.addLine("<td>" + db.maxTime + "</td>");
             chDB.addLine("<td>" + (db.totalTime / db.count) + "</td>");
+            chDB.addLine("<td>" + db.times.getPercentile(50) + "</td>");
+            chDB.addLine("<td>" + db.times.getPercentile(90) + "</td>");
+            chDB.addLine("<td>" + db.times.getPercentile(99) + "</td>");
             chDB.addLine("<td>" + db.count + "</td>");
             chDB.addLine("<td>");
             for (int pid : db.pids) {
@@ -701,6 +858,183 @@ public class EventLogPlugin extends LogPlugin {
         chDB.addLine("<table>");
     }
 
+    /**
+     * Creates a chart with the max and the 50th, 90th and 99th percentiles of the
+     * slowest items (ordered by the 99th percentile)
+     */
+    private boolean writeDBStatsChart(BugReport br, String fn, HashMap<String,DBStat> stats) {
+        Vector<DBStat> list = new Vector<DBStat>(stats.values());
+        Collections.sort(list, new Comparator<DBStat>() {
+            @Override
+            public int compare(DBStat o1, DBStat o2) {
+                long d = o2.times.getPercentile(99) - o1.times.getPercentile(99);
+                if (d != 0) return d < 0 ? -1 : 1;
+                return o2.count - o1.count;
+            }
+        });
+        int cnt = Math.min(MAX_STATS_CHART_ROWS, list.size());
+        long maxTime = 1;
+        for (int i = 0; i < cnt; i++) {
+            maxTime = Math.max(maxTime, list.get(i).maxTime);
+        }
+        // The time axis is logarithmic, from 1ms up to the next power of ten
+        int decades = 1;
+        for (long v = 10; v < maxTime; v *= 10) {
+            decades++;
+        }
+
+        FontMetrics fm = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB).getGraphics().getFontMetrics();
+        int lh = Math.max(16, fm.getHeight());
+        int nameW = 0;
+        for (int i = 0; i < cnt; i++) {
+            nameW = Math.max(nameW, fm.stringWidth(list.get(i).db));
+        }
+        nameW = Math.min(nameW, 400);
+        int gx = nameW + 20;
+        int gw = 500;
+        int gy = 10 + 2 * lh;
+        int w = gx + gw + 20;
+        int h = gy + cnt * lh + lh + 10;
+
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = (Graphics2D)img.getGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, w, h);
+        g.setColor(Color.LIGHT_GRAY);
+        g.drawRect(0, 0, w - 1, h - 1);
+
+        // Draw the legend
+        String labels[] = { "max", "p99", "p90", "p50" };
+        Color colors[] = { new Color(0xe0e0e0), new Color(0xff8080), new Color(0xffc040), new Color(0x40c040) };
+        int lx = gx;
+        for (int i = 0; i < labels.length; i++) {
+            g.setColor(colors[i]);
+            g.fillRect(lx, 10, lh - 4, lh - 4);
+            g.setColor(Color.BLACK);
+            g.drawString(labels[i], lx + lh, 10 + fm.getAscent());
+            lx += lh + fm.stringWidth(labels[i]) + 20;
+        }
+
+        // Draw the guide lines and the labels of the time axis
+        int axisY = gy + cnt * lh;
+        Color colGuide = new Color(0xc0c0ff);
+        for (int i = 0; i <= decades; i++) {
+            int x = gx + i * gw / decades;
+            g.setColor(colGuide);
+            g.drawLine(x, gy, x, axisY);
+            g.setColor(Color.BLACK);
+            String s = (long)Math.pow(10, i) + "ms";
+            g.drawString(s, x - fm.stringWidth(s) / 2, axisY + fm.getAscent() + 2);
+        }
+
+        // Draw the bars (the smaller values on top of the bigger ones)
+        for (int i = 0; i < cnt; i++) {
+            DBStat db = list.get(i);
+            int y = gy + i * lh;
+            long values[] = { db.maxTime, db.times.getPercentile(99), db.times.getPercentile(90), db.times.getPercentile(50) };
+            for (int j = 0; j < values.length; j++) {
+                int bw = (int)(gw * Math.log10(Math.max(1, values[j])) / decades);
+                g.setColor(colors[j]);
+                g.fillRect(gx, y + 2, Math.max(1, bw), lh - 4);
+            }
+            g.setColor(Color.BLACK);
+            g.setClip(0, 0, gx - 10, h);
+            g.drawString(db.db, 10, y + (lh - fm.getHeight()) / 2 + fm.getAscent());
+            g.setClip(null);
+        }
+        g.setColor(Color.BLACK);
+        g.drawLine(gx, gy, gx, axisY);
+        g.drawLine(gx, axisY, gx + gw, axisY);
+
+        try {
+            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
+        } catch (IOException e) {
+            br.printErr(TAG + "Error saving sample statistics chart: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    private void generateLockContention(BugReport br, Chapter mainCh) {
+        if (mLocks.isEmpty()) return;
+
+        Chapter ch = new Chapter(br, "Lock contention");
+        mainCh.addChapter(ch);
+        String anchor = getId() + "elog_lockcont";
+        ch.addLine("<a name=\"" + anchor + "\"></a>");
+        ch.addLine("<p>Lock contention collected from the dvm_lock_sample logs, grouped by process, by the location " +
+                "where the thread was waiting and by the location where the lock was held (only a sample of the " +
+                "contentions is logged, the longer ones with higher probability).</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data. Shift+click to sort on multiple columns.)</div>");
+        ch.addLine("<table class=\"mll tablesorter\">");
+        ch.addLine("<thead>");
+        ch.addLine("<tr>");
+        ch.addLine("<th>Process</td>");
+        ch.addLine("<th>Waiting at</td>");
+        ch.addLine("<th>Lock held at</td>");
+        ch.addLine("<th>Total(ms)</td>");
+        ch.addLine("<th>Max(ms)</td>");
+        ch.addLine("<th>Avg(ms)</td>");
+        ch.addLine("<th>Samples</td>");
+        ch.addLine("<th>Main thread(%)</td>");
+        ch.addLine("<th>Pids</td>");
+        ch.addLine("</tr>");
+        ch.addLine("</thead>");
+        ch.addLine("<tbody>");
+
+        Vector<LockContention.Entry> entries = mLocks.getEntries();
+        HashMap<Integer, Vector<LockContention.Entry>> perPid = new HashMap<Integer, Vector<LockContention.Entry>>();
+        boolean odd = false;
+        for (LockContention.Entry entry : entries) {
+            odd = !odd;
+            ch.addLine("<tr class=\"mll-" + (odd ? "odd" : "even") + "\">");
+            ch.addLine("<td>" + Util.escape(entry.getProcess()) + "</td>");
+            ch.addLine("<td>" + Util.escape(entry.getWaiterSite()) + "</td>");
+            ch.addLine("<td>" + Util.escape(entry.getOwnerSite()) + "</td>");
+            ch.addLine("<td>" + entry.getTotalWait() + "</td>");
+            ch.addLine("<td>" + entry.getMaxWait() + "</td>");
+            ch.addLine("<td>" + (entry.getTotalWait() / entry.getCount()) + "</td>");
+            ch.addLine("<td>" + entry.getCount() + "</td>");
+            ch.addLine("<td>" + entry.getMainThreadShare() + "</td>");
+            ch.addLine("<td>");
+            IntArray pids = entry.getPids();
+            for (int i = 0; i < pids.size(); i++) {
+                int pid = pids.get(i);
+                ch.addLine("<a href=\"" + br.createLinkToProcessRecord(pid) + "\">" + pid + "</a> ");
+                Vector<LockContention.Entry> list = perPid.get(pid);
+                if (list == null) {
+                    list = new Vector<LockContention.Entry>();
+                    perPid.put(pid, list);
+                }
+                list.add(entry);
+            }
+            ch.addLine("</td>");
+            ch.addLine("</tr>");
+        }
+        ch.addLine("</tbody>");
+        ch.addLine("</table>");
+
+        // Add the worst contentions to the process records as well
+        String link = br.createLinkTo(getChapter(), anchor);
+        for (Entry<Integer, Vector<LockContention.Entry>> item : perPid.entrySet()) {
+            ProcessRecord pr = br.getProcessRecord(item.getKey(), true, true);
+            Vector<LockContention.Entry> list = item.getValue();
+            pr.beginBlock();
+            pr.addLine("<p>Lock contention from the dvm_lock_sample logs (<a href=\"" + link + "\">see all</a>):</p>");
+            pr.addLine("<table class=\"mll\">");
+            pr.addLine("<tr><th>Waiting at</th><th>Lock held at</th><th>Total(ms)</th><th>Max(ms)</th><th>Samples</th><th>Main thread(%)</th></tr>");
+            int cnt = Math.min(MAX_LOCK_CONTENTION_PER_PROC, list.size());
+            for (int i = 0; i < cnt; i++) {
+                LockContention.Entry entry = list.get(i);
+                pr.addLine("<tr><td>" + Util.escape(entry.getWaiterSite()) + "</td><td>" + Util.escape(entry.getOwnerSite()) + "</td><td>" +
+                        entry.getTotalWait() + "</td><td>" + entry.getMaxWait() + "</td><td>" + entry.getCount() +
+                        "</td><td>" + entry.getMainThreadShare() + "</td></tr>");
+            }
+            pr.addLine("</table>");
+            pr.endBlock();
+        }
+    }
+
     private int findLevel(int value, int[] levels) {
         int cnt = levels.length;
         for (int i = 0; i < cnt; i++) {
@@ -731,26 +1065,32 @@ public class EventLogPlugin extends LogPlugin {
         Chapter ch = new Chapter(br, "AM Graphs");
         mainCh.addChapter(ch);
 
+        // Index the positions of the logs per component, so finding the closest log
+        // of the same component doesn't need to scan all the logs
+        HashMap<String, int[]> compIdx = buildComponentIndex();
+
         // First, we must make sure that all data has a pid associated to it
         for (int i = 0; i < cnt; i++) {
             AMData am = mAMDatas.get(i);
             String component = am.getComponent();
             if (am.getPid() >= 0) continue;
             if (component == null) continue;
-            int pid = findPid(i, component);
+            int pid = findPid(i, compIdx.get(component));
             if (pid >= 0) {
                 am.setPid(pid);
             }
         }
 
         // Also, we must make sure that all data has a component associated to it
+        // (the pids are indexed only now, since the previous step changed them)
+        HashMap<Integer, int[]> pidIdx = buildPidIndex();
         for (int i = 0; i < cnt; i++) {
             AMData am = mAMDatas.get(i);
             String component = am.getComponent();
             int pid = am.getPid();
             if (pid < 0) continue;
             if (component != null) continue;
-            component = findComponent(i, pid);
+            component = findComponent(i, pidIdx.get(pid));
             if (component != null) {
                 am.setComponent(component);
             }
@@ -845,19 +1185,76 @@ public class EventLogPlugin extends LogPlugin {
         }
         ch.addLine("  </thead>");
         ch.addLine("  <tbody>");
+
+        // The charts are rendered one by one, into the same image, except the
+        // components with little activity, which are collected in a combined strip
+        Vector<AMChart> others = new Vector<AMChart>();
+        BufferedImage img = new BufferedImage(AMChart.W, AMChart.H, BufferedImage.TYPE_INT_RGB);
         for (AMChart chart : charts.values()) {
-            fn = chart.finish(br);
-            if (fn == null) continue;
-            ch.addLine("  <tr>");
-            ch.addLine("    <td>" + chart.getComponent() + "</td>");
-            ch.addLine("    <td><img src=\"" + fn + "\"/></td>");
-            ch.addLine("  </tr>");
+            int changes = chart.getChangeCount();
+            if (changes > 0 && changes <= AMChart.MAX_OTHER_CHANGES) {
+                others.add(chart);
+                continue;
+            }
+            addAMChart(br, ch, chart, img);
+        }
+        if (others.size() == 1) {
+            addAMChart(br, ch, others.get(0), img);
+        } else {
+            // The strip is split into tiles, so the images don't get too big
+            for (int i = 0; i < others.size(); i += AMChart.MAX_OTHER_PER_TILE) {
+                int end = Math.min(others.size(), i + AMChart.MAX_OTHER_PER_TILE);
+                List<AMChart> tile = others.subList(i, end);
+                fn = saveOtherAMCharts(br, tile, i / AMChart.MAX_OTHER_PER_TILE);
+                if (fn == null) continue;
+                ch.addLine("  <tr class=\"am-graph-other\">");
+                ch.addLine("    <td>");
+                for (AMChart chart : tile) {
+                    ch.addLine(chart.getComponent() + "<br/>");
+                }
+                ch.addLine("    </td>");
+                ch.addLine("    <td><img src=\"" + fn + "\"/></td>");
+                ch.addLine("  </tr>");
+            }
         }
         ch.addLine("  </tbody>");
         ch.addLine("</table>");
 
     }
 
+    private void addAMChart(Report br, Chapter ch, AMChart chart, BufferedImage img) {
+        String fn = chart.finish(br, img);
+        if (fn == null) return;
+        ch.addLine("  <tr>");
+        ch.addLine("    <td>" + chart.getComponent() + "</td>");
+        ch.addLine("    <td><img src=\"" + fn + "\"/></td>");
+        ch.addLine("  </tr>");
+    }
+
+    /**
+     * Renders the charts of the components with little activity in one image, one below the other
+     */
+    private String saveOtherAMCharts(Report br, List<AMChart> charts, int tile) {
+        int h = AMChart.H_OTHER;
+        BufferedImage img = new BufferedImage(AMChart.W, h * charts.size(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = (Graphics2D)img.getGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, img.getWidth(), img.getHeight());
+        for (int i = 0; i < charts.size(); i++) {
+            // Leave a gap between the components
+            charts.get(i).render(g, i * h + 1, h - 2);
+        }
+        g.dispose();
+        String fn = br.getRelDataDir() + "amchart_other_" + tile + ".png";
+        try {
+            ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
+        } catch (IOException e) {
+            br.printErr("Error saving chart: " + e);
+            return null;
+        }
+        return fn;
+    }
+
     private char getVCDState(int initState) {
         switch (initState) {
             case AMChart.STATE_ALIVE:
@@ -872,37 +1269,72 @@ public class EventLogPlugin extends LogPlugin {
     }
 
     /**
-     * Try to guess the pid of a given component
-     * @param i The index where to start searching
-     * @param component The component
-     * @return The found pid, or -1 if not found
+     * Collects the positions of the AM logs of each component (in increasing order)
      */
-    private int findPid(int i, String component) {
-        int pid = -1;
+    private HashMap<String, int[]> buildComponentIndex() {
+        HashMap<String, IntArray> tmp = new HashMap<String, IntArray>();
         int cnt = mAMDatas.size();
+        for (int i = 0; i < cnt; i++) {
+            String component = mAMDatas.get(i).getComponent();
+            if (component == null) continue;
+            IntArray list = tmp.get(component);
+            if (list == null) {
+                list = new IntArray();
+                tmp.put(component, list);
+            }
+            list.add(i);
+        }
+        HashMap<String, int[]> ret = new HashMap<String, int[]>();
+        for (Entry<String, IntArray> item : tmp.entrySet()) {
+            ret.put(item.getKey(), item.getValue().toArray());
+        }
+        return ret;
+    }
 
-        // Search backwards
-        if (pid == -1) {
-            for (int j = i - 1; j >= 0; j--) {
-                AMData am = mAMDatas.get(j);
-                if (component.equals(am.getComponent())) {
-                    pid = am.getPid();
-                    if (pid >= 0) {
-                        break;
-                    }
-                }
+    /**
+     * Collects the positions of the AM logs of each pid (in increasing order).
+     * Only the logs with known pid are indexed.
+     */
+    private HashMap<Integer, int[]> buildPidIndex() {
+        HashMap<Integer, IntArray> tmp = new HashMap<Integer, IntArray>();
+        int cnt = mAMDatas.size();
+        for (int i = 0; i < cnt; i++) {
+            int pid = mAMDatas.get(i).getPid();
+            if (pid < 0) continue;
+            IntArray list = tmp.get(pid);
+            if (list == null) {
+                list = new IntArray();
+                tmp.put(pid, list);
             }
+            list.add(i);
+        }
+        HashMap<Integer, int[]> ret = new HashMap<Integer, int[]>();
+        for (Entry<Integer, IntArray> item : tmp.entrySet()) {
+            ret.put(item.getKey(), item.getValue().toArray());
         }
+        return ret;
+    }
 
-        // Search forward
-        if (pid == -1) {
-            for (int j = i + 1; j < cnt; j++) {
-                AMData am = mAMDatas.get(j);
-                if (component.equals(am.getComponent())) {
-                    pid = am.getPid();
-                    if (pid >= 0) {
-                        break;
-                    }
+    /**
+     * Try to guess the pid of a given component
+     * @param i The index where to start searching
+     * @param positions The positions of the logs of the same component
+     * @return The found pid, or a new fake pid if not found
+     */
+    private int findPid(int i, int positions[]) {
+        int pid = -1;
+        int pos = Arrays.binarySearch(positions, i);
+
+        if (pos > 0) {
+            // Only the previous log of the same component must be checked: it was already
+            // searched (and it got a real or a fake pid), so the search would stop there anyway
+            pid = mAMDatas.get(positions[pos - 1]).getPid();
+        } else {
+            // The first log of the component: search forward
+            for (int j = pos + 1; j < positions.length; j++) {
+                pid = mAMDatas.get(positions[j]).getPid();
+                if (pid >= 0) {
+                    break;
                 }
             }
         }
@@ -921,26 +1353,18 @@ public class EventLogPlugin extends LogPlugin {
     /**
      * Try to guess the component of a given pid
      * @param i The index where to start searching
-     * @param pid The component
+     * @param positions The positions of the logs of the same pid
      * @return The found component, or null if not found
      */
-    private String findComponent(int i, int pid) {
-        String component = null;
-
-        // Search backwards only (since this method is used only for proc_died)
-        if (component == null) {
-            for (int j = i - 1; j >= 0; j--) {
-                AMData am = mAMDatas.get(j);
-                if (pid == am.getPid()) {
-                    component = am.getComponent();
-                    if (component != null) {
-                        break;
-                    }
-                }
-            }
-        }
-
-        return component;
+    private String findComponent(int i, int positions[]) {
+        // Search backwards only (since this method is used only for proc_died).
+        // Only the previous log of the same pid must be checked: if it has no component,
+        // then it was already searched for one, without success.
+        int pos = Arrays.binarySearch(positions, i);
+        if (pos <= 0) {
+            return null;
+        }
+        return mAMDatas.get(positions[pos - 1]).getComponent();
     }
 
     private int allocFakePid() {
@@ -950,10 +1374,10 @@ public class EventLogPlugin extends LogPlugin {
     private void generateSampleDataGraphs(Report br, Chapter mainCh) {
         Chapter ch = null;
 
-        for (Entry<String, Vector<SampleData>> entry : mSDs.entrySet()) {
+        for (Entry<String, SampleSeries> entry : mSDs.entrySet()) {
             String eventType = entry.getKey();
-            Vector<SampleData> sds = entry.getValue();
-            if (sds.size() <= 1) continue;
+            SampleSeries sds = entry.getValue();
+            if (sds.count <= 1) continue;
 
             // Create the chapter if not created yet
             if (ch == null) {
@@ -978,12 +1402,12 @@ public class EventLogPlugin extends LogPlugin {
         }
     }
 
-    private boolean generateSampleDataGraph(Report br, String fn, Vector<SampleData> sds, String eventType) {
+    private boolean generateSampleDataGraph(Report br, String fn, SampleSeries sds, String eventType) {
         int w = 800;
         int h = 350;
         int cx = 100;
         int cy = 250;
-        int gw = 600;
+        int gw = SAMPLE_GRAPH_W;
         int gh = 200;
         int nx = 750;
         int ny = 10;
@@ -998,19 +1422,14 @@ public class EventLogPlugin extends LogPlugin {
 
         // Allocate colors for each value
         // Also count the number of distinct values
-        HashMap<String, Color> mColors = new HashMap<String, Color>();
+        HashMap<String, Color> mColors = new LinkedHashMap<String, Color>();
         int idx = 0, lh = fm.getHeight();
         if (lh < 18) {
             lh = 18;
         }
-        for (SampleData sd : sds) {
-            String name = sd.name;
-            Color col = mColors.get(name);
-            if (col == null) {
-                int rgba = Util.getColor(idx++) | 0x40000000;
-                col = new Color(rgba, true);
-                mColors.put(name, col);
-            }
+        for (String name : sds.names.keySet()) {
+            int rgba = Util.getColor(idx++) | 0x40000000;
+            mColors.put(name, new Color(rgba, true));
             maxNameW = Math.max(maxNameW, fm.stringWidth(name));
         }
         w += maxNameW + 32;
@@ -1067,19 +1486,17 @@ public class EventLogPlugin extends LogPlugin {
             g.drawString(s, cx - fm.stringWidth(s) - 1, yv);
         }
 
-        // Plot the values (size)
+        // Plot the values (the highest sample percent in each column)
         long duration = (getLastTs() - getFirstTs());
         if (duration <= 0) return false;
-        for (SampleData sd : sds) {
-            int bh = sd.perc * (gh - 1) / max;
-            int bx = (int)((sd.ts - getFirstTs()) * (gw - 1) / duration);
-            int bw = (int)((sd.duration) * (gw - 1) / (getLastTs() - getFirstTs()));
-            if (bw < 3) {
-                bw = 3;
+        for (Entry<String, Downsampler> entry : sds.names.entrySet()) {
+            Downsampler ds = entry.getValue();
+            g.setColor(mColors.get(entry.getKey()));
+            for (int x = 0; x < ds.getWidth(); x++) {
+                if (!ds.hasData(x)) continue;
+                int bh = (int)ds.getMax(x) * (gh - 1) / max;
+                g.fillRect(cx + x, cy - bh, 1, bh);
             }
-            g.setColor(mColors.get(sd.name));
-            g.fillRect(cx + bx - bw, cy - bh, bw, bh);
-            g.drawRect(cx + bx - bw, cy - bh, bw - 1, bh - 1);
         }
 
         // Draw the time line
@@ -1098,77 +1515,47 @@ public class EventLogPlugin extends LogPlugin {
         return true;
     }
 
-    private boolean generateSampleDataVCD(Report br, String fn, Vector<SampleData> sds, String eventType) {
-        if (sds.size() == 0) return false;
-
-        // In the first pass we need to find the unique ids, and also generate a sorted
-        // list of events
-        HashMap<String, Integer> ids = new HashMap<String, Integer>();
-        Vector<SampleEvent> events = new Vector<SampleEvent>();
-        int idx = 0;
-        for (SampleData sd : sds) {
-            String name = sd.name;
-
-            // Associate an id to the name
-            Integer idObj = ids.get(name);
-            if (idObj == null) {
-                idObj = new Integer(idx++);
-                ids.put(name, idObj);
-            }
-
-            // Add the start and stop events
-            events.add(new SampleEvent(true, sd.ts - sd.duration, idObj));
-            events.add(new SampleEvent(false, sd.ts, idObj));
-        }
-
-        // Sort the events by timestamp
-        Collections.sort(events, new Comparator<SampleEvent>() {
-            @Override
-            public int compare(SampleEvent o1, SampleEvent o2) {
-                if (o1.ts < o2.ts) return -1;
-                if (o1.ts > o2.ts) return +1;
-                return 0;
-            }
-        });
+    private boolean generateSampleDataVCD(Report br, String fn, SampleSeries sds, String eventType) {
+        if (sds.count == 0) return false;
 
         // Save the file
         try {
             PrintStream ps = new PrintStream(new File(br.getBaseDir() + fn));
             int bits = 8;
+            int maxValue = (1 << bits) - 1;
 
             // Write header
             ps.println("$timescale 1ms $end");
             ps.println("$scope am_logs $end");
-            for (Entry<String, Integer> entry : ids.entrySet()) {
-                String name = entry.getKey();
-                int id = entry.getValue();
-                name = Util.fixVCDName(name);
-                ps.println("$var wire " + bits + " n" + id + " " + name + " $end");
+            int idx = 0;
+            for (String name : sds.names.keySet()) {
+                ps.println("$var wire " + bits + " n" + idx++ + " " + Util.fixVCDName(name) + " $end");
             }
             ps.println("$upscope $end");
             ps.println("$enddefinitions $end");
 
             // Write initial values
+            Downsampler series[] = sds.names.values().toArray(new Downsampler[idx]);
+            int count[] = new int[idx];
             long lastTs = getFirstTs();
             ps.println("#" + lastTs);
             for (int id = 0; id < idx; id++) {
                 ps.println("bZ n" + id);
             }
 
-            // Write events
-            int count[] = new int[idx];
-            for (SampleEvent event : events) {
-                if (event.ts != lastTs) {
-                    ps.println("#" + event.ts);
-                    lastTs = event.ts;
-                }
-                int id = event.id;
-                if (event.start) {
-                    count[id]++;
-                } else {
-                    count[id]--;
+            // Write the number of samples in each bucket (where it changes)
+            for (int x = 0; x < SAMPLE_GRAPH_W; x++) {
+                for (int id = 0; id < idx; id++) {
+                    int value = Math.min(maxValue, series[id].getCount(x));
+                    if (value == count[id]) continue;
+                    long ts = series[id].getBucketStart(x);
+                    if (ts != lastTs) {
+                        ps.println("#" + ts);
+                        lastTs = ts;
+                    }
+                    count[id] = value;
+                    ps.println("b" + (value == 0 ? "Z" : Util.toBinary(value, bits)) + " n" + id);
                 }
-                ps.println("b" + (count[id] == 0 ? "Z" : Util.toBinary(count[id], bits)) + " n" + id);
             }
 
             // Write final values
@@ -1187,15 +1574,13 @@ public class EventLogPlugin extends LogPlugin {
         }
     }
 
-    static class SampleEvent {
-        boolean start;
-        long ts;
-        int id;
-        public SampleEvent(boolean start, long ts, int id) {
-            this.start = start;
-            this.ts = ts;
-            this.id = id;
-        }
+    /**
+     * The *_sample data of one event type: the samples of each name are downsampled
+     * into a fixed number of buckets, so the memory use doesn't grow with the log size
+     */
+    static class SampleSeries {
+        int count;
+        LinkedHashMap<String, Downsampler> names = new LinkedHashMap<String, Downsampler>();
     }
 
     /**
@@ -1228,6 +1613,8 @@ public class EventLogPlugin extends LogPlugin {
         public int maxTime;
         public int count;
         public Vector<Integer> pids = new Vector<Integer>();
+        /** The distribution of the durations (for the percentiles) */
+        public LogLinearHistogram times = new LogLinearHistogram();
     }
 
     /**
@@ -1290,12 +1677,23 @@ public class EventLogPlugin extends LogPlugin {
     }
 
     /**
-     * Graph/chart generated from the activity managers life cycle logs
+     * Graph/chart generated from the activity managers life cycle logs.
+     * Only the state changes are stored (the x coordinate and the new state),
+     * the image is rendered when the chart is saved.
      */
     static class AMChart {
         public static final int W = 800;
         public static final int H = 25;
 
+        /** The height of one component in the combined strip of the components with little activity */
+        public static final int H_OTHER = 14;
+
+        /** Charts with at most this many state changes are rendered in the combined strip */
+        public static final int MAX_OTHER_CHANGES = 2;
+
+        /** The maximum number of components in one image of the combined strip */
+        public static final int MAX_OTHER_PER_TILE = 50;
+
         public static final int STATE_UNKNOWN = -1;
         public static final int STATE_NONE = 0;
         public static final int STATE_ALIVE = 1;
@@ -1310,23 +1708,16 @@ public class EventLogPlugin extends LogPlugin {
         };
 
         private String mComponent;
-        private BufferedImage mImg;
-        private Graphics2D mG;
         private long mTSStart;
         private long mTSEnd;
-        private int mLastX = 0;
-        private int mLastState = STATE_UNKNOWN;
         private int mInitState = STATE_UNKNOWN;
-        private int mUsed = 0;
+        private IntArray mChangeX = new IntArray();
+        private IntArray mChangeState = new IntArray();
 
         public AMChart(int pid, String component, long tsStart, long tsEnd) {
             mComponent = component;
             mTSStart = tsStart;
             mTSEnd = tsEnd;
-            mImg = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
-            mG = (Graphics2D)mImg.getGraphics();
-            mG.setColor(Color.WHITE);
-            mG.fillRect(0, 0, W, H);
         }
 
         public static int actionToState(int action) {
@@ -1356,57 +1747,78 @@ public class EventLogPlugin extends LogPlugin {
             }
 
             // First, try to guess the previous state
-            if (mLastState == STATE_UNKNOWN) {
+            if (mInitState == STATE_UNKNOWN) {
                 switch (am.getAction()) {
-                    case AMData.ON_CREATE: mLastState = STATE_ALIVE; break;
-                    case AMData.ON_DESTROY: mLastState = STATE_CREATED; break;
-                    case AMData.ON_PAUSE: mLastState = STATE_RESUMED; break;
-                    case AMData.ON_RESUME: mLastState = STATE_CREATED; break;
-                    case AMData.ON_RESTART: mLastState = STATE_ALIVE; break;
-                    case AMData.BORN: mLastState = STATE_NONE; break;
-                    case AMData.DIE: mLastState = STATE_ALIVE; break;
+                    case AMData.ON_CREATE: mInitState = STATE_ALIVE; break;
+                    case AMData.ON_DESTROY: mInitState = STATE_CREATED; break;
+                    case AMData.ON_PAUSE: mInitState = STATE_RESUMED; break;
+                    case AMData.ON_RESUME: mInitState = STATE_CREATED; break;
+                    case AMData.ON_RESTART: mInitState = STATE_ALIVE; break;
+                    case AMData.BORN: mInitState = STATE_NONE; break;
+                    case AMData.DIE: mInitState = STATE_ALIVE; break;
                 }
-                mInitState = mLastState;
             }
 
-            // Calculate the new state
+            // Store the state change
             int x = (int)(W * (am.getTS() - mTSStart) / (mTSEnd - mTSStart));
+            mChangeX.add(x);
+            mChangeState.add(state);
+        }
 
-            if (mLastState != STATE_UNKNOWN) {
-                // Render the state
-                drawState(x);
-            }
-
-            mLastX = x;
-            mLastState = state;
+        /**
+         * Returns the number of state changes (0 if there is nothing to render)
+         */
+        public int getChangeCount() {
+            return mChangeX.size();
         }
 
-        private void drawState(int x) {
-            if (mLastX >= x) {
-                mG.setColor(Color.YELLOW);
-                mG.fillRect(mLastX, 0, 1, H);
-            } else {
-                mG.setColor(STATE_COLORS[mLastState]);
-                mG.fillRect(mLastX + 1, 0, x - mLastX + 1, H);
+        /**
+         * Renders the chart into the given area of the image
+         */
+        public void render(Graphics2D g, int y, int h) {
+            if (mChangeX.isEmpty()) return;
+            int lastX = 0;
+            int lastState = mInitState;
+            int cnt = mChangeX.size();
+            for (int i = 0; i < cnt; i++) {
+                int x = mChangeX.get(i);
+                drawState(g, y, h, lastX, x, lastState);
+                lastX = x;
+                lastState = mChangeState.get(i);
             }
-            mUsed++;
+            drawState(g, y, h, lastX, W, lastState);
         }
 
-        public String finish(Report br) {
-            // Finish the rendering (render the last state)
-            if (mLastState != STATE_UNKNOWN) {
-                drawState(W);
+        private void drawState(Graphics2D g, int y, int h, int lastX, int x, int state) {
+            if (lastX >= x) {
+                g.setColor(Color.YELLOW);
+                g.fillRect(lastX, y, 1, h);
+            } else {
+                g.setColor(STATE_COLORS[state]);
+                g.fillRect(lastX + 1, y, x - lastX + 1, h);
             }
+        }
 
-            if (mUsed == 0) {
-                // Noting was rendered, so don't save the empty image
+        /**
+         * Renders the chart into the image (which is reused between the charts) and saves it
+         * @return The name of the saved image, or null if there was nothing to render
+         */
+        public String finish(Report br, BufferedImage img) {
+            if (mChangeX.isEmpty()) {
+                // Noting to render, so don't save the empty image
                 return null;
             }
 
+            Graphics2D g = (Graphics2D)img.getGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, W, H);
+            render(g, 0, H);
+            g.dispose();
+
             // Save the image
             String fn = br.getRelDataDir() + "amchart_" + hashCode() + ".png";
             try {
-                ImageIO.write(mImg, "png", new File(br.getBaseDir() + fn));
+                ImageIO.write(img, "png", new File(br.getBaseDir() + fn));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -1419,22 +1831,4 @@ public class EventLogPlugin extends LogPlugin {
 
     }
 
-    static class SampleData {
-
-        long ts;
-        int pid;
-        String name;
-        int duration;
-        int perc;
-
-        public SampleData(long ts, int pid, String name, int duration, int perc) {
-            this.ts = ts;
-            this.pid = pid;
-            this.name = name;
-            this.duration = duration;
-            this.perc = perc;
-        }
-
-    }
-
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.LineReader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * The names of the event log tags, as defined in the "event-log-tags" file
+ * (/system/etc/event-log-tags on the device). Each line of that file looks like:
+ * <pre>
+ * 2722 battery_level (level|1|6),(voltage|1|1),(temperature|1|1)
+ * </pre>
+ * Only the tag ids and names are used, the field descriptions are ignored.
+ */
+class EventTags {
+
+    private HashMap<Integer, String> mNames = new HashMap<Integer, String>();
+
+    /**
+     * Loads the tag names from the file
+     * @throws IOException if the file cannot be read
+     */
+    public void load(String fileName) throws IOException {
+        InputStream is = new FileInputStream(fileName);
+        try {
+            LineReader lr = new LineReader(is);
+            String line;
+            while (null != (line = lr.readLine())) {
+                parseLine(line);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private void parseLine(String line) {
+        int len = line.length();
+        int p = 0;
+        while (p < len && Character.isWhitespace(line.charAt(p))) p++;
+        if (p == len || line.charAt(p) == '#') return;
+
+        // The tag id
+        int s = p;
+        while (p < len && Character.isDigit(line.charAt(p))) p++;
+        if (p == s || p == len || !Character.isWhitespace(line.charAt(p))) return;
+        int id;
+        try {
+            id = Integer.parseInt(line.substring(s, p));
+        } catch (NumberFormatException e) {
+            return; // too big
+        }
+
+        // The tag name
+        while (p < len && Character.isWhitespace(line.charAt(p))) p++;
+        s = p;
+        while (p < len && !Character.isWhitespace(line.charAt(p))) p++;
+        if (p == s) return;
+        mNames.put(id, line.substring(s, p));
+    }
+
+    /**
+     * Returns the name of the tag, or null if not known
+     */
+    public String getName(int tagId) {
+        return mNames.get(tagId);
+    }
+
+    public int size() {
+        return mNames.size();
+    }
+
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Reads the sched_switch and sched_wakeup events from a binary trace-cmd
+ * "trace.dat" file (version 6, as created by "trace-cmd record").
+ *
+ * The per-CPU ring buffer pages are memory mapped and the events are decoded
+ * in place (using the field offsets from the event format descriptors stored
+ * in the file), the events of the different CPUs are merged by timestamp.
+ */
+public class FTraceDatReader {
+
+    /** The first bytes of a trace.dat file */
+    private static final byte MAGIC[] = { 0x17, 0x08, 0x44, 't', 'r', 'a', 'c', 'i', 'n', 'g' };
+
+    /* Ring buffer event types (stored in the lowest 5 bits of the event header) */
+    private static final int RB_TYPE_PADDING = 29;
+    private static final int RB_TYPE_TIME_EXTEND = 30;
+    private static final int RB_TYPE_TIME_STAMP = 31;
+    private static final int RB_TS_SHIFT = 27;
+
+    /** The flags stored in the upper bits of the "commit" field of the page header */
+    private static final int RB_MISSED_FLAGS = 0xc0000000;
+
+    /**
+     * Receives the decoded events (in timestamp order).
+     * While inside the callback, the process names of the current event can be
+     * queried with getPrevComm() and getNextComm().
+     */
+    public interface Listener {
+        void onSwitch(long timeUS, int cpu, int prevPid, char prevState, int nextPid, int nextPrio);
+        void onWakeup(long timeUS, int cpu, int wakerPid, int pid, int prio);
+    }
+
+    /** The interesting fields of an event, as described by its format descriptor */
+    static class EventFormat {
+        String name;
+        int id = -1;
+        HashMap<String, int[]> fields = new HashMap<String, int[]>(); // name -> {offset, size}
+
+        int getOffset(String field) {
+            int f[] = fields.get(field);
+            return (f == null) ? -1 : f[0];
+        }
+
+        int getSize(String field) {
+            int f[] = fields.get(field);
+            return (f == null) ? 0 : f[1];
+        }
+    }
+
+    /** Iterates over the events stored in the ring buffer pages of one CPU */
+    class CpuBuffer {
+        private ByteBuffer mBuff;
+        private int mCpu;
+        private int mPageStart;
+        private int mPos;
+        private int mEnd;
+        private long mTs;
+        /** Position and timestamp of the current data record */
+        int data;
+        long ts;
+
+        CpuBuffer(ByteBuffer buff, int cpu) {
+            mBuff = buff;
+            mCpu = cpu;
+            mPageStart = -mPageSize;
+            mPos = mEnd = 0;
+        }
+
+        /**
+         * Moves to the next data record
+         * @return false if there are no more records
+         */
+        boolean next() {
+            while (true) {
+                if (mPos >= mEnd) {
+                    if (!nextPage()) return false;
+                    continue;
+                }
+                int hdr = mBuff.getInt(mPos);
+                int typeLen = hdr & 0x1f;
+                long delta = hdr >>> 5;
+                mPos += 4;
+                int len;
+                if (typeLen == RB_TYPE_PADDING) {
+                    if (delta == 0) {
+                        // The rest of the page is unused
+                        mPos = mEnd;
+                        continue;
+                    }
+                    len = mBuff.getInt(mPos);
+                    mTs += delta;
+                    mPos += len;
+                    continue;
+                } else if (typeLen == RB_TYPE_TIME_EXTEND) {
+                    mTs += ((mBuff.getInt(mPos) & 0xffffffffL) << RB_TS_SHIFT) + delta;
+                    mPos += 4;
+                    continue;
+                } else if (typeLen == RB_TYPE_TIME_STAMP) {
+                    mTs = ((mBuff.getInt(mPos) & 0xffffffffL) << RB_TS_SHIFT) + delta;
+                    mPos += 4;
+                    continue;
+                } else if (typeLen == 0) {
+                    len = mBuff.getInt(mPos) - 4;
+                    len = (len + 3) & ~3;
+                    mPos += 4;
+                } else {
+                    len = typeLen * 4;
+                }
+                mTs += delta;
+                data = mPos;
+                ts = mTs;
+                mPos += len;
+                return true;
+            }
+        }
+
+        private boolean nextPage() {
+            mPageStart += mPageSize;
+            if (mPageStart + mDataOffset > mBuff.limit()) return false;
+            mTs = mBuff.getLong(mPageStart);
+            int commit = (int)readUnsigned(mBuff, mPageStart + mCommitOffset, mCommitSize);
+            mPos = mPageStart + mDataOffset;
+            mEnd = Math.min(mPos + (commit & ~RB_MISSED_FLAGS), mBuff.limit());
+            return true;
+        }
+
+        ByteBuffer getBuffer() {
+            return mBuff;
+        }
+
+        int getCpu() {
+            return mCpu;
+        }
+    }
+
+    private String mFileName;
+    private ByteOrder mOrder;
+    private int mLongSize;
+    private int mPageSize;
+    private int mCommitOffset = 8;
+    private int mCommitSize = 8;
+    private int mDataOffset = 16;
+    private EventFormat mSwitch;
+    private EventFormat mWakeup;
+    private EventFormat mWakeupNew;
+    private HashMap<Integer, String> mCmdLines = new HashMap<Integer, String>();
+    private long mCpuOffset[];
+    private long mCpuSize[];
+
+    /* Decoding state of the current event, used by getPrevComm()/getNextComm() */
+    private ByteBuffer mCurBuff;
+    private int mCurPrevComm;
+    private int mCurNextComm;
+    private int mCurWaker;
+
+    /* The field offsets and sizes used while decoding */
+    private int mTypeOffs, mTypeSize;
+    private int mPidOffs, mPidSize;
+    private int mSwPrevPidOffs, mSwPrevPidSize, mSwPrevStateOffs, mSwPrevStateSize;
+    private int mSwNextPidOffs, mSwNextPidSize, mSwPrevCommOffs, mSwNextCommOffs;
+    private int mSwNextPrioOffs, mSwNextPrioSize;
+    private int mWuPidOffs, mWuPidSize, mWuCommOffs, mWuPrioOffs, mWuPrioSize;
+
+    public FTraceDatReader(String fileName) {
+        mFileName = fileName;
+    }
+
+    /**
+     * Checks if the file is a binary trace-cmd file
+     */
+    public static boolean isTraceDat(String fileName) {
+        try {
+            FileInputStream fis = new FileInputStream(fileName);
+            byte buff[] = new byte[MAGIC.length];
+            int len = fis.read(buff);
+            fis.close();
+            if (len != MAGIC.length) return false;
+            for (int i = 0; i < len; i++) {
+                if (buff[i] != MAGIC[i]) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the file and calls the listener for every sched_switch and sched_wakeup event.
+     * @throws IOException if the file cannot be read or has an unsupported format
+     */
+    public void read(Listener listener) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFileName, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer hdr = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), Integer.MAX_VALUE));
+            readHeaders(hdr);
+
+            // Map the ring buffers of each cpu
+            int cpus = mCpuOffset.length;
+            CpuBuffer bufs[] = new CpuBuffer[cpus];
+            for (int i = 0; i < cpus; i++) {
+                if (mCpuSize[i] > Integer.MAX_VALUE) {
+                    throw new IOException("Ring buffer of cpu " + i + " is too big: " + mCpuSize[i]);
+                }
+                MappedByteBuffer buff = ch.map(FileChannel.MapMode.READ_ONLY, mCpuOffset[i], mCpuSize[i]);
+                buff.order(mOrder);
+                bufs[i] = new CpuBuffer(buff, i);
+                if (!bufs[i].next()) {
+                    bufs[i] = null;
+                }
+            }
+
+            // Merge the events of all cpus, in timestamp order
+            while (true) {
+                CpuBuffer cur = null;
+                for (int i = 0; i < cpus; i++) {
+                    if (bufs[i] != null && (cur == null || bufs[i].ts < cur.ts)) {
+                        cur = bufs[i];
+                    }
+                }
+                if (cur == null) break;
+                decode(cur.getBuffer(), cur.getCpu(), cur.data, cur.ts, listener);
+                if (!cur.next()) {
+                    for (int i = 0; i < cpus; i++) {
+                        if (bufs[i] == cur) {
+                            bufs[i] = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the name of the previous process (sched_switch) or the waker process (sched_wakeup)
+     * of the current event, or null if it is unknown.
+     */
+    public String getPrevComm() {
+        if (mCurPrevComm >= 0) {
+            return readString(mCurBuff, mCurPrevComm, 16);
+        }
+        return mCmdLines.get(mCurWaker);
+    }
+
+    /**
+     * Returns the name of the next process (sched_switch) or the woken up process (sched_wakeup)
+     * of the current event.
+     */
+    public String getNextComm() {
+        return readString(mCurBuff, mCurNextComm, 16);
+    }
+
+    private void decode(ByteBuffer buff, int cpu, int pos, long ts, Listener listener) {
+        int type = (int)readUnsigned(buff, pos + mTypeOffs, mTypeSize);
+        long timeUS = ts / 1000;
+        mCurBuff = buff;
+        if (mSwitch != null && type == mSwitch.id) {
+            int prevPid = (int)readUnsigned(buff, pos + mSwPrevPidOffs, mSwPrevPidSize);
+            int nextPid = (int)readUnsigned(buff, pos + mSwNextPidOffs, mSwNextPidSize);
+            int nextPrio = (mSwNextPrioOffs < 0) ? -1 : (int)readUnsigned(buff, pos + mSwNextPrioOffs, mSwNextPrioSize);
+            long state = readUnsigned(buff, pos + mSwPrevStateOffs, mSwPrevStateSize);
+            mCurPrevComm = pos + mSwPrevCommOffs;
+            mCurNextComm = pos + mSwNextCommOffs;
+            listener.onSwitch(timeUS, cpu, prevPid, getStateChar(state), nextPid, nextPrio);
+        } else if ((mWakeup != null && type == mWakeup.id) || (mWakeupNew != null && type == mWakeupNew.id)) {
+            int waker = (int)readUnsigned(buff, pos + mPidOffs, mPidSize);
+            int pid = (int)readUnsigned(buff, pos + mWuPidOffs, mWuPidSize);
+            int prio = (mWuPrioOffs < 0) ? -1 : (int)readUnsigned(buff, pos + mWuPrioOffs, mWuPrioSize);
+            mCurPrevComm = -1;
+            mCurWaker = waker;
+            mCurNextComm = pos + mWuCommOffs;
+            listener.onWakeup(timeUS, cpu, waker, pid, prio);
+        }
+    }
+
+    /**
+     * Converts the prev_state field to the state letters used in the text output
+     */
+    private static char getStateChar(long state) {
+        state &= 0x7f; // The higher bits (like the preempted flag) don't matter here
+        if (state == 0) return 'R';
+        if ((state & 1) != 0) return 'S';
+        if ((state & 2) != 0) return 'D';
+        if ((state & 4) != 0) return 'T';
+        if ((state & 8) != 0) return 't';
+        if ((state & 16) != 0) return 'Z';
+        return 'X';
+    }
+
+    private void readHeaders(ByteBuffer buff) throws IOException {
+        buff.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buff.get() != MAGIC[i]) {
+                throw new IOException("Not a trace.dat file");
+            }
+        }
+        String version = readString(buff);
+        if (!"6".equals(version)) {
+            throw new IOException("Unsupported trace.dat version: " + version);
+        }
+        mOrder = (buff.get() == 0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        buff.order(mOrder);
+        mLongSize = buff.get();
+        mPageSize = buff.getInt();
+
+        // Page header and event header
+        expect(buff, "header_page");
+        parseHeaderPage(readText(buff, buff.getLong()));
+        expect(buff, "header_event");
+        readText(buff, buff.getLong()); // The event header is not described anyway, its layout is fixed
+
+        // The format of the ftrace internal events (not needed)
+        int cnt = buff.getInt();
+        for (int i = 0; i < cnt; i++) {
+            skip(buff, buff.getLong());
+        }
+
+        // The format of the trace events
+        int systems = buff.getInt();
+        for (int i = 0; i < systems; i++) {
+            String system = readString(buff);
+            cnt = buff.getInt();
+            for (int j = 0; j < cnt; j++) {
+                long size = buff.getLong();
+                if (!"sched".equals(system)) {
+                    skip(buff, size);
+                    continue;
+                }
+                EventFormat fmt = parseFormat(readText(buff, size));
+                if ("sched_switch".equals(fmt.name)) {
+                    mSwitch = fmt;
+                } else if ("sched_wakeup".equals(fmt.name)) {
+                    mWakeup = fmt;
+                } else if ("sched_wakeup_new".equals(fmt.name)) {
+                    mWakeupNew = fmt;
+                }
+            }
+        }
+        if (mSwitch == null) {
+            throw new IOException("The sched_switch event was not recorded");
+        }
+
+        // Kernel symbols and printk formats (not needed)
+        skip(buff, buff.getInt());
+        skip(buff, buff.getInt());
+
+        // Process names
+        String cmdLines = readText(buff, buff.getLong());
+        for (String line : cmdLines.split("\n")) {
+            int idx = line.indexOf(' ');
+            if (idx > 0) {
+                try {
+                    mCmdLines.put(Integer.parseInt(line.substring(0, idx)), line.substring(idx + 1));
+                } catch (NumberFormatException e) {
+                    // ignore the line
+                }
+            }
+        }
+
+        // The ring buffers
+        int cpus = buff.getInt();
+        String type = readFixedString(buff, 10);
+        if ("options".equals(type)) {
+            while (true) {
+                int opt = buff.getShort();
+                if (opt == 0) break;
+                skip(buff, buff.getInt());
+            }
+            type = readFixedString(buff, 10);
+        }
+        if (!"flyrecord".equals(type)) {
+            throw new IOException("Unsupported trace.dat data type: " + type);
+        }
+        mCpuOffset = new long[cpus];
+        mCpuSize = new long[cpus];
+        for (int i = 0; i < cpus; i++) {
+            mCpuOffset[i] = buff.getLong();
+            mCpuSize[i] = buff.getLong();
+        }
+
+        // Cache the field locations needed by the decoder
+        mTypeOffs = mSwitch.getOffset("common_type");
+        mTypeSize = mSwitch.getSize("common_type");
+        mPidOffs = mSwitch.getOffset("common_pid");
+        mPidSize = mSwitch.getSize("common_pid");
+        mSwPrevPidOffs = mSwitch.getOffset("prev_pid");
+        mSwPrevPidSize = mSwitch.getSize("prev_pid");
+        mSwPrevStateOffs = mSwitch.getOffset("prev_state");
+        mSwPrevStateSize = mSwitch.getSize("prev_state");
+        mSwNextPidOffs = mSwitch.getOffset("next_pid");
+        mSwNextPidSize = mSwitch.getSize("next_pid");
+        mSwPrevCommOffs = mSwitch.getOffset("prev_comm");
+        mSwNextCommOffs = mSwitch.getOffset("next_comm");
+        mSwNextPrioOffs = mSwitch.getOffset("next_prio");
+        mSwNextPrioSize = mSwitch.getSize("next_prio");
+        if (mTypeOffs < 0 || mPidOffs < 0 || mSwPrevPidOffs < 0 || mSwPrevStateOffs < 0
+                || mSwNextPidOffs < 0 || mSwPrevCommOffs < 0 || mSwNextCommOffs < 0) {
+            throw new IOException("Unsupported sched_switch format");
+        }
+        EventFormat wu = (mWakeup != null) ? mWakeup : mWakeupNew;
+        if (wu != null) {
+            mWuPidOffs = wu.getOffset("pid");
+            mWuPidSize = wu.getSize("pid");
+            mWuCommOffs = wu.getOffset("comm");
+            mWuPrioOffs = wu.getOffset("prio");
+            mWuPrioSize = wu.getSize("prio");
+            if (mWuPidOffs < 0 || mWuCommOffs < 0) {
+                // Cannot decode it, so pretend it was not recorded
+                mWakeup = mWakeupNew = null;
+            }
+        }
+    }
+
+    /**
+     * Extracts the location of the commit and data fields from the page header description
+     */
+    private void parseHeaderPage(String text) {
+        mCommitSize = mLongSize;
+        for (String line : text.split("\n")) {
+            String field = getAttr(line, "field:");
+            if (field == null) continue;
+            int offset = Integer.parseInt(getAttr(line, "offset:"));
+            int size = Integer.parseInt(getAttr(line, "size:"));
+            if (field.endsWith(" commit")) {
+                mCommitOffset = offset;
+                mCommitSize = size;
+            } else if (field.contains(" data")) {
+                mDataOffset = offset;
+            }
+        }
+    }
+
+    /**
+     * Parses an event format descriptor, for example:
+     * <pre>
+     * name: sched_switch
+     * ID: 68
+     * format:
+     *     field:unsigned short common_type;   offset:0;   size:2; signed:0;
+     *     ...
+     * </pre>
+     */
+    private EventFormat parseFormat(String text) {
+        EventFormat ret = new EventFormat();
+        for (String line : text.split("\n")) {
+            if (line.startsWith("name: ")) {
+                ret.name = line.substring(6).trim();
+            } else if (line.startsWith("ID: ")) {
+                ret.id = Integer.parseInt(line.substring(4).trim());
+            } else {
+                String field = getAttr(line, "field:");
+                if (field == null) continue;
+                // The field name is the last word in the declaration (without the array size)
+                int idx = field.indexOf('[');
+                if (idx > 0) {
+                    field = field.substring(0, idx);
+                }
+                field = field.substring(field.lastIndexOf(' ') + 1);
+                int offset = Integer.parseInt(getAttr(line, "offset:"));
+                int size = Integer.parseInt(getAttr(line, "size:"));
+                ret.fields.put(field, new int[]{offset, size});
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the value of an attribute like "offset:8;" from a format line
+     */
+    private static String getAttr(String line, String key) {
+        int idx = line.indexOf(key);
+        if (idx < 0) return null;
+        idx += key.length();
+        int end = line.indexOf(';', idx);
+        if (end < 0) return null;
+        return line.substring(idx, end).trim();
+    }
+
+    private static long readUnsigned(ByteBuffer buff, int pos, int size) {
+        switch (size) {
+            case 1: return buff.get(pos) & 0xffL;
+            case 2: return buff.getShort(pos) & 0xffffL;
+            case 4: return buff.getInt(pos) & 0xffffffffL;
+            default: return buff.getLong(pos);
+        }
+    }
+
+    /**
+     * Reads a zero terminated string (of maximum len characters) at the given position
+     */
+    private static String readString(ByteBuffer buff, int pos, int len) {
+        StringBuffer sb = new StringBuffer(len);
+        for (int i = 0; i < len; i++) {
+            byte b = buff.get(pos + i);
+            if (b == 0) break;
+            sb.append((char)(b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a zero terminated string from the current position
+     */
+    private static String readString(ByteBuffer buff) {
+        StringBuffer sb = new StringBuffer();
+        byte b;
+        while ((b = buff.get()) != 0) {
+            sb.append((char)(b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a string stored in a fixed size, zero padded buffer (and strips the padding spaces)
+     */
+    private static String readFixedString(ByteBuffer buff, int len) {
+        String ret = readString(buff, buff.position(), len);
+        skip(buff, len);
+        return ret.trim();
+    }
+
+    private static String readText(ByteBuffer buff, long size) {
+        String ret = readString(buff, buff.position(), (int)size);
+        skip(buff, size);
+        return ret;
+    }
+
+    private static void expect(ByteBuffer buff, String s) throws IOException {
+        String read = readString(buff);
+        if (!s.equals(read)) {
+            throw new IOException("Corrupt trace.dat file: expected '" + s + "' but found '" + read + "'");
+        }
+    }
+
+    private static void skip(ByteBuffer buff, long size) {
+        buff.position(buff.position() + (int)size);
+    }
+
+}
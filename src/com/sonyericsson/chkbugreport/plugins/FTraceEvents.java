@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Stores the parsed ftrace events (wakeups and context switches) in growable
+ * primitive arrays (one array per field), instead of creating an object for each event.
+ * The events are identified by their index, in the order they were added.
+ * The number of running/waiting processes is stored as a delta per event, and the
+ * actual values are calculated once with a prefix sum, when they are first needed.
+ */
+class FTraceEvents {
+
+    /* Event types */
+    public static final int UNKNOWN = 0;
+    public static final int WAKEUP = 1;
+    public static final int SWITCH = 2;
+
+    private long mTime[];
+    private short mCpu[];
+    private int mPrevPid[];
+    private int mNextPid[];
+    private byte mPrevState[];
+    private byte mNextState[];
+    private byte mType[];
+    private short mNextPrio[];
+    private short mNrRunWaitDelta[];
+    private int mSize;
+
+    /** The prefix sum of the deltas (null if not calculated yet or if new events were added) */
+    private int mNrRunWait[];
+
+    /** The number of running/waiting processes before the first event */
+    private int mNrRunWaitBase;
+
+    public FTraceEvents() {
+        this(1024);
+    }
+
+    public FTraceEvents(int capacity) {
+        capacity = Math.max(1, capacity);
+        mTime = new long[capacity];
+        mCpu = new short[capacity];
+        mPrevPid = new int[capacity];
+        mNextPid = new int[capacity];
+        mPrevState = new byte[capacity];
+        mNextState = new byte[capacity];
+        mType = new byte[capacity];
+        mNextPrio = new short[capacity];
+        mNrRunWaitDelta = new short[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Adds a new event
+     * @param time The timestamp in microseconds
+     * @param cpu The cpu where the event happened (or -1 if unknown)
+     * @param prevPid The pid of the process switched out (or the waker in case of wakeup)
+     * @param nextPid The pid of the process switched in (or woken up)
+     * @param nextPrio The kernel priority of the next process (or -1 if unknown)
+     * @param nrRunWaitDelta The change in the number of running/waiting processes caused by the event
+     * @return The index of the new event
+     */
+    public int add(long time, int cpu, int prevPid, int nextPid, char prevState, char nextState, int nextPrio, int type, int nrRunWaitDelta) {
+        if (mSize == mTime.length) {
+            grow();
+        }
+        int idx = mSize++;
+        mTime[idx] = time;
+        mCpu[idx] = (short)cpu;
+        mPrevPid[idx] = prevPid;
+        mNextPid[idx] = nextPid;
+        mPrevState[idx] = (byte)prevState;
+        mNextState[idx] = (byte)nextState;
+        mType[idx] = (byte)type;
+        mNextPrio[idx] = (short)nextPrio;
+        mNrRunWaitDelta[idx] = (short)nrRunWaitDelta;
+        mNrRunWait = null;
+        return idx;
+    }
+
+    public long getTime(int idx) {
+        return mTime[idx];
+    }
+
+    /**
+     * Returns the cpu where the event happened, or -1 if unknown
+     */
+    public int getCpu(int idx) {
+        return mCpu[idx];
+    }
+
+    public int getPrevPid(int idx) {
+        return mPrevPid[idx];
+    }
+
+    public int getNextPid(int idx) {
+        return mNextPid[idx];
+    }
+
+    public char getPrevState(int idx) {
+        return (char)mPrevState[idx];
+    }
+
+    public char getNextState(int idx) {
+        return (char)mNextState[idx];
+    }
+
+    /**
+     * Returns the kernel priority (0-139) of the next process, or -1 if unknown
+     */
+    public int getNextPrio(int idx) {
+        return mNextPrio[idx];
+    }
+
+    public int getType(int idx) {
+        return mType[idx];
+    }
+
+    /**
+     * Returns the number of processes running or waiting to run after the event
+     */
+    public int getNrRunWait(int idx) {
+        if (mNrRunWait == null) {
+            int sums[] = new int[mSize];
+            int sum = 0;
+            for (int i = 0; i < mSize; i++) {
+                sum += mNrRunWaitDelta[i];
+                sums[i] = sum;
+            }
+            mNrRunWait = sums;
+        }
+        return mNrRunWait[idx] + mNrRunWaitBase;
+    }
+
+    /**
+     * Adjusts the number of running/waiting processes of all the events added so far
+     * (and the ones added later). Only the initial value is changed, so it's cheap even
+     * with many events.
+     */
+    public void incNrRunWait(int delta) {
+        mNrRunWaitBase += delta;
+    }
+
+    public long getFirstTime() {
+        return mTime[0];
+    }
+
+    public long getLastTime() {
+        return mTime[mSize - 1];
+    }
+
+    private void grow() {
+        int cap = mSize + (mSize >> 1) + 1;
+        mTime = Arrays.copyOf(mTime, cap);
+        mCpu = Arrays.copyOf(mCpu, cap);
+        mPrevPid = Arrays.copyOf(mPrevPid, cap);
+        mNextPid = Arrays.copyOf(mNextPid, cap);
+        mPrevState = Arrays.copyOf(mPrevState, cap);
+        mNextState = Arrays.copyOf(mNextState, cap);
+        mType = Arrays.copyOf(mType, cap);
+        mNextPrio = Arrays.copyOf(mNextPrio, cap);
+        mNrRunWaitDelta = Arrays.copyOf(mNrRunWaitDelta, cap);
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+/**
+ * One tokenized line of the ftrace text output, for example:
+ * <pre>
+ *           &lt;idle&gt;-0     [000] d..3   123.456789: sched_switch: prev_comm=swapper prev_pid=0 ...
+ *   kworker/0:1-12    (   12) [001] ....   123.456800: cpu_idle: state=1 cpu_id=1
+ * </pre>
+ * The same instance is reused for every line, and the fields are located
+ * without creating substrings (except for the event name).
+ * Lines which don't have the common "task-pid [cpu] timestamp:" prefix (like
+ * the output of the function_graph tracer) are not parsed, but they are still
+ * passed to the decoder of the current tracer.
+ */
+class FTraceLine {
+
+    private String mLine;
+    private boolean mHasHeader;
+    private int mTaskStart, mTaskEnd;
+    private int mPid;
+    private int mCpu;
+    private long mTime;
+    private String mEvent;
+    private int mArgs;
+
+    /**
+     * Tokenizes the line
+     * @param line The line of text
+     * @param lastEvent The previous event name (reused if the event name is the same, to save memory)
+     * @return true if the line has the common prefix
+     */
+    boolean parse(String line, String lastEvent) {
+        mLine = line;
+        mHasHeader = false;
+        mEvent = null;
+        mArgs = 0;
+        int len = line.length();
+
+        // Find the cpu: "[000]", preceded by whitespace
+        int cpuStart = -1, cpuEnd = -1;
+        int p = line.indexOf('[');
+        while (p > 0) {
+            int e = p + 1;
+            while (e < len && isDigit(line.charAt(e))) e++;
+            if (e > p + 1 && e < len && line.charAt(e) == ']' && line.charAt(p - 1) == ' ') {
+                cpuStart = p;
+                cpuEnd = e;
+                break;
+            }
+            p = line.indexOf('[', p + 1);
+        }
+        if (cpuStart < 0) return false;
+        mCpu = parseInt(line, cpuStart + 1, cpuEnd);
+
+        // Before the cpu: the task name, the pid and optionally the tgid in parenthesis
+        int e = cpuStart - 1;
+        while (e > 0 && line.charAt(e) == ' ') e--;
+        if (line.charAt(e) == ')') {
+            e = line.lastIndexOf('(', e) - 1;
+            while (e > 0 && line.charAt(e) == ' ') e--;
+        }
+        int s = e;
+        while (s > 0 && isDigit(line.charAt(s))) s--;
+        if (s == e || s <= 0 || line.charAt(s) != '-') return false;
+        mPid = parseInt(line, s + 1, e + 1);
+        mTaskEnd = s;
+        mTaskStart = 0;
+        while (mTaskStart < mTaskEnd && line.charAt(mTaskStart) == ' ') mTaskStart++;
+
+        // After the cpu: the optional irq/preempt flags and the timestamp
+        p = skipSpaces(line, cpuEnd + 1);
+        int tsEnd = line.indexOf(": ", p);
+        if (tsEnd < 0) return false;
+        int tsStart = line.lastIndexOf(' ', tsEnd) + 1;
+        if (tsStart < p) tsStart = p;
+        mTime = parseTimeUS(line, tsStart, tsEnd);
+        if (mTime < 0) return false;
+        mHasHeader = true;
+
+        // Then the event name (unless it's the output of a tracer, like the old sched_switch tracer)
+        p = tsEnd + 2;
+        mArgs = p;
+        p = skipSpaces(line, p);
+        if (p < len && isIdStart(line.charAt(p))) {
+            int ne = p + 1;
+            while (ne < len && isIdChar(line.charAt(ne))) ne++;
+            if (ne < len && line.charAt(ne) == ':') {
+                int nameLen = ne - p;
+                if (lastEvent != null && lastEvent.length() == nameLen && line.regionMatches(p, lastEvent, 0, nameLen)) {
+                    mEvent = lastEvent;
+                } else {
+                    mEvent = line.substring(p, ne);
+                }
+                mArgs = skipSpaces(line, ne + 1);
+            }
+        }
+        return true;
+    }
+
+    public String getLine() {
+        return mLine;
+    }
+
+    /**
+     * Returns true if the line has the common "task-pid [cpu] timestamp:" prefix
+     */
+    public boolean hasHeader() {
+        return mHasHeader;
+    }
+
+    public String getTask() {
+        return mLine.substring(mTaskStart, mTaskEnd);
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public int getCpu() {
+        return mCpu;
+    }
+
+    /**
+     * Returns the timestamp in microseconds
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * Returns the name of the event, or null if this line is the output of a tracer
+     */
+    public String getEvent() {
+        return mEvent;
+    }
+
+    /**
+     * Returns the position where the event arguments (or the tracer output) start
+     */
+    public int getArgsStart() {
+        return mArgs;
+    }
+
+    public String getArgs() {
+        return mLine.substring(mArgs);
+    }
+
+    /**
+     * Returns the position of the value of the "key=value" argument, or -1 if not found
+     */
+    public int findArg(String key) {
+        int p = mArgs;
+        int kl = key.length();
+        while (true) {
+            p = mLine.indexOf(key, p);
+            if (p < 0) return -1;
+            int e = p + kl;
+            if ((p == mArgs || mLine.charAt(p - 1) == ' ') && e < mLine.length() && mLine.charAt(e) == '=') {
+                return e + 1;
+            }
+            p = e;
+        }
+    }
+
+    /**
+     * Returns the numeric value (decimal or hexadecimal with 0x prefix) of the "key=value" argument
+     */
+    public long getLongArg(String key, long def) {
+        int p = findArg(key);
+        if (p < 0) return def;
+        return parseLong(mLine, p, def);
+    }
+
+    /**
+     * Returns the value of the "key=value" argument, up to the next space
+     */
+    public String getStrArg(String key) {
+        int p = findArg(key);
+        if (p < 0) return null;
+        int e = mLine.indexOf(' ', p);
+        return mLine.substring(p, e < 0 ? mLine.length() : e);
+    }
+
+    /**
+     * Returns the value of the "key=value" argument, up to the start of the next key.
+     * This should be used for values which might contain spaces (like process names).
+     */
+    public String getStrArg(String key, String nextKey) {
+        int p = findArg(key);
+        if (p < 0) return null;
+        int e = mLine.indexOf(" " + nextKey + "=", p);
+        return mLine.substring(p, e < 0 ? mLine.length() : e);
+    }
+
+    /**
+     * Parses a decimal or hexadecimal (with 0x prefix) number at the given position
+     */
+    static long parseLong(String s, int p, long def) {
+        int len = s.length();
+        boolean neg = false;
+        if (p < len && s.charAt(p) == '-') {
+            neg = true;
+            p++;
+        }
+        long ret = 0;
+        int start = p;
+        if (p + 1 < len && s.charAt(p) == '0' && (s.charAt(p + 1) == 'x' || s.charAt(p + 1) == 'X')) {
+            p += 2;
+            start = p;
+            while (p < len) {
+                int d = Character.digit(s.charAt(p), 16);
+                if (d < 0) break;
+                ret = (ret << 4) | d;
+                p++;
+            }
+        } else {
+            while (p < len && isDigit(s.charAt(p))) {
+                ret = ret * 10 + (s.charAt(p) - '0');
+                p++;
+            }
+        }
+        if (p == start) return def;
+        return neg ? -ret : ret;
+    }
+
+    static int parseInt(String s, int from, int to) {
+        int ret = 0;
+        for (int i = from; i < to; i++) {
+            ret = ret * 10 + (s.charAt(i) - '0');
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a timestamp like "123.456789" (seconds) into microseconds, without rounding errors
+     * @return The timestamp in microseconds, or -1 if it's not a valid timestamp
+     */
+    static long parseTimeUS(String s, int from, int to) {
+        long sec = 0, frac = 0;
+        int fracDigits = -1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && fracDigits < 0) {
+                fracDigits = 0;
+            } else if (isDigit(c)) {
+                if (fracDigits < 0) {
+                    sec = sec * 10 + (c - '0');
+                } else if (fracDigits < 6) {
+                    frac = frac * 10 + (c - '0');
+                    fracDigits++;
+                }
+            } else {
+                return -1;
+            }
+        }
+        if (fracDigits < 0 || from == to) return -1;
+        while (fracDigits < 6) {
+            frac *= 10;
+            fracDigits++;
+        }
+        return sec * 1000000 + frac;
+    }
+
+    static int skipSpaces(String s, int p) {
+        int len = s.length();
+        while (p < len && s.charAt(p) == ' ') p++;
+        return p;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdChar(char c) {
+        return isIdStart(c) || isDigit(c);
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.Section;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Parses the text output of ftrace in a single pass.
+ * Each line is tokenized once (see FTraceLine), and then passed to the decoder
+ * registered for the event name. Lines without event name (the output of a
+ * tracer, like the old sched_switch tracer or the function_graph tracer) are
+ * passed to the decoder registered for the current tracer.
+ */
+class FTraceParser {
+
+    private static final String TRACER_PREFIX = "# tracer: ";
+
+    /** The name of the table containing the userspace slices (from the tracing_mark_write events) */
+    public static final String SLICES = "tracing_mark_write";
+
+    /** The name of the table containing the userspace counters (from the tracing_mark_write events) */
+    public static final String COUNTERS = "tracing_mark_write_counters";
+
+    private HashMap<String, FTraceDecoder> mDecoders = new HashMap<String, FTraceDecoder>();
+    private HashMap<String, FTraceDecoder> mTracerDecoders = new HashMap<String, FTraceDecoder>();
+    private Vector<FTraceTable> mTables = new Vector<FTraceTable>();
+    private HashMap<String, int[]> mCounts = new HashMap<String, int[]>();
+    private String mTracer;
+    private int mLineCount;
+
+    /**
+     * Registers a decoder for an event
+     */
+    public void addDecoder(String event, FTraceDecoder decoder) {
+        mDecoders.put(event, decoder);
+    }
+
+    /**
+     * Registers a decoder for the output of a tracer.
+     * This will receive the lines which don't contain an event name.
+     */
+    public void addTracerDecoder(String tracer, FTraceDecoder decoder) {
+        mTracerDecoders.put(tracer, decoder);
+    }
+
+    /**
+     * Creates a table for the event and registers a decoder which fills it
+     * from the "key=value" arguments
+     * @param event The event name
+     * @param cols The columns (the argument keys, string columns prefixed with '$')
+     */
+    public FTraceTable addTable(String event, String... cols) {
+        FTraceTable table = new FTraceTable(event, cols);
+        addTable(table, new FTraceTable.Decoder(table));
+        return table;
+    }
+
+    /**
+     * Registers a table together with the decoder which fills it
+     */
+    public void addTable(FTraceTable table, FTraceDecoder decoder) {
+        mTables.add(table);
+        addDecoder(table.getName(), decoder);
+    }
+
+    /**
+     * Registers the tables and decoders of the commonly used events
+     */
+    public void addDefaultDecoders() {
+        addTable("cpu_frequency", "state", "cpu_id");
+        addTable("cpu_idle", "state", "cpu_id");
+        addTable("irq_handler_entry", "irq", "$name");
+        addTable("irq_handler_exit", "irq", "$ret");
+        addTable("softirq_entry", "vec", "$action");
+        addTable("softirq_exit", "vec", "$action");
+        addTable("binder_transaction", "transaction", "dest_node", "dest_proc", "dest_thread", "reply", "flags", "code");
+        addTable("binder_transaction_received", "transaction");
+        addTable("binder_lock", "tag");
+        addTable("binder_locked", "tag");
+        addTable("binder_unlock", "tag");
+        for (String ev : new String[]{"block_rq_issue", "block_rq_insert", "block_rq_complete"}) {
+            FTraceTable t = new FTraceTable(ev, "$dev", "$rwbs", "sector", "nr_sector");
+            addTable(t, new BlockRqDecoder(t));
+        }
+        FTraceTable t = new FTraceTable("function_graph", "depth", "$func", "duration");
+        mTables.add(t);
+        addTracerDecoder("function_graph", new FunctionGraphDecoder(t));
+        FTraceTable slices = new FTraceTable(SLICES, "$name", "tgid", "depth", "duration");
+        FTraceTable counters = new FTraceTable(COUNTERS, "$name", "tgid", "value");
+        mTables.add(counters);
+        addTable(slices, new SliceDecoder(slices, counters));
+    }
+
+    /**
+     * Parses all the lines of the section
+     */
+    public void parse(Section sec) {
+        FTraceLine line = new FTraceLine();
+        String lastEvent = null;
+        FTraceDecoder lastDecoder = null;
+        FTraceDecoder tracerDecoder = null;
+        int cnt = sec.getLineCount();
+        for (int i = 0; i < cnt; i++) {
+            String buff = sec.getLine(i);
+            if (buff.length() == 0) continue;
+            if (buff.charAt(0) == '#') {
+                if (buff.startsWith(TRACER_PREFIX)) {
+                    mTracer = buff.substring(TRACER_PREFIX.length()).trim();
+                    tracerDecoder = mTracerDecoders.get(mTracer);
+                }
+                continue;
+            }
+            if (buff.charAt(0) < ' ') continue;
+            mLineCount++;
+
+            if (!line.parse(buff, lastEvent)) {
+                // No common prefix, might be the output of a tracer
+                if (tracerDecoder != null) {
+                    tracerDecoder.decode(line);
+                }
+                continue;
+            }
+            String event = line.getEvent();
+            if (event == null) {
+                if (tracerDecoder != null) {
+                    tracerDecoder.decode(line);
+                }
+                continue;
+            }
+            if (event != lastEvent) {
+                lastEvent = event;
+                lastDecoder = mDecoders.get(event);
+            }
+            int count[] = mCounts.get(event);
+            if (count == null) {
+                count = new int[1];
+                mCounts.put(event, count);
+            }
+            count[0]++;
+            if (lastDecoder != null) {
+                lastDecoder.decode(line);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the tracer (from the header of the trace)
+     */
+    public String getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Returns the number of trace lines (not counting comments and empty lines)
+     */
+    public int getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Returns the name of the events found in the trace
+     */
+    public Vector<String> getEvents() {
+        return new Vector<String>(mCounts.keySet());
+    }
+
+    public int getEventCount(String event) {
+        int count[] = mCounts.get(event);
+        return (count == null) ? 0 : count[0];
+    }
+
+    public boolean isDecoded(String event) {
+        return mDecoders.containsKey(event);
+    }
+
+    /**
+     * Returns the table of the event, or null if the event is not stored in a table
+     */
+    public FTraceTable getTable(String name) {
+        for (FTraceTable t : mTables) {
+            if (t.getName().equals(name)) return t;
+        }
+        return null;
+    }
+
+    public Vector<FTraceTable> getTables() {
+        return mTables;
+    }
+
+    /**
+     * Decodes the block_rq_* events, which use a positional format, for example:
+     * <pre>
+     * block_rq_issue: 179,0 W 0 () 1234 + 8 [kworker/u:1]
+     * block_rq_complete: 179,0 W () 1234 + 8 [0]
+     * </pre>
+     */
+    static class BlockRqDecoder implements FTraceDecoder {
+
+        private FTraceTable mTable;
+
+        public BlockRqDecoder(FTraceTable table) {
+            mTable = table;
+        }
+
+        @Override
+        public void decode(FTraceLine line) {
+            String s = line.getLine();
+            int p = line.getArgsStart();
+            int e = s.indexOf(' ', p);
+            if (e < 0) return;
+            int row = mTable.addRow(line.getTime(), line.getCpu(), line.getPid());
+            mTable.setString(row, 0, s.substring(p, e));
+            p = e + 1;
+            e = s.indexOf(' ', p);
+            if (e < 0) return;
+            mTable.setString(row, 1, s.substring(p, e));
+            int plus = s.indexOf(" + ", e);
+            if (plus < 0) return;
+            int sec = s.lastIndexOf(' ', plus - 1) + 1;
+            mTable.set(row, 2, FTraceLine.parseLong(s, sec, 0));
+            mTable.set(row, 3, FTraceLine.parseLong(s, plus + 3, 0));
+        }
+
+    }
+
+    /**
+     * Decodes the userspace trace markers written by atrace (the android.os.Trace API), for example:
+     * <pre>
+     * tracing_mark_write: B|1234|Choreographer#doFrame
+     * tracing_mark_write: E
+     * tracing_mark_write: C|1234|iq|2
+     * </pre>
+     * The begin and end markers are matched using a slice stack per thread, and each slice is
+     * stored as a row (at the time it began) with its nesting level and duration (in us).
+     * The duration is -1 if the slice didn't end before the end of the trace.
+     * The counter values are stored in a separate table.
+     */
+    static class SliceDecoder implements FTraceDecoder {
+
+        private FTraceTable mSlices;
+        private FTraceTable mCounters;
+        private IntIntMap mStackIdx = new IntIntMap();
+        private Vector<int[]> mStacks = new Vector<int[]>();
+
+        public SliceDecoder(FTraceTable slices, FTraceTable counters) {
+            mSlices = slices;
+            mCounters = counters;
+        }
+
+        @Override
+        public void decode(FTraceLine line) {
+            String s = line.getLine();
+            int p = line.getArgsStart();
+            if (p >= s.length()) return;
+            char type = s.charAt(p);
+            if (p + 1 < s.length() && s.charAt(p + 1) != '|') return; // just some text
+            int tid = line.getPid();
+            if (type == 'B') {
+                int sep = s.indexOf('|', p + 2);
+                if (sep < 0) return;
+                int row = mSlices.addRow(line.getTime(), line.getCpu(), tid);
+                mSlices.setString(row, 0, s.substring(sep + 1).trim());
+                mSlices.set(row, 1, FTraceLine.parseLong(s, p + 2, -1));
+                mSlices.set(row, 3, -1);
+                int stack[] = push(tid, row);
+                mSlices.set(row, 2, stack[0] - 1);
+            } else if (type == 'E') {
+                int row = pop(tid);
+                if (row >= 0) {
+                    mSlices.set(row, 3, line.getTime() - mSlices.getTime(row));
+                }
+            } else if (type == 'C') {
+                int sep = s.indexOf('|', p + 2);
+                int last = s.lastIndexOf('|');
+                if (sep < 0 || last <= sep) return;
+                int row = mCounters.addRow(line.getTime(), line.getCpu(), tid);
+                mCounters.setString(row, 0, s.substring(sep + 1, last));
+                mCounters.set(row, 1, FTraceLine.parseLong(s, p + 2, -1));
+                mCounters.set(row, 2, FTraceLine.parseLong(s, last + 1, 0));
+            }
+        }
+
+        /**
+         * Pushes the row to the stack of the thread. The first item of the stack is its size.
+         */
+        private int[] push(int tid, int row) {
+            int idx = mStackIdx.get(tid, -1);
+            int stack[];
+            if (idx < 0) {
+                stack = new int[8];
+                mStackIdx.put(tid, mStacks.size());
+                mStacks.add(stack);
+            } else {
+                stack = mStacks.get(idx);
+                if (stack[0] + 1 == stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                    mStacks.set(idx, stack);
+                }
+            }
+            stack[++stack[0]] = row;
+            return stack;
+        }
+
+        private int pop(int tid) {
+            int idx = mStackIdx.get(tid, -1);
+            if (idx < 0) return -1;
+            int stack[] = mStacks.get(idx);
+            if (stack[0] == 0) return -1;
+            return stack[stack[0]--];
+        }
+
+    }
+
+    /**
+     * Decodes the output of the function_graph tracer, for example:
+     * <pre>
+     *  0)               |  sys_open() {
+     *  0)   0.541 us    |    getname();
+     *  0) + 10.345 us   |  }
+     * </pre>
+     * Each function entry, leaf call and function exit is stored as a row.
+     * The duration (in nanoseconds) is -1 for the function entries, and the
+     * function name is empty for the function exits. The output doesn't contain
+     * timestamps (unless the funcgraph-abstime option is used), so the time
+     * column is filled in only in that case.
+     */
+    static class FunctionGraphDecoder implements FTraceDecoder {
+
+        private FTraceTable mTable;
+
+        public FunctionGraphDecoder(FTraceTable table) {
+            mTable = table;
+        }
+
+        @Override
+        public void decode(FTraceLine line) {
+            String s = line.getLine();
+            int cpuEnd = s.indexOf(')');
+            if (cpuEnd < 0) return;
+            int bar = s.indexOf('|', cpuEnd);
+            if (bar < 0) return;
+
+            // Optional absolute timestamp, before the cpu
+            long time = 0;
+            int p = FTraceLine.skipSpaces(s, 0);
+            int cpuStart = cpuEnd;
+            while (cpuStart > 0 && s.charAt(cpuStart - 1) != ' ' && s.charAt(cpuStart - 1) != '|') cpuStart--;
+            if (cpuStart > p) {
+                int e = s.indexOf(' ', p);
+                long t = FTraceLine.parseTimeUS(s, p, e);
+                if (t >= 0) time = t;
+            }
+            int cpu = (int)FTraceLine.parseLong(s, cpuStart, 0);
+
+            // Duration (in us, with three decimals), might be prefixed with a marker like '+' or '!'
+            long dur = -1;
+            p = cpuEnd + 1;
+            while (p < bar && (s.charAt(p) < '0' || s.charAt(p) > '9')) p++;
+            if (p < bar) {
+                int e = p;
+                while (e < bar && s.charAt(e) != ' ') e++;
+                long t = FTraceLine.parseTimeUS(s, p, e);
+                if (t >= 0) {
+                    dur = t / 1000; // the value is in us (not in seconds), so this gives ns
+                }
+            }
+
+            // Function name and nesting level
+            p = bar + 1;
+            int depth = 0;
+            while (p < s.length() && s.charAt(p) == ' ') {
+                p++;
+                depth++;
+            }
+            depth = Math.max(0, depth / 2 - 1);
+            if (p >= s.length()) return;
+            String func = "";
+            if (s.charAt(p) != '}') {
+                int e = s.indexOf('(', p);
+                if (e < 0) return; // not a function call (a comment for example)
+                func = s.substring(p, e);
+                if (!s.endsWith(";")) {
+                    dur = -1; // this is a function entry, not a leaf call
+                }
+            }
+            int row = mTable.addRow(time, cpu, -1);
+            mTable.set(row, 0, depth);
+            mTable.setString(row, 1, func);
+            mTable.set(row, 2, dur);
+        }
+
+    }
+
+}
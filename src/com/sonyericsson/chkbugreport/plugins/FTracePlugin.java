@@ -20,12 +20,16 @@ package com.sonyericsson.chkbugreport.plugins;
 
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.PSRecord;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Section;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.Downsampler;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
+import com.sonyericsson.chkbugreport.util.LogLinearHistogram;
 
 import java.awt.Color;
 import java.awt.FontMetrics;
@@ -47,9 +51,9 @@ public class FTracePlugin extends Plugin {
 
     private static final String TAG = "[FTracePlugin]";
 
-    private static final int UNKNOWN = 0;
-    private static final int WAKEUP = 1;
-    private static final int SWITCH = 2;
+    private static final int UNKNOWN = FTraceEvents.UNKNOWN;
+    private static final int WAKEUP = FTraceEvents.WAKEUP;
+    private static final int SWITCH = FTraceEvents.SWITCH;
 
     private static final int STATE_SLEEP = 0;
     private static final int STATE_DISK = 1;
@@ -62,39 +66,33 @@ public class FTracePlugin extends Plugin {
     private static final int TRACE_W = 600;
     private static final int TRACE_H = 24;
 
-    private static final int MAX_PID = 65535;
-
     private static final String NO_PROC_NAME = "<...>";
 
-    private FTraceProcessRecord mPids[] = new FTraceProcessRecord[MAX_PID];
+    /** The number of bits used in the VCD file for the pid running on a cpu */
+    private static final int PID_BITS = 32;
+
+    /** The maximum number of edges listed from the wakeup graph */
+    private static final int MAX_WAKEUP_EDGES = 50;
+
+    /** The maximum number of slice names listed in the userspace slices chapter */
+    private static final int MAX_SLICE_NAMES = 100;
+
+    /** The percentiles shown in the wakeup latency statistics */
+    private static final double PERCENTILES[] = { 50, 90, 99 };
+
+    /** Maps the pid to the index of the process record in mProcs */
+    private IntIntMap mPidIdx = new IntIntMap();
+    private Vector<FTraceProcessRecord> mProcs = new Vector<FTraceProcessRecord>();
 
     private int mLastProcId = 0;
 
-    private TraceRecord mHead = null;
-    private TraceRecord mTail = null;
+    private FTraceEvents mEvents;
+    private FTraceParser mParser;
+    private int mNrRunWait;
+    private boolean mAdjNoIdle;
 
     private String mTimeBarName;
 
-    static class TraceRecord {
-        long time;
-        int prevPid, nextPid;
-        char prevState, nextState;
-        int event;
-        int nrRunWait;
-        TraceRecord next;
-
-        TraceRecord(long time, int prev, int next, char prevState, char nextState, int event) {
-            this.time = time;
-            this.prevPid = prev;
-            this.nextPid = next;
-            this.prevState = prevState;
-            this.nextState = nextState;
-            this.event = event;
-            this.next = null;
-            this.nrRunWait = 0;
-        }
-    }
-
     static class FTraceProcessRecord {
         int pid;
         String name;
@@ -146,11 +144,33 @@ public class FTracePlugin extends Plugin {
     }
 
     private FTraceProcessRecord getProc(int pid, BugReport br) {
-        if (mPids[pid] == null) {
+        int idx = mPidIdx.get(pid, -1);
+        if (idx < 0) {
             String name = findNameOf(pid, br);
-            mPids[pid] = new FTraceProcessRecord(pid, name);
+            idx = mProcs.size();
+            mProcs.add(new FTraceProcessRecord(pid, name));
+            mPidIdx.put(pid, idx);
+        }
+        return mProcs.get(idx);
+    }
+
+    /**
+     * Returns the process records which appear in the trace, sorted by pid
+     */
+    private Vector<FTraceProcessRecord> getUsedProcs() {
+        Vector<FTraceProcessRecord> ret = new Vector<FTraceProcessRecord>();
+        for (FTraceProcessRecord pr : mProcs) {
+            if (pr.used > 0) {
+                ret.add(pr);
+            }
         }
-        return mPids[pid];
+        Collections.sort(ret, new Comparator<FTraceProcessRecord>() {
+            @Override
+            public int compare(FTraceProcessRecord o1, FTraceProcessRecord o2) {
+                return o1.pid < o2.pid ? -1 : (o1.pid > o2.pid ? 1 : 0);
+            }
+        });
+        return ret;
     }
 
     private String findNameOf(int pid, BugReport br) {
@@ -214,159 +234,63 @@ public class FTracePlugin extends Plugin {
         // NOP
     }
 
+    /**
+     * Saves the wakeup and context switch events in the database (in the background).
+     * The type column is 1 for wakeups and 2 for context switches, the timestamps are in microseconds.
+     */
+    private void exportIntoDB(BugReport br) {
+        DBExporter db = br.getDBExporter();
+        if (db == null) return;
+
+        DBExporter.Table tbl = db.createTable("ftrace_events", "id int", "ts int", "cpu int", "type int",
+                "prev_pid int", "next_pid int", "prev_state varchar", "next_state varchar", "next_prio int");
+        tbl.addIndex("prev_pid");
+        tbl.addIndex("next_pid");
+        FTraceEvents ev = mEvents;
+        int cnt = ev.size();
+        for (int i = 0; i < cnt; i++) {
+            tbl.insert(i, ev.getTime(i), ev.getCpu(i), ev.getType(i),
+                    ev.getPrevPid(i), ev.getNextPid(i),
+                    String.valueOf(ev.getPrevState(i)), String.valueOf(ev.getNextState(i)),
+                    ev.getNextPrio(i));
+        }
+    }
+
     @Override
     public void generate(Report rep) {
         BugReport br = (BugReport)rep;
         getProc(0, br).name = "SLEEP";
-        mHead = mTail = new TraceRecord(0, 0, 0, 'S', 'S', 0);
+        mEvents = new FTraceEvents();
+        mEvents.incNrRunWait(-1); // Not counting the idle process (which is either running or waiting)
+        mParser = null;
 
-        // Locate the ftrace section
-        Section ftrace = br.findSection(Section.FTRACE);
-        if (ftrace == null) {
-            br.printErr(TAG + "Cannot find section: " + Section.FTRACE);
-            return;
-        }
+        mNrRunWait = 0;
+        mAdjNoIdle = true;
 
-        int nrRunWait = 0;
-        int cnt = ftrace.getLineCount();
-        String buff = null;
-        // Check that the correct tracer is selected
-        buff = ftrace.getLine(0);
-        if (!buff.equals("# tracer: sched_switch")) {
-            br.printErr(TAG + "The context switch tracer is not selected!");
-            return;
+        // Load the events, either from the binary trace file or from the ftrace section
+        String datFile = br.getFTraceDatFile();
+        if (datFile != null) {
+            if (!loadTraceDat(br, datFile)) return;
+        } else {
+            if (!loadText(br)) return;
         }
-
-        // We must have some data in the buffer
-        if (cnt <= 4) {
-            br.printErr(TAG + "The trace buffer is empty!");
-            return;
+        if (mAdjNoIdle) {
+            incNrRunWait(1);
         }
-
-        // Skip the first 3 lines
-        int adjNoIdle = 1;
-        for (int i = 3; i < cnt; i++) {
-            buff = ftrace.getLine(i);
-            long timeUS;
-
-            if (buff.length() == 0) continue; // skip comments
-            if (buff.charAt(0) == '#') continue; // skip comments
-            if (buff.charAt(0) < ' ') continue; // skip empty lines
-
-            // Parse the data
-            int p = 0, s = 0;
-
-            // Parse SRC_PROC
-            while (buff.charAt(p) == ' ') p++;
-            s = 16;
-            String srcProc = buff.substring(p, s);
-            p = ++s;
-
-            // Parse SRC PID
-            while (buff.charAt(s) != ' ') s++;
-            int srcPid = Integer.parseInt(buff.substring(p, s));
-            p = ++s;
-
-            // Skip CPU (not used)
-            while (buff.charAt(s) == ' ') s++;
-            while (buff.charAt(s) != ' ') s++;
-            while (buff.charAt(s) == ' ') s++;
-
-            // Parse timestamp
-            double timestamp;
-            p = s;
-            while (buff.charAt(s) != ':') s++;
-            timestamp = Double.parseDouble(buff.substring(p, s));
-            s++;
-            timeUS = (long)(timestamp * 1000 * 1000);
-
-            // Skip SRC PID (we already now)
-            while (buff.charAt(s) != ':') s++;
-            s++;
-
-            // Skip SRC PRIO (not used)
-            while (buff.charAt(s) != ':') s++;
-            s++;
-
-            // Read SRC STATE
-            char srcState = buff.charAt(s);
-            s++;
-
-            // Parse event: wakeup or switch
-            int event = UNKNOWN;
-            s++;
-            if (buff.substring(s, s + 3).equals("  +")) {
-                event = WAKEUP;
-            } else if (buff.substring(s, s + 3).equals("==>")) {
-                event = SWITCH;
-            }
-            s += 3;
-
-            // Skip CPU (not used)
-            while (buff.charAt(s) == ' ') s++;
-            while (buff.charAt(s) != ' ') s++;
-            while (buff.charAt(s) == ' ') s++;
-
-            // Parse DST PID
-            p = s;
-            while (buff.charAt(s) != ':') s++;
-            int dstPid = Integer.parseInt(buff.substring(p, s));
-            s++;
-
-            // Skip DST PRIO (not used)
-            while (buff.charAt(s) != ':') s++;
-            s++;
-
-            // Read DST STATE
-            char dstState = buff.charAt(s);
-            s++;
-
-            // Read DST PROC
-            p = ++s;
-            String dstProc = buff.substring(p);
-
-            if (!srcProc.equals(NO_PROC_NAME)) {
-                setProcName(srcPid, srcProc, br);
-            }
-            if (!dstProc.equals(NO_PROC_NAME)) {
-                setProcName(dstPid, dstProc, br);
-            }
-
-            // System.out.println(String.format("src_proc='%s' src_pid='%d' ts='%d' src_state='%c' event='%d' dst_pid='%d' dst_state='%c' dst_proc='%s'", src_proc, src_pid, time_us, src_state, event, dst_pid, dst_state, dst_proc));
-
-            // Calculate the number of processes running
-            int newNr = nrRunWait;
-            FTraceProcessRecord proc = getProc(srcPid, br);
-            if (event == SWITCH) {
-                int prevState = calcPrevState(srcState);
-                newNr += updateNr(proc, prevState, false, srcState);
-            }
-            int nextState = event == WAKEUP ? STATE_WAIT : STATE_RUN;
-            proc = getProc(dstPid, br);
-            newNr += updateNr(proc, nextState, true, dstState);
-            if (newNr <= 0) {
-                // This shouldn't happen!
-                // incNrRunWait(1 - newNr); // This could be used as a workaround (but again, this should never happen)
-                br.printErr(TAG + "Needs adjusting! newNr=" + newNr + " @" + timeUS);
-                newNr = 1;
-            }
-            nrRunWait = newNr;
-
-            TraceRecord data = new TraceRecord(timeUS, srcPid, dstPid, srcState, dstState, event);
-            data.nrRunWait = nrRunWait - 1; // -1 due to not counting the idle process (which is either running or waiting)
-            mTail.next = data;
-            mTail = data;
-            getProc(srcPid, br).used++;
-            getProc(dstPid, br).used++;
-
-            if (srcPid == 0 || dstPid == 0) {
-                adjNoIdle = 0; // No need to adjust due to idle not "running"
+        if (mEvents.isEmpty()) {
+            br.printErr(TAG + "No context switches found (the sched_switch tracer or the sched_switch events must be enabled)!");
+            if (mParser != null && !mParser.getEvents().isEmpty()) {
+                Chapter main = new Chapter(br, "FTrace");
+                addUserspaceSlices(br, main);
+                addEventSummary(br, main);
+                br.addChapter(main);
             }
+            return;
         }
-        if (adjNoIdle == 1) {
-            incNrRunWait(adjNoIdle);
-        }
-        long duration = mTail.time - mHead.next.time;
+        exportIntoDB(br);
+        long duration = mEvents.getLastTime() - mEvents.getFirstTime();
+        Vector<FTraceProcessRecord> usedProcs = getUsedProcs();
+        FTraceSchedStats sched = new FTraceSchedStats(mEvents, TRACE_W);
 
         // Save the VCD file
         String fn = br.getRelRawDir() + "ftrace.vcd";
@@ -381,48 +305,59 @@ public class FTracePlugin extends Plugin {
 
             fo.println("$var wire " + runWaitBits + " RUNWAIT Processes.Running.And.Waiting $end");
 
-            for (int i = 0; i < 65535; i++) {
-                if (mPids[i] != null && mPids[i].used > 0) {
-                    String id = genId();
-                    String name = getProc(i, br).getVCDName();
-                    mPids[i].id = id;
-                    fo.println("$var wire 1 " + id + " " + name + " $end");
-                }
+            for (FTraceProcessRecord pr : usedProcs) {
+                pr.id = genId();
+                fo.println("$var wire 1 " + pr.id + " " + pr.getVCDName() + " $end");
+            }
+
+            // The pid of the process running on each cpu
+            String cpuIds[] = new String[sched.getCpuCount()];
+            for (FTraceSchedStats.Cpu cpu : sched.getCpus()) {
+                cpuIds[cpu.cpu] = genId();
+                fo.println("$var wire " + PID_BITS + " " + cpuIds[cpu.cpu] + " CPU" + cpu.cpu + ".Pid $end");
             }
 
             fo.println("$upscope $end");
             fo.println("$enddefinitions $end");
 
-            TraceRecord cur = mHead.next;
+            FTraceEvents ev = mEvents;
+            int evCnt = ev.size();
 
-            fo.println("#" + cur.time);
+            fo.println("#" + ev.getFirstTime());
             fo.println("b" + Util.toBinary(0, runWaitBits) + " RUNWAIT");
-            for (int i = 0; i < 65535; i++) {
-                if (mPids[i] != null && mPids[i].used > 0) {
-                    fo.println("b" + getSignal(i, mPids[i].initState) + " " + mPids[i].id);
-                }
+            for (FTraceProcessRecord pr : usedProcs) {
+                fo.println("b" + getSignal(pr.pid, pr.initState) + " " + pr.id);
+            }
+            for (FTraceSchedStats.Cpu cpu : sched.getCpus()) {
+                fo.println("b" + Util.toBinary(0, PID_BITS) + " " + cpuIds[cpu.cpu]);
             }
 
             long lastTime = 0;
             int lastNrRunWait = 0;
-            while (cur != null) {
-                if (lastTime != cur.time) {
-                    lastTime = cur.time;
-                    fo.println("#" + cur.time);
+            for (int cur = 0; cur < evCnt; cur++) {
+                long time = ev.getTime(cur);
+                if (lastTime != time) {
+                    lastTime = time;
+                    fo.println("#" + time);
                 }
 
                 // Update the number of processes running
-                if (cur.nrRunWait != lastNrRunWait) {
-                    lastNrRunWait = cur.nrRunWait;
+                int curNrRunWait = ev.getNrRunWait(cur);
+                if (curNrRunWait != lastNrRunWait) {
+                    lastNrRunWait = curNrRunWait;
                     fo.println("b" + Util.toBinary(lastNrRunWait, runWaitBits) + " RUNWAIT");
                 }
 
                 // Now check what happens with the prev task
                 // In case of wakeup, nothing happens with the previous task, so we are
                 // interested only in context switches
-                if (cur.event == SWITCH) {
-                    FTraceProcessRecord prev = getProc(cur.prevPid, br);
-                    int prevState = calcPrevState(cur.prevState);
+                if (ev.getType(cur) == SWITCH) {
+                    int cpu = ev.getCpu(cur);
+                    if (cpu >= 0) {
+                        fo.println("b" + Util.toBinary(ev.getNextPid(cur), PID_BITS) + " " + cpuIds[cpu]);
+                    }
+                    FTraceProcessRecord prev = getProc(ev.getPrevPid(cur), br);
+                    int prevState = calcPrevState(ev.getPrevState(cur));
                     if (prevState != prev.state) {
                         // Change in state
                         if (prev.lastTime != 0) {
@@ -446,9 +381,9 @@ public class FTracePlugin extends Plugin {
                 }
 
                 // And let's see what happens with the new task
-                FTraceProcessRecord next = getProc(cur.nextPid, br);
+                FTraceProcessRecord next = getProc(ev.getNextPid(cur), br);
                 int nextState = STATE_RUN;
-                if (cur.event == WAKEUP) {
+                if (ev.getType(cur) == WAKEUP) {
                     // Not running yet, so it must be waiting
                     nextState = STATE_WAIT;
                 }
@@ -472,7 +407,6 @@ public class FTracePlugin extends Plugin {
                     next.lastTime = lastTime;
                     fo.println("b" + getSignal(next.pid, nextState) + " " + next.id);
                 }
-                cur = cur.next;
             }
             fo.close();
             fos.close();
@@ -481,12 +415,7 @@ public class FTracePlugin extends Plugin {
         }
 
         // Collect process statistics
-        Vector<FTraceProcessRecord> list = new Vector<FTraceProcessRecord>();
-        for (int i = 0; i < 65535; i++) {
-            if (mPids[i] != null && mPids[i].used > 0) {
-                list.add(mPids[i]);
-            }
-        }
+        Vector<FTraceProcessRecord> list = new Vector<FTraceProcessRecord>(usedProcs);
         Collections.sort(list, new FTraceProcessRecordComparator());
 
         // Map ftrace process records to bugreport process records
@@ -530,7 +459,7 @@ public class FTracePlugin extends Plugin {
         for (FTraceProcessRecord pr : list) {
             // Create the trace image
             String png = br.getRelDataDir() + "ftrace_" + pr.pid + ".png";
-            createTracePng(br.getBaseDir() + png, pr, mHead.next, duration);
+            createTracePng(br.getBaseDir() + png, pr, mEvents, duration);
             // Add the table row
             addTraceTblRow(br, ch, pr, true);
         }
@@ -564,11 +493,678 @@ public class FTracePlugin extends Plugin {
         // Create the parallel-histogrram
         ch = new Chapter(br, "Parallel process histogram");
         main.addChapter(ch);
-        createParallelHist(ch, br, mHead.next, duration, TRACE_W);
+        createParallelHist(ch, br, mEvents, duration, TRACE_W);
+
+        // Create the per-cpu timelines and the wakeup latency statistics
+        if (sched.getCpuCount() > 0) {
+            ch = new Chapter(br, "CPU timelines");
+            main.addChapter(ch);
+            createCpuTimelines(ch, br, sched, duration);
+        }
+        if (sched.getAllLatency().getCount() > 0) {
+            ch = new Chapter(br, "Wakeup latency");
+            main.addChapter(ch);
+            createLatencyStats(ch, br, sched);
+        }
+
+        // Create the wakeup dependency graph and extract the critical path (if requested)
+        FTraceWakeupGraph graph = new FTraceWakeupGraph(mEvents);
+        if (graph.getWakeupCount() > 0) {
+            ch = new Chapter(br, "Wakeup graph");
+            main.addChapter(ch);
+            createWakeupGraph(ch, br, graph);
+        }
+        if (br.getFTraceCritPid() >= 0) {
+            ch = new Chapter(br, "Critical path");
+            main.addChapter(ch);
+            createCriticalPath(ch, br, graph);
+        }
+
+        // List the userspace slices and the other events found in the trace
+        if (mParser != null && !mParser.getEvents().isEmpty()) {
+            addUserspaceSlices(br, main);
+            addEventSummary(br, main);
+        }
 
         br.addChapter(main);
     }
 
+    /**
+     * Loads the events from the text output of ftrace.
+     * The context switches are collected either from the output of the old sched_switch
+     * tracer or from the sched_switch and sched_wakeup events. The other known events are
+     * decoded into tables in the same pass.
+     */
+    private boolean loadText(final BugReport br) {
+        // Locate the ftrace section
+        Section ftrace = br.findSection(Section.FTRACE);
+        if (ftrace == null) {
+            br.printErr(TAG + "Cannot find section: " + Section.FTRACE);
+            return false;
+        }
+
+        FTraceParser parser = new FTraceParser();
+        parser.addDefaultDecoders();
+        parser.addTracerDecoder("sched_switch", new FTraceDecoder() {
+            @Override
+            public void decode(FTraceLine line) {
+                decodeSchedSwitchTracer(br, line);
+            }
+        });
+        parser.addDecoder("sched_switch", new FTraceDecoder() {
+            @Override
+            public void decode(FTraceLine line) {
+                int prevPid = (int)line.getLongArg("prev_pid", -1);
+                int nextPid = (int)line.getLongArg("next_pid", -1);
+                String prevState = line.getStrArg("prev_state");
+                if (prevPid < 0 || nextPid < 0 || prevState == null || prevState.length() == 0) return;
+                String prevComm = line.getStrArg("prev_comm", "prev_pid");
+                String nextComm = line.getStrArg("next_comm", "next_pid");
+                if (prevComm != null) {
+                    setProcName(prevPid, prevComm, br);
+                }
+                if (nextComm != null) {
+                    setProcName(nextPid, nextComm, br);
+                }
+                int nextPrio = (int)line.getLongArg("next_prio", -1);
+                addEvent(br, line.getTime(), line.getCpu(), prevPid, prevState.charAt(0), SWITCH, nextPid, 'R', nextPrio);
+            }
+        });
+        FTraceDecoder wakeup = new FTraceDecoder() {
+            @Override
+            public void decode(FTraceLine line) {
+                int pid = (int)line.getLongArg("pid", -1);
+                if (pid < 0) return;
+                String comm = line.getStrArg("comm", "pid");
+                String task = line.getTask();
+                if (!task.equals(NO_PROC_NAME)) {
+                    setProcName(line.getPid(), task, br);
+                }
+                if (comm != null) {
+                    setProcName(pid, comm, br);
+                }
+                // The state of the woken up task is not known, assume it was sleeping
+                int prio = (int)line.getLongArg("prio", -1);
+                addEvent(br, line.getTime(), line.getCpu(), line.getPid(), 'R', WAKEUP, pid, 'S', prio);
+            }
+        };
+        parser.addDecoder("sched_wakeup", wakeup);
+        parser.addDecoder("sched_wakeup_new", wakeup);
+
+        parser.parse(ftrace);
+        mParser = parser;
+
+        // We must have some data in the buffer
+        if (parser.getLineCount() == 0) {
+            br.printErr(TAG + "The trace buffer is empty!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes one line of the old sched_switch tracer, for example:
+     * <pre>
+     *   &lt;idle&gt;-0     [000]   123.456789:      0:140:R   + [000]  1234:120:S kworker
+     *   &lt;idle&gt;-0     [000]   123.456789:      0:140:R ==> [000]  1234:120:R kworker
+     * </pre>
+     */
+    private void decodeSchedSwitchTracer(BugReport br, FTraceLine line) {
+        if (!line.hasHeader()) return;
+        String buff = line.getLine();
+        int len = buff.length();
+        int s = line.getArgsStart();
+        String srcProc = line.getTask();
+        int srcPid = line.getPid();
+
+        // Skip SRC PID (we already now)
+        s = buff.indexOf(':', s) + 1;
+
+        // Skip SRC PRIO (not used)
+        s = buff.indexOf(':', s) + 1;
+        if (s <= 0 || s >= len) return;
+
+        // Read SRC STATE
+        char srcState = buff.charAt(s);
+        s = FTraceLine.skipSpaces(buff, s + 1);
+
+        // Parse event: wakeup or switch
+        int event = UNKNOWN;
+        if (buff.startsWith("+", s)) {
+            event = WAKEUP;
+        } else if (buff.startsWith("==>", s)) {
+            event = SWITCH;
+        }
+
+        // Skip CPU (not used)
+        s = buff.indexOf(']', s) + 1;
+        if (s <= 0) return;
+        s = FTraceLine.skipSpaces(buff, s);
+
+        // Parse DST PID
+        int dstPid = (int)FTraceLine.parseLong(buff, s, -1);
+        if (dstPid < 0) return;
+
+        // Skip DST PID, parse DST PRIO
+        s = buff.indexOf(':', s) + 1;
+        if (s <= 0) return;
+        int dstPrio = (int)FTraceLine.parseLong(buff, s, -1);
+        s = buff.indexOf(':', s) + 1;
+        if (s <= 0 || s >= len) return;
+
+        // Read DST STATE
+        char dstState = buff.charAt(s);
+
+        // Read DST PROC
+        String dstProc = (s + 2 <= len) ? buff.substring(s + 2) : NO_PROC_NAME;
+
+        if (!srcProc.equals(NO_PROC_NAME)) {
+            setProcName(srcPid, srcProc, br);
+        }
+        if (!dstProc.equals(NO_PROC_NAME)) {
+            setProcName(dstPid, dstProc, br);
+        }
+
+        addEvent(br, line.getTime(), line.getCpu(), srcPid, srcState, event, dstPid, dstState, dstPrio);
+    }
+
+    /**
+     * Loads the sched_switch and sched_wakeup events from a binary trace-cmd file
+     */
+    private boolean loadTraceDat(final BugReport br, String fileName) {
+        final FTraceDatReader reader = new FTraceDatReader(fileName);
+        try {
+            reader.read(new FTraceDatReader.Listener() {
+                @Override
+                public void onSwitch(long timeUS, int cpu, int prevPid, char prevState, int nextPid, int nextPrio) {
+                    // Decode the names only when not known yet
+                    if (getProc(prevPid, br).name == null) {
+                        setProcName(prevPid, reader.getPrevComm(), br);
+                    }
+                    if (getProc(nextPid, br).name == null) {
+                        setProcName(nextPid, reader.getNextComm(), br);
+                    }
+                    addEvent(br, timeUS, cpu, prevPid, prevState, SWITCH, nextPid, 'R', nextPrio);
+                }
+
+                @Override
+                public void onWakeup(long timeUS, int cpu, int wakerPid, int pid, int prio) {
+                    if (getProc(wakerPid, br).name == null) {
+                        String name = reader.getPrevComm();
+                        if (name != null) {
+                            setProcName(wakerPid, name, br);
+                        }
+                    }
+                    if (getProc(pid, br).name == null) {
+                        setProcName(pid, reader.getNextComm(), br);
+                    }
+                    // The state of the woken up task is not recorded, assume it was sleeping
+                    addEvent(br, timeUS, cpu, wakerPid, 'R', WAKEUP, pid, 'S', prio);
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            br.printErr(TAG + "Error reading trace file " + fileName + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores an event and updates the process states and the number of running processes
+     */
+    private void addEvent(BugReport br, long timeUS, int cpu, int srcPid, char srcState, int event, int dstPid, char dstState, int dstPrio) {
+        // Calculate the number of processes running
+        int newNr = mNrRunWait;
+        FTraceProcessRecord proc = getProc(srcPid, br);
+        if (event == SWITCH) {
+            int prevState = calcPrevState(srcState);
+            newNr += updateNr(proc, prevState, false, srcState);
+        }
+        int nextState = event == WAKEUP ? STATE_WAIT : STATE_RUN;
+        proc = getProc(dstPid, br);
+        newNr += updateNr(proc, nextState, true, dstState);
+        if (newNr <= 0) {
+            // This shouldn't happen!
+            // incNrRunWait(1 - newNr); // This could be used as a workaround (but again, this should never happen)
+            br.printErr(TAG + "Needs adjusting! newNr=" + newNr + " @" + timeUS);
+            newNr = 1;
+        }
+        int delta = newNr - mNrRunWait;
+        mNrRunWait = newNr;
+
+        mEvents.add(timeUS, cpu, srcPid, dstPid, srcState, dstState, dstPrio, event, delta);
+        getProc(srcPid, br).used++;
+        getProc(dstPid, br).used++;
+
+        if (srcPid == 0 || dstPid == 0) {
+            mAdjNoIdle = false; // No need to adjust due to idle not "running"
+        }
+    }
+
+    /** Statistics of the userspace slices with the same name */
+    static class SliceStats {
+        String name;
+        int count;
+        int unfinished;
+        long total;
+        long max;
+        IntIntMap threads = new IntIntMap();
+    }
+
+    private void addUserspaceSlices(BugReport br, Chapter main) {
+        FTraceTable slices = mParser.getTable(FTraceParser.SLICES);
+        FTraceTable counters = mParser.getTable(FTraceParser.COUNTERS);
+        if (slices == null || counters == null) return;
+        if (slices.size() == 0 && counters.size() == 0) return;
+        Chapter ch = new Chapter(br, "Userspace slices");
+        main.addChapter(ch);
+
+        // Collect the statistics per slice name
+        IntIntMap idx = new IntIntMap();
+        Vector<SliceStats> list = new Vector<SliceStats>();
+        int cnt = slices.size();
+        for (int row = 0; row < cnt; row++) {
+            int name = (int)slices.get(row, 0);
+            int i = idx.get(name, -1);
+            if (i < 0) {
+                i = list.size();
+                idx.put(name, i);
+                SliceStats stats = new SliceStats();
+                stats.name = slices.getString(row, 0);
+                list.add(stats);
+            }
+            SliceStats stats = list.get(i);
+            long dur = slices.get(row, 3);
+            if (dur < 0) {
+                stats.unfinished++;
+            } else {
+                stats.count++;
+                stats.total += dur;
+                stats.max = Math.max(stats.max, dur);
+            }
+            stats.threads.put(slices.getPid(row), 1);
+        }
+        Collections.sort(list, new Comparator<SliceStats>() {
+            @Override
+            public int compare(SliceStats o1, SliceStats o2) {
+                if (o1.total != o2.total) return o1.total < o2.total ? 1 : -1;
+                return o1.name.compareTo(o2.name);
+            }
+        });
+
+        if (cnt > 0) {
+            ch.addLine("<p>The slices marked by the applications and services (using the android.os.Trace API),");
+            ch.addLine("grouped by name (only the first " + MAX_SLICE_NAMES + " names with the longest total duration are listed):</p>");
+            ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+            ch.addLine("<table class=\"ftrace-stat tablesorter\">");
+            ch.addLine("  <thead>");
+            ch.addLine("  <tr class=\"ftrace-stat-header\">");
+            ch.addLine("    <th>Name</td>");
+            ch.addLine("    <th>Count</td>");
+            ch.addLine("    <th>Total (us)</td>");
+            ch.addLine("    <th>Avg. (us)</td>");
+            ch.addLine("    <th>Max. (us)</td>");
+            ch.addLine("    <th>Threads</td>");
+            ch.addLine("    <th>Unfinished</td>");
+            ch.addLine("  </tr>");
+            ch.addLine("  </thead>");
+            ch.addLine("  <tbody>");
+            for (int i = 0; i < list.size() && i < MAX_SLICE_NAMES; i++) {
+                SliceStats stats = list.get(i);
+                ch.addLine("  <tr>");
+                ch.addLine("    <td>" + Util.escape(stats.name) + "</td>");
+                ch.addLine("    <td>" + stats.count + "</td>");
+                ch.addLine("    <td>" + shadeTimeUS(stats.total) + "</td>");
+                ch.addLine("    <td>" + shadeTimeUS(stats.count == 0 ? 0 : stats.total / stats.count) + "</td>");
+                ch.addLine("    <td>" + shadeTimeUS(stats.max) + "</td>");
+                ch.addLine("    <td>" + stats.threads.size() + "</td>");
+                ch.addLine("    <td>" + stats.unfinished + "</td>");
+                ch.addLine("  </tr>");
+            }
+            ch.addLine("  </tbody>");
+            ch.addLine("</table>");
+        }
+
+        // Collect the range of the counters
+        cnt = counters.size();
+        if (cnt > 0) {
+            idx.clear();
+            Vector<long[]> values = new Vector<long[]>(); // first row, samples, min, max, last
+            for (int row = 0; row < cnt; row++) {
+                int name = (int)counters.get(row, 0);
+                long value = counters.get(row, 2);
+                int i = idx.get(name, -1);
+                if (i < 0) {
+                    idx.put(name, values.size());
+                    values.add(new long[] { row, 1, value, value, value });
+                } else {
+                    long v[] = values.get(i);
+                    v[1]++;
+                    v[2] = Math.min(v[2], value);
+                    v[3] = Math.max(v[3], value);
+                    v[4] = value;
+                }
+            }
+            ch.addLine("<p>The counters set by the applications and services:</p>");
+            ch.addLine("<table class=\"ftrace-stat tablesorter\" style=\"width: auto;\">");
+            ch.addLine("  <thead>");
+            ch.addLine("  <tr class=\"ftrace-stat-header\">");
+            ch.addLine("    <th>Name</td>");
+            ch.addLine("    <th>Samples</td>");
+            ch.addLine("    <th>Min.</td>");
+            ch.addLine("    <th>Max.</td>");
+            ch.addLine("    <th>Last</td>");
+            ch.addLine("  </tr>");
+            ch.addLine("  </thead>");
+            ch.addLine("  <tbody>");
+            for (long v[] : values) {
+                ch.addLine("  <tr>");
+                ch.addLine("    <td>" + Util.escape(counters.getString((int)v[0], 0)) + "</td>");
+                for (int i = 1; i < v.length; i++) {
+                    ch.addLine("    <td>" + v[i] + "</td>");
+                }
+                ch.addLine("  </tr>");
+            }
+            ch.addLine("  </tbody>");
+            ch.addLine("</table>");
+        }
+    }
+
+    private void addEventSummary(BugReport br, Chapter main) {
+        final FTraceParser parser = mParser;
+        Chapter ch = new Chapter(br, "Events");
+        main.addChapter(ch);
+        if (parser.getTracer() != null) {
+            ch.addLine("<p>Tracer: " + parser.getTracer() + "</p>");
+        }
+        ch.addLine("<p>The following events were found in the trace:</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+        ch.addLine("<table class=\"ftrace-stat tablesorter\" style=\"width: auto;\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>Event</td>");
+        ch.addLine("    <th>Count</td>");
+        ch.addLine("    <th>Decoded</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        Vector<String> events = parser.getEvents();
+        Collections.sort(events, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                int c1 = parser.getEventCount(o1), c2 = parser.getEventCount(o2);
+                if (c1 != c2) return c1 < c2 ? 1 : -1;
+                return o1.compareTo(o2);
+            }
+        });
+        for (String event : events) {
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + event + "</td>");
+            ch.addLine("    <td>" + parser.getEventCount(event) + "</td>");
+            ch.addLine("    <td>" + (parser.isDecoded(event) ? "yes" : "no") + "</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    private void createCpuTimelines(Chapter ch, BugReport br, FTraceSchedStats sched, long duration) {
+        ch.addLine("<p>The following table shows how busy the cpus were (running something else than the idle process):</p>");
+        ch.addLine("<div><img src=\"" + br.getRelDataDir() + "ftrace-legend-red.png\"/> Busy (the darker the color, the less busy)</div>");
+        ch.addLine("<div><img src=\"" + br.getRelDataDir() + "ftrace-legend-black.png\"/> Idle</div>");
+        ch.addLine("<table class=\"ftrace-trace\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-trace-header\">");
+        ch.addLine("    <th>CPU</td>");
+        ch.addLine("    <th>Busy time (us)</td>");
+        ch.addLine("    <th>Busy time (%)</td>");
+        ch.addLine("    <th>Context switches</td>");
+        ch.addLine("    <th>Trace</td>");
+        ch.addLine("  </tr>");
+        String fnTimeBar = getTimeBarName(br, duration);
+        if (fnTimeBar != null) {
+            ch.addLine("  <tr>");
+            ch.addLine("    <th colspan=\"4\">Relative time</td>");
+            ch.addLine("    <th><img src=\"" + br.getRelDataDir() + fnTimeBar + "\"/></td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (FTraceSchedStats.Cpu cpu : sched.getCpus()) {
+            String png = br.getRelDataDir() + "ftrace_cpu" + cpu.cpu + ".png";
+            createCpuPng(br.getBaseDir() + png, cpu, duration);
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>CPU" + cpu.cpu + "</td>");
+            ch.addLine("    <td>" + shadeTimeUS(cpu.busyTime) + "</td>");
+            ch.addLine("    <td>" + String.format("%3.1f", (cpu.busyTime * 100.0 / duration)) + "%</td>");
+            ch.addLine("    <td>" + cpu.switches + "</td>");
+            ch.addLine("    <td><img src=\"" + png + "\"/></td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    private void createCpuPng(String fileName, FTraceSchedStats.Cpu cpu, long duration) {
+        int w = TRACE_W;
+        int h = TRACE_H;
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = (Graphics2D)img.getGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, w, h);
+        for (int x = 0; x < w; x++) {
+            long busy = cpu.busyPx[x];
+            if (busy <= 0) continue;
+            long pxDur = Math.max(1, (x + 1) * duration / w - x * duration / w);
+            int red = (int)Math.min(255, 64 + 191 * busy / pxDur);
+            g.setColor(new Color(red << 16));
+            g.fillRect(x, 0, 1, h);
+        }
+        try {
+            ImageIO.write(img, "png", new File(fileName));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void createLatencyStats(Chapter ch, BugReport br, FTraceSchedStats sched) {
+        ch.addLine("<p>Wakeup latency is the time elapsed from waking up a process until it is actually running on a cpu.</p>");
+
+        // Per priority band
+        ch.addLine("<p>Wakeup latency per priority band (the priority is taken at the time of the wakeup):</p>");
+        beginLatencyTbl(ch, "Priority band");
+        addLatencyTblRow(ch, "All", sched.getAllLatency());
+        for (int i = 0; i < FTraceSchedStats.BAND_NAMES.length; i++) {
+            LogLinearHistogram hist = sched.getBandLatency(i);
+            if (hist.getCount() > 0) {
+                addLatencyTblRow(ch, FTraceSchedStats.BAND_NAMES[i], hist);
+            }
+        }
+        endStatTbl(ch);
+
+        // Per process
+        ch.addLine("<p>Wakeup latency per process:</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+        beginLatencyTbl(ch, "Name");
+        for (FTraceSchedStats.Proc p : sched.getProcs()) {
+            FTraceProcessRecord pr = getProc(p.pid, br);
+            addLatencyTblRow(ch, makeProcName(br, pr, true), p.latency);
+        }
+        endStatTbl(ch);
+
+        // The distribution of all the latencies
+        LogLinearHistogram all = sched.getAllLatency();
+        ch.addLine("<p>Distribution of the wakeup latencies (of all processes):</p>");
+        ch.addLine("<table class=\"ftrace-stat\" style=\"width: auto;\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>Latency (us)</td>");
+        ch.addLine("    <th>Count</td>");
+        ch.addLine("    <th>Count (%)</td>");
+        ch.addLine("    <th>Cumulative (%)</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        long sum = 0;
+        int buckets = all.getBucketCount();
+        for (int i = 0; i < buckets; i++) {
+            int cnt = all.getBucketValueCount(i);
+            if (cnt == 0) continue;
+            sum += cnt;
+            long min = all.getBucketMin(i), max = all.getBucketMax(i);
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + (min == max ? "" + min : min + " - " + max) + "</td>");
+            ch.addLine("    <td>" + cnt + "</td>");
+            ch.addLine("    <td>" + String.format("%3.1f", cnt * 100.0 / all.getCount()) + "%</td>");
+            ch.addLine("    <td>" + String.format("%3.1f", sum * 100.0 / all.getCount()) + "%</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    private void beginLatencyTbl(Chapter ch, String title) {
+        ch.addLine("<table class=\"ftrace-stat tablesorter\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>" + title + "</td>");
+        ch.addLine("    <th>Wakeups</td>");
+        ch.addLine("    <th>Avg. (us)</td>");
+        for (double p : PERCENTILES) {
+            ch.addLine("    <th>" + (int)p + "th percentile (us)</td>");
+        }
+        ch.addLine("    <th>Max. (us)</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+    }
+
+    private void addLatencyTblRow(Chapter ch, String name, LogLinearHistogram hist) {
+        ch.addLine("  <tr>");
+        ch.addLine("    <td>" + name + "</td>");
+        ch.addLine("    <td>" + hist.getCount() + "</td>");
+        ch.addLine("    <td>" + shadeTimeUS(hist.getMean()) + "</td>");
+        for (double p : PERCENTILES) {
+            ch.addLine("    <td>" + shadeTimeUS(hist.getPercentile(p)) + "</td>");
+        }
+        ch.addLine("    <td>" + shadeTimeUS(hist.getMax()) + "</td>");
+        ch.addLine("  </tr>");
+    }
+
+    private void createWakeupGraph(Chapter ch, BugReport br, FTraceWakeupGraph graph) {
+        ch.addLine("<p>The wakeup graph contains " + graph.getTaskCount() + " tasks and " + graph.getWakeupCount() + " wakeups.");
+        ch.addLine("The most frequent waker-wakee pairs:</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+        ch.addLine("<table class=\"ftrace-stat tablesorter\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>Waker</td>");
+        ch.addLine("    <th>Wakee</td>");
+        ch.addLine("    <th>Wakeups</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (FTraceWakeupGraph.Edge edge : graph.getTopEdges(MAX_WAKEUP_EDGES)) {
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + makeProcName(br, getProc(edge.waker, br), true) + "</td>");
+            ch.addLine("    <td>" + makeProcName(br, getProc(edge.wakee, br), true) + "</td>");
+            ch.addLine("    <td>" + edge.count + "</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    private void createCriticalPath(Chapter ch, BugReport br, FTraceWakeupGraph graph) {
+        int pid = br.getFTraceCritPid();
+        long from = br.getFTraceCritFrom();
+        long to = br.getFTraceCritTo();
+        if (from < 0) from = mEvents.getFirstTime();
+        if (to < 0) to = mEvents.getLastTime();
+        Vector<FTraceWakeupGraph.Segment> path = graph.getCriticalPath(pid, from, to);
+        if (path == null || from >= to) {
+            ch.addLine("<p>Cannot extract the critical path: task " + pid + " is not found in the trace, or the time window is empty.</p>");
+            return;
+        }
+        FTraceProcessRecord target = getProc(pid, br);
+        ch.addLine("<p>The critical path of " + makeProcName(br, target, true) + " between " + formatTime(from) + " and " + formatTime(to) + ".");
+        ch.addLine("It is built by walking backwards from the end of the window: when the task was woken up, the path");
+        ch.addLine("continues with the task which woke it up. So it shows the chain of tasks and waits which made up the elapsed time.</p>");
+
+        // Summary per task and state
+        IntIntMap idx = new IntIntMap();
+        Vector<long[]> sums = new Vector<long[]>();
+        for (FTraceWakeupGraph.Segment seg : path) {
+            int i = idx.get(seg.pid, -1);
+            if (i < 0) {
+                i = sums.size();
+                idx.put(seg.pid, i);
+                sums.add(new long[FTraceWakeupGraph.STATE_NAMES.length + 1]);
+                sums.get(i)[0] = seg.pid;
+            }
+            sums.get(i)[seg.state + 1] += seg.end - seg.start;
+        }
+        ch.addLine("<p>Time spent on the critical path per task (in us):</p>");
+        ch.addLine("<table class=\"ftrace-stat\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>Task</td>");
+        for (String name : FTraceWakeupGraph.STATE_NAMES) {
+            ch.addLine("    <th>" + name + "</td>");
+        }
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (long sum[] : sums) {
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + makeProcName(br, getProc((int)sum[0], br), true) + "</td>");
+            for (int i = 1; i < sum.length; i++) {
+                ch.addLine("    <td>" + shadeTimeUS(sum[i]) + "</td>");
+            }
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+
+        // The path itself
+        ch.addLine("<p>The critical path in chronological order:</p>");
+        ch.addLine("<table class=\"ftrace-stat\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"ftrace-stat-header\">");
+        ch.addLine("    <th>Start</td>");
+        ch.addLine("    <th>Duration (us)</td>");
+        ch.addLine("    <th>Task</td>");
+        ch.addLine("    <th>State</td>");
+        ch.addLine("    <th>Details</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (FTraceWakeupGraph.Segment seg : path) {
+            String details = "";
+            if (seg.state == FTraceWakeupGraph.RUNNABLE) {
+                details = "woken up by " + (seg.otherPid == 0 ? "an interrupt (idle cpu)" : makeProcName(br, getProc(seg.otherPid, br), true));
+            } else if (seg.state == FTraceWakeupGraph.PREEMPTED && seg.otherPid >= 0) {
+                details = "preempted by " + makeProcName(br, getProc(seg.otherPid, br), true);
+            }
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + formatTime(seg.start) + "</td>");
+            ch.addLine("    <td>" + shadeTimeUS(seg.end - seg.start) + "</td>");
+            ch.addLine("    <td>" + makeProcName(br, getProc(seg.pid, br), true) + "</td>");
+            ch.addLine("    <td>" + FTraceWakeupGraph.STATE_NAMES[seg.state] + "</td>");
+            ch.addLine("    <td>" + details + "</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    /**
+     * Formats the timestamp the same way as ftrace does (seconds with microsecond precision)
+     */
+    private static String formatTime(long timeUS) {
+        return String.format("%d.%06d", timeUS / 1000000, timeUS % 1000000);
+    }
+
     private String makeProcName(BugReport br, FTraceProcessRecord pr, boolean addLink) {
         // Add priority info
         String name = pr.getName();
@@ -774,18 +1370,17 @@ public class FTracePlugin extends Plugin {
     }
 
     private void incNrRunWait(int delta) {
-        TraceRecord cur = mHead.next;
-        while (cur != null) {
-            cur.nrRunWait += delta;
-            cur = cur.next;
-        }
+        // Fix the history by changing the initial value. The current value is adjusted as
+        // well, so the change is not counted again in the delta of the current event.
+        mEvents.incNrRunWait(delta);
+        mNrRunWait += delta;
     }
 
-    private void createTracePng(String fileName, FTraceProcessRecord pr, TraceRecord head, long duration) {
+    private void createTracePng(String fileName, FTraceProcessRecord pr, FTraceEvents ev, long duration) {
         // Setup initial data
         int w = TRACE_W;
         int h = TRACE_H;
-        long startTime = head.time;
+        long startTime = ev.getFirstTime();
         int pid = pr.pid;
         int lastState = 'S';
         if (pr.initState == STATE_RUN) {
@@ -804,10 +1399,11 @@ public class FTracePlugin extends Plugin {
         // Render the trace
         Color darkRed = new Color(0x800000);
         Color darkCyan = new Color(0x008080);
-        while (head != null) {
-            if (head.prevPid == pid) {
+        int cnt = ev.size();
+        for (int i = 0; i < cnt; i++) {
+            if (ev.getPrevPid(i) == pid) {
                 // This process was switched away, render something
-                int x = (int)((head.time - startTime) * w / duration);
+                int x = (int)((ev.getTime(i) - startTime) * w / duration);
                 if (lastX != -1) {
                     if (lastX == x) {
                         g.setColor(darkRed);
@@ -818,11 +1414,11 @@ public class FTracePlugin extends Plugin {
                     }
                 }
                 lastX = x;
-                lastState = head.prevState;
+                lastState = ev.getPrevState(i);
             }
-            if (head.nextPid == pid) {
+            if (ev.getNextPid(i) == pid) {
                 // This process was resumed (or at least woken up),
-                int x = (int)((head.time - startTime) * w / duration);
+                int x = (int)((ev.getTime(i) - startTime) * w / duration);
                 if (lastX != -1) {
                     if (lastState == 'D') {
                         g.setColor(Color.YELLOW);
@@ -838,9 +1434,8 @@ public class FTracePlugin extends Plugin {
                     }
                 }
                 lastX = x;
-                lastState = head.nextState;
+                lastState = ev.getNextState(i);
             }
-            head = head.next;
         }
 
         // Save the image
@@ -851,36 +1446,33 @@ public class FTracePlugin extends Plugin {
         }
     }
 
-    private void createParallelHist(Chapter ch, BugReport br, TraceRecord head, long duration, int w) {
+    private void createParallelHist(Chapter ch, BugReport br, FTraceEvents ev, long duration, int w) {
         // Setup initial data
         int max = 16;
         long durations[] = new long[max];
         int count = 0;
         int maxUsed = 0;
-        long startTime = head.time;
-        long lastTime = head.time;
-        int lastX = 0;
+        long startTime = ev.getFirstTime();
+        long lastTime = startTime;
+        Downsampler nrs = new Downsampler(startTime, startTime + duration, w);
 
         // Create the empty image
         int stepSize = 8;
         int h = stepSize * max;
         BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        int minNr[] = newIntArr(w, Integer.MAX_VALUE);
-        int maxNr[] = newIntArr(w, 0);
         Graphics2D g = (Graphics2D)img.getGraphics();
         g.setColor(Color.BLACK);
         g.fillRect(0, 0, w, h);
         g.setColor(Color.RED);
 
-        // Process the trace
-        while (head != null) {
-            long now = head.time;
-
-            int newCount = head.nrRunWait;
+        // Process the trace: the number of processes is a step signal, each interval
+        // with the same value is added once to the histogram and to the chart
+        int evCnt = ev.size();
+        for (int i = 0; i <= evCnt; i++) {
+            long now = (i < evCnt) ? ev.getTime(i) : startTime + duration;
+            int newCount = (i < evCnt) ? ev.getNrRunWait(i) : -1;
             if (newCount != count) {
-                int x = (int)((head.time - startTime) * w / duration);
-                fillMinMax(lastX, x, count, minNr, maxNr);
-                lastX = x;
+                nrs.addInterval(lastTime, now, count);
 
                 // We need to add the duration with the previous count
                 long dur = now - lastTime;
@@ -897,21 +1489,19 @@ public class FTracePlugin extends Plugin {
                 // And only now we update the count to the new value
                 count = newCount;
             }
-
-            head = head.next;
         }
 
         // Now do the actuall rendering
         Color cmin = new Color(0xff0000);
         Color cmax = new Color(0x800000);
         for (int i = 0; i < w; i++) {
-            if (minNr[i] > maxNr[i]) {
+            if (!nrs.hasData(i)) {
                 // Skip -> no data
                 continue;
             }
-            int ymin = h - 1 - stepSize * minNr[i];
+            int ymin = h - 1 - stepSize * (int)nrs.getMin(i);
             if (ymin < 0) ymin = 0;
-            int ymax = h - 1 - stepSize * maxNr[i];
+            int ymax = h - 1 - stepSize * (int)nrs.getMax(i);
             if (ymax < 0) ymax = 0;
             g.setColor(cmin);
             g.fillRect(i, ymin, 1, h - ymin);
@@ -1023,25 +1613,4 @@ public class FTracePlugin extends Plugin {
 
     }
 
-    private int[] newIntArr(int size, int defValue) {
-        int ret[] = new int[size];
-        for (int i = 0; i < size; i++) {
-            ret[i] = defValue;
-        }
-        return ret;
-    }
-
-    private void fillMinMax(int from, int to, int value, int[] minNr, int[] maxNr) {
-        from = Math.max(0, from);
-        to = Math.min(minNr.length - 1, to);
-        for (int i = from; i <= to; i++) {
-            if (value < minNr[i]) {
-                minNr[i] = value;
-            }
-            if (value > maxNr[i]) {
-                maxNr[i] = value;
-            }
-        }
-    }
-
 }
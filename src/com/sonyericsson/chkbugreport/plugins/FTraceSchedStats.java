@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.util.IntIntMap;
+import com.sonyericsson.chkbugreport.util.LogLinearHistogram;
+
+import java.util.Vector;
+
+/**
+ * Collects the per-cpu occupancy and the wakeup latencies (the time from waking up a
+ * process until it's actually running) in one pass over the ftrace events.
+ */
+class FTraceSchedStats {
+
+    /** The priority bands used to group the wakeup latencies */
+    public static final String BAND_NAMES[] = {
+        "Real-time (prio 0-99)",
+        "High (nice -20..-1)",
+        "Normal (nice 0)",
+        "Low (nice 1..19)",
+    };
+
+    /** Statistics of one cpu */
+    static class Cpu {
+        int cpu;
+        int curPid = -1;
+        long lastTime = -1;
+        long busyTime;
+        int switches;
+        /** Busy time (in us) in each pixel column of the timeline */
+        long busyPx[];
+    }
+
+    /** Wakeup latency statistics of one process */
+    static class Proc {
+        int pid;
+        long wakeTime = -1;
+        int wakePrio = -1;
+        LogLinearHistogram latency = new LogLinearHistogram();
+    }
+
+    private Vector<Cpu> mCpus = new Vector<Cpu>();
+    private IntIntMap mPidIdx = new IntIntMap();
+    private Vector<Proc> mProcs = new Vector<Proc>();
+    private LogLinearHistogram mBands[] = new LogLinearHistogram[BAND_NAMES.length];
+    private LogLinearHistogram mAll = new LogLinearHistogram();
+    private long mStart;
+    private long mDuration;
+    private int mWidth;
+
+    /**
+     * Processes the events
+     * @param ev The events
+     * @param width The width of the cpu timelines (in pixels)
+     */
+    public FTraceSchedStats(FTraceEvents ev, int width) {
+        mWidth = width;
+        for (int i = 0; i < mBands.length; i++) {
+            mBands[i] = new LogLinearHistogram();
+        }
+        int cnt = ev.size();
+        if (cnt == 0) return;
+        mStart = ev.getFirstTime();
+        mDuration = Math.max(1, ev.getLastTime() - mStart);
+        for (int i = 0; i < cnt; i++) {
+            long time = ev.getTime(i);
+            int type = ev.getType(i);
+            int nextPid = ev.getNextPid(i);
+            if (type == FTraceEvents.WAKEUP) {
+                if (nextPid != 0) {
+                    Proc p = getProc(nextPid);
+                    if (p.wakeTime < 0) {
+                        p.wakeTime = time;
+                        p.wakePrio = ev.getNextPrio(i);
+                    }
+                }
+            } else if (type == FTraceEvents.SWITCH) {
+                // Update the cpu occupancy
+                int cpuId = ev.getCpu(i);
+                if (cpuId >= 0) {
+                    Cpu cpu = getCpu(cpuId);
+                    closeInterval(cpu, time);
+                    cpu.curPid = nextPid;
+                    cpu.lastTime = time;
+                    cpu.switches++;
+                }
+
+                // The woken up process is finally running
+                if (nextPid != 0) {
+                    Proc p = getProc(nextPid);
+                    if (p.wakeTime >= 0) {
+                        long lat = time - p.wakeTime;
+                        p.latency.add(lat);
+                        mAll.add(lat);
+                        int band = getBand(p.wakePrio);
+                        if (band >= 0) {
+                            mBands[band].add(lat);
+                        }
+                        p.wakeTime = -1;
+                    }
+                }
+            }
+        }
+        long end = ev.getLastTime();
+        for (Cpu cpu : mCpus) {
+            if (cpu != null) {
+                closeInterval(cpu, end);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the priority band of the kernel priority, or -1 if unknown
+     */
+    public static int getBand(int prio) {
+        if (prio < 0) return -1;
+        if (prio < 100) return 0;
+        if (prio < 120) return 1;
+        if (prio == 120) return 2;
+        return 3;
+    }
+
+    /**
+     * Returns the cpus found in the trace, in the order of the cpu number
+     */
+    public Vector<Cpu> getCpus() {
+        Vector<Cpu> ret = new Vector<Cpu>();
+        for (Cpu cpu : mCpus) {
+            if (cpu != null) {
+                ret.add(cpu);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of cpus (the highest cpu number + 1)
+     */
+    public int getCpuCount() {
+        return mCpus.size();
+    }
+
+    /**
+     * Returns the processes which have at least one wakeup latency measured
+     */
+    public Vector<Proc> getProcs() {
+        Vector<Proc> ret = new Vector<Proc>();
+        for (Proc p : mProcs) {
+            if (p.latency.getCount() > 0) {
+                ret.add(p);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the wakeup latencies of the processes in the given priority band
+     */
+    public LogLinearHistogram getBandLatency(int band) {
+        return mBands[band];
+    }
+
+    /**
+     * Returns the wakeup latencies of all processes
+     */
+    public LogLinearHistogram getAllLatency() {
+        return mAll;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    private Cpu getCpu(int cpuId) {
+        while (mCpus.size() <= cpuId) {
+            mCpus.add(null);
+        }
+        Cpu cpu = mCpus.get(cpuId);
+        if (cpu == null) {
+            cpu = new Cpu();
+            cpu.cpu = cpuId;
+            cpu.busyPx = new long[mWidth];
+            mCpus.set(cpuId, cpu);
+        }
+        return cpu;
+    }
+
+    private Proc getProc(int pid) {
+        int idx = mPidIdx.get(pid, -1);
+        if (idx < 0) {
+            idx = mProcs.size();
+            Proc p = new Proc();
+            p.pid = pid;
+            mProcs.add(p);
+            mPidIdx.put(pid, idx);
+        }
+        return mProcs.get(idx);
+    }
+
+    /**
+     * Accounts the time since the last context switch on the cpu
+     */
+    private void closeInterval(Cpu cpu, long time) {
+        if (cpu.lastTime < 0 || cpu.curPid <= 0 || time <= cpu.lastTime) return;
+        cpu.busyTime += time - cpu.lastTime;
+
+        // Distribute the busy time between the pixel columns
+        long from = cpu.lastTime - mStart;
+        long to = time - mStart;
+        int x = (int)(from * mWidth / mDuration);
+        while (from < to && x < mWidth) {
+            long pxEnd = (long)(x + 1) * mDuration / mWidth; // the end of the pixel column
+            long e = Math.min(to, Math.max(pxEnd, from + 1));
+            cpu.busyPx[x] += e - from;
+            from = e;
+            x++;
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Stores the decoded instances of one ftrace event type, in primitive arrays.
+ * Each row has a timestamp, a cpu and a pid, plus the event specific columns.
+ * The columns store long values; the string columns store the index of the
+ * string in the string pool of the table.
+ */
+class FTraceTable {
+
+    private String mName;
+    private String mCols[];
+    private boolean mStrCols[];
+    private long mTime[];
+    private int mCpu[];
+    private int mPid[];
+    private long mValues[][];
+    private int mSize;
+    private Vector<String> mStrings = new Vector<String>();
+    private HashMap<String, Integer> mStringIdx = new HashMap<String, Integer>();
+
+    /**
+     * Creates a new table
+     * @param name The name of the table (usually the event name)
+     * @param cols The name of the columns. String columns are marked with a '$' prefix
+     *   (which is not part of the column name).
+     */
+    public FTraceTable(String name, String... cols) {
+        mName = name;
+        mCols = new String[cols.length];
+        mStrCols = new boolean[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            mStrCols[i] = cols[i].startsWith("$");
+            mCols[i] = mStrCols[i] ? cols[i].substring(1) : cols[i];
+        }
+        int cap = 64;
+        mTime = new long[cap];
+        mCpu = new int[cap];
+        mPid = new int[cap];
+        mValues = new long[cols.length][cap];
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getColumnCount() {
+        return mCols.length;
+    }
+
+    public String getColumnName(int col) {
+        return mCols[col];
+    }
+
+    public boolean isStringColumn(int col) {
+        return mStrCols[col];
+    }
+
+    /**
+     * Returns the index of the column, or -1 if there is no such column
+     */
+    public int findColumn(String name) {
+        for (int i = 0; i < mCols.length; i++) {
+            if (mCols[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a new row (with all the columns set to 0)
+     * @return The index of the new row
+     */
+    public int addRow(long time, int cpu, int pid) {
+        if (mSize == mTime.length) {
+            int cap = mSize + (mSize >> 1) + 1;
+            mTime = Arrays.copyOf(mTime, cap);
+            mCpu = Arrays.copyOf(mCpu, cap);
+            mPid = Arrays.copyOf(mPid, cap);
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = Arrays.copyOf(mValues[i], cap);
+            }
+        }
+        int row = mSize++;
+        mTime[row] = time;
+        mCpu[row] = cpu;
+        mPid[row] = pid;
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i][row] = 0;
+        }
+        return row;
+    }
+
+    public void set(int row, int col, long value) {
+        mValues[col][row] = value;
+    }
+
+    public void setString(int row, int col, String value) {
+        mValues[col][row] = intern(value);
+    }
+
+    public long getTime(int row) {
+        return mTime[row];
+    }
+
+    public int getCpu(int row) {
+        return mCpu[row];
+    }
+
+    public int getPid(int row) {
+        return mPid[row];
+    }
+
+    public long get(int row, int col) {
+        return mValues[col][row];
+    }
+
+    public String getString(int row, int col) {
+        return mStrings.get((int)mValues[col][row]);
+    }
+
+    /**
+     * Returns the index of the string in the string pool (adding it if needed)
+     */
+    public int intern(String s) {
+        if (s == null) s = "";
+        Integer idx = mStringIdx.get(s);
+        if (idx == null) {
+            idx = mStrings.size();
+            mStrings.add(s);
+            mStringIdx.put(s, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * A decoder which stores the "key=value" arguments of the event in a table,
+     * where the name of the columns are the keys.
+     */
+    static class Decoder implements FTraceDecoder {
+
+        private FTraceTable mTable;
+
+        public Decoder(FTraceTable table) {
+            mTable = table;
+        }
+
+        public FTraceTable getTable() {
+            return mTable;
+        }
+
+        @Override
+        public void decode(FTraceLine line) {
+            FTraceTable t = mTable;
+            int row = t.addRow(line.getTime(), line.getCpu(), line.getPid());
+            int cnt = t.getColumnCount();
+            for (int i = 0; i < cnt; i++) {
+                if (t.isStringColumn(i)) {
+                    t.setString(row, i, line.getStrArg(t.getColumnName(i)));
+                } else {
+                    t.set(row, i, line.getLongArg(t.getColumnName(i), 0));
+                }
+            }
+        }
+
+    }
+
+}
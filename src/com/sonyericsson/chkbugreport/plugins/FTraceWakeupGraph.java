@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.util.IntIntMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * The wakeup dependency graph built from the ftrace events.
+ * The nodes are the tasks, and each wakeup event is an edge from the waker to the wakee.
+ * Everything is stored in primitive arrays: the events of each task are chained
+ * together (so the history of a task can be walked backwards), and the wakeups are
+ * grouped by the waker (like an adjacency list). Both are built in linear time.
+ * The graph is used to extract the critical path of a task in a time window: the
+ * chain of running, waiting and sleeping intervals (following the wakeups from the
+ * wakee to the waker) which made up the time of the task.
+ */
+class FTraceWakeupGraph {
+
+    /* The states of the critical path segments */
+    public static final int RUNNING = 0;
+    public static final int RUNNABLE = 1;
+    public static final int PREEMPTED = 2;
+    public static final int SLEEPING = 3;
+    public static final int DISK = 4;
+    public static final int UNKNOWN = 5;
+
+    public static final String STATE_NAMES[] = {
+        "Running", "Runnable (woken up, waiting for cpu)", "Preempted (waiting for cpu)",
+        "Sleeping", "Uninterruptible sleep (disk)", "Unknown (before the trace)",
+    };
+
+    /** One interval of the critical path */
+    static class Segment {
+        int pid;
+        int state;
+        long start;
+        long end;
+        /** The waker (in case of RUNNABLE) or the preempting task (in case of PREEMPTED), or -1 */
+        int otherPid = -1;
+    }
+
+    /** One edge of the graph with the number of wakeups */
+    static class Edge {
+        int waker;
+        int wakee;
+        int count;
+    }
+
+    private FTraceEvents mEv;
+    private IntIntMap mNodeIdx = new IntIntMap();
+    private int mNodePid[] = new int[64];
+    private int mNodeCnt;
+    /** The last event of each task */
+    private int mLastEvent[] = new int[64];
+    /** The previous event of the prev (or waker) task, for each event */
+    private int mPrevOfPrev[];
+    /** The previous event of the next (or woken up) task, for each event */
+    private int mPrevOfNext[];
+    /** The wakeups of each waker task are at mWakeEvents[mWakeStart[n]..mWakeStart[n+1]-1] */
+    private int mWakeStart[];
+    private int mWakeEvents[];
+
+    public FTraceWakeupGraph(FTraceEvents ev) {
+        mEv = ev;
+        int cnt = ev.size();
+        mPrevOfPrev = new int[cnt];
+        mPrevOfNext = new int[cnt];
+        int wakeCnt = 0;
+
+        // Chain the events of each task, and count the wakeups per waker
+        int wakeups[] = new int[64];
+        for (int i = 0; i < cnt; i++) {
+            int prev = getNode(ev.getPrevPid(i));
+            int next = getNode(ev.getNextPid(i));
+            if (wakeups.length < mNodeCnt) {
+                wakeups = Arrays.copyOf(wakeups, mNodePid.length);
+            }
+            mPrevOfPrev[i] = mLastEvent[prev];
+            mLastEvent[prev] = i;
+            if (next != prev) {
+                mPrevOfNext[i] = mLastEvent[next];
+                mLastEvent[next] = i;
+            } else {
+                mPrevOfNext[i] = mPrevOfPrev[i];
+            }
+            if (ev.getType(i) == FTraceEvents.WAKEUP) {
+                wakeups[prev]++;
+                wakeCnt++;
+            }
+        }
+
+        // Group the wakeups by the waker (counting sort, so they stay in time order)
+        mWakeStart = new int[mNodeCnt + 1];
+        for (int n = 0; n < mNodeCnt; n++) {
+            mWakeStart[n + 1] = mWakeStart[n] + wakeups[n];
+            wakeups[n] = mWakeStart[n];
+        }
+        mWakeEvents = new int[wakeCnt];
+        for (int i = 0; i < cnt; i++) {
+            if (ev.getType(i) == FTraceEvents.WAKEUP) {
+                int prev = mNodeIdx.get(ev.getPrevPid(i), -1);
+                mWakeEvents[wakeups[prev]++] = i;
+            }
+        }
+    }
+
+    private int getNode(int pid) {
+        int idx = mNodeIdx.get(pid, -1);
+        if (idx < 0) {
+            idx = mNodeCnt++;
+            if (idx == mNodePid.length) {
+                mNodePid = Arrays.copyOf(mNodePid, idx * 2);
+                mLastEvent = Arrays.copyOf(mLastEvent, idx * 2);
+            }
+            mNodePid[idx] = pid;
+            mLastEvent[idx] = -1;
+            mNodeIdx.put(pid, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Returns the previous event of the given task, before the given event
+     */
+    private int getPrevEvent(int idx, int pid) {
+        return (mEv.getPrevPid(idx) == pid) ? mPrevOfPrev[idx] : mPrevOfNext[idx];
+    }
+
+    /**
+     * Returns the number of tasks (nodes) in the graph
+     */
+    public int getTaskCount() {
+        return mNodeCnt;
+    }
+
+    /**
+     * Returns the number of wakeups (edges) in the graph
+     */
+    public int getWakeupCount() {
+        return mWakeEvents.length;
+    }
+
+    /**
+     * Returns the distinct waker-wakee pairs, sorted by the number of wakeups (descending)
+     * @param max The maximum number of edges to return
+     */
+    public Vector<Edge> getTopEdges(int max) {
+        Vector<Edge> ret = new Vector<Edge>();
+        int counts[] = new int[mNodeCnt];
+        int touched[] = new int[mNodeCnt];
+        for (int n = 0; n < mNodeCnt; n++) {
+            int touchedCnt = 0;
+            for (int i = mWakeStart[n]; i < mWakeStart[n + 1]; i++) {
+                int wakee = mNodeIdx.get(mEv.getNextPid(mWakeEvents[i]), -1);
+                if (counts[wakee]++ == 0) {
+                    touched[touchedCnt++] = wakee;
+                }
+            }
+            for (int i = 0; i < touchedCnt; i++) {
+                Edge edge = new Edge();
+                edge.waker = mNodePid[n];
+                edge.wakee = mNodePid[touched[i]];
+                edge.count = counts[touched[i]];
+                counts[touched[i]] = 0;
+                ret.add(edge);
+            }
+        }
+        Collections.sort(ret, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge o1, Edge o2) {
+                if (o1.count != o2.count) {
+                    return o2.count - o1.count;
+                }
+                return o1.waker != o2.waker ? o1.waker - o2.waker : o1.wakee - o2.wakee;
+            }
+        });
+        if (ret.size() > max) {
+            ret.setSize(max);
+        }
+        return ret;
+    }
+
+    /**
+     * Extracts the critical path of the task in the given time window.
+     * The history of the task is walked backwards from the end of the window, and when
+     * the task was woken up, the walk continues with the waker from the time of the wakeup.
+     * Every step moves to an earlier event, so the cost is linear in the number of events.
+     * @param pid The pid of the task
+     * @param from The start of the window (in us)
+     * @param to The end of the window (in us)
+     * @return The segments of the critical path in chronological order, or null if
+     * the task is not found in the trace
+     */
+    public Vector<Segment> getCriticalPath(int pid, long from, long to) {
+        int node = mNodeIdx.get(pid, -1);
+        if (node < 0) return null;
+        Vector<Segment> ret = new Vector<Segment>();
+        int e = mLastEvent[node];
+        while (e >= 0 && mEv.getTime(e) > to) {
+            e = getPrevEvent(e, pid);
+        }
+        long t = to;
+        while (t > from) {
+            if (e < 0) {
+                addSegment(ret, pid, UNKNOWN, from, t, -1);
+                break;
+            }
+            long time = mEv.getTime(e);
+            int type = mEv.getType(e);
+            int prevPid = mEv.getPrevPid(e);
+            int nextPid = mEv.getNextPid(e);
+            int state;
+            int otherPid = -1;
+            if (type == FTraceEvents.WAKEUP) {
+                if (nextPid != pid || prevPid == pid) {
+                    // The task woke up someone else, so it's running, nothing changes
+                    e = getPrevEvent(e, pid);
+                    continue;
+                }
+                addSegment(ret, pid, RUNNABLE, Math.max(time, from), t, prevPid);
+                if (prevPid == 0 || time <= from) {
+                    // Woken up from an interrupt (on an idle cpu), the path ends here
+                    break;
+                }
+                // Continue with the waker, which was running at the time of the wakeup
+                pid = prevPid;
+                t = time;
+                continue;
+            } else if (type == FTraceEvents.SWITCH && nextPid == pid) {
+                state = RUNNING;
+            } else if (type == FTraceEvents.SWITCH && prevPid == pid) {
+                char c = mEv.getPrevState(e);
+                if (c == 'R') {
+                    state = PREEMPTED;
+                    otherPid = nextPid;
+                } else if (c == 'D') {
+                    state = DISK;
+                } else {
+                    state = SLEEPING;
+                }
+            } else {
+                e = getPrevEvent(e, pid);
+                continue;
+            }
+            addSegment(ret, pid, state, Math.max(time, from), t, otherPid);
+            t = time;
+            e = getPrevEvent(e, pid);
+        }
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    private void addSegment(Vector<Segment> list, int pid, int state, long start, long end, int otherPid) {
+        if (!list.isEmpty()) {
+            // Merge with the following segment (the list is built backwards)
+            Segment last = list.lastElement();
+            if (last.pid == pid && last.state == state && last.start == end && last.otherPid == otherPid) {
+                last.start = start;
+                return;
+            }
+        }
+        if (start == end && state != RUNNABLE) return;
+        Segment seg = new Segment();
+        seg.pid = pid;
+        seg.state = state;
+        seg.start = start;
+        seg.end = end;
+        seg.otherPid = otherPid;
+        list.add(seg);
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.util.IntArray;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Aggregates the lock contention samples (the dvm_lock_sample events) by
+ * process, waiter site (where the thread was blocked) and owner site (where the
+ * lock was held). The source locations and the entries are looked up with
+ * reused keys (the "file:line" text of a site is built only once), so adding a
+ * sample allocates only for a new site or a new entry.
+ */
+class LockContention {
+
+    /** Used when the owner of the lock is not logged (older platforms) */
+    public static final String UNKNOWN_SITE = "?";
+
+    private HashMap<String, String> mStrings = new HashMap<String, String>();
+    private HashMap<Site, String> mSites = new HashMap<Site, String>();
+    private Site mSiteProbe = new Site();
+    private HashMap<Key, Entry> mEntries = new HashMap<Key, Entry>();
+    private Key mProbe = new Key();
+    private long mTotalWait;
+
+    /**
+     * The key of an entry. All the strings are interned, so they are compared by reference.
+     */
+    static class Key {
+        String process;
+        String waiter;
+        String owner;
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(process) * 31 + System.identityHashCode(waiter)) * 31 + System.identityHashCode(owner);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key o = (Key)obj;
+            return o.process == process && o.waiter == waiter && o.owner == owner;
+        }
+    }
+
+    /**
+     * A source location, used to look up the text of the site
+     */
+    static class Site {
+        String file;
+        int line;
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + line;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Site)) return false;
+            Site o = (Site)obj;
+            return o.line == line && o.file.equals(file);
+        }
+    }
+
+    /**
+     * The collected data of one (process, waiter site, owner site) combination
+     */
+    static class Entry {
+        private Key mKey;
+        private int mCount;
+        private long mTotalWait;
+        private int mMaxWait;
+        private long mMainWait;
+        private int mMainCount;
+        private IntArray mPids = new IntArray();
+
+        private Entry(Key key) {
+            mKey = key;
+        }
+
+        public String getProcess() {
+            return mKey.process;
+        }
+
+        public String getWaiterSite() {
+            return mKey.waiter;
+        }
+
+        public String getOwnerSite() {
+            return mKey.owner;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getTotalWait() {
+            return mTotalWait;
+        }
+
+        public int getMaxWait() {
+            return mMaxWait;
+        }
+
+        /**
+         * Returns how much of the wait happened on the main thread (0-100)
+         */
+        public int getMainThreadShare() {
+            return mTotalWait == 0 ? (mMainCount * 100 / mCount) : (int)(mMainWait * 100 / mTotalWait);
+        }
+
+        public int getMainThreadCount() {
+            return mMainCount;
+        }
+
+        public IntArray getPids() {
+            return mPids;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public long getTotalWait() {
+        return mTotalWait;
+    }
+
+    /**
+     * Adds a contention sample
+     * @param pid The pid of the process
+     * @param process The name of the process
+     * @param main True if the waiting thread was the main thread
+     * @param waiterFile The source file where the thread was waiting
+     * @param waiterLine The line where the thread was waiting
+     * @param ownerFile The source file where the lock was held ("-" means the same as the waiter file, null if unknown)
+     * @param ownerLine The line where the lock was held
+     * @param wait The time spent waiting for the lock, in milliseconds
+     * @return The entry the sample was added to
+     */
+    public Entry add(int pid, String process, boolean main, String waiterFile, int waiterLine, String ownerFile, int ownerLine, int wait) {
+        if (ownerFile != null && ownerFile.equals("-")) {
+            ownerFile = waiterFile;
+        }
+        mProbe.process = intern(process);
+        mProbe.waiter = getSite(waiterFile, waiterLine);
+        mProbe.owner = ownerFile == null ? UNKNOWN_SITE : getSite(ownerFile, ownerLine);
+        Entry entry = mEntries.get(mProbe);
+        if (entry == null) {
+            Key key = new Key();
+            key.process = mProbe.process;
+            key.waiter = mProbe.waiter;
+            key.owner = mProbe.owner;
+            entry = new Entry(key);
+            mEntries.put(key, entry);
+        }
+        entry.mCount++;
+        entry.mTotalWait += wait;
+        entry.mMaxWait = Math.max(entry.mMaxWait, wait);
+        if (main) {
+            entry.mMainCount++;
+            entry.mMainWait += wait;
+        }
+        if (!contains(entry.mPids, pid)) {
+            entry.mPids.add(pid);
+        }
+        mTotalWait += wait;
+        return entry;
+    }
+
+    /**
+     * Returns the entries, the one with the most waiting first
+     */
+    public Vector<Entry> getEntries() {
+        Vector<Entry> ret = new Vector<Entry>(mEntries.values());
+        Collections.sort(ret, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                if (o1.mTotalWait != o2.mTotalWait) {
+                    return o1.mTotalWait < o2.mTotalWait ? 1 : -1;
+                }
+                if (o1.mCount != o2.mCount) {
+                    return o2.mCount - o1.mCount;
+                }
+                int ret = o1.mKey.process.compareTo(o2.mKey.process);
+                if (ret == 0) {
+                    ret = o1.mKey.waiter.compareTo(o2.mKey.waiter);
+                }
+                if (ret == 0) {
+                    ret = o1.mKey.owner.compareTo(o2.mKey.owner);
+                }
+                return ret;
+            }
+        });
+        return ret;
+    }
+
+    public void clear() {
+        mStrings.clear();
+        mSites.clear();
+        mEntries.clear();
+        mTotalWait = 0;
+    }
+
+    /**
+     * Returns the text of the site ("file:line"), the same String object for the same site
+     */
+    private String getSite(String file, int line) {
+        mSiteProbe.file = file;
+        mSiteProbe.line = line;
+        String ret = mSites.get(mSiteProbe);
+        if (ret == null) {
+            Site site = new Site();
+            site.file = file;
+            site.line = line;
+            ret = file + ":" + line;
+            mSites.put(site, ret);
+        }
+        return ret;
+    }
+
+    private static boolean contains(IntArray array, int value) {
+        int cnt = array.size();
+        for (int i = 0; i < cnt; i++) {
+            if (array.get(i) == value) return true;
+        }
+        return false;
+    }
+
+    private String intern(String s) {
+        String ret = mStrings.get(s);
+        if (ret == null) {
+            mStrings.put(s, s);
+            ret = s;
+        }
+        return ret;
+    }
+
+}
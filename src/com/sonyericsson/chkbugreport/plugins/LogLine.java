@@ -21,6 +21,8 @@ package com.sonyericsson.chkbugreport.plugins;
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Util;
 
+import java.util.Calendar;
+import java.util.Locale;
 import java.util.Vector;
 
 public class LogLine {
@@ -96,6 +98,89 @@ public class LogLine {
         }
     }
 
+    /**
+     * Creates a log line from an already decoded (binary) event log entry.
+     * The text of the line is generated in the standard format (only for rendering),
+     * the fields are created directly from the typed values.
+     * @param time The local time of the event
+     * @param tag The name of the tag (or the tag id if the name is not known)
+     * @param tagId The numeric tag id
+     * @param value The value of the event: Integer, Long, Float, String or Object[] (a list of these)
+     */
+    public LogLine(BugReport br, Calendar time, int pid, String tag, int tagId, Object value) {
+        level = 'I';
+        int month = time.get(Calendar.MONTH) + 1;
+        int day = time.get(Calendar.DAY_OF_MONTH);
+        int hour = time.get(Calendar.HOUR_OF_DAY);
+        int min = time.get(Calendar.MINUTE);
+        int sec = time.get(Calendar.SECOND);
+        int ms = time.get(Calendar.MILLISECOND);
+        ts = ((((month * 31L + day) * 24 + hour) * 60 + min) * 60 + sec) * 1000 + ms;
+
+        // Create the fields and the message
+        if (value instanceof Object[]) {
+            Object list[] = (Object[])value;
+            fields = new String[list.length];
+            for (int i = 0; i < list.length; i++) {
+                fields[i] = formatValue(list[i]);
+            }
+            msg = formatValue(value);
+        } else {
+            msg = formatValue(value);
+            fields = new String[1];
+            fields[0] = msg;
+        }
+
+        // Render the line
+        StringBuffer sb = new StringBuffer();
+        sb.append(String.format("%02d-%02d %02d:%02d:%02d.%03d ", month, day, hour, min, sec, ms));
+        sb.append(level);
+        sb.append('/');
+        tagS = sb.length();
+        sb.append(tag);
+        tagE = sb.length();
+        sb.append('(');
+        sb.append(String.format("%5d", pid));
+        pidE = sb.length();
+        pidS = pidE - Integer.toString(pid).length();
+        sb.append("): ");
+        msgS = sb.length();
+        sb.append(msg);
+        msgE = sb.length();
+        line = sb.toString();
+
+        this.pid = pid;
+        this.tag = tag;
+        this.tagId = tagId;
+        String parsedFields[] = fields;
+        finishParse(br);
+        fields = parsedFields;
+        fmt = FMT_STD;
+    }
+
+    private static String formatValue(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof Object[]) {
+            StringBuffer sb = new StringBuffer();
+            sb.append('[');
+            Object list[] = (Object[])value;
+            for (int i = 0; i < list.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(formatValue(list[i]));
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+        if (value instanceof Float) {
+            return String.format(Locale.US, "%f", value);
+        }
+        return value.toString();
+    }
+
     /**
      * Parse a log line in the standard bugreport format
      */
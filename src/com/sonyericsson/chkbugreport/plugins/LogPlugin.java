@@ -20,11 +20,13 @@ package com.sonyericsson.chkbugreport.plugins;
 
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.Lines;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Section;
+import com.sonyericsson.chkbugreport.util.Downsampler;
 
 import java.awt.Color;
 import java.awt.FontMetrics;
@@ -104,30 +106,38 @@ public abstract class LogPlugin extends Plugin {
         mCh = null;
         mConfigChanges.clear();
 
-        // Load the data
-        mSection = br.findSection(mSectionName);
-        if (mSection == null) {
-            br.printErr(TAG + "Cannot find section " + mSectionName + " (aborting plugin)");
-            return;
-        }
+        // Load the data, either the already decoded lines, or the lines of the section
+        if (!loadDecodedLines(br, mParsedLog)) {
+            mSection = br.findSection(mSectionName);
+            if (mSection == null) {
+                br.printErr(TAG + "Cannot find section " + mSectionName + " (aborting plugin)");
+                return;
+            }
 
-        // Load and parse the lines
+            // Load and parse the lines
+            int cnt = mSection.getLineCount();
+            int fmt = LogLine.FMT_UNKNOWN;
+            LogLine prev = null;
+            for (int i = 0; i < cnt; i++) {
+                String line = mSection.getLine(i);
+                LogLine sl = new LogLine(br, line, fmt, prev);
+                mParsedLog.add(sl);
+
+                if (sl.ok) {
+                    fmt = sl.fmt;
+                    prev = sl;
+                }
+            }
+        }
         mCh = new Chapter(br, mWhich + " log");
-        int cnt = mSection.getLineCount();
-        int fmt = LogLine.FMT_UNKNOWN;
-        LogLine prev = null;
+        int cnt = mParsedLog.size();
         for (int i = 0; i < cnt; i++) {
-            String line = mSection.getLine(i);
-            LogLine sl = new LogLine(br, line, fmt, prev);
-            mParsedLog.add(sl);
-
+            LogLine sl = mParsedLog.get(i);
             if (sl.ok) {
-                fmt = sl.fmt;
                 if (mTsFirst == -1) {
                     mTsFirst = sl.ts;
                 }
                 mTsLast = sl.ts;
-                prev = sl;
             }
         }
 
@@ -140,6 +150,12 @@ public abstract class LogPlugin extends Plugin {
             }
         }
 
+        // Save the log in the database (in the background)
+        DBExporter db = br.getDBExporter();
+        if (db != null) {
+            exportIntoDB(db);
+        }
+
         // Load successful
         mLoaded = true;
     }
@@ -153,7 +169,7 @@ public abstract class LogPlugin extends Plugin {
 
         mCh.addLine("<div class=\"log\">");
 
-        int cnt = mSection.getLineCount();
+        int cnt = mParsedLog.size();
         for (int i = 0; i < cnt; i++) {
             LogLine sl = mParsedLog.get(i);
             if (sl.ok) {
@@ -262,10 +278,37 @@ public abstract class LogPlugin extends Plugin {
         return mParsedLog.get(i);
     }
 
+    /**
+     * Exports the parsed log lines into the "&lt;id&gt;_log" table.
+     * The id column is the index of the line in the log.
+     */
+    protected void exportIntoDB(DBExporter db) {
+        DBExporter.Table tbl = db.createTable(mId + "_log", "id int", "ts int", "level varchar", "pid int", "tag varchar", "msg varchar");
+        tbl.addIndex("pid");
+        tbl.addIndex("tag");
+        int cnt = mParsedLog.size();
+        for (int i = 0; i < cnt; i++) {
+            LogLine sl = mParsedLog.get(i);
+            if (sl.ok) {
+                tbl.insert(i, sl.ts, String.valueOf(sl.level), sl.pid, sl.tag, sl.msg);
+            }
+        }
+    }
+
     protected void generateExtra(BugReport br, Chapter ch) {
         // NOP
     }
 
+    /**
+     * Loads the log lines from some other source than the section (for example from a binary file).
+     * @param br The bugreport
+     * @param out The decoded lines should be added here
+     * @return false if the lines should be parsed from the section instead
+     */
+    protected boolean loadDecodedLines(BugReport br, Vector<LogLine> out) {
+        return false;
+    }
+
     protected void analyze(LogLine sl, int i, BugReport br, Section s) {
         // NOP
     }
@@ -318,6 +361,34 @@ public abstract class LogPlugin extends Plugin {
         return mTsLast;
     }
 
+    /**
+     * Plots the downsampled values: a line through the averages, and a vertical bar
+     * showing the range of the values where more GCs fall into the same pixel column
+     * (or a dot, where there is only one value)
+     */
+    private void plotGCValues(Graphics2D g, Downsampler values, Color col, int cx, int cy, int gh, int max) {
+        int lastX = -1, lastY = -1;
+        int r = 3;
+        g.setColor(col);
+        for (int i = 0; i < values.getWidth(); i++) {
+            if (!values.hasData(i)) continue;
+            int x = cx + i;
+            int y = cy - (int)(values.getAvg(i) * (gh - 1) / max);
+            if (lastX != -1) {
+                g.drawLine(lastX, lastY, x, y);
+            }
+            if (values.getMin(i) != values.getMax(i)) {
+                int ymin = cy - (int)(values.getMin(i) * (gh - 1) / max);
+                int ymax = cy - (int)(values.getMax(i) * (gh - 1) / max);
+                g.drawLine(x, ymin, x, ymax);
+            } else {
+                g.fillArc(x - r, y - r, 2*r+1, 2*r+1, 0, 360);
+            }
+            lastX = x;
+            lastY = y;
+        }
+    }
+
     private int generateGCGraphs(BugReport br, Chapter ch) {
         int cnt = 0;
         for (GCRecords gcs : mGCs.values()) {
@@ -467,72 +538,40 @@ public abstract class LogPlugin extends Plugin {
             g.drawString("" + heapLimit + "MB", cx + gw + 5, yv);
         }
 
+        // Downsample the values to the width of the chart
+        Downsampler freeSize = new Downsampler(firstTs, firstTs + duration, gw);
+        Downsampler totalSize = new Downsampler(firstTs, firstTs + duration, gw);
+        Downsampler freeAlloc = new Downsampler(firstTs, firstTs + duration, gw);
+        Downsampler totalAlloc = new Downsampler(firstTs, firstTs + duration, gw);
+        Downsampler totalAllocO = new Downsampler(firstTs, firstTs + duration, gw);
+        for (GCRecord gc : gcs) {
+            freeSize.addSample(gc.ts, gc.memFreeSize);
+            totalSize.addSample(gc.ts, gc.memFreeSize + gc.memExtSize);
+            freeAlloc.addSample(gc.ts, gc.memFreeAlloc);
+            totalAlloc.addSample(gc.ts, gc.memFreeAlloc + gc.memExtAlloc);
+            totalAllocO.addSample(gc.ts, gc.memFreeSize + gc.memExtAlloc);
+        }
+
         // Plot the values (size)
         Color colFreeSize = new Color(0xc0c080);
         Color colTotalSize = new Color(0x8080d7);
-        int lastX = -1, lastYF = -1, lastYT = -1;
-        int r = 3;
-        for (GCRecord gc : gcs) {
-            int yf = cy - gc.memFreeSize * (gh - 1) / max;
-            int x = cx + (int)((gc.ts - getFirstTs()) * (gw - 1) / duration);
-            g.setColor(colFreeSize);
-            if (lastX != -1) {
-                g.drawLine(lastX, lastYF, x, yf);
-            }
-            g.fillArc(x - r, yf - r, 2*r+1, 2*r+1, 0, 360);
-            lastYF = yf;
-            if (hasExternal) {
-                int yt = cy - (gc.memFreeSize + gc.memExtSize) * (gh - 1) / max;
-                g.setColor(colTotalSize);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastYT = yt;
-            }
-            lastX = x;
+        plotGCValues(g, freeSize, colFreeSize, cx, cy, gh, max);
+        if (hasExternal) {
+            plotGCValues(g, totalSize, colTotalSize, cx, cy, gh, max);
         }
 
         // Plot the values (alloc)
         Color colFreeAlloc = new Color(0x808000);
         Color colTotalAlloc = new Color(0x0000c0);
-        lastX = -1; lastYF = -1; lastYT = -1;
-        for (GCRecord gc : gcs) {
-            int yf = cy - gc.memFreeAlloc * (gh - 1) / max;
-            int x = cx + (int)((gc.ts - firstTs) * (gw - 1) / (duration));
-            g.setColor(colFreeAlloc);
-            if (lastX != -1) {
-                g.drawLine(lastX, lastYF, x, yf);
-            }
-            g.fillArc(x - r, yf - r, 2*r+1, 2*r+1, 0, 360);
-            lastYF = yf;
-            if (hasExternal) {
-                int yt = cy - (gc.memFreeAlloc + gc.memExtAlloc) * (gh - 1) / max;
-                g.setColor(colTotalAlloc);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastYT = yt;
-            }
-            lastX = x;
+        plotGCValues(g, freeAlloc, colFreeAlloc, cx, cy, gh, max);
+        if (hasExternal) {
+            plotGCValues(g, totalAlloc, colTotalAlloc, cx, cy, gh, max);
         }
 
         // Plot the values (alloc)
         Color colTotalAllocO = new Color(0xff4040);
         if (hasExternal) {
-            lastX = -1; lastYF = -1; lastYT = -1;
-            for (GCRecord gc : gcs) {
-                int yt = cy - (gc.memFreeSize + gc.memExtAlloc) * (gh - 1) / max;
-                int x = cx + (int)((gc.ts - firstTs) * (gw - 1) / (duration));
-                g.setColor(colTotalAllocO);
-                if (lastX != -1) {
-                    g.drawLine(lastX, lastYT, x, yt);
-                }
-                g.fillArc(x - r, yt - r, 2*r+1, 2*r+1, 0, 360);
-                lastX = x;
-                lastYT = yt;
-            }
+            plotGCValues(g, totalAllocO, colTotalAllocO, cx, cy, gh, max);
         }
 
         // Draw the legend
@@ -20,6 +20,7 @@ package com.sonyericsson.chkbugreport.plugins;
 
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.Lines;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.ProcessRecord;
@@ -96,6 +97,30 @@ public class MemPlugin extends Plugin {
         // Load
         loadServMeminfoSec(br);
         loadLibrankSec(br);
+        exportIntoDB(br);
+    }
+
+    private void exportIntoDB(BugReport br) {
+        if (mMemInfos.size() == 0) return;
+        DBExporter db = br.getDBExporter();
+        if (db == null) return;
+
+        DBExporter.Table tbl = db.createTable("meminfo", "pid int", "name varchar",
+                "size_native int", "size_dalvik int", "size_total int",
+                "alloc_native int", "alloc_dalvik int", "alloc_total int",
+                "free_native int", "free_dalvik int", "free_total int",
+                "pss_native int", "pss_dalvik int", "pss_other int", "pss_total int",
+                "shared_native int", "shared_dalvik int", "shared_other int", "shared_total int",
+                "priv_native int", "priv_dalvik int", "priv_other int", "priv_total int");
+        for (MemInfo mi : mMemInfos) {
+            tbl.insert(mi.pid, mi.name,
+                    mi.sizeNative, mi.sizeDalvik, mi.sizeTotal,
+                    mi.allocNative, mi.allocDalvik, mi.allocTotal,
+                    mi.freeNative, mi.freeDalvik, mi.freeTotal,
+                    mi.pssNative, mi.pssDalvik, mi.pssOther, mi.pssTotal,
+                    mi.sharedNative, mi.sharedDalvik, mi.sharedOther, mi.sharedTotal,
+                    mi.privNative, mi.privDalvik, mi.privOther, mi.privTotal);
+        }
     }
 
     @Override
@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+
+import com.sonyericsson.chkbugreport.BugReport;
+import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.LineReader;
+import com.sonyericsson.chkbugreport.Plugin;
+import com.sonyericsson.chkbugreport.Report;
+import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.plugins.StackTracePlugin.FrameTable;
+import com.sonyericsson.chkbugreport.plugins.StackTracePlugin.StackTraceItem;
+
+/**
+ * Aggregates the thread stacks of many VM trace dumps (for example a series of
+ * /data/anr/traces.txt snapshots taken during a hang), like a "poor man's profiler":
+ * every thread stack in every dump is a sample.
+ *
+ * The files are read one by one, and each stack is merged into a call tree per process
+ * and thread name as soon as it's parsed, so the memory needed depends only on the number
+ * of different stacks, not on the number of dumps.
+ *
+ * The methods are listed by the number of samples they appear in, and the aggregated
+ * stacks are also saved in the "folded" format, which can be used to create flame graphs
+ * (for example with flamegraph.pl).
+ */
+public class StackSamplePlugin extends Plugin {
+
+    private static final String TAG = "[StackSamplePlugin]";
+
+    private static final int MAX_METHODS = 100;
+    private static final int MAX_THREADS = 200;
+
+    /** The interned stack frames */
+    private FrameTable mFrames = new FrameTable();
+
+    /** The aggregated samples per process and thread name */
+    private HashMap<String, ThreadSamples> mThreads = new HashMap<String, ThreadSamples>();
+
+    /** The number of samples per method */
+    private HashMap<String, MethodStats> mMethods = new HashMap<String, MethodStats>();
+
+    /** The number of dumps (a dump contains each process at most once) */
+    private int mDumpCount;
+
+    /** The pids of the processes found in the current dump */
+    private HashSet<Integer> mDumpPids = new HashSet<Integer>();
+
+    private int mSampleCount;
+    private int mFileCount;
+
+    /** The frames of the current thread (the innermost first) */
+    private Vector<StackTraceItem> mCurStack = new Vector<StackTraceItem>();
+
+    @Override
+    public int getPrio() {
+        return 11;
+    }
+
+    @Override
+    public void load(Report rep) {
+        // Reset state
+        mFrames.clear();
+        mThreads.clear();
+        mMethods.clear();
+        mDumpCount = 0;
+        mSampleCount = 0;
+        mFileCount = 0;
+
+        // Load data
+        BugReport br = (BugReport)rep;
+        for (String fileName : br.getStackSampleFiles()) {
+            try {
+                loadFile(fileName);
+                mFileCount++;
+            } catch (IOException e) {
+                br.printErr(TAG + "Error reading file '" + fileName + "' (it will be ignored): " + e);
+            }
+        }
+    }
+
+    private void loadFile(String fileName) throws IOException {
+        InputStream is = new FileInputStream(fileName);
+        try {
+            // Each file starts a new dump
+            mDumpPids.clear();
+            if (fileName.endsWith(".gz")) {
+                is = new GZIPInputStream(is);
+            }
+            LineReader lr = new LineReader(is);
+            VMTraceLine vl = new VMTraceLine();
+            String procName = null;
+            String threadName = null;
+            String buff;
+            while (null != (buff = lr.readLine())) {
+                if (threadName != null && buff.startsWith("  ")) {
+                    if (vl.parseFrame(buff)) {
+                        mCurStack.add(mFrames.intern(buff, vl.getMethodStart(), vl.getMethodEnd(),
+                                vl.getFileStart(), vl.getFileEnd(), vl.getLineNr()));
+                    }
+                    continue;
+                }
+
+                // The stack (if any) ends here
+                if (threadName != null) {
+                    addSample(procName, threadName);
+                    threadName = null;
+                }
+                if (vl.parseProcessHeader(buff)) {
+                    procName = "pid " + vl.getPid();
+                    // The same process again means the next dump (several dumps appended to a file)
+                    if (mDumpPids.isEmpty() || !mDumpPids.add(vl.getPid())) {
+                        mDumpPids.clear();
+                        mDumpPids.add(vl.getPid());
+                        mDumpCount++;
+                    }
+                } else if (buff.startsWith("Cmd line: ")) {
+                    procName = buff.substring(10);
+                } else if (buff.startsWith("----- end ")) {
+                    procName = null;
+                } else if (procName != null && vl.parseThreadHeader(buff)) {
+                    threadName = vl.getName();
+                }
+            }
+            if (threadName != null) {
+                addSample(procName, threadName);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Merges the current stack into the call tree of the thread
+     */
+    private void addSample(String procName, String threadName) {
+        int sampleNr = ++mSampleCount;
+        String key = procName + "/" + threadName;
+        ThreadSamples ts = mThreads.get(key);
+        if (ts == null) {
+            ts = new ThreadSamples(procName, threadName);
+            mThreads.put(key, ts);
+        }
+        ts.samples++;
+
+        // Walk from the outermost frame, so the tree starts with the entry point
+        CallNode node = ts.root;
+        node.total++;
+        for (int i = mCurStack.size() - 1; i >= 0; i--) {
+            String method = mCurStack.get(i).getMethod();
+            node = node.getChild(method);
+            node.total++;
+
+            // Count each method only once per sample (in case of recursion)
+            MethodStats ms = mMethods.get(method);
+            if (ms == null) {
+                ms = new MethodStats(method);
+                mMethods.put(method, ms);
+            }
+            if (ms.lastSample != sampleNr) {
+                ms.lastSample = sampleNr;
+                ms.samples++;
+            }
+            if (i == 0) {
+                ms.self++;
+            }
+        }
+        if (node.self++ == 0) {
+            ts.stacks++;
+        }
+        mCurStack.clear();
+    }
+
+    @Override
+    public void generate(Report rep) {
+        if (mSampleCount == 0) return;
+        BugReport br = (BugReport)rep;
+        Chapter main = new Chapter(br, "Stack samples");
+
+        // Save the folded stacks
+        String fn = br.getRelRawDir() + "stack_samples.folded";
+        try {
+            FileOutputStream fos = new FileOutputStream(br.getBaseDir() + fn);
+            PrintStream fo = new PrintStream(fos);
+            for (ThreadSamples ts : getSortedThreads()) {
+                String prefix = ts.procName.replace(';', '_') + ";" + ts.threadName.replace(';', '_');
+                saveFolded(fo, ts.root, new StringBuffer(prefix));
+            }
+            fo.close();
+            fos.close();
+        } catch (IOException e) {
+            br.printErr(TAG + "Error saving folded stacks: " + e);
+        }
+
+        main.addLine("<p>Aggregated " + mSampleCount + " thread stacks (samples) from " + mDumpCount +
+                " dumps in " + mFileCount + " files.</p>");
+        main.addLine("<p>Folded stacks saved as (you can use flamegraph.pl to create a flame graph): " +
+                "<a href=\"" + fn + "\">" + fn + "</a></p>");
+
+        addMethods(br, main);
+        addThreads(br, main);
+
+        br.addChapter(main);
+    }
+
+    /**
+     * Writes a line ("frame;frame;...;frame count") for each node where some samples ended
+     */
+    private void saveFolded(PrintStream fo, CallNode node, StringBuffer path) {
+        if (node.self > 0) {
+            fo.println(path + " " + node.self);
+        }
+        if (node.children == null) return;
+        int len = path.length();
+        for (CallNode child : node.getSortedChildren()) {
+            path.append(';');
+            path.append(child.method);
+            saveFolded(fo, child, path);
+            path.setLength(len);
+        }
+    }
+
+    private void addMethods(BugReport br, Chapter main) {
+        Vector<MethodStats> list = new Vector<MethodStats>(mMethods.values());
+        Collections.sort(list, new Comparator<MethodStats>() {
+            @Override
+            public int compare(MethodStats o1, MethodStats o2) {
+                if (o1.samples != o2.samples) return o2.samples - o1.samples;
+                return o1.method.compareTo(o2.method);
+            }
+        });
+
+        Chapter ch = new Chapter(br, "Hot methods");
+        main.addChapter(ch);
+        ch.addLine("<p>The methods found in the most samples (only the first " + MAX_METHODS + " are listed).");
+        ch.addLine("The self samples are the ones where the method was the top of the stack.</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+        ch.addLine("<table class=\"stacksample-stat tablesorter\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"stacksample-stat-header\">");
+        ch.addLine("    <th>Method</td>");
+        ch.addLine("    <th>Samples</td>");
+        ch.addLine("    <th>Samples (%)</td>");
+        ch.addLine("    <th>Self</td>");
+        ch.addLine("    <th>Self (%)</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (int i = 0; i < list.size() && i < MAX_METHODS; i++) {
+            MethodStats ms = list.get(i);
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + Util.escape(ms.method) + "</td>");
+            ch.addLine("    <td>" + ms.samples + "</td>");
+            ch.addLine("    <td>" + percent(ms.samples, mSampleCount) + "</td>");
+            ch.addLine("    <td>" + ms.self + "</td>");
+            ch.addLine("    <td>" + percent(ms.self, mSampleCount) + "</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    private void addThreads(BugReport br, Chapter main) {
+        Vector<ThreadSamples> list = getSortedThreads();
+        Collections.sort(list, new Comparator<ThreadSamples>() {
+            @Override
+            public int compare(ThreadSamples o1, ThreadSamples o2) {
+                if (o1.stacks != o2.stacks) return o2.stacks - o1.stacks;
+                return o2.samples - o1.samples;
+            }
+        });
+
+        Chapter ch = new Chapter(br, "Threads");
+        main.addChapter(ch);
+        ch.addLine("<p>The samples per process and thread name, the threads with the most different stacks first");
+        ch.addLine("(only the first " + MAX_THREADS + " are listed). A thread which has the same stack in most");
+        ch.addLine("of the samples is probably blocked (or idle) in the listed method.</p>");
+        ch.addLine("<div class=\"hint\">(Hint: click on the headers to sort the data)</div>");
+        ch.addLine("<table class=\"stacksample-stat tablesorter\">");
+        ch.addLine("  <thead>");
+        ch.addLine("  <tr class=\"stacksample-stat-header\">");
+        ch.addLine("    <th>Process/thread</td>");
+        ch.addLine("    <th>Samples</td>");
+        ch.addLine("    <th>Different stacks</td>");
+        ch.addLine("    <th>Most common top method</td>");
+        ch.addLine("    <th>Samples (%)</td>");
+        ch.addLine("  </tr>");
+        ch.addLine("  </thead>");
+        ch.addLine("  <tbody>");
+        for (int i = 0; i < list.size() && i < MAX_THREADS; i++) {
+            ThreadSamples ts = list.get(i);
+            CallNode top = findMostCommonTop(ts.root, null);
+            ch.addLine("  <tr>");
+            ch.addLine("    <td>" + Util.escape(ts.procName + "/" + ts.threadName) + "</td>");
+            ch.addLine("    <td>" + ts.samples + "</td>");
+            ch.addLine("    <td>" + ts.stacks + "</td>");
+            ch.addLine("    <td>" + (top == null || top.method == null ? "" : Util.escape(top.method)) + "</td>");
+            ch.addLine("    <td>" + (top == null ? "" : percent(top.self, ts.samples)) + "</td>");
+            ch.addLine("  </tr>");
+        }
+        ch.addLine("  </tbody>");
+        ch.addLine("</table>");
+    }
+
+    /**
+     * Returns the node where the most samples ended (the most common complete stack)
+     */
+    private CallNode findMostCommonTop(CallNode node, CallNode best) {
+        if (node.self > 0 && (best == null || node.self > best.self)) {
+            best = node;
+        }
+        if (node.children != null) {
+            for (CallNode child : node.children.values()) {
+                best = findMostCommonTop(child, best);
+            }
+        }
+        return best;
+    }
+
+    private Vector<ThreadSamples> getSortedThreads() {
+        Vector<ThreadSamples> list = new Vector<ThreadSamples>(mThreads.values());
+        Collections.sort(list, new Comparator<ThreadSamples>() {
+            @Override
+            public int compare(ThreadSamples o1, ThreadSamples o2) {
+                int ret = o1.procName.compareTo(o2.procName);
+                if (ret != 0) return ret;
+                return o1.threadName.compareTo(o2.threadName);
+            }
+        });
+        return list;
+    }
+
+    private static String percent(int value, int total) {
+        return String.format("%.1f%%", value * 100.0f / total);
+    }
+
+    /**
+     * A node of the call tree: a method called from the path leading to this node
+     */
+    static class CallNode {
+
+        String method;
+        /** The number of samples containing this path */
+        int total;
+        /** The number of samples ending with this path */
+        int self;
+        HashMap<String, CallNode> children;
+
+        CallNode(String method) {
+            this.method = method;
+        }
+
+        CallNode getChild(String method) {
+            if (children == null) {
+                children = new HashMap<String, CallNode>();
+            }
+            CallNode ret = children.get(method);
+            if (ret == null) {
+                ret = new CallNode(method);
+                children.put(method, ret);
+            }
+            return ret;
+        }
+
+        Vector<CallNode> getSortedChildren() {
+            Vector<CallNode> ret = new Vector<CallNode>(children.values());
+            Collections.sort(ret, new Comparator<CallNode>() {
+                @Override
+                public int compare(CallNode o1, CallNode o2) {
+                    return o1.method.compareTo(o2.method);
+                }
+            });
+            return ret;
+        }
+
+    }
+
+    static class ThreadSamples {
+
+        String procName;
+        String threadName;
+        int samples;
+        /** The number of different stacks */
+        int stacks;
+        CallNode root = new CallNode(null);
+
+        ThreadSamples(String procName, String threadName) {
+            this.procName = procName;
+            this.threadName = threadName;
+        }
+
+    }
+
+    static class MethodStats {
+
+        String method;
+        int samples;
+        int self;
+        int lastSample;
+
+        MethodStats(String method) {
+            this.method = method;
+        }
+
+    }
+
+}
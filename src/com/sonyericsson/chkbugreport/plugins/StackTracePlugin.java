@@ -18,22 +18,27 @@
  */
 package com.sonyericsson.chkbugreport.plugins;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.sonyericsson.chkbugreport.Bug;
 import com.sonyericsson.chkbugreport.BugReport;
 import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.DBExporter;
 import com.sonyericsson.chkbugreport.PSRecord;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.ProcessRecord;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Section;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.IntArray;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
 
 /**
  * Processes the current stacktrace and the stacktrace at the last ANR.
@@ -62,9 +67,18 @@ public class StackTracePlugin extends Plugin {
     private static final int ID_ANR = 2;
     private static final int ID_OLD = 3;
 
+    /** The minimum number of threads with the same stack, to list the stack only once */
+    private static final int MIN_SHARED_STACK = 2;
+
     private HashMap<Integer, Processes> mProcesses = new HashMap<Integer, Processes>();
 
-    private Connection mConn;
+    /** The interned stack frames (shared by all the stack traces) */
+    private FrameTable mFrames = new FrameTable();
+
+    /** The pending synchronous binder calls (pairs of caller and callee linux thread ids) */
+    private IntArray mBinderCalls = new IntArray();
+
+    private DBExporter mDB;
 
     @Override
     public int getPrio() {
@@ -74,16 +88,63 @@ public class StackTracePlugin extends Plugin {
     @Override
     public void load(Report br) {
         // Reset state
-        mConn = null;
+        mDB = null;
         mProcesses.clear();
+        mFrames.clear();
+        mBinderCalls.clear();
 
         // Load data
-        mConn = br.getSQLConnection();
+        mDB = br.getDBExporter();
 
         run(br, ID_NOW, "VM TRACES JUST NOW", "VM traces just now");
         run(br, ID_ANR, "VM TRACES AT LAST ANR", "VM traces at last ANR");
         // backward compatibility
         run(br, ID_OLD, "VM TRACES", "VM traces");
+
+        loadBinderCalls((BugReport)br);
+    }
+
+    /**
+     * Collects the synchronous binder calls which are still waiting for the reply, like:
+     * <pre>
+     *     outgoing transaction 2216: cb5f4e00 from 1285:1302 to 169:169 code 3 flags 10 pri 0 r1 node 1066 ...
+     * </pre>
+     */
+    private void loadBinderCalls(BugReport br) {
+        Section sec = br.findSection(Section.BINDER_TRANSACTIONS);
+        if (sec == null) return;
+        int cnt = sec.getLineCount();
+        for (int i = 0; i < cnt; i++) {
+            String buff = sec.getLine(i).trim();
+            // Only the synchronous calls ("r1" = reply needed) are blocking the caller
+            if (!buff.startsWith("outgoing transaction ") || buff.indexOf(" r1") < 0) continue;
+            int from = parseBinderTid(buff, " from ");
+            int to = parseBinderTid(buff, " to ");
+            if (from > 0 && to > 0) {
+                mBinderCalls.add(from);
+                mBinderCalls.add(to);
+            }
+        }
+    }
+
+    /**
+     * Parses the thread id from the "pid:tid" value following the keyword
+     */
+    private int parseBinderTid(String buff, String key) {
+        int idx = buff.indexOf(key);
+        if (idx < 0) return -1;
+        idx += key.length();
+        int idx2 = buff.indexOf(' ', idx);
+        if (idx2 < 0) {
+            idx2 = buff.length();
+        }
+        int idx1 = buff.indexOf(':', idx);
+        if (idx1 < 0 || idx1 > idx2) return -1;
+        try {
+            return Integer.parseInt(buff.substring(idx1 + 1, idx2));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
     }
 
     private void run(Report rep, int id, String sectionName, String chapterName) {
@@ -106,18 +167,15 @@ public class StackTracePlugin extends Plugin {
             int cnt = process.getCount();
             for (int i = 0; i < cnt; i++) {
                 StackTrace stack = process.get(i);
-                String propSysTid = stack.getProperty("sysTid");
-                if (propSysTid != null) {
-                    try {
-                        int sysTid = Integer.parseInt(propSysTid);
-                        ProcessRecord pr = br.getProcessRecord(sysTid, true, false);
-                        pr.suggestName(stack.getName(), 40);
-                        // remove known child process records
-                        PSRecord psr = br.getPSRecord(sysTid);
-                        if (psr != null) {
-                            chpsr.remove(psr);
-                        }
-                    } catch (NumberFormatException nfe) { }
+                int sysTid = stack.getSysTid();
+                if (sysTid >= 0) {
+                    ProcessRecord pr = br.getProcessRecord(sysTid, true, false);
+                    pr.suggestName(stack.getName(), 40);
+                    // remove known child process records
+                    PSRecord psr = br.getPSRecord(sysTid);
+                    if (psr != null) {
+                        chpsr.remove(psr);
+                    }
                 }
             }
             // Store unknown process records
@@ -132,14 +190,15 @@ public class StackTracePlugin extends Plugin {
     public void generate(Report br) {
         if (mProcesses.size() == 0) return;
 
+        HashMap<Integer, Vector<Vector<StackTrace>>> deadlocks = findDeadLocks((BugReport)br);
         for (Processes processes : mProcesses.values()) {
-            generate(br, processes);
+            generate(br, processes, deadlocks.get(processes.getId()));
         }
 
         importIntoDB();
     }
 
-    private void generate(Report rep, Processes processes) {
+    private void generate(Report rep, Processes processes, Vector<Vector<StackTrace>> deadlocks) {
         BugReport br = (BugReport)rep;
 
         int id = processes.getId();
@@ -147,6 +206,9 @@ public class StackTracePlugin extends Plugin {
 
         // Analyze the stack trace
         analyze(br, id, processes);
+        for (Vector<StackTrace> deadlock : deadlocks) {
+            reportDeadLock(br, processes, deadlock);
+        }
 
         // Generate chapter
         genChapter(br, id, processes, chapterName);
@@ -158,15 +220,14 @@ public class StackTracePlugin extends Plugin {
         Processes processes = new Processes(br, id, chapterName, sec.getName());
         Process curProc = null;
         StackTrace curStackTrace = null;
+        VMTraceLine vl = new VMTraceLine();
         for (int i = 0; i < cnt; i++) {
             String buff = sec.getLine(i);
             switch (state) {
                 case STATE_INIT:
-                    if (buff.startsWith("----- pid ")) {
+                    if (vl.parseProcessHeader(buff)) {
                         state = STATE_PROC;
-                        String fields[] = buff.split(" ");
-                        int pid = Integer.parseInt(fields[2]);
-                        curProc = new Process(processes, pid, fields[4], fields[5]);
+                        curProc = new Process(processes, vl.getPid(), vl.getDate(), vl.getTime());
                         processes.add(curProc);
                     }
                     break;
@@ -176,34 +237,9 @@ public class StackTracePlugin extends Plugin {
                         state = STATE_INIT;
                     } else if (buff.startsWith("Cmd line: ")) {
                         curProc.setName(buff.substring(10));
-                    } else if (buff.startsWith("\"")) {
+                    } else if (vl.parseThreadHeader(buff)) {
                         state = STATE_STACK;
-                        int idx = buff.indexOf('"', 1);
-                        String name = buff.substring(1, idx);
-                        String fields[] = buff.substring(idx + 2).split(" ");
-                        String threadState = "?";
-                        int prio = -1, tid = -1;
-                        int fieldCount = fields.length;
-                        for (int fi = 0; fi < fieldCount; fi++) {
-                            String f = fields[fi];
-                            idx = f.indexOf('=');
-                            if (idx < 0) {
-                                // Keyword
-                                if (fi == fieldCount-1) {
-                                    threadState = f;
-                                }
-                            } else {
-                                // key=value
-                                String key = f.substring(0, idx);
-                                String value = f.substring(idx + 1);
-                                if (key.equals("prio")) {
-                                    prio = Integer.parseInt(value);
-                                } else if (key.equals("tid")) {
-                                    tid = Integer.parseInt(value);
-                                }
-                            }
-                        }
-                        curStackTrace = new StackTrace(curProc, name, tid, prio, threadState);
+                        curStackTrace = new StackTrace(curProc, vl.getName(), vl.getTid(), vl.getPrio(), vl.getState());
                         curProc.addStackTrace(curStackTrace);
                     }
                     break;
@@ -213,40 +249,17 @@ public class StackTracePlugin extends Plugin {
                         curStackTrace = null;
                     } else if (buff.startsWith("  | ")) {
                         // Parse the extra properties
-                        curStackTrace.parseProperties(buff.substring(4));
+                        vl.parseProperties(buff);
+                        curStackTrace.setProperties(vl.getSysTid(), vl.getNice(), vl.getSchedPolicy());
                     } else if (buff.startsWith("  - ")) {
-                        buff = buff.substring(4);
-                        if (buff.startsWith("waiting to lock")) {
-                            String needle = "held by threadid=";
-                            int idx = buff.indexOf(needle);
-                            if (idx > 0) {
-                                idx += needle.length();
-                                int idx2 = buff.indexOf(' ', idx);
-                                if (idx2 > 0) {
-                                    int tid = Integer.parseInt(buff.substring(idx, idx2));
-                                    curStackTrace.setWaitOn(tid);
-                                }
-                            }
-                        }
-                    } else if (buff.startsWith("  at ")) {
-                        int idx0 = buff.indexOf('(');
-                        int idx1 = buff.indexOf(':');
-                        int idx2 = buff.indexOf(')');
-                        if (idx0 >= 0 && idx2 >= 0 && idx2 > idx0) {
-                            String method = buff.substring(5, idx0);
-                            String fileName = null;
-                            int line = -1;
-                            if (idx1 >= 0 && idx1 > idx0 && idx2 > idx1) {
-                                fileName = buff.substring(idx0 + 1, idx1);
-                                String lineS = buff.substring(idx1 + 1, idx2);
-                                if (lineS.startsWith("~")) {
-                                    lineS = lineS.substring(1);
-                                }
-                                line = Integer.parseInt(lineS);
-                            }
-                            StackTraceItem item = new StackTraceItem(method, fileName, line);
-                            curStackTrace.addStackTraceItem(item);
+                        int tid = vl.parseWaitOn(buff);
+                        if (tid >= 0) {
+                            curStackTrace.setWaitOn(tid);
                         }
+                    } else if (vl.parseFrame(buff)) {
+                        StackTraceItem item = mFrames.intern(buff, vl.getMethodStart(), vl.getMethodEnd(),
+                                vl.getFileStart(), vl.getFileEnd(), vl.getLineNr());
+                        curStackTrace.addStackTraceItem(item);
                     }
             }
 
@@ -277,6 +290,8 @@ public class StackTracePlugin extends Plugin {
             main.addLine("</ul>");
         }
 
+        HashMap<StackTrace, SharedStack> shared = genSharedStacks(br, processes);
+
         for (Process p : processes) {
             String anchor = p.getAnchor();
             Chapter ch = new Chapter(br, p.getName() + " (" + p.getPid() + ")");
@@ -315,8 +330,8 @@ public class StackTracePlugin extends Plugin {
                     String linkWait = br.createLinkTo(processes.getChapter(), anchorWait);
                     waiting = " waiting on <a href=\"" + linkWait + "\">thread-" + waitOn + "</a>";
                 }
-                String sched = parseSched(stack.getProperty("sched"));
-                String nice = parseNice(stack.getProperty("nice"));
+                String sched = parseSched(stack.getSchedPolicy());
+                String nice = parseNice(stack.getNice());
                 ch.addLine("<a name=\"" + anchorTrace + "\"></a>");
                 ch.addLine("<div class=\"stacktrace\">");
                 ch.addLine("<div class=\"stacktrace-name\">");
@@ -324,7 +339,7 @@ public class StackTracePlugin extends Plugin {
                 ch.addLine("  <span class=\"stacktrace-name-name\">" + stack.getName() + "</span>");
                 ch.addLine("  <span class=\"stacktrace-name-info\"> " +
                         "(tid=" + stack.getTid() +
-                        " pid=" + stack.getProperty("sysTid") +
+                        " pid=" + (stack.getSysTid() < 0 ? "?" : Integer.toString(stack.getSysTid())) +
                         " prio=" + stack.getPrio() +
                         " " + nice +
                         " " + sched +
@@ -332,19 +347,17 @@ public class StackTracePlugin extends Plugin {
                         waiting +
                         ")</span>");
                 ch.addLine("</div>");
-                ch.addLine("<div class=\"stacktrace-items\">");
-                int itemCnt = stack.getCount();
-                for (int j = 0; j < itemCnt; j++) {
-                    StackTraceItem item = stack.get(j);
-                    ch.addLine("<div class=\"stacktrace-item\">");
-                    ch.addLine("  <span class=\"stacktrace-item-method " + item.getStyle() + "\">" + item.getMethod() + "</span>");
-                    if (item.getFileName() != null) {
-                        ch.addLine("  <span class=\"stacktrace-item-file\">(" + item.getFileName() + ":" + item.getLine() + ")</span>");
-                    }
+                SharedStack ss = shared.get(stack);
+                if (ss != null) {
+                    String linkShared = br.createLinkTo(processes.getChapter(), ss.getAnchor());
+                    ch.addLine("<div class=\"stacktrace-items\">");
+                    ch.addLine("<div class=\"stacktrace-shared\">(" + ss.getCount() + " threads share this stack, see " +
+                            "<a href=\"" + linkShared + "\">shared stack #" + ss.getNr() + "</a>)</div>");
                     ch.addLine("</div>");
+                } else {
+                    addStackItems(ch, stack);
                 }
                 ch.addLine("</div>");
-                ch.addLine("</div>");
             }
 
             cnt = p.getUnknownThreadCount();
@@ -365,25 +378,103 @@ public class StackTracePlugin extends Plugin {
         br.addChapter(main);
     }
 
-    private String parseSched(String sched) {
-        int ret = PSRecord.PCY_UNKNOWN;
-        String fields[] = sched.split("/");
-        try {
-            int v = Integer.parseInt(fields[0]);
-            switch (v) {
-                case 0: ret = PSRecord.PCY_NORMAL; break;
-                case 1: ret = PSRecord.PCY_FIFO; break;
-                case 3: ret = PSRecord.PCY_BATCH; break;
+    private void addStackItems(Chapter ch, StackTrace stack) {
+        ch.addLine("<div class=\"stacktrace-items\">");
+        int itemCnt = stack.getCount();
+        for (int j = 0; j < itemCnt; j++) {
+            StackTraceItem item = stack.get(j);
+            ch.addLine("<div class=\"stacktrace-item\">");
+            ch.addLine("  <span class=\"stacktrace-item-method " + stack.getStyle(j) + "\">" + item.getMethod() + "</span>");
+            if (item.getFileName() != null) {
+                ch.addLine("  <span class=\"stacktrace-item-file\">(" + item.getFileName() + ":" + item.getLine() + ")</span>");
+            }
+            ch.addLine("</div>");
+        }
+        ch.addLine("</div>");
+    }
+
+    /**
+     * Groups the threads (of all the processes in the group) which have exactly the same stack,
+     * and adds a chapter listing these stacks only once, with the threads sharing them.
+     * @return The shared stack of each thread which is not unique
+     */
+    private HashMap<StackTrace, SharedStack> genSharedStacks(BugReport br, Processes processes) {
+        // Group the threads by their stack: since the frames are interned, this is cheap
+        HashMap<SharedStack, SharedStack> stacks = new HashMap<SharedStack, SharedStack>();
+        Vector<SharedStack> list = new Vector<SharedStack>();
+        for (Process p : processes) {
+            int cnt = p.getCount();
+            for (int i = 0; i < cnt; i++) {
+                StackTrace stack = p.get(i);
+                if (stack.getCount() == 0) continue;
+                SharedStack key = new SharedStack(stack);
+                SharedStack ss = stacks.get(key);
+                if (ss == null) {
+                    stacks.put(key, key);
+                    list.add(key);
+                } else {
+                    ss.add(stack);
+                }
+            }
+        }
+
+        // Keep only the stacks shared by more threads, the most common first
+        Vector<SharedStack> common = new Vector<SharedStack>();
+        for (SharedStack ss : list) {
+            if (ss.getCount() >= MIN_SHARED_STACK) {
+                common.add(ss);
+            }
+        }
+        Collections.sort(common, new Comparator<SharedStack>() {
+            @Override
+            public int compare(SharedStack o1, SharedStack o2) {
+                return o2.getCount() - o1.getCount();
+            }
+        });
+
+        HashMap<StackTrace, SharedStack> ret = new HashMap<StackTrace, SharedStack>();
+        if (common.isEmpty()) return ret;
+        Chapter ch = new Chapter(br, "Shared stacks");
+        processes.getChapter().addChapter(ch);
+        ch.addLine("<p>The following stacks are shared by several threads, so they are listed only once:</p>");
+        int nr = 0;
+        for (SharedStack ss : common) {
+            ss.setNr(++nr);
+            ch.addLine("<a name=\"" + ss.getAnchor() + "\"></a>");
+            ch.addLine("<div class=\"stacktrace\">");
+            ch.addLine("<div class=\"stacktrace-name\">");
+            ch.addLine("  <span>-</span>");
+            ch.addLine("  <span class=\"stacktrace-name-name\">Shared stack #" + nr + "</span>");
+            ch.addLine("  <span class=\"stacktrace-name-info\"> (" + ss.getCount() + " threads share this stack: ");
+            for (int i = 0; i < ss.getCount(); i++) {
+                StackTrace stack = ss.get(i);
+                Process p = stack.getProcess();
+                ret.put(stack, ss);
+                String link = br.createLinkTo(processes.getChapter(), p.getAnchor(stack));
+                ch.addLine((i > 0 ? ", " : "") + "<a href=\"" + link + "\">" + p.getName() + "/" + stack.getName() + "</a>");
             }
-        } catch (Exception e) { /* NOP */ }
+            ch.addLine(")</span>");
+            ch.addLine("</div>");
+            addStackItems(ch, ss.get(0));
+            ch.addLine("</div>");
+        }
+        return ret;
+    }
+
+    private String parseSched(int policy) {
+        int ret = PSRecord.PCY_UNKNOWN;
+        switch (policy) {
+            case 0: ret = PSRecord.PCY_NORMAL; break;
+            case 1: ret = PSRecord.PCY_FIFO; break;
+            case 3: ret = PSRecord.PCY_BATCH; break;
+        }
         return Util.getSchedImg(ret);
     }
 
-    private String parseNice(String sNice) {
-        int nice = PSRecord.NICE_UNKNOWN;
-        try {
-            nice = Integer.parseInt(sNice);
-        } catch (Exception e) { /* NOP */ }
+    private String parseNice(int nice) {
+        if (nice == VMTraceLine.UNKNOWN) {
+            nice = PSRecord.NICE_UNKNOWN;
+        }
         return Util.getNiceImg(nice);
     }
 
@@ -408,8 +499,6 @@ public class StackTracePlugin extends Plugin {
                         checkMainThreadViolation(other, p, br, isMainThread, false);
                     }
                 }
-                // Check for deadlocks
-                checkDeadLock(p, stack, br);
             }
         }
     }
@@ -496,149 +585,200 @@ public class StackTracePlugin extends Plugin {
         return false;
     }
 
-    private void checkDeadLock(Process p, StackTrace stack, BugReport br) {
-        StackTrace orig = stack;
-        int cnt = p.getCount();
-        boolean used[] = new boolean[cnt];
-        int idx = p.indexOf(stack.getTid());
-        while (true) {
-            used[idx] = true;
-            int tid = stack.getWaitOn();
-            if (tid < 0) return;
-            idx = p.indexOf(tid);
-            if (idx < 0) return;
-            stack = p.get(idx);
-            if (used[idx]) {
-                // DEADLOCK DETECTED
-                break;
+    /**
+     * Finds the deadlocks in all the stack trace groups. The processes of a group which are
+     * not linked by binder calls are checked separately, and the checks run in parallel.
+     * @return The deadlocks for each group id
+     */
+    private HashMap<Integer, Vector<Vector<StackTrace>>> findDeadLocks(BugReport br) {
+        HashMap<Integer, Vector<Vector<StackTrace>>> ret = new HashMap<Integer, Vector<Vector<StackTrace>>>();
+        Vector<DeadlockDetector> detectors = new Vector<DeadlockDetector>();
+        Vector<Integer> detectorGroups = new Vector<Integer>();
+        for (Processes processes : mProcesses.values()) {
+            ret.put(processes.getId(), new Vector<Vector<StackTrace>>());
+            // The binder state is saved together with the current stack traces, it's not valid for the older ones
+            IntArray binderCalls = processes.getId() == ID_NOW ? mBinderCalls : null;
+            for (DeadlockDetector detector : createDeadlockDetectors(processes, binderCalls)) {
+                detectors.add(detector);
+                detectorGroups.add(processes.getId());
             }
         }
+        if (detectors.isEmpty()) return ret;
 
-        // If we got here, then a deadlock was detected, so create the bug
+        int nrWorkers = Math.max(1, Math.min(detectors.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nrWorkers);
+        try {
+            Vector<Future<Vector<Vector<StackTrace>>>> results = new Vector<Future<Vector<Vector<StackTrace>>>>();
+            for (DeadlockDetector detector : detectors) {
+                results.add(executor.submit(detector));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                ret.get(detectorGroups.get(i)).addAll(results.get(i).get());
+            }
+        } catch (InterruptedException e) {
+            br.printErr(TAG + "Interrupted while checking deadlocks");
+        } catch (ExecutionException e) {
+            br.printErr(TAG + "Error checking deadlocks: " + e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return ret;
+    }
 
-        // We found the dead lock (a loop in the dependency graph), but we need to clean it
-        // (remove nodes which are not in the loop)
-        int masterIdx = idx; // this is definitely part of the deadlock loop
-        for (int i = 0; i < cnt; i++) {
-            used[i] = false;
-        }
-        used[masterIdx] = true;
-        while (true) {
-            used[idx] = true;
-            stack = p.get(idx);
-            int tid = stack.getWaitOn();
-            idx = p.indexOf(tid);
-            if (idx < masterIdx) {
-                masterIdx = idx; // we need a unique id per loop, so keep the smallest node index
-            }
-            if (used[idx]) {
-                // Loop closed
-                break;
+    /**
+     * Creates the deadlock detectors for a group of processes. The processes calling each other
+     * via binder must be checked together, but all the others can be checked separately.
+     * @param processes The processes of a stack trace group
+     * @param binderCalls The pending binder calls (pairs of linux thread ids), or null
+     * @return The list of detectors
+     */
+    private Vector<DeadlockDetector> createDeadlockDetectors(Processes processes, IntArray binderCalls) {
+        int procCnt = processes.size();
+        int parent[] = new int[procCnt];
+        for (int i = 0; i < procCnt; i++) {
+            parent[i] = i;
+        }
+
+        // Join the processes calling each other (union-find on the process indexes)
+        IntIntMap sysTidToProc = new IntIntMap();
+        int callCnt = binderCalls == null ? 0 : binderCalls.size();
+        if (callCnt > 0) {
+            for (int i = 0; i < procCnt; i++) {
+                Process p = processes.get(i);
+                int cnt = p.getCount();
+                for (int j = 0; j < cnt; j++) {
+                    int sysTid = p.get(j).getSysTid();
+                    if (sysTid > 0) {
+                        sysTidToProc.put(sysTid, i);
+                    }
+                }
+            }
+            for (int i = 0; i < callCnt; i += 2) {
+                int a = sysTidToProc.get(binderCalls.get(i), -1);
+                int b = sysTidToProc.get(binderCalls.get(i + 1), -1);
+                if (a >= 0 && b >= 0) {
+                    parent[findRoot(parent, a)] = findRoot(parent, b);
+                }
             }
         }
 
-        // Now make sure we print the deadlock only once
-        if (p.get(masterIdx) != orig) {
-            // This deadlock will be detected by someone else
-            return;
+        Vector<DeadlockDetector> ret = new Vector<DeadlockDetector>();
+        DeadlockDetector detectors[] = new DeadlockDetector[procCnt];
+        for (int i = 0; i < procCnt; i++) {
+            int root = findRoot(parent, i);
+            if (detectors[root] == null) {
+                detectors[root] = new DeadlockDetector();
+                ret.add(detectors[root]);
+            }
+            detectors[root].addProcess(processes.get(i));
+        }
+        for (int i = 0; i < callCnt; i += 2) {
+            int a = sysTidToProc.get(binderCalls.get(i), -1);
+            if (a >= 0) {
+                detectors[findRoot(parent, a)].addBinderCall(binderCalls.get(i), binderCalls.get(i + 1));
+            }
         }
+        return ret;
+    }
 
-        // But: a deadlock will be detected many times, we must make sure we show it only once
-        String a1 = "", a2 = "";
-        int pid = p.getPid();
-        ProcessRecord pr = br.getProcessRecord(pid, false, false);
-        if (pr != null) {
-            a1 = "<a href=\"" + br.createLinkToProcessRecord(pid) + "\">";
-            a2 = "</a>";
+    private static int findRoot(int parent[], int idx) {
+        while (parent[idx] != idx) {
+            parent[idx] = parent[parent[idx]];
+            idx = parent[idx];
+        }
+        return idx;
+    }
+
+    private void reportDeadLock(BugReport br, Processes processes, Vector<StackTrace> deadlock) {
+        // Collect the processes involved
+        Vector<Process> procs = new Vector<Process>();
+        for (StackTrace stack : deadlock) {
+            if (!procs.contains(stack.getProcess())) {
+                procs.add(stack.getProcess());
+            }
+        }
+
+        Bug bug;
+        if (procs.size() == 1) {
+            Process p = procs.get(0);
+            bug = new Bug(Bug.PRIO_DEADLOCK, 0, "Deadlock in process " + p.getName());
+            bug.addLine("<div class=\"bug\">");
+            bug.addLine("<p>The process " + getProcessLink(br, p) + " has a deadlock involving the following threads (from \"" + processes.getName() + "\"):</p>");
+        } else {
+            StringBuffer names = new StringBuffer();
+            StringBuffer links = new StringBuffer();
+            for (Process p : procs) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                    links.append(", ");
+                }
+                names.append(p.getName());
+                links.append(getProcessLink(br, p));
+            }
+            bug = new Bug(Bug.PRIO_DEADLOCK, 0, "Deadlock between processes " + names);
+            bug.addLine("<div class=\"bug\">");
+            bug.addLine("<p>The processes " + links + " have a deadlock (via binder calls) involving the following threads (from \"" + processes.getName() + "\"):</p>");
         }
-        Bug bug = new Bug(Bug.PRIO_DEADLOCK, 0, "Deadlock in process " + p.getName());
-        bug.addLine("<div class=\"bug\">");
-        bug.addLine("<p>The process " + a1 + p.getName() + "(pid " + pid + ")" + a2 + " has a deadlock involving the following threads (from \"" + p.getGroup().getName() + "\"):</p>");
         bug.addLine("<ul>");
-        for (int i = 0; i < cnt; i++) {
-            if (!used[i]) continue;
-            stack = p.get(i);
+        for (StackTrace stack : deadlock) {
+            Process p = stack.getProcess();
             String anchorTrace = p.getAnchor(stack);
-            String linkTrace = br.createLinkTo(p.getGroup().getChapter(), anchorTrace);
-            bug.addLine("<li><a href=\"" + linkTrace + "\">" + stack.getName() + "</a></li>");
+            String linkTrace = br.createLinkTo(processes.getChapter(), anchorTrace);
+            String name = procs.size() == 1 ? stack.getName() : p.getName() + "/" + stack.getName();
+            bug.addLine("<li><a href=\"" + linkTrace + "\">" + name + "</a></li>");
         }
         bug.addLine("</ul>");
         bug.addLine("</div>");
         br.addBug(bug);
     }
 
-    private void importIntoDB() {
-        if (mConn == null) return;
-        try {
-            importIntoDBUnsafe();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    private String getProcessLink(BugReport br, Process p) {
+        int pid = p.getPid();
+        String name = p.getName() + "(pid " + pid + ")";
+        ProcessRecord pr = br.getProcessRecord(pid, false, false);
+        if (pr == null) return name;
+        return "<a href=\"" + br.createLinkToProcessRecord(pid) + "\">" + name + "</a>";
     }
 
-    private void importIntoDBUnsafe() throws SQLException {
+    private void importIntoDB() {
+        if (mDB == null) return;
+
         int nextProcessId = 0;
         int nextThreadId = 0;
         int nextItemId = 0;
 
         // Create the table structure
-        Statement stat = mConn.createStatement();
-        stat.execute("CREATE TABLE stacktrace_groups (id int, name varchar)");
-        stat.execute("INSERT INTO stacktrace_groups VALUES (" + ID_NOW + ", \"VM traces just now\")");
-        stat.execute("INSERT INTO stacktrace_groups VALUES (" + ID_ANR + ", \"VM traces at last ANR\")");
-        stat.execute("INSERT INTO stacktrace_groups VALUES (" + ID_OLD + ", \"VM traces\")");
-        stat.execute("CREATE TABLE stacktrace_processes (id int, pid int, name varchar, group_id int)");
-        stat.execute("CREATE TABLE stacktrace_threads (id int, tid int, name varchar, process_id int)");
-        stat.execute("CREATE TABLE stacktrace_items (id int, idx id, method varchar, file varchar, line int, thread_id int)");
-        stat.close();
-        PreparedStatement insProc = mConn.prepareStatement("INSERT INTO stacktrace_processes(id,pid,name,group_id) VALUES (?,?,?,?)");
-        PreparedStatement insThread = mConn.prepareStatement("INSERT INTO stacktrace_threads(id,tid,name,process_id) VALUES (?,?,?,?)");
-        PreparedStatement insItem = mConn.prepareStatement("INSERT INTO stacktrace_items(id,idx,method,file,line,thread_id) VALUES (?,?,?,?,?,?)");
+        DBExporter.Table groups = mDB.createTable("stacktrace_groups", "id int", "name varchar");
+        groups.insert(ID_NOW, "VM traces just now");
+        groups.insert(ID_ANR, "VM traces at last ANR");
+        groups.insert(ID_OLD, "VM traces");
+        DBExporter.Table procs = mDB.createTable("stacktrace_processes", "id int", "pid int", "name varchar", "group_id int");
+        DBExporter.Table threads = mDB.createTable("stacktrace_threads", "id int", "tid int", "name varchar", "process_id int");
+        threads.addIndex("process_id");
+        DBExporter.Table items = mDB.createTable("stacktrace_items", "id int", "idx id", "method varchar", "file varchar", "line int", "thread_id int");
+        items.addIndex("thread_id");
 
         // Handle each process group
         for (Processes processes : mProcesses.values()) {
             for (Process process : processes) {
                 int processId = ++nextProcessId;
-                insProc.setInt(1, processId);
-                insProc.setInt(2, process.getPid());
-                insProc.setString(3, process.getName());
-                insProc.setInt(4, processes.getId());
-                insProc.addBatch();
+                procs.insert(processId, process.getPid(), process.getName(), processes.getId());
 
                 int threadCnt = process.getCount();
                 for (int i = 0; i < threadCnt; i++) {
                     int threadId = ++nextThreadId;
                     StackTrace stack = process.get(i);
-                    insThread.setInt(1, threadId);
-                    insThread.setInt(2, stack.getTid());
-                    insThread.setString(3, stack.getName());
-                    insThread.setInt(4, processId);
-                    insThread.addBatch();
+                    threads.insert(threadId, stack.getTid(), stack.getName(), processId);
 
                     int stackSize = stack.getCount();
                     for (int j = 0; j < stackSize; j++) {
                         int itemId = ++nextItemId;
                         StackTraceItem item = stack.get(j);
-                        insItem.setInt(1, itemId);
-                        insItem.setInt(2, j);
-                        insItem.setString(3, item.getMethod());
-                        insItem.setString(4, item.getFileName());
-                        insItem.setInt(5, item.getLine());
-                        insItem.setInt(6, threadId);
-                        insItem.addBatch();
+                        items.insert(itemId, j, item.getMethod(), item.getFileName(), item.getLine(), threadId);
                     }
                 }
             }
         }
-
-        // Cleanup
-        insItem.executeBatch();
-        insItem.close();
-        insThread.executeBatch();
-        insThread.close();
-        insProc.executeBatch();
-        insProc.close();
-        mConn.commit();
     }
 
     static class Processes extends Vector<Process> {
@@ -691,6 +831,8 @@ public class StackTracePlugin extends Plugin {
         private int mPid;
         private String mName;
         private Vector<StackTrace> mStacks = new Vector<StackTrace>();
+        /** Maps the thread ids to the index of the stack trace (the first one, if the id is not unique) */
+        private IntIntMap mTidIndex = new IntIntMap();
         private Vector<PSRecord> mUnknownThreads= new Vector<PSRecord>();
         private Processes mGroup;
         private String mDate;
@@ -728,21 +870,12 @@ public class StackTracePlugin extends Plugin {
         }
 
         public StackTrace findTid(int tid) {
-            for (StackTrace stack : mStacks) {
-                if (stack.getTid() == tid) {
-                    return stack;
-                }
-            }
-            return null;
+            int idx = indexOf(tid);
+            return idx < 0 ? null : mStacks.get(idx);
         }
 
         public int indexOf(int tid) {
-            for (int i = 0; i < mStacks.size(); i++) {
-                if (mStacks.get(i).getTid() == tid) {
-                    return i;
-                }
-            }
-            return -1;
+            return mTidIndex.get(tid, -1);
         }
 
         public int getPid() {
@@ -758,6 +891,9 @@ public class StackTracePlugin extends Plugin {
         }
 
         public void addStackTrace(StackTrace stackTrace) {
+            if (!mTidIndex.containsKey(stackTrace.getTid())) {
+                mTidIndex.put(stackTrace.getTid(), mStacks.size());
+            }
             mStacks.add(stackTrace);
         }
 
@@ -787,12 +923,15 @@ public class StackTracePlugin extends Plugin {
 
         private String mName;
         private Vector<StackTraceItem> mStack = new Vector<StackTraceItem>();
+        private String mStyles[];
         private int mTid;
         private int mPrio;
         private String mState;
         private int mWaitOn;
         private Process mProc;
-        private HashMap<String, String> mProps = new HashMap<String, String>();
+        private int mSysTid = -1;
+        private int mNice = VMTraceLine.UNKNOWN;
+        private int mSchedPolicy = VMTraceLine.UNKNOWN;
 
         public StackTrace(Process process, String name, int tid, int prio, String threadState) {
             mProc = process;
@@ -803,26 +942,86 @@ public class StackTracePlugin extends Plugin {
             mWaitOn = -1;
         }
 
-        public void parseProperties(String s) {
-            String kvs[] = s.split(" ");
-            for (String kv : kvs) {
-                if (kv.length() == 0) continue;
-                String pair[] = kv.split("=");
-                if (pair.length != 2) continue;
-                mProps.put(pair[0], pair[1]);
+        /**
+         * Sets the extra properties (the missing values are VMTraceLine.UNKNOWN, and they are ignored)
+         */
+        public void setProperties(int sysTid, int nice, int schedPolicy) {
+            if (sysTid != VMTraceLine.UNKNOWN) {
+                mSysTid = sysTid;
+            }
+            if (nice != VMTraceLine.UNKNOWN) {
+                mNice = nice;
             }
+            if (schedPolicy != VMTraceLine.UNKNOWN) {
+                mSchedPolicy = schedPolicy;
+            }
+        }
+
+        /**
+         * Returns the linux thread id (the "sysTid" property), or -1 if not known
+         */
+        public int getSysTid() {
+            return mSysTid;
+        }
+
+        /**
+         * Returns the nice value, or VMTraceLine.UNKNOWN if not known
+         */
+        public int getNice() {
+            return mNice;
         }
 
-        public String getProperty(String key) {
-            return mProps.get(key);
+        /**
+         * Returns the scheduling policy, or VMTraceLine.UNKNOWN if not known
+         */
+        public int getSchedPolicy() {
+            return mSchedPolicy;
         }
 
         public void setStyle(int from, int to, String style) {
             from = Math.max(0, from);
             to = Math.min(getCount(), to);
+            if (from >= to) return;
+            if (mStyles == null) {
+                mStyles = new String[getCount()];
+            }
             for (int i = from; i < to; i++) {
-                get(i).setStyle(style);
+                mStyles[i] = style;
+            }
+        }
+
+        /**
+         * Returns the style of the stack frame (the frames are shared, so it's stored in the stack)
+         */
+        public String getStyle(int idx) {
+            if (mStyles == null || mStyles[idx] == null) return "";
+            return mStyles[idx];
+        }
+
+        /**
+         * Returns true if both stacks have the same frames (and the same styles)
+         */
+        public boolean hasSameStack(StackTrace other) {
+            int cnt = getCount();
+            if (cnt != other.getCount()) return false;
+            for (int i = 0; i < cnt; i++) {
+                // The frames are interned, so they can be compared by reference
+                if (get(i) != other.get(i)) return false;
+                if (!getStyle(i).equals(other.getStyle(i))) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the hash code of the frames (consistent with hasSameStack)
+         */
+        public int getStackHash() {
+            int ret = 0;
+            int cnt = getCount();
+            for (int i = 0; i < cnt; i++) {
+                ret = ret * 31 + System.identityHashCode(get(i));
             }
+            return ret;
         }
 
         public int findMethod(String methodName) {
@@ -865,6 +1064,7 @@ public class StackTracePlugin extends Plugin {
 
         public void addStackTraceItem(StackTraceItem item) {
             mStack.add(item);
+            mStyles = null;
         }
 
         public int getCount() {
@@ -885,7 +1085,6 @@ public class StackTracePlugin extends Plugin {
         private String mMethod;
         private String mFileName;
         private int mLine;
-        private String mStyle = "";
 
         public StackTraceItem(String method, String fileName, int line) {
             mMethod = method;
@@ -893,14 +1092,6 @@ public class StackTracePlugin extends Plugin {
             mLine = line;
         }
 
-        public String getStyle() {
-            return mStyle;
-        }
-
-        public void setStyle(String style) {
-            mStyle = style;
-        }
-
         public String getMethod() {
             return mMethod;
         }
@@ -914,4 +1105,156 @@ public class StackTracePlugin extends Plugin {
         }
 
     }
+
+    /**
+     * The table of the interned stack frames (a hash table using linear probing).
+     * The frames are looked up directly in the parsed line (using the location of the
+     * method and file name), so no strings are created for the frames already seen.
+     */
+    static class FrameTable {
+
+        private StackTraceItem mItems[];
+        private int mHashes[];
+        private int mSize;
+        private HashMap<String, String> mNames = new HashMap<String, String>();
+
+        public FrameTable() {
+            clear();
+        }
+
+        public void clear() {
+            mItems = new StackTraceItem[1024];
+            mHashes = new int[1024];
+            mSize = 0;
+            mNames.clear();
+        }
+
+        /**
+         * Returns the shared instance of the frame
+         * @param s The line containing the frame
+         * @param methodStart The start of the method name
+         * @param methodEnd The end of the method name
+         * @param fileStart The start of the file name, or -1 if there is no file name
+         * @param fileEnd The end of the file name
+         * @param line The line number (or -1)
+         * @return The interned frame
+         */
+        public StackTraceItem intern(String s, int methodStart, int methodEnd, int fileStart, int fileEnd, int line) {
+            int hash = hash(s, methodStart, methodEnd, 0);
+            if (fileStart >= 0) {
+                hash = hash(s, fileStart, fileEnd, hash * 31 + 1);
+            }
+            hash = hash * 31 + line;
+            int mask = mItems.length - 1;
+            int pos = (hash ^ (hash >>> 16)) & mask;
+            while (mItems[pos] != null) {
+                StackTraceItem item = mItems[pos];
+                if (mHashes[pos] == hash && item.getLine() == line
+                        && matches(item.getMethod(), s, methodStart, methodEnd)
+                        && matches(item.getFileName(), s, fileStart, fileEnd)) {
+                    return item;
+                }
+                pos = (pos + 1) & mask;
+            }
+            String method = internName(s.substring(methodStart, methodEnd));
+            String fileName = fileStart < 0 ? null : internName(s.substring(fileStart, fileEnd));
+            StackTraceItem item = new StackTraceItem(method, fileName, line);
+            mItems[pos] = item;
+            mHashes[pos] = hash;
+            if (2 * (++mSize) > mItems.length) {
+                grow();
+            }
+            return item;
+        }
+
+        private String internName(String name) {
+            String ret = mNames.get(name);
+            if (ret == null) {
+                ret = name;
+                mNames.put(ret, ret);
+            }
+            return ret;
+        }
+
+        private void grow() {
+            StackTraceItem items[] = mItems;
+            int hashes[] = mHashes;
+            mItems = new StackTraceItem[items.length * 2];
+            mHashes = new int[items.length * 2];
+            int mask = mItems.length - 1;
+            for (int i = 0; i < items.length; i++) {
+                if (items[i] == null) continue;
+                int pos = (hashes[i] ^ (hashes[i] >>> 16)) & mask;
+                while (mItems[pos] != null) {
+                    pos = (pos + 1) & mask;
+                }
+                mItems[pos] = items[i];
+                mHashes[pos] = hashes[i];
+            }
+        }
+
+        private static int hash(String s, int from, int to, int hash) {
+            for (int i = from; i < to; i++) {
+                hash = hash * 31 + s.charAt(i);
+            }
+            return hash;
+        }
+
+        private static boolean matches(String name, String s, int from, int to) {
+            if (from < 0) return name == null;
+            return name != null && name.length() == to - from && s.regionMatches(from, name, 0, to - from);
+        }
+
+    }
+
+    /**
+     * A group of threads having the same stack
+     */
+    static class SharedStack {
+
+        private Vector<StackTrace> mThreads = new Vector<StackTrace>();
+        private int mHash;
+        private int mNr;
+
+        public SharedStack(StackTrace stack) {
+            mThreads.add(stack);
+            mHash = stack.getStackHash();
+        }
+
+        public void add(StackTrace stack) {
+            mThreads.add(stack);
+        }
+
+        public int getCount() {
+            return mThreads.size();
+        }
+
+        public StackTrace get(int idx) {
+            return mThreads.get(idx);
+        }
+
+        public int getNr() {
+            return mNr;
+        }
+
+        public void setNr(int nr) {
+            mNr = nr;
+        }
+
+        public String getAnchor() {
+            return "stacktrace_" + mThreads.get(0).getProcess().getGroup().getId() + "_shared_" + mNr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SharedStack)) return false;
+            return mThreads.get(0).hasSameStack(((SharedStack)o).mThreads.get(0));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+    }
 }
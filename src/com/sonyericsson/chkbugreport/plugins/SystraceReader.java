@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+import com.sonyericsson.chkbugreport.LineReader;
+import com.sonyericsson.chkbugreport.Section;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Extracts the ftrace text from a systrace capture, so it can be processed by the FTracePlugin.
+ * The following formats are supported:
+ * <ul>
+ * <li>systrace HTML files, either with the trace embedded in a "trace-data" script block
+ * (as plain text, or base64 encoded gzip/zlib data) or in the "linuxPerfData" variable
+ * used by the older versions;</li>
+ * <li>the output of atrace, optionally with the header lines ending with "TRACE:", after
+ * which the trace is either plain text or zlib compressed (atrace -z).</li>
+ * </ul>
+ * The file is processed as a stream (decompressing on the fly), only the lines of the
+ * trace are kept in memory. JSON traces embedded in the HTML file are skipped.
+ */
+public class SystraceReader {
+
+    private static final String TRACE_DATA = "trace-data";
+    private static final String LEGACY_START = "var linuxPerfData = \"";
+    private static final String SCRIPT_END = "</script>";
+    private static final String ATRACE_HEADER = "TRACE:";
+
+    /** How many lines to look for the "TRACE:" line at the beginning of the atrace output */
+    private static final int MAX_HEADER_LINES = 16;
+
+    /** How many bytes to look at to detect the format of the "trace-data" script block */
+    private static final int PEEK_SIZE = 64;
+
+    private Section mSection;
+    private int mLineCount;
+
+    private SystraceReader(Section sec) {
+        mSection = sec;
+    }
+
+    /**
+     * Reads the trace from the systrace capture and adds its lines to the section
+     * @return The number of lines added
+     */
+    public static int read(String fileName, Section sec) throws IOException {
+        SystraceReader reader = new SystraceReader(sec);
+        InputStream is = new BufferedInputStream(new FileInputStream(fileName));
+        try {
+            reader.readAll(is);
+        } finally {
+            is.close();
+        }
+        return reader.mLineCount;
+    }
+
+    private void readAll(InputStream is) throws IOException {
+        String line = readLine(is);
+        while (line != null && line.trim().length() == 0) {
+            line = readLine(is);
+        }
+        if (line == null) return;
+        if (line.trim().startsWith("<")) {
+            readHtml(is, line);
+        } else {
+            readText(is, line);
+        }
+    }
+
+    private void readText(InputStream is, String line) throws IOException {
+        // Look for the end of the atrace header, but don't buffer too many lines
+        Vector<String> header = new Vector<String>();
+        while (line != null && header.size() < MAX_HEADER_LINES) {
+            if (line.equals(ATRACE_HEADER)) {
+                header = null;
+                break;
+            }
+            header.add(line);
+            line = readLine(is);
+        }
+        if (header != null) {
+            // No header, so these lines are part of the trace
+            for (String s : header) {
+                addLine(s);
+            }
+            if (line != null) {
+                addLine(line);
+            }
+        } else if (isZlib(is)) {
+            addLines(new InflaterInputStream(is));
+            return;
+        }
+        while (null != (line = readLine(is))) {
+            addLine(line);
+        }
+    }
+
+    private void readHtml(InputStream is, String line) throws IOException {
+        while (line != null) {
+            if (line.contains(LEGACY_START)) {
+                readLegacyData(is, line.substring(line.indexOf(LEGACY_START) + LEGACY_START.length()));
+            } else if (isTraceDataTag(line, 0)) {
+                // readLine stops after the tag, the data follows in the stream
+                readTraceData(is);
+            }
+            line = readLine(is);
+        }
+    }
+
+    /**
+     * Reads the trace stored in a javascript string, where each line ends with "\n\"
+     */
+    private void readLegacyData(InputStream is, String line) throws IOException {
+        while (line != null) {
+            if (line.startsWith("\";")) break;
+            if (line.endsWith("\\n\\")) {
+                line = line.substring(0, line.length() - 3);
+            } else if (line.endsWith("\\")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.length() > 0) {
+                addLine(line.replace("\\\"", "\""));
+            }
+            line = readLine(is);
+        }
+    }
+
+    /**
+     * Reads the content of a "trace-data" script block. Only the first few bytes are looked
+     * at to detect the format, so the compressed data (usually a single huge line) is decoded
+     * directly from the stream.
+     */
+    private void readTraceData(InputStream is) throws IOException {
+        String first = peek(is);
+        if (first.startsWith("{") || first.startsWith("[")) {
+            // JSON trace, not supported, skip it
+            skipPast(is, SCRIPT_END);
+        } else if (!first.contains("<") && isBase64(first)) {
+            // Compressed and base64 encoded, the data ends where the closing tag begins
+            InputStream data = new BufferedInputStream(new Base64InputStream(is));
+            if (isGzip(data)) {
+                data = new GZIPInputStream(data);
+            } else if (isZlib(data)) {
+                data = new InflaterInputStream(data);
+            }
+            addLines(data);
+        } else {
+            // Plain text
+            String line = readLine(is);
+            while (line != null) {
+                int p = line.indexOf(SCRIPT_END);
+                if (p >= 0) {
+                    if (p > 0) {
+                        addLine(line.substring(0, p));
+                    }
+                    break;
+                }
+                addLine(line);
+                line = readLine(is);
+            }
+        }
+    }
+
+    private void addLines(InputStream is) {
+        LineReader lr = new LineReader(is);
+        String line;
+        while (null != (line = lr.readLine())) {
+            addLine(line);
+        }
+    }
+
+    private void addLine(String line) {
+        mSection.addLine(line);
+        mLineCount++;
+    }
+
+    private static boolean isZlib(InputStream is) throws IOException {
+        is.mark(2);
+        int b = is.read();
+        is.reset();
+        return b == 0x78;
+    }
+
+    private static boolean isGzip(InputStream is) throws IOException {
+        is.mark(2);
+        int b0 = is.read(), b1 = is.read();
+        is.reset();
+        return b0 == 0x1f && b1 == 0x8b;
+    }
+
+    /**
+     * Skips the whitespace, and returns the beginning of the next line (at most PEEK_SIZE
+     * bytes) without consuming it
+     */
+    private static String peek(InputStream is) throws IOException {
+        int b;
+        do {
+            is.mark(1);
+            b = is.read();
+        } while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+        if (b >= 0) {
+            is.reset();
+        }
+        StringBuffer sb = new StringBuffer();
+        is.mark(PEEK_SIZE);
+        while (sb.length() < PEEK_SIZE) {
+            b = is.read();
+            if (b < 0 || b == '\r' || b == '\n') break;
+            sb.append((char)b);
+        }
+        is.reset();
+        return sb.toString();
+    }
+
+    /**
+     * Skips the data until right after the first occurrence of the given text
+     */
+    private static void skipPast(InputStream is, String s) throws IOException {
+        int matched = 0;
+        while (matched < s.length()) {
+            int b = is.read();
+            if (b < 0) return;
+            if (b == s.charAt(matched)) {
+                matched++;
+            } else {
+                matched = (b == s.charAt(0)) ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the text from the given position is the opening tag of a
+     * "trace-data" script block
+     */
+    private static boolean isTraceDataTag(CharSequence s, int from) {
+        String tag = s.subSequence(from, s.length()).toString();
+        int p = tag.indexOf("<script");
+        return p >= 0 && tag.indexOf(TRACE_DATA, p) >= 0 && tag.endsWith(">");
+    }
+
+    private static boolean isBase64(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Base64InputStream.decode(s.charAt(i)) < 0 && s.charAt(i) != '=') return false;
+        }
+        return s.length() > 0;
+    }
+
+    /**
+     * Reads a line directly from the stream (without buffering more data than the line).
+     * The line also ends after the opening tag of a "trace-data" script block, so the data
+     * following it on the same line is not read.
+     */
+    private static String readLine(InputStream is) throws IOException {
+        StringBuffer sb = new StringBuffer();
+        int tagStart = -1;
+        while (true) {
+            int b = is.read();
+            if (b < 0) {
+                if (sb.length() == 0) return null;
+                break;
+            }
+            if (b == 0xd) continue;
+            if (b == 0xa) break;
+            if (b == '<') {
+                tagStart = sb.length();
+            }
+            sb.append((char)b);
+            if (b == '>' && tagStart >= 0) {
+                if (isTraceDataTag(sb, tagStart)) break;
+                tagStart = -1;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodes base64 data on the fly. Whitespace is skipped, and the data ends at the
+     * padding or at the first character which is not valid base64 (like the '<' of the
+     * closing tag).
+     */
+    static class Base64InputStream extends InputStream {
+
+        private InputStream mIs;
+        private int mBuff[] = new int[3];
+        private int mPos;
+        private int mLen;
+        private boolean mEof;
+
+        public Base64InputStream(InputStream is) {
+            mIs = is;
+        }
+
+        static int decode(int c) {
+            if (c >= 'A' && c <= 'Z') return c - 'A';
+            if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+            if (c >= '0' && c <= '9') return c - '0' + 52;
+            if (c == '+') return 62;
+            if (c == '/') return 63;
+            return -1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos == mLen) {
+                if (mEof || !fill()) return -1;
+            }
+            return mBuff[mPos++];
+        }
+
+        private boolean fill() throws IOException {
+            int bits = 0, cnt = 0;
+            while (cnt < 4) {
+                int c = mIs.read();
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n') continue;
+                int v = decode(c);
+                if (v < 0) {
+                    mEof = true;
+                    break;
+                }
+                bits = (bits << 6) | v;
+                cnt++;
+            }
+            if (cnt < 2) return false;
+            bits <<= 6 * (4 - cnt);
+            mLen = cnt - 1;
+            mPos = 0;
+            for (int i = 0; i < mLen; i++) {
+                mBuff[i] = (bits >> (16 - 8 * i)) & 0xff;
+            }
+            return true;
+        }
+
+    }
+
+}
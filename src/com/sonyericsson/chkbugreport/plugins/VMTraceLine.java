@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.plugins;
+
+/**
+ * Tokenizes the lines of the VM traces (the output of the dalvik stack dump), for example:
+ * <pre>
+ * ----- pid 100 at 2012-01-01 10:00:00 -----
+ * "main" prio=5 tid=1 MONITOR
+ *   | group="main" sCount=1 dsCount=0 obj=0x4001f1a8 self=0xce48
+ *   | sysTid=100 nice=0 sched=0/0 cgrp=default handle=-1345006528
+ *   at com.example.Foo.bar(Foo.java:10)
+ *   - waiting to lock &lt;0x40519b58&gt; (a java.lang.Object) held by threadid=8 (Thread-10)
+ * </pre>
+ * The same instance is reused for every line. Each line is scanned only once, the numeric
+ * fields are parsed in place, and only the strings which are kept (like the thread name)
+ * are extracted, so no intermediate arrays or substrings are created.
+ */
+class VMTraceLine {
+
+    /** The value of the numeric fields which are missing or invalid */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private String mLine;
+    private int mPid;
+    private String mDate;
+    private String mTime;
+    private String mName;
+    private int mPrio;
+    private int mTid;
+    private String mState;
+    private int mSysTid;
+    private int mNice;
+    private int mSchedPolicy;
+    private int mMethodStart, mMethodEnd;
+    private int mFileStart, mFileEnd;
+    private int mLineNr;
+
+    public String getLine() {
+        return mLine;
+    }
+
+    /**
+     * Parses the process header: "----- pid 100 at 2012-01-01 10:00:00 -----"
+     * @return true if the line is a valid process header
+     */
+    public boolean parseProcessHeader(String line) {
+        mLine = line;
+        String prefix = "----- pid ";
+        if (!line.startsWith(prefix)) return false;
+        int p = prefix.length();
+        int e = skipDigits(line, p);
+        if (e == p) return false;
+        mPid = parseInt(line, p, e);
+        p = skipSpaces(line, e);
+        if (!line.startsWith("at ", p)) return false;
+        p = skipSpaces(line, p + 3);
+        e = skipToken(line, p);
+        mDate = line.substring(p, e);
+        p = skipSpaces(line, e);
+        e = skipToken(line, p);
+        mTime = line.substring(p, e);
+        return true;
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public String getDate() {
+        return mDate;
+    }
+
+    public String getTime() {
+        return mTime;
+    }
+
+    /**
+     * Parses the thread header: "\"main\" prio=5 tid=1 MONITOR".
+     * The last keyword (the token without '=') is the thread state.
+     * @return true if the line is a valid thread header
+     */
+    public boolean parseThreadHeader(String line) {
+        mLine = line;
+        if (!line.startsWith("\"")) return false;
+        int e = line.indexOf('"', 1);
+        if (e < 0) return false;
+        mName = line.substring(1, e);
+        mPrio = -1;
+        mTid = -1;
+        mState = "?";
+        int len = line.length();
+        int p = skipSpaces(line, e + 1);
+        while (p < len) {
+            e = skipToken(line, p);
+            int eq = line.indexOf('=', p);
+            if (eq < 0 || eq > e) {
+                // Keyword
+                if (skipSpaces(line, e) >= len) {
+                    mState = line.substring(p, e);
+                }
+            } else if (line.startsWith("prio", p) && eq == p + 4) {
+                mPrio = parseInt(line, eq + 1, e, -1);
+            } else if (line.startsWith("tid", p) && eq == p + 3) {
+                mTid = parseInt(line, eq + 1, e, -1);
+            }
+            p = skipSpaces(line, e);
+        }
+        return true;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getPrio() {
+        return mPrio;
+    }
+
+    public int getTid() {
+        return mTid;
+    }
+
+    public String getState() {
+        return mState;
+    }
+
+    /**
+     * Parses the extra thread properties: "  | sysTid=100 nice=0 sched=0/0 cgrp=default ...".
+     * Only sysTid, nice and sched (the policy) are extracted, the missing ones are set to UNKNOWN.
+     */
+    public void parseProperties(String line) {
+        mLine = line;
+        mSysTid = UNKNOWN;
+        mNice = UNKNOWN;
+        mSchedPolicy = UNKNOWN;
+        int len = line.length();
+        int p = skipSpaces(line, line.indexOf('|') + 1);
+        while (p < len) {
+            int e = skipToken(line, p);
+            int eq = line.indexOf('=', p);
+            if (eq > p && eq < e) {
+                int keyLen = eq - p;
+                if (keyLen == 6 && line.startsWith("sysTid", p)) {
+                    mSysTid = parseInt(line, eq + 1, e, UNKNOWN);
+                } else if (keyLen == 4 && line.startsWith("nice", p)) {
+                    mNice = parseInt(line, eq + 1, e, UNKNOWN);
+                } else if (keyLen == 5 && line.startsWith("sched", p)) {
+                    int se = line.indexOf('/', eq + 1);
+                    mSchedPolicy = parseInt(line, eq + 1, (se < 0 || se > e) ? e : se, UNKNOWN);
+                }
+            }
+            p = skipSpaces(line, e);
+        }
+    }
+
+    public int getSysTid() {
+        return mSysTid;
+    }
+
+    public int getNice() {
+        return mNice;
+    }
+
+    public int getSchedPolicy() {
+        return mSchedPolicy;
+    }
+
+    /**
+     * Parses the lock owner from "  - waiting to lock &lt;...&gt; (...) held by threadid=8 (...)"
+     * @return The thread id of the lock owner, or -1 if the line is not a lock wait
+     */
+    public int parseWaitOn(String line) {
+        mLine = line;
+        if (!line.startsWith("  - waiting to lock")) return -1;
+        String needle = "held by threadid=";
+        int p = line.indexOf(needle);
+        if (p < 0) return -1;
+        p += needle.length();
+        int e = skipDigits(line, p);
+        if (e == p || e >= line.length() || line.charAt(e) != ' ') return -1;
+        return parseInt(line, p, e);
+    }
+
+    /**
+     * Parses a stack frame: "  at com.example.Foo.bar(Foo.java:10)", "  at com.example.Foo.bar(Foo.java:~10)"
+     * or "  at com.example.Foo.baz(Native Method)". The file name and line are optional.
+     * @return true if the line is a valid stack frame
+     */
+    public boolean parseFrame(String line) {
+        mLine = line;
+        int start = 5;
+        if (!line.startsWith("  at ")) return false;
+        int open = line.indexOf('(', start);
+        if (open < 0) return false;
+        int close = line.indexOf(')', open);
+        if (close < 0) return false;
+        mMethodStart = start;
+        mMethodEnd = open;
+        mFileStart = mFileEnd = -1;
+        mLineNr = -1;
+        int colon = line.indexOf(':', open);
+        if (colon >= 0 && colon < close) {
+            mFileStart = open + 1;
+            mFileEnd = colon;
+            int p = colon + 1;
+            if (p < close && line.charAt(p) == '~') {
+                p++;
+            }
+            mLineNr = parseInt(line, p, close, -1);
+        }
+        return true;
+    }
+
+    public int getMethodStart() {
+        return mMethodStart;
+    }
+
+    public int getMethodEnd() {
+        return mMethodEnd;
+    }
+
+    /**
+     * Returns the start of the file name, or -1 if it's not present (for example in case of native methods)
+     */
+    public int getFileStart() {
+        return mFileStart;
+    }
+
+    public int getFileEnd() {
+        return mFileEnd;
+    }
+
+    public int getLineNr() {
+        return mLineNr;
+    }
+
+    private static int parseInt(String s, int from, int to) {
+        int ret = 0;
+        for (int i = from; i < to; i++) {
+            ret = ret * 10 + (s.charAt(i) - '0');
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a (possibly negative) decimal number, which must fill the whole range
+     */
+    private static int parseInt(String s, int from, int to, int def) {
+        boolean neg = false;
+        if (from < to && s.charAt(from) == '-') {
+            neg = true;
+            from++;
+        }
+        if (from == to || skipDigits(s, from) != to) return def;
+        int ret = parseInt(s, from, to);
+        return neg ? -ret : ret;
+    }
+
+    private static int skipDigits(String s, int p) {
+        int len = s.length();
+        while (p < len && s.charAt(p) >= '0' && s.charAt(p) <= '9') p++;
+        return p;
+    }
+
+    private static int skipSpaces(String s, int p) {
+        int len = s.length();
+        while (p < len && s.charAt(p) == ' ') p++;
+        return p;
+    }
+
+    private static int skipToken(String s, int p) {
+        int len = s.length();
+        while (p < len && s.charAt(p) != ' ') p++;
+        return p;
+    }
+
+}
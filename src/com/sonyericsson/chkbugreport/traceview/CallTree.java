@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import java.util.Arrays;
+
+/**
+ * The method calls (runs) of a single thread, stored as a tree.
+ *
+ * Instead of creating an object for each method call, every run is identified by
+ * an index, and the data of the runs are stored in primitive arrays. The children of
+ * a run are linked using the first-child/next-sibling indices, so no per-run collections
+ * are needed. The top level runs (the ones without a caller) are linked the same way,
+ * starting from getFirstRoot().
+ *
+ * The tree is built by calling enter() and exit() for each trace record, followed by
+ * a finish() call which closes the unfinished runs.
+ */
+public class CallTree {
+
+    /** Marks a missing run (no parent, no more children, etc) */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int mCount;
+    private int mMid[];
+    private int mParent[];
+    private int mFirstChild[];
+    private int mNextSibling[];
+    private int mStartTime[];
+    private int mStartLocalTime[];
+    private int mEndTime[];
+    private int mEndLocalTime[];
+    private int mNrCalls[];
+
+    private int mFirstRoot = NONE;
+    private int mLastRoot = NONE;
+
+    /* Build state: the currently running method and the last child of each open level */
+    private int mCurrent = NONE;
+    private int mDepth;
+    private int mLastChild[] = new int[16];
+
+    public CallTree() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CallTree(int capacity) {
+        capacity = Math.max(1, capacity);
+        mMid = new int[capacity];
+        mParent = new int[capacity];
+        mFirstChild = new int[capacity];
+        mNextSibling = new int[capacity];
+        mStartTime = new int[capacity];
+        mStartLocalTime = new int[capacity];
+        mEndTime = new int[capacity];
+        mEndLocalTime = new int[capacity];
+        mNrCalls = new int[capacity];
+        mLastChild[0] = NONE;
+    }
+
+    /**
+     * Handle a method entry record: creates a new run as the last child
+     * of the currently running method.
+     * @param mid The method id
+     * @param time The (global) time of the record
+     * @param localTime The thread local time of the record
+     * @return The index of the new run
+     */
+    public int enter(int mid, int time, int localTime) {
+        int run = alloc(mid, mCurrent, time, localTime);
+        link(run);
+        push(run);
+        return run;
+    }
+
+    /**
+     * Handle a method exit record: closes the currently running method.
+     * If there is no running method (the trace was started inside this method),
+     * a new run is created (assuming 0 start time) and all previous top level
+     * runs are moved inside it.
+     * @param mid The method id
+     * @param time The (global) time of the record
+     * @param localTime The thread local time of the record
+     */
+    public void exit(int mid, int time, int localTime) {
+        if (mCurrent == NONE) {
+            int run = alloc(mid, NONE, 0, 0);
+            mFirstChild[run] = mFirstRoot;
+            for (int ch = mFirstRoot; ch != NONE; ch = mNextSibling[ch]) {
+                mParent[ch] = run;
+                mNrCalls[run] += mNrCalls[ch];
+            }
+            mLastChild[1] = mLastRoot;
+            mFirstRoot = mLastRoot = run;
+            mLastChild[0] = run;
+            mCurrent = run;
+            mDepth = 1;
+        }
+        pop(time, localTime);
+    }
+
+    /**
+     * Closes all the runs which are not finished yet.
+     * Also releases the memory which is not needed anymore.
+     * @param time The (global) end time to use
+     * @param localTime The thread local end time to use
+     */
+    public void finish(int time, int localTime) {
+        while (mCurrent != NONE) {
+            pop(time, localTime);
+        }
+        setCapacity(mCount);
+    }
+
+    private int alloc(int mid, int parent, int time, int localTime) {
+        if (mCount == mMid.length) {
+            setCapacity(mCount + (mCount >> 1) + 1);
+        }
+        int run = mCount++;
+        mMid[run] = mid;
+        mParent[run] = parent;
+        mFirstChild[run] = NONE;
+        mNextSibling[run] = NONE;
+        mStartTime[run] = time;
+        mStartLocalTime[run] = localTime;
+        mNrCalls[run] = 1;
+        return run;
+    }
+
+    private void link(int run) {
+        int prev = mLastChild[mDepth];
+        if (prev != NONE) {
+            mNextSibling[prev] = run;
+        } else if (mCurrent != NONE) {
+            mFirstChild[mCurrent] = run;
+        } else {
+            mFirstRoot = run;
+        }
+        mLastChild[mDepth] = run;
+        if (mCurrent == NONE) {
+            mLastRoot = run;
+        }
+    }
+
+    private void push(int run) {
+        mDepth++;
+        if (mDepth == mLastChild.length) {
+            mLastChild = Arrays.copyOf(mLastChild, mDepth * 2);
+        }
+        mLastChild[mDepth] = NONE;
+        mCurrent = run;
+    }
+
+    private void pop(int time, int localTime) {
+        int run = mCurrent;
+        mEndTime[run] = time;
+        mEndLocalTime[run] = localTime;
+        mCurrent = mParent[run];
+        mDepth--;
+        if (mCurrent != NONE) {
+            mNrCalls[mCurrent] += mNrCalls[run];
+        }
+    }
+
+    private void setCapacity(int capacity) {
+        mMid = Arrays.copyOf(mMid, capacity);
+        mParent = Arrays.copyOf(mParent, capacity);
+        mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+        mNextSibling = Arrays.copyOf(mNextSibling, capacity);
+        mStartTime = Arrays.copyOf(mStartTime, capacity);
+        mStartLocalTime = Arrays.copyOf(mStartLocalTime, capacity);
+        mEndTime = Arrays.copyOf(mEndTime, capacity);
+        mEndLocalTime = Arrays.copyOf(mEndLocalTime, capacity);
+        mNrCalls = Arrays.copyOf(mNrCalls, capacity);
+    }
+
+    /**
+     * Returns the number of runs stored in this tree
+     * @return the number of runs
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mFirstRoot == NONE;
+    }
+
+    public int getFirstRoot() {
+        return mFirstRoot;
+    }
+
+    public int getLastRoot() {
+        return mLastRoot;
+    }
+
+    public int getMid(int run) {
+        return mMid[run];
+    }
+
+    public int getParent(int run) {
+        return mParent[run];
+    }
+
+    public int getFirstChild(int run) {
+        return mFirstChild[run];
+    }
+
+    public int getNextSibling(int run) {
+        return mNextSibling[run];
+    }
+
+    public int getStartTime(int run) {
+        return mStartTime[run];
+    }
+
+    public int getStartLocalTime(int run) {
+        return mStartLocalTime[run];
+    }
+
+    public int getEndTime(int run) {
+        return mEndTime[run];
+    }
+
+    public int getEndLocalTime(int run) {
+        return mEndLocalTime[run];
+    }
+
+    public int getDuration(int run) {
+        return mEndTime[run] - mStartTime[run];
+    }
+
+    public int getLocalDuration(int run) {
+        return mEndLocalTime[run] - mStartLocalTime[run];
+    }
+
+    /**
+     * Returns the number of method calls done by this run, including itself
+     * (so it's the size of the subtree).
+     * @param run The index of the run
+     * @return The number of calls
+     */
+    public int getNrCalls(int run) {
+        return mNrCalls[run];
+    }
+
+    /**
+     * Creates a new cursor positioned on the first top level run.
+     * @return A new cursor
+     */
+    public Cursor cursor() {
+        return new Cursor(mFirstRoot);
+    }
+
+    /**
+     * A cursor can be used to walk the tree without recursion and without
+     * allocating anything for the visited runs.
+     */
+    public class Cursor {
+
+        private int mRun;
+
+        private Cursor(int run) {
+            mRun = run;
+        }
+
+        public boolean isValid() {
+            return mRun != NONE;
+        }
+
+        public int getRun() {
+            return mRun;
+        }
+
+        public void moveTo(int run) {
+            mRun = run;
+        }
+
+        public boolean moveToFirstChild() {
+            return move(mFirstChild[mRun]);
+        }
+
+        public boolean moveToNextSibling() {
+            return move(mNextSibling[mRun]);
+        }
+
+        public boolean moveToParent() {
+            return move(mParent[mRun]);
+        }
+
+        /**
+         * Moves to the next run in pre-order (depth-first) walk: the first child
+         * if any, otherwise the next run after this subtree.
+         * @return false if there are no more runs (the cursor becomes invalid)
+         */
+        public boolean next() {
+            int ch = mFirstChild[mRun];
+            if (ch != NONE) {
+                mRun = ch;
+                return true;
+            }
+            return skipChildren();
+        }
+
+        /**
+         * Moves to the next run in pre-order walk, without visiting the
+         * children of the current run.
+         * @return false if there are no more runs (the cursor becomes invalid)
+         */
+        public boolean skipChildren() {
+            int run = mRun;
+            while (run != NONE) {
+                int next = mNextSibling[run];
+                if (next != NONE) {
+                    mRun = next;
+                    return true;
+                }
+                run = mParent[run];
+            }
+            mRun = NONE;
+            return false;
+        }
+
+        public int getMid() {
+            return mMid[mRun];
+        }
+
+        public int getStartTime() {
+            return mStartTime[mRun];
+        }
+
+        public int getStartLocalTime() {
+            return mStartLocalTime[mRun];
+        }
+
+        public int getEndTime() {
+            return mEndTime[mRun];
+        }
+
+        public int getEndLocalTime() {
+            return mEndLocalTime[mRun];
+        }
+
+        public int getDuration() {
+            return CallTree.this.getDuration(mRun);
+        }
+
+        public int getLocalDuration() {
+            return CallTree.this.getLocalDuration(mRun);
+        }
+
+        public int getNrCalls() {
+            return mNrCalls[mRun];
+        }
+
+        private boolean move(int run) {
+            if (run == NONE) {
+                return false;
+            }
+            mRun = run;
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import java.util.Arrays;
+
+/**
+ * The calling context tree of a single thread: the method calls are merged
+ * if they have the same call path (i.e. the same method called from the same
+ * chain of callers), so a node represents all the runs of a call path.
+ *
+ * The tree is built in a streaming way, from the method entry/exit records,
+ * using the same enter()/exit()/finish() protocol as CallTree. The working memory
+ * (besides the tree itself, which grows with the number of distinct call paths)
+ * is only the stack of the currently running methods.
+ *
+ * Node 0 is the root of the tree, it doesn't represent any method (it's the thread
+ * itself). The times are stored in microseconds, both using the global time
+ * (process time) and the thread local time.
+ */
+public class CallingContextTree {
+
+    /** Marks a missing node (no more children, etc) */
+    public static final int NONE = -1;
+
+    /** The root node, representing the whole thread */
+    public static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The nodes
+    private int mCount;
+    private int mMid[];
+    private int mParent[];
+    private int mFirstChild[];
+    private int mNextSibling[];
+    private int mCalls[];
+    private long mDur[];
+    private long mDurL[];
+    private long mDurExc[];
+    private long mDurExcL[];
+    private double mDurLSq[];
+
+    // Lookup table: (parent node, method id) -> child node
+    private long mHashKeys[];
+    private int mHashValues[];
+    private int mHashCount;
+
+    // The stack of running methods
+    private int mDepth;
+    private int mStackNode[] = new int[16];
+    private int mStackStart[] = new int[16];
+    private int mStackStartL[] = new int[16];
+    private long mStackChildDur[] = new long[16];
+    private long mStackChildDurL[] = new long[16];
+
+    public CallingContextTree() {
+        mMid = new int[INITIAL_CAPACITY];
+        mParent = new int[INITIAL_CAPACITY];
+        mFirstChild = new int[INITIAL_CAPACITY];
+        mNextSibling = new int[INITIAL_CAPACITY];
+        mCalls = new int[INITIAL_CAPACITY];
+        mDur = new long[INITIAL_CAPACITY];
+        mDurL = new long[INITIAL_CAPACITY];
+        mDurExc = new long[INITIAL_CAPACITY];
+        mDurExcL = new long[INITIAL_CAPACITY];
+        mDurLSq = new double[INITIAL_CAPACITY];
+        mHashKeys = new long[INITIAL_CAPACITY * 2];
+        mHashValues = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(mHashValues, NONE);
+        alloc(NONE, 0);
+        mStackNode[0] = ROOT;
+    }
+
+    /**
+     * Handle a method entry record.
+     * @param mid The method id
+     * @param time The (global) time of the record
+     * @param localTime The thread local time of the record
+     */
+    public void enter(int mid, int time, int localTime) {
+        int node = findOrCreateChild(mStackNode[mDepth], mid);
+        push(node, time, localTime);
+    }
+
+    /**
+     * Handle a method exit record.
+     * If there is no running method (the trace was started inside this method),
+     * a new node is created (assuming 0 start time) and all previous top level
+     * calls are moved inside it (same as CallTree does).
+     * @param mid The method id
+     * @param time The (global) time of the record
+     * @param localTime The thread local time of the record
+     */
+    public void exit(int mid, int time, int localTime) {
+        if (mDepth == 0) {
+            ensureHashCapacity();
+            int node = alloc(ROOT, mid);
+            long childDur = 0, childDurL = 0;
+            for (int ch = mFirstChild[ROOT]; ch != NONE; ch = mNextSibling[ch]) {
+                // Only the key of the moved child changes (its parent), not the keys of its subtree
+                hashRemove(makeKey(ROOT, mMid[ch]));
+                mParent[ch] = node;
+                hashPut(makeKey(node, mMid[ch]), ch);
+                childDur += mDur[ch];
+                childDurL += mDurL[ch];
+            }
+            mFirstChild[node] = mFirstChild[ROOT];
+            mFirstChild[ROOT] = node;
+            mDur[ROOT] -= childDur;
+            mDurL[ROOT] -= childDurL;
+            hashPut(makeKey(ROOT, mid), node);
+            push(node, 0, 0);
+            mStackChildDur[mDepth] = childDur;
+            mStackChildDurL[mDepth] = childDurL;
+        }
+        pop(time, localTime);
+    }
+
+    /**
+     * Closes all the method calls which are not finished yet.
+     * @param time The (global) end time to use
+     * @param localTime The thread local end time to use
+     */
+    public void finish(int time, int localTime) {
+        while (mDepth > 0) {
+            pop(time, localTime);
+        }
+    }
+
+    private void push(int node, int time, int localTime) {
+        mDepth++;
+        if (mDepth == mStackNode.length) {
+            int cap = mDepth * 2;
+            mStackNode = Arrays.copyOf(mStackNode, cap);
+            mStackStart = Arrays.copyOf(mStackStart, cap);
+            mStackStartL = Arrays.copyOf(mStackStartL, cap);
+            mStackChildDur = Arrays.copyOf(mStackChildDur, cap);
+            mStackChildDurL = Arrays.copyOf(mStackChildDurL, cap);
+        }
+        mStackNode[mDepth] = node;
+        mStackStart[mDepth] = time;
+        mStackStartL[mDepth] = localTime;
+        mStackChildDur[mDepth] = 0;
+        mStackChildDurL[mDepth] = 0;
+    }
+
+    private void pop(int time, int localTime) {
+        int node = mStackNode[mDepth];
+        int dur = time - mStackStart[mDepth];
+        int durL = localTime - mStackStartL[mDepth];
+        mCalls[node]++;
+        mDur[node] += dur;
+        mDurL[node] += durL;
+        mDurExc[node] += dur - mStackChildDur[mDepth];
+        mDurExcL[node] += durL - mStackChildDurL[mDepth];
+        mDurLSq[node] += (double)durL * durL;
+        mDepth--;
+        mStackChildDur[mDepth] += dur;
+        mStackChildDurL[mDepth] += durL;
+        if (mDepth == 0) {
+            // The root accumulates the time of the top level calls
+            mDur[ROOT] += dur;
+            mDurL[ROOT] += durL;
+        }
+    }
+
+    private int findOrCreateChild(int parent, int mid) {
+        long key = makeKey(parent, mid);
+        int mask = mHashKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (true) {
+            int node = mHashValues[pos];
+            if (node == NONE) break;
+            if (mHashKeys[pos] == key) {
+                return node;
+            }
+            pos = (pos + 1) & mask;
+        }
+
+        // Not found, create a new node (keeping the children in order of appearance)
+        ensureHashCapacity();
+        int node = alloc(parent, mid);
+        int last = mFirstChild[parent];
+        if (last == NONE) {
+            mFirstChild[parent] = node;
+        } else {
+            while (mNextSibling[last] != NONE) {
+                last = mNextSibling[last];
+            }
+            mNextSibling[last] = node;
+        }
+        hashPut(key, node);
+        return node;
+    }
+
+    private int alloc(int parent, int mid) {
+        if (mCount == mMid.length) {
+            int cap = mCount * 2;
+            mMid = Arrays.copyOf(mMid, cap);
+            mParent = Arrays.copyOf(mParent, cap);
+            mFirstChild = Arrays.copyOf(mFirstChild, cap);
+            mNextSibling = Arrays.copyOf(mNextSibling, cap);
+            mCalls = Arrays.copyOf(mCalls, cap);
+            mDur = Arrays.copyOf(mDur, cap);
+            mDurL = Arrays.copyOf(mDurL, cap);
+            mDurExc = Arrays.copyOf(mDurExc, cap);
+            mDurExcL = Arrays.copyOf(mDurExcL, cap);
+            mDurLSq = Arrays.copyOf(mDurLSq, cap);
+        }
+        int node = mCount++;
+        mMid[node] = mid;
+        mParent[node] = parent;
+        mFirstChild[node] = NONE;
+        mNextSibling[node] = NONE;
+        return node;
+    }
+
+    /**
+     * Grows the lookup table if needed, so there is room for one more node
+     */
+    private void ensureHashCapacity() {
+        if (2 * (mHashCount + 1) > mHashKeys.length) {
+            mHashKeys = new long[mHashKeys.length * 2];
+            mHashValues = new int[mHashValues.length * 2];
+            rehash();
+        }
+    }
+
+    /**
+     * Removes the key from the lookup table. The following entries of the same
+     * probe sequence are moved back, so no tombstones are needed.
+     */
+    private void hashRemove(long key) {
+        int mask = mHashKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (mHashValues[pos] != NONE) {
+            if (mHashKeys[pos] == key) {
+                break;
+            }
+            pos = (pos + 1) & mask;
+        }
+        if (mHashValues[pos] == NONE) return;
+        mHashValues[pos] = NONE;
+        mHashCount--;
+        int next = (pos + 1) & mask;
+        while (mHashValues[next] != NONE) {
+            long k = mHashKeys[next];
+            int v = mHashValues[next];
+            mHashValues[next] = NONE;
+            mHashCount--;
+            hashPut(k, v);
+            next = (next + 1) & mask;
+        }
+    }
+
+    private void hashPut(long key, int node) {
+        int mask = mHashKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (mHashValues[pos] != NONE) {
+            pos = (pos + 1) & mask;
+        }
+        mHashKeys[pos] = key;
+        mHashValues[pos] = node;
+        mHashCount++;
+    }
+
+    /**
+     * Rebuild the lookup table from scratch (needed when the table is resized).
+     */
+    private void rehash() {
+        Arrays.fill(mHashValues, NONE);
+        mHashCount = 0;
+        for (int node = ROOT + 1; node < mCount; node++) {
+            hashPut(makeKey(mParent[node], mMid[node]), node);
+        }
+    }
+
+    private static long makeKey(int parent, int mid) {
+        return ((long)parent << 32) | (mid & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int)(key ^ (key >>> 32));
+    }
+
+    /**
+     * Returns the number of nodes, including the root
+     * @return the number of nodes
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mFirstChild[ROOT] == NONE;
+    }
+
+    public int getMid(int node) {
+        return mMid[node];
+    }
+
+    public int getParent(int node) {
+        return mParent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return mFirstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return mNextSibling[node];
+    }
+
+    /**
+     * Returns the number of calls of the call path represented by this node
+     * @param node The node index
+     * @return The number of calls
+     */
+    public int getCalls(int node) {
+        return mCalls[node];
+    }
+
+    /**
+     * Returns the inclusive duration (measured in process time)
+     * @param node The node index
+     * @return The duration in microseconds
+     */
+    public long getDuration(int node) {
+        return mDur[node];
+    }
+
+    /**
+     * Returns the inclusive duration (measured in thread time)
+     * @param node The node index
+     * @return The duration in microseconds
+     */
+    public long getLocalDuration(int node) {
+        return mDurL[node];
+    }
+
+    /**
+     * Returns the exclusive duration (measured in process time), i.e. the time
+     * spent in this method and not in one of its callees.
+     * @param node The node index
+     * @return The duration in microseconds
+     */
+    public long getExcDuration(int node) {
+        return mDurExc[node];
+    }
+
+    /**
+     * Returns the exclusive duration (measured in thread time), i.e. the time
+     * spent in this method and not in one of its callees.
+     * @param node The node index
+     * @return The duration in microseconds
+     */
+    public long getExcLocalDuration(int node) {
+        return mDurExcL[node];
+    }
+
+    /**
+     * Returns the sum of the squares of the inclusive durations (measured in thread time)
+     * of each call, which can be used to calculate the variance of the call durations.
+     * @param node The node index
+     * @return The sum of the squared durations
+     */
+    public double getLocalDurationSq(int node) {
+        return mDurLSq[node];
+    }
+
+    /**
+     * Returns the next node in pre-order (depth-first) walk.
+     * @param node The current node
+     * @param skipChildren If true, the children of the current node are not visited
+     * @return The next node, or NONE if the walk is finished
+     */
+    public int next(int node, boolean skipChildren) {
+        if (!skipChildren && mFirstChild[node] != NONE) {
+            return mFirstChild[node];
+        }
+        while (node != ROOT && node != NONE) {
+            if (mNextSibling[node] != NONE) {
+                return mNextSibling[node];
+            }
+            node = mParent[node];
+        }
+        return NONE;
+    }
+
+}
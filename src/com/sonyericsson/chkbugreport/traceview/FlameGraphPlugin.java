@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.Plugin;
+import com.sonyericsson.chkbugreport.Report;
+import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Generates flame graphs from the calling context tree of each thread.
+ * The output is a "folded stacks" text file (one line per call path, which can be
+ * processed by other flame graph tools as well) and one interactive SVG per thread.
+ * Thread local time is used everywhere.
+ */
+public class FlameGraphPlugin extends Plugin {
+
+    private static final int W = 1200;
+    private static final int FRAME_H = 16;
+    private static final int HEADER_H = 24;
+    private static final double MIN_WIDTH = 0.1; // Frames narrower than this (in pixels) are not rendered
+    private static final int MAX_FOLDED_DEPTH = 256; // Deeper frames are merged in the folded stacks file
+
+    @Override
+    public int getPrio() {
+        return 50;
+    }
+
+    @Override
+    public void load(Report br) {
+        // NOP
+    }
+
+    @Override
+    public void generate(Report br) {
+        TraceReport rep = (TraceReport)br;
+        Chapter ch = new Chapter(rep, "Flame graphs");
+
+        String fn = br.getRelRawDir() + "threads.folded.txt";
+        if (!saveFoldedStacks(rep, fn)) {
+            return;
+        }
+        rep.addChapter(ch);
+        ch.addLine("<p>The method calls are merged if they have the same call path, and shown as flame graphs, using thread local time.</p>");
+        ch.addLine("<p>Click on a frame to zoom in, click on the thread (bottom frame) to zoom out.</p>");
+        ch.addLine("<div>Folded stacks of all threads (exclusive time in microseconds): <a href=\"" + fn + "\">" + fn + "</a></div>");
+
+        for (ThreadInfo t : rep.getThreadInfos()) {
+            CallingContextTree cct = t.cct;
+            if (cct.isEmpty() || cct.getLocalDuration(CallingContextTree.ROOT) <= 0) continue;
+            fn = br.getRelRawDir() + "thread_" + t.id + ".flame.svg";
+            if (!saveFlameGraph(rep, t, fn)) continue;
+            Chapter child = new Chapter(rep, t.getFullName());
+            ch.addChapter(child);
+            child.addLine("<div>Flame graph: <a href=\"" + fn + "\">" + fn + "</a></div>");
+            child.addLine("<object type=\"image/svg+xml\" data=\"" + fn + "\" width=\"" + W + "\"></object>");
+        }
+    }
+
+    private boolean saveFoldedStacks(TraceReport rep, String fn) {
+        System.out.println("Writing " + fn + "...");
+        try {
+            FileOutputStream fos = new FileOutputStream(rep.getBaseDir() + fn);
+            PrintStream ps = new PrintStream(fos);
+            for (ThreadInfo t : rep.getThreadInfos()) {
+                writeFoldedStacks(rep, ps, t);
+            }
+            ps.close();
+            fos.close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void writeFoldedStacks(TraceReport rep, PrintStream ps, ThreadInfo t) {
+        CallingContextTree cct = t.cct;
+        int depth[] = new int[cct.getCount()];
+        int prefixLen[] = new int[16];
+        StringBuffer sb = new StringBuffer(foldName(t.getFullName()));
+        prefixLen[0] = sb.length();
+        int node = cct.getFirstChild(CallingContextTree.ROOT);
+        while (node != CallingContextTree.NONE) {
+            int d = depth[cct.getParent(node)] + 1;
+            depth[node] = d;
+            if (d == prefixLen.length) {
+                prefixLen = Arrays.copyOf(prefixLen, d * 2);
+            }
+            sb.setLength(prefixLen[d - 1]);
+            sb.append(';');
+            sb.append(foldName(getName(rep, cct, node)));
+            prefixLen[d] = sb.length();
+            long exc = cct.getExcLocalDuration(node);
+            if (exc > 0) {
+                ps.println(sb.toString() + " " + exc);
+            }
+            if (d == MAX_FOLDED_DEPTH) {
+                // Since every line contains the whole path, the file size would grow with the square
+                // of the depth, so the deeper frames are merged into a single "..." frame
+                long rest = cct.getLocalDuration(node) - exc;
+                if (rest > 0) {
+                    ps.println(sb.toString() + ";... " + rest);
+                }
+                node = cct.next(node, true);
+            } else {
+                node = cct.next(node, false);
+            }
+        }
+    }
+
+    private boolean saveFlameGraph(TraceReport rep, ThreadInfo t, String fn) {
+        System.out.println("Writing " + fn + "...");
+        CallingContextTree cct = t.cct;
+        int cnt = cct.getCount();
+        long total = cct.getLocalDuration(CallingContextTree.ROOT);
+        double scale = (double)W / total;
+
+        // Layout: position of each node (in time units) and depth
+        long x[] = new long[cnt];
+        int depth[] = new int[cnt];
+        int maxDepth = 0;
+        int node = cct.getFirstChild(CallingContextTree.ROOT);
+        while (node != CallingContextTree.NONE) {
+            int parent = cct.getParent(node);
+            depth[node] = depth[parent] + 1;
+            if (cct.getFirstChild(parent) == node) {
+                x[node] = x[parent];
+            }
+            int next = cct.getNextSibling(node);
+            if (next != CallingContextTree.NONE) {
+                x[next] = x[node] + Math.max(0, cct.getLocalDuration(node));
+            }
+            boolean visible = cct.getLocalDuration(node) * scale >= MIN_WIDTH;
+            if (visible) {
+                maxDepth = Math.max(maxDepth, depth[node]);
+            }
+            node = cct.next(node, !visible);
+        }
+
+        try {
+            FileOutputStream fos = new FileOutputStream(rep.getBaseDir() + fn);
+            PrintStream ps = new PrintStream(fos);
+            int h = HEADER_H + (maxDepth + 1) * FRAME_H;
+            ps.println("<?xml version=\"1.0\" standalone=\"no\"?>");
+            ps.println("<svg version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" width=\"" + W + "\" height=\"" + h + "\" font-family=\"Verdana\" font-size=\"11\">");
+            writeScript(ps);
+            ps.println("<rect x=\"0\" y=\"0\" width=\"" + W + "\" height=\"" + h + "\" fill=\"#f8f8f0\"/>");
+            ps.println("<text x=\"" + (W / 2) + "\" y=\"16\" text-anchor=\"middle\" font-size=\"13\">" + escape(t.getFullName()) + "</text>");
+
+            // The root frame represents the thread
+            String rootName = t.getFullName();
+            writeFrame(ps, rootName, rootName + " (" + total + "us)", 0, W, 0, h, "#c0c0c0");
+
+            node = cct.getFirstChild(CallingContextTree.ROOT);
+            while (node != CallingContextTree.NONE) {
+                long dur = cct.getLocalDuration(node);
+                boolean visible = dur * scale >= MIN_WIDTH;
+                if (visible) {
+                    String name = getName(rep, cct, node);
+                    String title = String.format(Locale.US, "%s (calls: %d, incl: %dus, excl: %dus, %.2f%%)",
+                            name, cct.getCalls(node), dur, cct.getExcLocalDuration(node), dur * 100.0 / total);
+                    writeFrame(ps, name, title, x[node] * scale, dur * scale, depth[node], h, getColor(name));
+                }
+                node = cct.next(node, !visible);
+            }
+
+            ps.println("</svg>");
+            ps.close();
+            fos.close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void writeFrame(PrintStream ps, String name, String title, double x, double w, int depth, int h, String color) {
+        int y = h - (depth + 1) * FRAME_H;
+        ps.println(String.format(Locale.US,
+                "<g class=\"f\" onclick=\"zoom(this)\" data-x=\"%.2f\" data-w=\"%.2f\" data-d=\"%d\" data-n=\"%s\">" +
+                "<title>%s</title>" +
+                "<rect x=\"%.2f\" y=\"%d\" width=\"%.2f\" height=\"%d\" fill=\"%s\" rx=\"2\"/>" +
+                "<text x=\"%.2f\" y=\"%d\">%s</text></g>",
+                x, w, depth, escape(name), escape(title),
+                x, y, w, FRAME_H - 1, color,
+                x + 3, y + FRAME_H - 4, escape(getLabel(name, w))));
+    }
+
+    private void writeScript(PrintStream ps) {
+        ps.println("<script type=\"text/ecmascript\"><![CDATA[");
+        ps.println("var W = " + W + ";");
+        ps.println("function label(n, w) {");
+        ps.println("  var c = Math.floor((w - 6) / 7);");
+        ps.println("  if (c < 3) return '';");
+        ps.println("  return n.length <= c ? n : n.substring(0, c - 2) + '..';");
+        ps.println("}");
+        ps.println("function zoom(g) {");
+        ps.println("  var x0 = +g.getAttribute('data-x'), w0 = +g.getAttribute('data-w'), d0 = +g.getAttribute('data-d');");
+        ps.println("  var s = W / w0, e = 0.0001;");
+        ps.println("  var fs = document.querySelectorAll('g.f');");
+        ps.println("  for (var i = 0; i < fs.length; i++) {");
+        ps.println("    var f = fs[i], x = +f.getAttribute('data-x'), w = +f.getAttribute('data-w'), d = +f.getAttribute('data-d');");
+        ps.println("    var nx, nw;");
+        ps.println("    if (d < d0 && x <= x0 + e && x + w >= x0 + w0 - e) {");
+        ps.println("      nx = 0; nw = W;");
+        ps.println("    } else if (d >= d0 && x >= x0 - e && x + w <= x0 + w0 + e) {");
+        ps.println("      nx = (x - x0) * s; nw = w * s;");
+        ps.println("    } else {");
+        ps.println("      f.style.display = 'none';");
+        ps.println("      continue;");
+        ps.println("    }");
+        ps.println("    f.style.display = '';");
+        ps.println("    var r = f.getElementsByTagName('rect')[0], t = f.getElementsByTagName('text')[0];");
+        ps.println("    r.setAttribute('x', nx); r.setAttribute('width', nw);");
+        ps.println("    t.setAttribute('x', nx + 3);");
+        ps.println("    t.textContent = label(f.getAttribute('data-n'), nw);");
+        ps.println("  }");
+        ps.println("}");
+        ps.println("]]></script>");
+    }
+
+    private String getName(TraceReport rep, CallingContextTree cct, int node) {
+        MethodInfo m = rep.findMethod(cct.getMid(node));
+        if (m == null) {
+            return String.format("0x%08x", cct.getMid(node));
+        }
+        return m.shortName;
+    }
+
+    private String getLabel(String name, double w) {
+        int c = (int)((w - 6) / 7);
+        if (c < 3) return "";
+        if (name.length() <= c) return name;
+        return name.substring(0, c - 2) + "..";
+    }
+
+    private String getColor(String name) {
+        // Use a stable, warm color based on the name, so the same method has the same color everywhere
+        int hash = name.hashCode();
+        int r = 205 + ((hash & 0xff) % 50);
+        int g = 80 + (((hash >> 8) & 0xff) % 150);
+        int b = 40 + (((hash >> 16) & 0xff) % 50);
+        return String.format("#%02x%02x%02x", r, g, b);
+    }
+
+    private String foldName(String name) {
+        return name.replace(';', ':');
+    }
+
+    private String escape(String s) {
+        return Util.escape(s).replace("\"", "&quot;");
+    }
+
+}
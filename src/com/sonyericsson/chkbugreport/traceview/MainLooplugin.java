@@ -22,8 +22,8 @@ import com.sonyericsson.chkbugreport.Bug;
 import com.sonyericsson.chkbugreport.Chapter;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.Report;
-import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodRun;
 import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.IntArray;
 
 import java.util.Vector;
 
@@ -77,13 +77,15 @@ public class MainLooplugin extends Plugin {
     };
 
     private static class SlowRun {
-        MethodRun run;
+        int run;
+        String name;
         int id;
         int duration;
         int target;
 
-        public SlowRun(MethodRun run, int id, int dur, int target) {
+        public SlowRun(int run, String name, int id, int dur, int target) {
             this.run = run;
+            this.name = name;
             this.id = id;
             this.duration = dur;
             this.target = target;
@@ -95,7 +97,7 @@ public class MainLooplugin extends Plugin {
         int delay;
         int target;
 
-        public DelayedDraw(MethodRun run, int id, int delay, int target) {
+        public DelayedDraw(int run, int id, int delay, int target) {
             this.id = id;
             this.delay = delay;
             this.target = target;
@@ -133,7 +135,9 @@ public class MainLooplugin extends Plugin {
      */
     private void checkLayoutAndDraw(TraceReport rep, ThreadInfo thread) {
         // First, collect all calls to measure, layout and draw
-        Vector<MethodRun> runs = findMethodRuns(rep, thread, SIGS_MLD, true);
+        CallTree tree = thread.calls;
+        MethodIndex index = rep.getMethodIndex();
+        IntArray runs = index.findOutermostRuns(thread.id, index.findMethods(SIGS_MLD));
 
         // The collection of method runs which take too long time
         Vector<SlowRun> slowRuns = new Vector<SlowRun>();
@@ -155,36 +159,37 @@ public class MainLooplugin extends Plugin {
         int pendingLayout = -1;
         int pendingInvalidate = -1;
         int id = 0;
-        for (MethodRun run : runs) {
+        for (int i = 0; i < runs.size(); i++) {
+            int run = runs.get(i);
             id++;
-            String name = run.shortName;
-            int dur = (run.endLocalTime - run.startLocalTime) / 1000; // us -> ms
+            String name = rep.findMethod(tree.getMid(run)).shortName;
+            int dur = tree.getLocalDuration(run) / 1000; // us -> ms
             if (SIG_MEASURE.equals(name)) {
                 String col = "";
                 if (dur > MAX_TIME_MEASURE) {
-                    slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_MEASURE));
+                    slowRuns.add(new SlowRun(run, name, id, dur, MAX_TIME_MEASURE));
                     col = "mta-red";
                 }
-                addMTAItem(ch, id, "MEASURE", col, run);
+                addMTAItem(ch, id, "MEASURE", col, tree, run);
             } else if (SIG_LAYOUT.equals(name)) {
                 if (pendingLayout == -1) {
-                    pendingLayout = run.endLocalTime;
+                    pendingLayout = tree.getEndLocalTime(run);
                 }
                 String col = "";
                 if (dur > MAX_TIME_LAYOUT) {
-                    slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_LAYOUT));
+                    slowRuns.add(new SlowRun(run, name, id, dur, MAX_TIME_LAYOUT));
                     col = "mta-red";
                 }
-                addMTAItem(ch, id, "LAYOUT", col, run);
+                addMTAItem(ch, id, "LAYOUT", col, tree, run);
             } else if (SIG_DRAW.equals(name)) {
                 String col = "";
                 if (dur > MAX_TIME_DRAW) {
-                    slowRuns.add(new SlowRun(run, id, dur, MAX_TIME_DRAW));
+                    slowRuns.add(new SlowRun(run, name, id, dur, MAX_TIME_DRAW));
                     col = "mta-red";
                 }
-                addMTAItem(ch, id, "DRAW", col, run);
+                addMTAItem(ch, id, "DRAW", col, tree, run);
                 // Check how much time has elapsed since a layout or invalidate
-                int now = run.startLocalTime; // Let's use the start time for latency, since if draw is slow, that's handled separately
+                int now = tree.getStartLocalTime(run); // Let's use the start time for latency, since if draw is slow, that's handled separately
                 if (pendingInvalidate != -1) {
                     int delay = (now - pendingInvalidate) / 1000;
                     if (delay > MAX_DRAW_LATENCY) {
@@ -203,35 +208,35 @@ public class MainLooplugin extends Plugin {
                 pendingInvalidate = pendingLayout = -1;
             } else if (SIG_INVALIDATE.equals(name)) {
                 if (pendingInvalidate == -1) {
-                    pendingInvalidate = run.endLocalTime;
-                    addMTAItem(ch, id, "INVALIDATE (first)", "", run);
+                    pendingInvalidate = tree.getEndLocalTime(run);
+                    addMTAItem(ch, id, "INVALIDATE (first)", "", tree, run);
                 }
             } else if (SIG_ON_CREATE.equals(name)) {
-                addMTAItem(ch, id, "onCreate", "", run);
+                addMTAItem(ch, id, "onCreate", "", tree, run);
             } else if (SIG_ON_DESTROY.equals(name)) {
-                addMTAItem(ch, id, "onDestroy", "", run);
+                addMTAItem(ch, id, "onDestroy", "", tree, run);
             } else if (SIG_ON_NEW_INTENT.equals(name)) {
-                addMTAItem(ch, id, "onNewIntent", "", run);
+                addMTAItem(ch, id, "onNewIntent", "", tree, run);
             } else if (SIG_ON_PAUSE.equals(name)) {
-                addMTAItem(ch, id, "onPause", "", run);
+                addMTAItem(ch, id, "onPause", "", tree, run);
             } else if (SIG_ON_POST_CREATE.equals(name)) {
-                addMTAItem(ch, id, "onPostCreate", "", run);
+                addMTAItem(ch, id, "onPostCreate", "", tree, run);
             } else if (SIG_ON_RESTART.equals(name)) {
-                addMTAItem(ch, id, "onRestart", "", run);
+                addMTAItem(ch, id, "onRestart", "", tree, run);
             } else if (SIG_ON_RESTORE_INSTANCE_STATE.equals(name)) {
-                addMTAItem(ch, id, "onRestoreInstanceState", "", run);
+                addMTAItem(ch, id, "onRestoreInstanceState", "", tree, run);
             } else if (SIG_ON_RESUME.equals(name)) {
-                addMTAItem(ch, id, "onResume", "", run);
+                addMTAItem(ch, id, "onResume", "", tree, run);
             } else if (SIG_ON_SAVE_INSTANCE_STATE.equals(name)) {
-                addMTAItem(ch, id, "onSaveInstanceState", "", run);
+                addMTAItem(ch, id, "onSaveInstanceState", "", tree, run);
             } else if (SIG_ON_START.equals(name)) {
-                addMTAItem(ch, id, "onStart", "", run);
+                addMTAItem(ch, id, "onStart", "", tree, run);
             } else if (SIG_ON_STOP.equals(name)) {
-                addMTAItem(ch, id, "onStop", "", run);
+                addMTAItem(ch, id, "onStop", "", tree, run);
             } else if (SIG_ON_USER_LEAVING.equals(name)) {
-                addMTAItem(ch, id, "onUserLeaving", "", run);
+                addMTAItem(ch, id, "onUserLeaving", "", tree, run);
             } else {
-                addMTAItem(ch, id, name, "", run);
+                addMTAItem(ch, id, name, "", tree, run);
             }
         }
 
@@ -241,14 +246,14 @@ public class MainLooplugin extends Plugin {
             int delay = (now - pendingInvalidate) / 1000;
             if (delay > MAX_DRAW_LATENCY) {
                 addMTANote(ch, "Missing draw with high latency! Delay from invalidate: " + delay + "ms (should be below " + MAX_DRAW_LATENCY + "ms)");
-                delayedDraws.add(new DelayedDraw(null, id, delay, MAX_DRAW_LATENCY));
+                delayedDraws.add(new DelayedDraw(CallTree.NONE, id, delay, MAX_DRAW_LATENCY));
             }
         }
         if (pendingLayout != -1) {
             int delay = (now - pendingLayout) / 1000;
             if (delay > MAX_DRAW_LATENCY) {
                 addMTANote(ch, "Missing draw with high latency! Delay from layout: " + delay + "ms (should be below " + MAX_DRAW_LATENCY + "ms)");
-                delayedDraws.add(new DelayedDraw(null, id, delay, MAX_DRAW_LATENCY));
+                delayedDraws.add(new DelayedDraw(CallTree.NONE, id, delay, MAX_DRAW_LATENCY));
             }
         }
 
@@ -260,7 +265,7 @@ public class MainLooplugin extends Plugin {
             bug.addLine("<p>The following method calls on the main thread seems to take longer time than expected:</p>");
             bug.addLine("<ul>");
             for (SlowRun run : slowRuns) {
-                bug.addLine("<li><a href=\"#mta-item-" + run.id + "\">" + run.run.shortName + "</a> (duration: " + run.duration + "ms, expected below " + run.target + "ms)</li>");
+                bug.addLine("<li><a href=\"#mta-item-" + run.id + "\">" + run.name + "</a> (duration: " + run.duration + "ms, expected below " + run.target + "ms)</li>");
             }
             bug.addLine("</ul>");
         }
@@ -286,46 +291,20 @@ public class MainLooplugin extends Plugin {
     }
 
     private int getThreadDuration(ThreadInfo thread) {
-        int cnt = thread.calls.size();
-        if (cnt == 0) return 0;
-        return thread.calls.get(cnt - 1).endLocalTime;
+        CallTree tree = thread.calls;
+        if (tree.isEmpty()) return 0;
+        return tree.getEndLocalTime(tree.getLastRoot());
     }
 
     private void addMTANote(Chapter ch, String msg) {
         ch.addLine("<div class=\"mta-note %s\">" + msg + "</div>");
     }
 
-    private void addMTAItem(Chapter ch, int id, String string, String col, MethodRun run) {
+    private void addMTAItem(Chapter ch, int id, String string, String col, CallTree tree, int run) {
         ch.addLine(String.format("<div class=\"mta-item %s\"><a name=\"mta-item-%d\">[@%5d +%4dms] %s</a></div>",
                 col, id,
-                run.startLocalTime / 1000, (run.endLocalTime-run.startLocalTime) / 1000,
+                tree.getStartLocalTime(run) / 1000, tree.getLocalDuration(run) / 1000,
                 string));
     }
 
-    private Vector<MethodRun> findMethodRuns(TraceReport rep, ThreadInfo thread, String[] sigs, boolean matchShortName) {
-        Vector<MethodRun> runs = new Vector<TraceReport.MethodRun>();
-        for (MethodRun run : thread.calls) {
-            findMethodRuns(rep, runs, run, sigs, matchShortName);
-        }
-        return runs;
-    }
-
-    private void findMethodRuns(TraceReport rep, Vector<MethodRun> runs, MethodRun run,
-            String[] sigs, boolean matchShortName)
-    {
-        String name = matchShortName ? run.shortName : run.name;
-        for (String s : sigs) {
-            if (name.equals(s)) {
-                // Found it! Add to the list, and exit
-                runs.add(run);
-                return;
-            }
-        }
-
-        // If not found, try the children
-        for (MethodRun child : run.calls) {
-            findMethodRuns(rep, runs, child, sigs, matchShortName);
-        }
-    }
-
 }
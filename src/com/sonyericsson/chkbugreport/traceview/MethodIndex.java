@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.IntArray;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.regex.Pattern;
+
+/**
+ * An index of the methods and method runs of a trace, so the plugins don't need
+ * to walk the call trees to find the calls of some methods.
+ *
+ * Methods can be looked up by name: by exact name (either the full signature or
+ * the "class.method" short name), by prefix (for example all methods of a class
+ * or package) or using a glob pattern ('*' matches any number of characters, '?'
+ * matches a single character).
+ *
+ * For each thread, the runs of each method are stored in an array sorted by start time,
+ * so the runs in a time interval can be found using binary search.
+ */
+public class MethodIndex {
+
+    private TraceReport mRep;
+
+    /* Method name lookup */
+    private HashMap<String, int[]> mExact = new HashMap<String, int[]>();
+    private String mSortedNames[];
+    private int mSortedMids[];
+    private HashMap<String, int[]> mCache = new HashMap<String, int[]>();
+
+    /* Method runs, per thread */
+    private HashMap<Integer, ThreadRuns> mThreadRuns = new HashMap<Integer, ThreadRuns>();
+
+    /**
+     * The runs of a single thread, grouped by method. The runs of the method
+     * with index idx are stored in runs, from offset[idx] to offset[idx + 1].
+     */
+    private static class ThreadRuns {
+        CallTree tree;
+        int offset[];
+        int runs[];
+    }
+
+    /**
+     * Builds the index. The call trees must be already built.
+     * @param rep The trace report
+     */
+    public MethodIndex(TraceReport rep) {
+        mRep = rep;
+        buildNameIndex();
+        for (ThreadInfo t : rep.getThreadInfos()) {
+            mThreadRuns.put(t.id, buildThreadRuns(t.calls));
+        }
+    }
+
+    private void buildNameIndex() {
+        Vector<MethodInfo> methods = mRep.getMethodInfos();
+        int cnt = methods.size();
+        HashMap<String, IntArray> exact = new HashMap<String, IntArray>();
+        for (MethodInfo m : methods) {
+            addExact(exact, m.name, m.id);
+            if (!m.shortName.equals(m.name)) {
+                addExact(exact, m.shortName, m.id);
+            }
+        }
+        for (String name : exact.keySet()) {
+            mExact.put(name, exact.get(name).toArray());
+        }
+
+        MethodInfo sorted[] = methods.toArray(new MethodInfo[cnt]);
+        Arrays.sort(sorted, new Comparator<MethodInfo>() {
+            @Override
+            public int compare(MethodInfo o1, MethodInfo o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+        mSortedNames = new String[cnt];
+        mSortedMids = new int[cnt];
+        for (int i = 0; i < cnt; i++) {
+            mSortedNames[i] = sorted[i].name;
+            mSortedMids[i] = sorted[i].id;
+        }
+    }
+
+    private void addExact(HashMap<String, IntArray> exact, String name, int mid) {
+        IntArray mids = exact.get(name);
+        if (mids == null) {
+            mids = new IntArray(1);
+            exact.put(name, mids);
+        }
+        mids.add(mid);
+    }
+
+    private ThreadRuns buildThreadRuns(CallTree tree) {
+        int nrMethods = mRep.getMethodInfos().size();
+        int cnt = tree.getCount();
+        int idx[] = new int[cnt];
+        int offset[] = new int[nrMethods + 1];
+        for (int run = 0; run < cnt; run++) {
+            MethodInfo m = mRep.findMethod(tree.getMid(run));
+            idx[run] = (m == null) ? -1 : m.idx;
+            if (m != null) {
+                offset[m.idx + 1]++;
+            }
+        }
+        for (int i = 0; i < nrMethods; i++) {
+            offset[i + 1] += offset[i];
+        }
+
+        // The runs are allocated in order of the method entries, so they are mostly sorted already
+        int runs[] = new int[offset[nrMethods]];
+        int pos[] = Arrays.copyOf(offset, nrMethods);
+        for (int run = 0; run < cnt; run++) {
+            if (idx[run] >= 0) {
+                runs[pos[idx[run]]++] = run;
+            }
+        }
+        for (int i = 0; i < nrMethods; i++) {
+            sortByStartTime(tree, runs, offset[i], offset[i + 1]);
+        }
+
+        ThreadRuns ret = new ThreadRuns();
+        ret.tree = tree;
+        ret.offset = offset;
+        ret.runs = runs;
+        return ret;
+    }
+
+    private void sortByStartTime(CallTree tree, int runs[], int from, int to) {
+        boolean sorted = true;
+        for (int i = from + 1; i < to && sorted; i++) {
+            sorted = compareRuns(tree, runs[i - 1], runs[i]) <= 0;
+        }
+        if (sorted) return;
+
+        // Only the runs created for a method exit without entry (start time 0) can be out of order
+        long keys[] = new long[to - from];
+        for (int i = from; i < to; i++) {
+            keys[i - from] = ((long)tree.getStartTime(runs[i]) << 32) | runs[i];
+        }
+        Arrays.sort(keys);
+        for (int i = from; i < to; i++) {
+            runs[i] = (int)keys[i - from];
+        }
+    }
+
+    private static int compareRuns(CallTree tree, int run1, int run2) {
+        int t1 = tree.getStartTime(run1);
+        int t2 = tree.getStartTime(run2);
+        if (t1 != t2) {
+            return t1 < t2 ? -1 : 1;
+        }
+        return run1 < run2 ? -1 : (run1 > run2 ? 1 : 0);
+    }
+
+    /**
+     * Finds the methods matching the pattern. If the pattern contains '*' or '?', it's
+     * used as a glob pattern, if it ends with '.' or '/', it's used as a prefix (for example
+     * "android/view/View." matches all the methods of the View class), otherwise the
+     * exact name is searched.
+     * @param pattern The name pattern
+     * @return The sorted array of the matching method ids (must not be modified)
+     */
+    public int[] findMethods(String pattern) {
+        if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+            return findMethodsByGlob(pattern);
+        } else if (pattern.endsWith(".") || pattern.endsWith("/")) {
+            return findMethodsByPrefix(pattern);
+        } else {
+            return findMethodsExact(pattern);
+        }
+    }
+
+    /**
+     * Finds the methods matching any of the patterns (see findMethods(String))
+     * @param patterns The name patterns
+     * @return The sorted array of the matching method ids
+     */
+    public int[] findMethods(String patterns[]) {
+        IntArray mids = new IntArray();
+        for (String pattern : patterns) {
+            for (int mid : findMethods(pattern)) {
+                mids.add(mid);
+            }
+        }
+        return sortUnique(mids.toArray());
+    }
+
+    /**
+     * Finds the methods with the given full signature or short name ("class.method")
+     * @param name The method name
+     * @return The sorted array of the matching method ids (must not be modified)
+     */
+    public int[] findMethodsExact(String name) {
+        int ret[] = mExact.get(name);
+        return ret == null ? new int[0] : ret;
+    }
+
+    /**
+     * Finds the methods whose full signature starts with the given prefix.
+     * @param prefix The prefix of the method names
+     * @return The sorted array of the matching method ids (must not be modified)
+     */
+    public int[] findMethodsByPrefix(String prefix) {
+        String key = "P" + prefix;
+        int ret[] = mCache.get(key);
+        if (ret == null) {
+            int pos = Arrays.binarySearch(mSortedNames, prefix);
+            if (pos < 0) {
+                pos = -pos - 1;
+            }
+            IntArray mids = new IntArray();
+            while (pos < mSortedNames.length && mSortedNames[pos].startsWith(prefix)) {
+                mids.add(mSortedMids[pos++]);
+            }
+            ret = sortUnique(mids.toArray());
+            mCache.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Finds the methods whose full signature or short name matches the given glob
+     * pattern ('*' matches any number of characters, '?' matches a single character).
+     * @param glob The pattern
+     * @return The sorted array of the matching method ids (must not be modified)
+     */
+    public int[] findMethodsByGlob(String glob) {
+        String key = "G" + glob;
+        int ret[] = mCache.get(key);
+        if (ret == null) {
+            Pattern p = Pattern.compile(globToRegex(glob));
+            IntArray mids = new IntArray();
+            for (MethodInfo m : mRep.getMethodInfos()) {
+                if (p.matcher(m.name).matches() || p.matcher(m.shortName).matches()) {
+                    mids.add(m.id);
+                }
+            }
+            ret = sortUnique(mids.toArray());
+            mCache.put(key, ret);
+        }
+        return ret;
+    }
+
+    private String globToRegex(String glob) {
+        StringBuffer sb = new StringBuffer();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+        return sb.toString();
+    }
+
+    private int[] sortUnique(int values[]) {
+        if (values.length == 0) return values;
+        Arrays.sort(values);
+        int cnt = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != values[cnt - 1]) {
+                values[cnt++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, cnt);
+    }
+
+    /**
+     * Returns the runs of a method on a thread, sorted by start time.
+     * @param tid The thread id
+     * @param mid The method id
+     * @return A new array containing the run indices in the call tree of the thread
+     */
+    public int[] getRuns(int tid, int mid) {
+        ThreadRuns tr = mThreadRuns.get(tid);
+        MethodInfo m = mRep.findMethod(mid);
+        if (tr == null || m == null) {
+            return new int[0];
+        }
+        return Arrays.copyOfRange(tr.runs, tr.offset[m.idx], tr.offset[m.idx + 1]);
+    }
+
+    /**
+     * Returns the runs of the given methods on a thread, which started in the
+     * given time interval, sorted by start time.
+     * @param tid The thread id
+     * @param mids The method ids
+     * @param from The start of the interval (inclusive)
+     * @param to The end of the interval (exclusive)
+     * @param localTime If true, the interval is specified in thread local time, otherwise in global time
+     * @return The run indices in the call tree of the thread
+     */
+    public IntArray findRuns(int tid, int mids[], int from, int to, boolean localTime) {
+        IntArray ret = new IntArray();
+        ThreadRuns tr = mThreadRuns.get(tid);
+        if (tr == null) {
+            return ret;
+        }
+
+        // Collect the matching range of each method, then merge them
+        int nr = 0;
+        int pos[] = new int[mids.length];
+        int end[] = new int[mids.length];
+        for (int mid : mids) {
+            MethodInfo m = mRep.findMethod(mid);
+            if (m == null) continue;
+            int lo = findFirst(tr, tr.offset[m.idx], tr.offset[m.idx + 1], from, localTime);
+            int hi = findFirst(tr, lo, tr.offset[m.idx + 1], to, localTime);
+            if (lo < hi) {
+                pos[nr] = lo;
+                end[nr] = hi;
+                nr++;
+            }
+        }
+        while (true) {
+            int best = -1;
+            for (int i = 0; i < nr; i++) {
+                if (pos[i] < end[i] && (best == -1 || compareRuns(tr.tree, tr.runs[pos[i]], tr.runs[pos[best]]) < 0)) {
+                    best = i;
+                }
+            }
+            if (best == -1) break;
+            ret.add(tr.runs[pos[best]++]);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns all the runs of the given methods on a thread, sorted by start time,
+     * excluding the runs which are called (directly or indirectly) from another
+     * returned run. This is the same as walking the call tree, and not visiting the
+     * children of the matching runs.
+     * @param tid The thread id
+     * @param mids The method ids
+     * @return The run indices in the call tree of the thread
+     */
+    public IntArray findOutermostRuns(int tid, int mids[]) {
+        IntArray runs = findRuns(tid, mids, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+        ThreadRuns tr = mThreadRuns.get(tid);
+        IntArray ret = new IntArray();
+        int last = CallTree.NONE;
+        for (int i = 0; i < runs.size(); i++) {
+            int run = runs.get(i);
+            if (last != CallTree.NONE && isInside(tr.tree, run, last)) {
+                continue;
+            }
+            ret.add(run);
+            last = run;
+        }
+        return ret;
+    }
+
+    private boolean isInside(CallTree tree, int run, int outer) {
+        int start = tree.getStartTime(run);
+        int outerEnd = tree.getEndTime(outer);
+        if (start != outerEnd) {
+            return start < outerEnd;
+        }
+        // Same timestamp: need to check the callers
+        for (int p = tree.getParent(run); p != CallTree.NONE; p = tree.getParent(p)) {
+            if (p == outer) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the position of the first run in the range which started at or after the given time.
+     */
+    private int findFirst(ThreadRuns tr, int lo, int hi, int time, boolean localTime) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int run = tr.runs[mid];
+            int t = localTime ? tr.tree.getStartLocalTime(run) : tr.tree.getStartTime(run);
+            if (t < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.Bug;
+import com.sonyericsson.chkbugreport.Chapter;
+import com.sonyericsson.chkbugreport.Lines;
+import com.sonyericsson.chkbugreport.Plugin;
+import com.sonyericsson.chkbugreport.Report;
+import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodInfo;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Vector;
+
+/**
+ * Compares the method statistics and the calling context trees of two traces.
+ *
+ * Methods are matched by their signature, calling contexts by the chain of method
+ * signatures from the thread's top level call (the threads themselves are merged, since
+ * the thread ids are usually different in the two traces). Thread time is used everywhere.
+ *
+ * A change in the average duration is flagged as significant using Welch's t-test,
+ * a change in the number of calls using a normal approximation of the Poisson distribution.
+ */
+public class TraceDiffPlugin extends Plugin {
+
+    private static final int NR_LINES = 100;
+    private static final int MAX_PATH_LEN = 6;
+
+    /** The limit of the test statistic (~ p < 0.001, two-sided) */
+    private static final double SIGNIFICANCE_LIMIT = 3.29;
+    /** Smaller relative changes are not reported, even if they are significant */
+    private static final double MIN_CHANGE = 0.1;
+
+    private static final int A = 0;
+    private static final int B = 1;
+
+    private static final int CHANGE_NONE = 0;
+    private static final int CHANGE_WORSE = 1;
+    private static final int CHANGE_BETTER = 2;
+
+    /**
+     * The statistics of a method or a calling context in both traces.
+     */
+    private static class DiffItem {
+        public int id;
+        public int parent = -1;
+        public String shortName;
+        public String name;
+        public int nrCalls[] = new int[2];
+        public long dur[] = new long[2];
+        public long durExc[] = new long[2];
+        public double durSq[] = new double[2];
+        public double t;
+        public int durChange;
+        public int callsChange;
+
+        public double avg(int which) {
+            return nrCalls[which] == 0 ? 0.0 : (double)dur[which] / nrCalls[which];
+        }
+
+        public long delta() {
+            return dur[B] - dur[A];
+        }
+    }
+
+    @Override
+    public int getPrio() {
+        return 20;
+    }
+
+    @Override
+    public void load(Report br) {
+        // NOP
+    }
+
+    @Override
+    public void generate(Report br) {
+        TraceDiffReport rep = (TraceDiffReport)br;
+
+        System.out.println("Comparing methods...");
+        Vector<DiffItem> methods = collectMethods(rep);
+        Chapter ch = new Chapter(rep, "Method diff");
+        rep.addChapter(ch);
+        ch.addLine("<p>The statistics of the methods (matched by signature) from the baseline (A) and the new (B) trace.</p>");
+        writeTable(rep, ch, methods, rep.getRelDataDir() + "tracediff_methods.html", "Traceview method diff", false);
+        addBug(rep, methods);
+
+        System.out.println("Comparing calling contexts...");
+        Vector<DiffItem> contexts = collectContexts(rep);
+        ch = new Chapter(rep, "Calling context diff");
+        rep.addChapter(ch);
+        ch.addLine("<p>The method calls are merged if they have the same call path (the calls with the same path from different threads are merged as well), and compared between the baseline (A) and the new (B) trace.</p>");
+        writeTable(rep, ch, contexts, rep.getRelDataDir() + "tracediff_contexts.html", "Traceview calling context diff", true);
+    }
+
+    private Vector<DiffItem> collectMethods(TraceDiffReport rep) {
+        HashMap<String, DiffItem> map = new HashMap<String, DiffItem>();
+        Vector<DiffItem> ret = new Vector<DiffItem>();
+        for (int which = A; which <= B; which++) {
+            TraceReport trace = (which == A) ? rep.getBase() : rep.getTarget();
+            for (MethodInfo m : trace.getMethodInfos()) {
+                DiffItem item = map.get(m.name);
+                if (item == null) {
+                    item = new DiffItem();
+                    item.id = ret.size();
+                    item.name = m.name;
+                    item.shortName = m.shortName;
+                    map.put(m.name, item);
+                    ret.add(item);
+                }
+                item.nrCalls[which] += m.nrCalls;
+                item.dur[which] += m.durL;
+                item.durExc[which] += m.durExcL;
+                item.durSq[which] += m.durLSq;
+            }
+        }
+        finish(ret);
+        return ret;
+    }
+
+    private Vector<DiffItem> collectContexts(TraceDiffReport rep) {
+        // The contexts are identified by (parent context, method name)
+        HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+        HashMap<Long, DiffItem> map = new HashMap<Long, DiffItem>();
+        Vector<DiffItem> ret = new Vector<DiffItem>();
+        for (int which = A; which <= B; which++) {
+            TraceReport trace = (which == A) ? rep.getBase() : rep.getTarget();
+            for (ThreadInfo t : trace.getThreadInfos()) {
+                CallingContextTree cct = t.cct;
+                int ctx[] = new int[cct.getCount()];
+                ctx[CallingContextTree.ROOT] = -1;
+                int node = cct.getFirstChild(CallingContextTree.ROOT);
+                while (node != CallingContextTree.NONE) {
+                    MethodInfo m = trace.findMethod(cct.getMid(node));
+                    String name = (m == null) ? String.format("0x%08x", cct.getMid(node)) : m.name;
+                    Integer nameId = nameIds.get(name);
+                    if (nameId == null) {
+                        nameId = nameIds.size();
+                        nameIds.put(name, nameId);
+                    }
+                    int parent = ctx[cct.getParent(node)];
+                    long key = ((long)parent << 32) | nameId;
+                    DiffItem item = map.get(key);
+                    if (item == null) {
+                        item = new DiffItem();
+                        item.id = ret.size();
+                        item.parent = parent;
+                        item.name = name;
+                        item.shortName = (m == null) ? name : m.shortName;
+                        map.put(key, item);
+                        ret.add(item);
+                    }
+                    ctx[node] = item.id;
+                    item.nrCalls[which] += cct.getCalls(node);
+                    item.dur[which] += cct.getLocalDuration(node);
+                    item.durExc[which] += cct.getExcLocalDuration(node);
+                    item.durSq[which] += cct.getLocalDurationSq(node);
+                    node = cct.next(node, false);
+                }
+            }
+        }
+        finish(ret);
+        return ret;
+    }
+
+    /**
+     * Runs the significance tests on the items.
+     */
+    private void finish(Vector<DiffItem> items) {
+        for (DiffItem item : items) {
+            int na = item.nrCalls[A];
+            int nb = item.nrCalls[B];
+
+            // Number of calls: assuming Poisson distribution
+            if (na + nb > 0) {
+                double z = (nb - na) / Math.sqrt(na + nb);
+                if (Math.abs(z) >= SIGNIFICANCE_LIMIT && Math.abs(nb - na) >= MIN_CHANGE * Math.max(na, nb)) {
+                    item.callsChange = (nb > na) ? CHANGE_WORSE : CHANGE_BETTER;
+                }
+            }
+
+            // Average duration: Welch's t-test
+            if (na >= 2 && nb >= 2) {
+                double avgA = item.avg(A);
+                double avgB = item.avg(B);
+                double varA = variance(na, avgA, item.durSq[A]);
+                double varB = variance(nb, avgB, item.durSq[B]);
+                double se = Math.sqrt(varA / na + varB / nb);
+                if (se > 0) {
+                    item.t = (avgB - avgA) / se;
+                } else if (avgA != avgB) {
+                    item.t = (avgB > avgA) ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+                }
+                if (Math.abs(item.t) >= SIGNIFICANCE_LIMIT && Math.abs(avgB - avgA) >= MIN_CHANGE * avgA) {
+                    item.durChange = (avgB > avgA) ? CHANGE_WORSE : CHANGE_BETTER;
+                }
+            }
+        }
+
+        Collections.sort(items, new Comparator<DiffItem>() {
+            @Override
+            public int compare(DiffItem o1, DiffItem o2) {
+                long d1 = Math.abs(o1.delta());
+                long d2 = Math.abs(o2.delta());
+                if (d1 < d2) return 1;
+                if (d1 > d2) return -1;
+                return 0;
+            }
+        });
+    }
+
+    private double variance(int n, double avg, double sumSq) {
+        return Math.max(0.0, (sumSq - n * avg * avg) / (n - 1));
+    }
+
+    private void addBug(TraceDiffReport rep, Vector<DiffItem> methods) {
+        Vector<DiffItem> slower = new Vector<DiffItem>();
+        for (DiffItem item : methods) {
+            if (item.durChange == CHANGE_WORSE) {
+                slower.add(item);
+            }
+        }
+        if (slower.isEmpty()) return;
+
+        Bug bug = new Bug(Bug.PRIO_TRACEVIEW_REGRESSION, 0, "Significantly slower methods");
+        rep.addBug(bug);
+        bug.addLine("<p>The average duration (thread time) of the following methods increased significantly in the new trace:</p>");
+        bug.addLine("<ul>");
+        for (DiffItem item : slower) {
+            bug.addLine(String.format(Locale.US, "<li>%s (avg. duration: %.1fus -&gt; %.1fus, calls: %d -&gt; %d)</li>",
+                    Util.escape(item.shortName), item.avg(A), item.avg(B), item.nrCalls[A], item.nrCalls[B]));
+        }
+        bug.addLine("</ul>");
+    }
+
+    private void writeTable(TraceDiffReport rep, Chapter ch, Vector<DiffItem> items, String fnFull, String title, boolean contexts) {
+        Lines full = new Lines(null);
+
+        // Needed to render the paths of the calling contexts
+        DiffItem byId[] = new DiffItem[items.size()];
+        for (DiffItem item : items) {
+            byId[item.id] = item;
+        }
+
+        ch.addLine("<div>Showing only " + NR_LINES + " lines (with the largest change in the total duration), to see the full list, click <a href=\"" + fnFull + "\">here</a>!</div>");
+        Lines tmp = new Lines(null);
+        tmp.addLine("<div>[T] = thread time, (A) = baseline trace, (B) = new trace</div>");
+        tmp.addLine("<div>(NOTE: Click on the headers to sort the data)</div>");
+        tmp.addLine("<table class=\"tablesorter traceview-stat\">");
+        tmp.addLine("  <thead>");
+        tmp.addLine("    <tr>");
+        if (contexts) {
+            tmp.addLine("      <th title=\"The call path (the outermost callers are omitted if the path is too long)\">Call path</td>");
+        } else {
+            tmp.addLine("      <th title=\"The name of method\">Method</td>");
+        }
+        tmp.addLine("      <th title=\"The number of calls in the baseline trace\">Calls (A)</td>");
+        tmp.addLine("      <th title=\"The number of calls in the new trace\">Calls (B)</td>");
+        tmp.addLine("      <th title=\"The change in the number of calls\">Calls &Delta;</td>");
+        tmp.addLine("      <th title=\"The total duration, including the time spent when calling other methods, in the baseline trace\">Duration[T] (A)</td>");
+        tmp.addLine("      <th title=\"The total duration, including the time spent when calling other methods, in the new trace\">Duration[T] (B)</td>");
+        tmp.addLine("      <th title=\"The change in the total duration\">Duration[T] &Delta;</td>");
+        tmp.addLine("      <th title=\"The total duration, excluding the time spent when calling other methods, in the baseline trace\">Own dur[T] (A)</td>");
+        tmp.addLine("      <th title=\"The total duration, excluding the time spent when calling other methods, in the new trace\">Own dur[T] (B)</td>");
+        tmp.addLine("      <th title=\"The change in the total duration, excluding the time spent when calling other methods\">Own dur[T] &Delta;</td>");
+        tmp.addLine("      <th title=\"The average duration of a call in the baseline trace\">Avg dur[T] (A)</td>");
+        tmp.addLine("      <th title=\"The average duration of a call in the new trace\">Avg dur[T] (B)</td>");
+        tmp.addLine("      <th title=\"The relative change of the average duration\">Avg dur[T] &Delta;%</td>");
+        tmp.addLine("      <th title=\"The value of the Welch's t-test statistic for the average durations\">t</td>");
+        tmp.addLine("    </tr>");
+        tmp.addLine("  </thead>");
+        tmp.addLine("  <tbody>");
+        ch.addLines(tmp);
+        full.addLines(tmp);
+
+        int cnt = items.size();
+        for (int i = 0; i < cnt; i++) {
+            DiffItem item = items.get(i);
+            String name = contexts ? getPath(byId, item) : shadeName(Util.escape(item.shortName));
+            String avgChange = "";
+            if (item.nrCalls[A] > 0 && item.nrCalls[B] > 0 && item.avg(A) > 0) {
+                avgChange = String.format(Locale.US, "%+.1f%%", (item.avg(B) - item.avg(A)) * 100.0 / item.avg(A));
+            }
+            tmp.clear();
+            tmp.addLine("    <tr>");
+            tmp.addLine("      <td title=\"" + Util.escape(item.name) + "\">" + name + "</td>");
+            tmp.addLine("      <td>" + item.nrCalls[A] + "</td>");
+            tmp.addLine("      <td>" + item.nrCalls[B] + "</td>");
+            tmp.addLine("      <td>" + mark(String.format("%+d", item.nrCalls[B] - item.nrCalls[A]), item.callsChange) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.dur[A]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.dur[B]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.dur[B] - item.dur[A]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.durExc[A]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.durExc[B]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(item.durExc[B] - item.durExc[A]) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(Math.round(item.avg(A))) + "</td>");
+            tmp.addLine("      <td>" + shadeDur(Math.round(item.avg(B))) + "</td>");
+            tmp.addLine("      <td>" + mark(avgChange, item.durChange) + "</td>");
+            tmp.addLine("      <td>" + String.format(Locale.US, "%.2f", item.t) + "</td>");
+            tmp.addLine("    </tr>");
+            if (i < NR_LINES) {
+                ch.addLines(tmp);
+            }
+            full.addLines(tmp);
+        }
+
+        tmp.clear();
+        tmp.addLine("  </tbody>");
+        tmp.addLine("</table>");
+        ch.addLines(tmp);
+        full.addLines(tmp);
+
+        // Save standalone file
+        try {
+            FileOutputStream fos = new FileOutputStream(rep.getBaseDir() + fnFull);
+            PrintStream ps = new PrintStream(fos);
+            Util.writeHTMLHeader(ps, title, "");
+            full.writeTo(ps);
+            Util.writeHTMLFooter(ps);
+            ps.close();
+            fos.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String getPath(DiffItem byId[], DiffItem item) {
+        String ret = Util.escape(item.shortName);
+        int len = 1;
+        for (int id = item.parent; id >= 0; id = byId[id].parent) {
+            if (len == MAX_PATH_LEN) {
+                return "... &gt; " + ret;
+            }
+            ret = "<span class=\"traceview-name\">" + Util.escape(byId[id].shortName) + " &gt;</span> " + ret;
+            len++;
+        }
+        return ret;
+    }
+
+    private String mark(String s, int change) {
+        if (change == CHANGE_WORSE) {
+            return "<span class=\"traceview-worse\">" + s + "</span>";
+        } else if (change == CHANGE_BETTER) {
+            return "<span class=\"traceview-better\">" + s + "</span>";
+        }
+        return s;
+    }
+
+    private String shadeName(String name) {
+        int idx = name.lastIndexOf('.');
+        if (idx < 0) return name;
+        String cls = name.substring(0, idx + 1);
+        name = name.substring(idx + 1);
+        return "<span class=\"traceview-name\">" + cls + "</span>" + name;
+    }
+
+    private String shadeDur(long dur) {
+        StringBuffer sb = new StringBuffer();
+        if (dur < 0) {
+            sb.append('-');
+            dur = -dur;
+        }
+        long ms = dur / 1000;
+        long us = dur % 1000;
+        if (ms != 0) {
+            sb.append(ms);
+        }
+        sb.append("<span class=\"traceview-us\">");
+        if (us < 100) {
+            sb.append('0');
+        }
+        if (us < 10) {
+            sb.append('0');
+        }
+        sb.append(us);
+        sb.append("</span>");
+        return sb.toString();
+    }
+
+}
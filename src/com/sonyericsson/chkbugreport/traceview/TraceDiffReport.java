@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.traceview;
+
+import com.sonyericsson.chkbugreport.Report;
+import com.sonyericsson.chkbugreport.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares two traceview files: a baseline (A) and a new one (B).
+ * The two traces are loaded by two TraceReport instances (which must be loaded
+ * before calling generate()), this report contains only the differences.
+ */
+public class TraceDiffReport extends Report {
+
+    private TraceReport mBase;
+    private TraceReport mTarget;
+
+    /**
+     * Creates a new traceview diff report.
+     * @param fileName The name of the report (used to create the output folder)
+     * @param base The report of the baseline trace (A)
+     * @param target The report of the new trace (B)
+     */
+    public TraceDiffReport(String fileName, TraceReport base, TraceReport target) {
+        super(fileName);
+        mBase = base;
+        mTarget = target;
+        addPlugin(new TraceDiffPlugin());
+    }
+
+    public TraceReport getBase() {
+        return mBase;
+    }
+
+    public TraceReport getTarget() {
+        return mTarget;
+    }
+
+    @Override
+    protected void load(InputStream is) throws IOException {
+        // NOP, the traces are loaded by the TraceReport instances
+    }
+
+    @Override
+    public void generate() throws IOException {
+        super.generate();
+
+        addHeaderLine("Baseline trace (A): " + mBase.getFileName());
+        addHeaderLine("New trace (B): " + mTarget.getFileName());
+
+        // Run all the plugins
+        runPlugins();
+
+        // Collect detected bugs
+        System.out.println("Collecting errors...");
+        collectBugs();
+
+        // Write header
+        System.out.println("Writing header...");
+        writeHeader();
+
+        // Write the table of contents
+        System.out.println("Writing TOC...");
+        writeTOC();
+
+        // Write all the chapters
+        System.out.println("Writing Chapters...");
+        writeChapters();
+
+        // Close the file
+        System.out.println("Writing footer...");
+        writeFooter();
+        closeFile();
+
+        // Copy over some builtin resources
+        System.out.println("Copying extra resources...");
+        copyRes(Util.COMMON_RES);
+
+        System.out.println("DONE!");
+    }
+
+}
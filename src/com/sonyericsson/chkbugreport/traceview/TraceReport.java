@@ -21,15 +21,24 @@ package com.sonyericsson.chkbugreport.traceview;
 import com.sonyericsson.chkbugreport.Chapter;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Util;
+import com.sonyericsson.chkbugreport.util.IntArray;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
 
+import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TraceReport extends Report {
 
@@ -49,8 +58,8 @@ public class TraceReport extends Report {
         public int timePause;
         public int timeLast;
         public Vector<Integer> stack = new Vector<Integer>();
-        public Vector<MethodRun> calls = new Vector<MethodRun>();
-        public MethodRun currentCall;
+        public CallTree calls = new CallTree();
+        public CallingContextTree cct = new CallingContextTree();
         public int lastLocatTime;
 
         public String getFullName() {
@@ -64,18 +73,18 @@ public class TraceReport extends Report {
     // Methods
     public static class MethodInfo {
         public int id;
+        public int idx;
         public String name;
         public String shortName;
         public char state;
-        public Vector<MethodRun> calls = new Vector<TraceReport.MethodRun>();
         public int nrCalls;
         public int nrRecCalls;
-        public int nesting;
         public int dur;
         public int durL;
         public int durExc;
         public int durExcL;
         public int maxDurL;
+        public double durLSq; // Sum of the squares of durL of each call (to calculate variance)
     }
 
     private Vector<MethodInfo> mMethods = new Vector<MethodInfo>();
@@ -91,32 +100,37 @@ public class TraceReport extends Report {
 
     private Vector<TraceRecord> mRecords = new Vector<TraceRecord>();
 
-    // Method run records
-    public static class MethodRun {
-        public int mid;
-        public int tid;
-        public MethodRun caller;
-        public Vector<MethodRun> calls = new Vector<MethodRun>();
-        public int startTime, startLocalTime;
-        public int endTime, endLocalTime;
-        public int nrCalls;
-        public String name;
-        public String shortName;
-    }
-
     private long mAbsStartTime = 0;
     private boolean mAbsTime = false;
     private int mLastPrintTime = 0;
+    private boolean mStatsOnly = false;
+    private MethodIndex mMethodIndex;
 
-    {
-        addPlugin(new StatsPlugin());
-        addPlugin(new TreeViewPlugin());
-        addPlugin(new TreePNGPlugin());
-        addPlugin(new MainLooplugin());
-    }
+    // Used while fixing the timestamps
+    private ThreadInfo mLastThread;
+    private int mGlobalTime;
 
     public TraceReport(String fileName) {
+        this(fileName, false);
+    }
+
+    /**
+     * Creates a new traceview report.
+     * @param fileName The name of the trace file
+     * @param statsOnly If true, the trace records are processed in a single pass, without
+     * storing them and without building the call trees. Only the statistics and the flame
+     * graphs are generated, but this needs much less memory, so huge traces can be processed.
+     */
+    public TraceReport(String fileName, boolean statsOnly) {
         super(fileName);
+        mStatsOnly = statsOnly;
+        addPlugin(new StatsPlugin());
+        addPlugin(new FlameGraphPlugin());
+        if (!statsOnly) {
+            addPlugin(new TreeViewPlugin());
+            addPlugin(new TreePNGPlugin());
+            addPlugin(new MainLooplugin());
+        }
     }
 
     public Vector<MethodInfo> getMethodInfos() {
@@ -131,9 +145,19 @@ public class TraceReport extends Report {
         return mRecords;
     }
 
+    /**
+     * Returns the index of the methods and method runs, which can be used to find
+     * method calls without walking the call trees.
+     * @return The method index, or null in statistics only mode
+     */
+    public MethodIndex getMethodIndex() {
+        return mMethodIndex;
+    }
+
     @Override
     public void load(InputStream is) throws IOException {
         String buff;
+        is = new BufferedInputStream(is, 0x10000);
 
         // Skip to the threads
         boolean found_threads = false;
@@ -216,6 +240,9 @@ public class TraceReport extends Report {
                 return 0;
             }
         });
+        for (int i = 0; i < mMethods.size(); i++) {
+            mMethods.get(i).idx = i;
+        }
 
         // Parse the tracing data header
         byte sig[] = new byte[4];
@@ -229,6 +256,11 @@ public class TraceReport extends Report {
         mAbsStartTime = Util.read8LE(is); // read absolute start time
         is.skip(delta - 16); // skip rest of the header
 
+        if (mStatsOnly) {
+            loadStatsOnly(is);
+            return;
+        }
+
         // Parse the tracing data
         try {
             while (true) {
@@ -244,142 +276,402 @@ public class TraceReport extends Report {
         System.out.println(String.format("Read %d records...", mRecords.size()));
 
         // Fix timestamps
-        ThreadInfo lastThread = null;
         System.out.println("Fixing timestamps...");
-        int global_time = 0;
         for (TraceRecord r : mRecords) {
-            int time = r.time;
-            int tid = r.tid;
+            fixTimestamp(r, findThread(r.tid));
+        }
 
-            // Check if thread has changed
-            ThreadInfo thread = findThread(tid);
-            if (thread != lastThread) {
-                if (lastThread != null) {
-                    // Save the paused time
-                    lastThread.timePause = global_time;
-                    lastThread.timeOffs = global_time - lastThread.timeLast;
-                }
-                //          printf("Thread switch: %3d -> %3d @ %d\n", last_thread_idx, thread_idx, time);
-                lastThread = thread;
-                lastThread.timeOffs += global_time - lastThread.timePause;
+        // Split the records by thread, since the threads can be processed independently
+        System.out.println("Collecting method run info...");
+        TraceRecord records[] = mRecords.toArray(new TraceRecord[mRecords.size()]);
+        HashMap<Integer, ThreadLoader> loaders = new HashMap<Integer, ThreadLoader>();
+        for (ThreadInfo t : mThreads) {
+            loaders.put(t.id, new ThreadLoader(t, records));
+        }
+        int lastTime = 0;
+        for (int i = 0; i < records.length; i++) {
+            lastTime = records[i].time;
+            ThreadLoader loader = loaders.get(records[i].tid);
+            if (loader != null) {
+                loader.mRecordIdx.add(i);
             }
+        }
 
-            global_time = time + thread.timeOffs;
-            thread.timeLast = time;
-            r.time = global_time;
+        // Build the call trees and collect the method run statistics in parallel
+        int nrWorkers = Math.max(1, Math.min(mThreads.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nrWorkers);
+        try {
+            Vector<Future<Void>> results = new Vector<Future<Void>>();
+            for (ThreadInfo t : mThreads) {
+                ThreadLoader loader = loaders.get(t.id);
+                loader.mLastTime = lastTime;
+                results.add(executor.submit(loader));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while building call trees");
+        } catch (ExecutionException e) {
+            throw new IOException("Error building call trees", e.getCause());
+        } finally {
+            executor.shutdown();
         }
 
-        // Collect MethodRun information
-        System.out.println("Collecting method run info...");
-        int lastTime = 0;
-        for (TraceRecord r : mRecords) {
-            lastTime = r.time;
-            int tid = r.tid;
-            int mid = r.mid;
-            int act = mid & 3;
-            mid &= 0xfffffffc;
+        System.out.println("Building method index...");
+        mMethodIndex = new MethodIndex(this);
+    }
 
-            ThreadInfo thread = findThread(tid);
-            thread.lastLocatTime = r.localTime;
+    /**
+     * Builds the call tree of a single thread and collects the method statistics
+     * for the methods called from that thread. The statistics are merged into the
+     * MethodInfo objects at the end, so several threads can be processed in parallel.
+     */
+    private class ThreadLoader implements Callable<Void> {
+
+        private ThreadInfo mThread;
+        private TraceRecord mRecords[];
+        private IntArray mRecordIdx = new IntArray();
+        private int mLastTime;
+
+        /* The methods called from this thread get a local index (the key is the method id),
+         * so the statistics below take memory only for the methods used by this thread */
+        private IntIntMap mLocalIdx;
+        private IntArray mMethodIdx;
+        private int mNrCalls[];
+        private int mNrRecCalls[];
+        private int mNesting[];
+        private int mDur[];
+        private int mDurL[];
+        private int mDurExc[];
+        private int mDurExcL[];
+        private int mMaxDurL[];
+        private double mDurLSq[];
+
+        public ThreadLoader(ThreadInfo thread, TraceRecord records[]) {
+            mThread = thread;
+            mRecords = records;
+        }
 
-            if (act == METHOD_ENTRY) {
-                MethodRun run = new MethodRun();
-                run.startTime = r.time;
-                run.startLocalTime = r.localTime;
-                run.tid = tid;
-                run.mid = mid;
-                addRun(mid, run);
-                if (thread.currentCall == null) {
-                    // first call on the thread
-                    thread.calls.add(run);
-                } else {
-                    thread.currentCall.calls.add(run);
+        @Override
+        public Void call() {
+            ThreadInfo thread = mThread;
+            int cnt = mRecordIdx.size();
+            for (int i = 0; i < cnt; i++) {
+                TraceRecord r = mRecords[mRecordIdx.get(i)];
+                int mid = r.mid;
+                int act = mid & 3;
+                mid &= 0xfffffffc;
+
+                thread.lastLocatTime = r.localTime;
+
+                if (act == METHOD_ENTRY) {
+                    thread.calls.enter(mid, r.time, r.localTime);
+                    thread.cct.enter(mid, r.time, r.localTime);
+                } else if (act == METHOD_EXIT || act == METHOD_EXIT_W_EXC) {
+                    // If we don't have information about this method, a new run
+                    // will be created (with 0 start time) containing all previous calls
+                    thread.calls.exit(mid, r.time, r.localTime);
+                    thread.cct.exit(mid, r.time, r.localTime);
                 }
-                run.caller = thread.currentCall;
-                thread.currentCall = run;
-            } else if (act == METHOD_EXIT || act == METHOD_EXIT_W_EXC) {
-                if (thread.currentCall == null) {
-                    // we don't have information about this method
-                    // so create a new record, and assume 0 start time
-                    MethodRun run = new MethodRun();
-                    run.startTime = 0;
-                    run.startLocalTime = 0;
-                    run.tid = tid;
-                    run.mid = mid;
-                    addRun(mid, run);
-                    thread.currentCall = run;
-
-                    // Add all previous calls to this one
-                    for (MethodRun prev : thread.calls) {
-                        run.calls.add(prev);
+            }
+            mRecordIdx = null;
+            mRecords = null;
+
+            // Now, we might have some calls which are not finished
+            // we need to set the end time for those
+            thread.calls.finish(mLastTime, thread.lastLocatTime);
+            thread.cct.finish(mLastTime, thread.lastLocatTime);
+
+            collectMethodStats();
+            return null;
+        }
+
+        /**
+         * Collect the method statistics walking the call tree in depth-first order.
+         * This is done without recursion (using the parent links), since the call
+         * depth can be large.
+         */
+        private void collectMethodStats() {
+            CallTree tree = mThread.calls;
+            mLocalIdx = new IntIntMap();
+            mMethodIdx = new IntArray();
+            int runCount = tree.getCount();
+            for (int run = 0; run < runCount; run++) {
+                int mid = tree.getMid(run);
+                if (!mLocalIdx.containsKey(mid)) {
+                    mLocalIdx.put(mid, mMethodIdx.size());
+                    mMethodIdx.add(findMethod(mid).idx);
+                }
+            }
+
+            int nrMethods = mMethodIdx.size();
+            mNrCalls = new int[nrMethods];
+            mNrRecCalls = new int[nrMethods];
+            mNesting = new int[nrMethods];
+            mDur = new int[nrMethods];
+            mDurL = new int[nrMethods];
+            mDurExc = new int[nrMethods];
+            mDurExcL = new int[nrMethods];
+            mMaxDurL = new int[nrMethods];
+            mDurLSq = new double[nrMethods];
+
+            int run = tree.getFirstRoot();
+            while (run != CallTree.NONE) {
+                // Entering the run
+                mNesting[getMethodIdx(tree, run)]++;
+                int child = tree.getFirstChild(run);
+                if (child != CallTree.NONE) {
+                    run = child;
+                    continue;
+                }
+                // Leaving the run (and all the parents which have no more children)
+                while (run != CallTree.NONE) {
+                    leaveRun(tree, run);
+                    int next = tree.getNextSibling(run);
+                    if (next != CallTree.NONE) {
+                        run = next;
+                        break;
                     }
+                    run = tree.getParent(run);
+                }
+            }
 
-                    // also we must reset the calls list
-                    thread.calls.clear();
-                    thread.calls.add(run);
+            synchronized (mMethods) {
+                for (int i = 0; i < nrMethods; i++) {
+                    MethodInfo m = mMethods.get(mMethodIdx.get(i));
+                    m.nrCalls += mNrCalls[i];
+                    m.nrRecCalls += mNrRecCalls[i];
+                    m.dur += mDur[i];
+                    m.durL += mDurL[i];
+                    m.durExc += mDurExc[i];
+                    m.durExcL += mDurExcL[i];
+                    m.maxDurL = Math.max(m.maxDurL, mMaxDurL[i]);
+                    m.durLSq += mDurLSq[i];
                 }
+            }
 
-                thread.currentCall.endTime = r.time;
-                thread.currentCall.endLocalTime = r.localTime;
-                thread.currentCall = thread.currentCall.caller;
+            // The loaders are kept until all threads are finished, so release the memory now
+            mLocalIdx = null;
+            mMethodIdx = null;
+            mNrCalls = mNrRecCalls = mNesting = null;
+            mDur = mDurL = mDurExc = mDurExcL = mMaxDurL = null;
+            mDurLSq = null;
+        }
+
+        private void leaveRun(CallTree tree, int run) {
+            int idx = getMethodIdx(tree, run);
+            int dur = tree.getDuration(run);
+            int durL = tree.getLocalDuration(run);
+            int durC = 0;
+            int durLC = 0;
+            for (int ch = tree.getFirstChild(run); ch != CallTree.NONE; ch = tree.getNextSibling(ch)) {
+                durC += tree.getDuration(ch);
+                durLC += tree.getLocalDuration(ch);
+            }
+
+            mNesting[idx]--;
+            if (mNesting[idx] == 0) {
+                mNrCalls[idx]++;
+                mDur[idx] += dur;
+                mDurL[idx] += durL;
+                mMaxDurL[idx] = Math.max(mMaxDurL[idx], durL);
+                mDurLSq[idx] += (double)durL * durL;
+                mDurExc[idx] += dur - durC;
+                mDurExcL[idx] += durL - durLC;
+            } else {
+                mNrRecCalls[idx]++;
             }
         }
 
-        // Now, we might have some calls which are not finished
-        // we need to set the end time for those
-        for (ThreadInfo t : mThreads) {
-            MethodRun run = t.currentCall;
-            while (run != null) {
-                run.endTime = lastTime;
-                run.endLocalTime = t.lastLocatTime;
-                run = run.caller;
+        private int getMethodIdx(CallTree tree, int run) {
+            return mLocalIdx.get(tree.getMid(run), -1);
+        }
+
+    }
+
+    /**
+     * Convert the thread time of the record to global time.
+     * Must be called for each record, in order.
+     */
+    private void fixTimestamp(TraceRecord r, ThreadInfo thread) {
+        int time = r.time;
+
+        // Check if thread has changed
+        if (thread != mLastThread) {
+            if (mLastThread != null) {
+                // Save the paused time
+                mLastThread.timePause = mGlobalTime;
+                mLastThread.timeOffs = mGlobalTime - mLastThread.timeLast;
             }
+            //          printf("Thread switch: %3d -> %3d @ %d\n", last_thread_idx, thread_idx, time);
+            mLastThread = thread;
+            mLastThread.timeOffs += mGlobalTime - mLastThread.timePause;
         }
 
-        // Collect MethodRun statistics
-        System.out.println("Collecting method run statistics...");
+        mGlobalTime = time + thread.timeOffs;
+        thread.timeLast = time;
+        r.time = mGlobalTime;
+    }
+
+    /**
+     * Process the trace records in one pass, without storing them, and without building the
+     * call trees. Only the method statistics and the calling context trees are collected, so
+     * the memory usage depends only on the number of methods, threads, distinct call paths
+     * and the call depth.
+     */
+    private void loadStatsOnly(InputStream is) {
+        System.out.println("Collecting method run statistics (statistics only mode)...");
+        addHeaderLine("Statistics only mode: trace records are not stored, call trees are not available.");
+
+        // The thread id is stored on one byte, so we can use arrays instead of hash lookups
+        ThreadInfo threads[] = new ThreadInfo[256];
+        ShadowStack stacks[] = new ShadowStack[256];
         for (ThreadInfo t : mThreads) {
-            for (MethodRun run : t.calls) {
-                collectMethodStats(run);
+            if (t.id >= 0 && t.id < 256) {
+                threads[t.id] = t;
+                stacks[t.id] = new ShadowStack();
             }
         }
+        IntIntMap methodIdx = new IntIntMap(mMethods.size());
+        for (MethodInfo m : mMethods) {
+            methodIdx.put(m.id, m.idx);
+        }
 
-    }
+        TraceRecord r = new TraceRecord();
+        int count = 0;
+        int lastTime = 0;
+        try {
+            while (true) {
+                r.tid = is.read();
+                if (r.tid < 0) break;
+                r.mid = Util.read4BE(is);
+                r.time = r.localTime = Util.read4BE(is);
+                count++;
+
+                ThreadInfo thread = threads[r.tid];
+                if (thread == null) continue; // unknown thread
+                fixTimestamp(r, thread);
+                lastTime = r.time;
+                thread.lastLocatTime = r.localTime;
+
+                int mid = r.mid;
+                int act = mid & 3;
+                mid &= 0xfffffffc;
+                int idx = methodIdx.get(mid, -1);
+                if (act == METHOD_ENTRY) {
+                    stacks[r.tid].enter(idx, r.time, r.localTime);
+                    thread.cct.enter(mid, r.time, r.localTime);
+                } else if (act == METHOD_EXIT || act == METHOD_EXIT_W_EXC) {
+                    stacks[r.tid].exit(idx, r.time, r.localTime);
+                    thread.cct.exit(mid, r.time, r.localTime);
+                }
+            }
+        } catch (IOException e) {
+            // ignore, assume it's end of file
+        }
+        System.out.println(String.format("Processed %d records...", count));
 
-    private void collectMethodStats(MethodRun run) {
-        MethodInfo m = findMethod(run.mid);
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        int durC = 0;
-        int durLC = 0;
-        run.nrCalls = 1;
-        run.name = m.name;
-        run.shortName = m.shortName;
-
-        m.nesting++;
-        for (MethodRun ch : run.calls) {
-            durC += ch.endTime - ch.startTime;
-            durLC += ch.endLocalTime - ch.startLocalTime;
-            collectMethodStats(ch);
-            run.nrCalls += ch.nrCalls;
-        }
-        m.nesting--;
-
-        if (m.nesting == 0) {
-            m.nrCalls++;
-            m.dur += dur;
-            m.durL += durL;
-            m.maxDurL = Math.max(m.maxDurL, durL);
-            m.durExc += dur - durC;
-            m.durExcL += durL - durLC;
-        } else {
-            m.nrRecCalls++;
+        // Now, we might have some calls which are not finished
+        for (ThreadInfo t : mThreads) {
+            if (t.id >= 0 && t.id < 256) {
+                stacks[t.id].finish(lastTime, t.lastLocatTime);
+                t.cct.finish(lastTime, t.lastLocatTime);
+            }
         }
     }
 
-    private void addRun(int mid, MethodRun run) {
-        MethodInfo m = findMethod(mid);
-        m.calls.add(run);
+    /**
+     * The stack of running methods of a thread, used to collect the method statistics
+     * without building the call tree. The collected data is the same as the one
+     * collected by ThreadLoader from the call tree.
+     */
+    private class ShadowStack {
+
+        private int mDepth;
+        private int mIdx[] = new int[16];
+        private int mStart[] = new int[16];
+        private int mStartL[] = new int[16];
+        private int mChildDur[] = new int[16];
+        private int mChildDurL[] = new int[16];
+        // The sum of the durations of the finished top level calls
+        private int mRootDur;
+        private int mRootDurL;
+        // How many times each method is on the stack (used to detect recursion)
+        private IntIntMap mNesting = new IntIntMap();
+
+        public void enter(int idx, int time, int localTime) {
+            push(idx, time, localTime);
+        }
+
+        public void exit(int idx, int time, int localTime) {
+            if (mDepth == 0) {
+                // We don't have information about this method, so assume 0 start time,
+                // and that all previous calls were called from this one (same as CallTree)
+                push(idx, 0, 0);
+                mChildDur[0] = mRootDur;
+                mChildDurL[0] = mRootDurL;
+                mRootDur = mRootDurL = 0;
+            }
+            pop(time, localTime);
+        }
+
+        public void finish(int time, int localTime) {
+            while (mDepth > 0) {
+                pop(time, localTime);
+            }
+        }
+
+        private void push(int idx, int time, int localTime) {
+            if (mDepth == mIdx.length) {
+                int cap = mDepth * 2;
+                mIdx = Arrays.copyOf(mIdx, cap);
+                mStart = Arrays.copyOf(mStart, cap);
+                mStartL = Arrays.copyOf(mStartL, cap);
+                mChildDur = Arrays.copyOf(mChildDur, cap);
+                mChildDurL = Arrays.copyOf(mChildDurL, cap);
+            }
+            mIdx[mDepth] = idx;
+            mStart[mDepth] = time;
+            mStartL[mDepth] = localTime;
+            mChildDur[mDepth] = 0;
+            mChildDurL[mDepth] = 0;
+            mDepth++;
+            mNesting.add(idx, 1);
+        }
+
+        private void pop(int time, int localTime) {
+            mDepth--;
+            int idx = mIdx[mDepth];
+            int dur = time - mStart[mDepth];
+            int durL = localTime - mStartL[mDepth];
+            if (mDepth > 0) {
+                mChildDur[mDepth - 1] += dur;
+                mChildDurL[mDepth - 1] += durL;
+            } else {
+                mRootDur += dur;
+                mRootDurL += durL;
+            }
+
+            int nesting = mNesting.add(idx, -1);
+            if (nesting == 0) {
+                mNesting.remove(idx);
+            }
+            if (idx < 0) return; // unknown method
+            MethodInfo m = mMethods.get(idx);
+            if (nesting == 0) {
+                m.nrCalls++;
+                m.dur += dur;
+                m.durL += durL;
+                m.maxDurL = Math.max(m.maxDurL, durL);
+                m.durLSq += (double)durL * durL;
+                m.durExc += dur - mChildDur[mDepth];
+                m.durExcL += durL - mChildDurL[mDepth];
+            } else {
+                m.nrRecCalls++;
+            }
+        }
+
     }
 
     public ThreadInfo findThread(int tid) {
@@ -504,7 +796,9 @@ public class TraceReport extends Report {
         super.generate();
 
         // Save the raw files
-        generateVCD();
+        if (!mStatsOnly) {
+            generateVCD();
+        }
 
         // Run all the plugins
         runPlugins();
@@ -23,8 +23,9 @@ import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.Report;
 import com.sonyericsson.chkbugreport.Util;
 import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodInfo;
-import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodRun;
 import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.Downsampler;
+import com.sonyericsson.chkbugreport.util.IntArray;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
@@ -47,8 +48,8 @@ public class TreePNGPlugin extends Plugin {
     public static class Chart {
         public int mid;
         public String fn;
-        public BufferedImage img;
-        public Graphics2D g;
+        /** 1 when the method itself was running, 0 while one of its children was running */
+        public Downsampler samples;
     }
 
     @Override
@@ -70,21 +71,22 @@ public class TreePNGPlugin extends Plugin {
 
         Vector<ThreadInfo> threads = rep.getThreadInfos();
         for (ThreadInfo t : threads) {
-            int cnt = t.calls.size();
-            if (cnt == 0) continue;
-            int duration = t.calls.get(cnt-1).endLocalTime - t.calls.get(0).startLocalTime;
+            CallTree tree = t.calls;
+            if (tree.isEmpty()) continue;
+            int start = tree.getStartLocalTime(tree.getFirstRoot());
+            int duration = tree.getEndLocalTime(tree.getLastRoot()) - start;
 
             // Add main methods to the queue
             LinkedHashMap<Integer, Chart> charts = new LinkedHashMap<Integer, Chart>();
-            Vector<MethodRun> queue = new Vector<MethodRun>();
-            for (int i = 0; i < cnt; i++) {
-                addToQueue(br, t.id, queue, charts, t.calls.get(i));
+            IntArray queue = new IntArray();
+            for (int run = tree.getFirstRoot(); run != CallTree.NONE; run = tree.getNextSibling(run)) {
+                addToQueue(br, t.id, queue, charts, tree, run, start, duration);
             }
 
-            // Render queue (and also add new methods)
+            // Collect the running time of the methods in the queue (and also add new methods)
             for (int i = 0; i < queue.size(); i++) {
-                MethodRun run = queue.get(i);
-                createTracePng(br, t.id, queue, charts, run, duration);
+                int run = queue.get(i);
+                addRunToChart(br, t.id, queue, charts, tree, run, start, duration);
             }
 
             // Save images
@@ -142,88 +144,75 @@ public class TreePNGPlugin extends Plugin {
         }
     }
 
-    private boolean addToQueue(Report rep, int tid, Vector<MethodRun> queue, LinkedHashMap<Integer, Chart> charts, MethodRun run) {
-        if (run.endLocalTime - run.startLocalTime < MIN_RUN_TIME) {
+    private boolean addToQueue(Report rep, int tid, IntArray queue, LinkedHashMap<Integer, Chart> charts, CallTree tree, int run, int start, int duration) {
+        if (tree.getLocalDuration(run) < MIN_RUN_TIME) {
             // Too short
             return false;
         }
-        Chart chart = charts.get(run.mid);
+        int mid = tree.getMid(run);
+        Chart chart = charts.get(mid);
         if (chart == null) {
             // method not used yet, so create an empty chart, if there is still space
             if (charts.size() >= TRACE_COUNT) {
                 return false;
             }
             chart = new Chart();
-            chart.mid = run.mid;
-            chart.fn = rep.getRelDataDir() + String.format("trace_%d_%d.png", tid, run.mid);
-            createEmptyChart(chart);
-            charts.put(run.mid, chart);
+            chart.mid = mid;
+            chart.fn = rep.getRelDataDir() + String.format("trace_%d_%d.png", tid, mid);
+            chart.samples = new Downsampler(start, start + duration, W);
+            charts.put(mid, chart);
         }
         queue.add(run);
         return true;
     }
 
-    private void createEmptyChart(Chart chart) {
-        // Create the empty image
+    private void addRunToChart(Report rep, int tid, IntArray queue,
+            LinkedHashMap<Integer, Chart> charts, CallTree tree, int run, int start, int duration) {
+        Chart chart = charts.get(tree.getMid(run));
+        if (chart == null) return; // something wrong
+        Downsampler samples = chart.samples;
+
+        long lastTime = tree.getStartLocalTime(run);
+        for (int child = tree.getFirstChild(run); child != CallTree.NONE; child = tree.getNextSibling(child)) {
+            addToQueue(rep, tid, queue, charts, tree, child, start, duration);
+
+            // The segment where this method was running
+            samples.addInterval(lastTime, tree.getStartLocalTime(child), 1);
+
+            // The segment where the child method was running
+            lastTime = tree.getEndLocalTime(child);
+            samples.addInterval(tree.getStartLocalTime(child), lastTime, 0);
+        }
+
+        // The last segment where this method was running
+        samples.addInterval(lastTime, tree.getEndLocalTime(run), 1);
+    }
+
+    private void savePng(Chart chart, TraceReport rep) {
+        // Render the trace
         BufferedImage img = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
         Graphics2D g = (Graphics2D)img.getGraphics();
         g.setColor(Color.BLACK);
         g.fillRect(0, 0, W, H);
-        chart.img = img;
-        chart.g = g;
-    }
-
-    private void createTracePng(Report rep, int tid, Vector<MethodRun> queue,
-            LinkedHashMap<Integer, Chart> charts, MethodRun run, int duration) {
-        // Setup initial data
-        int startTime = run.startLocalTime;
-        int lastX = (int)(startTime * W / duration);
-
-        // Render the trace
-        Chart chart = charts.get(run.mid);
-        if (chart == null) return; // something wrong
-        Graphics2D g = chart.g;
-
+        Downsampler samples = chart.samples;
         Color darkRed = new Color(0x800000);
-        int cnt = run.calls.size();
-        for (int i = 0; i < cnt; i++) {
-            MethodRun child = run.calls.get(i);
-            addToQueue(rep, tid, queue, charts, child);
-
-            // Render the segment where this method was running
-            int x = (int)((child.startLocalTime) * W / duration);
-            if (lastX == x) {
+        for (int x = 0; x < W; x++) {
+            if (!samples.hasData(x)) continue;
+            if (samples.getMin(x) == 1) {
+                g.setColor(Color.RED);
+                g.fillRect(x, 0, 1, H);
+            } else if (samples.getMax(x) == 1) {
                 g.setColor(darkRed);
-                g.fillRect(lastX, 0, 1, H);
+                g.fillRect(x, 0, 1, H);
             } else {
-                g.setColor(Color.RED);
-                g.fillRect(lastX + 1, 0, x - lastX + 1, H);
+                g.setColor(Color.YELLOW);
+                g.fillRect(x, H/2, 1, 1);
             }
-            lastX = x;
-
-            // Render the segment where the child method was running
-            x = (int)(child.endLocalTime * W / duration);
-            g.setColor(Color.YELLOW);
-            g.drawLine(lastX, H/2, x, H/2);
-            lastX = x;
         }
 
-        // Render the last segment where this method was running
-        int x = (int)((run.endLocalTime) * W / duration);
-        if (lastX == x) {
-            g.setColor(darkRed);
-            g.fillRect(lastX, 0, 1, H);
-        } else {
-            g.setColor(Color.RED);
-            g.fillRect(lastX + 1, 0, x - lastX + 1, H);
-        }
-        lastX = x;
-    }
-
-    private void savePng(Chart chart, TraceReport rep) {
         // Save the image
         try {
-            ImageIO.write(chart.img, "png", new File(rep.getBaseDir() + chart.fn));
+            ImageIO.write(img, "png", new File(rep.getBaseDir() + chart.fn));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -21,21 +21,53 @@ package com.sonyericsson.chkbugreport.traceview;
 import com.sonyericsson.chkbugreport.Chapter;
 import com.sonyericsson.chkbugreport.Plugin;
 import com.sonyericsson.chkbugreport.Report;
-import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodRun;
+import com.sonyericsson.chkbugreport.traceview.TraceReport.MethodInfo;
 import com.sonyericsson.chkbugreport.traceview.TraceReport.ThreadInfo;
+import com.sonyericsson.chkbugreport.util.IntArray;
+import com.sonyericsson.chkbugreport.util.IntIntMap;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Generates the call tree of each thread.
+ *
+ * The full tree is saved as a text file. The html version is loaded on demand: the tree is
+ * split into chunks, each chunk containing a list of sibling method calls with some levels of
+ * their children. The children which don't fit in the chunk are saved in other chunks, which
+ * are loaded by the page only when the parent item is expanded. The chunks are saved as JSON
+ * data wrapped in a javascript function call, so they can be loaded from the local file system
+ * as well (where the browsers don't allow to fetch the files directly).
+ */
 public class TreeViewPlugin extends Plugin {
 
-    private static final int MAX_LEVELS = 4;
+    /** The maximum number of method calls saved in one chunk */
+    private static final int CHUNK_SIZE = 2000;
+    /** The maximum number of siblings saved in one chunk (so there is still room for their children) */
+    private static final int PAGE_SIZE = CHUNK_SIZE / 4;
+    /** The maximum number of levels saved in one chunk (levels without siblings are not counted) */
+    private static final int CHUNK_DEPTH = 16;
+    /** The maximum nesting of the lists in one chunk (counting the levels without siblings as well) */
+    private static final int MAX_CHUNK_NESTING = 256;
+    /** Subtrees with at most this many method calls are not split, even if they are deeper */
+    private static final int SMALL_SUBTREE = 64;
 
-    private static final int MAX_LEVELS_W_DURATION = 15;
     private static final int MIN_DURATION = 10*1000; // 10ms
 
+    /** Deeper levels in the text file are not indented further (to keep the file size linear) */
+    private static final int MAX_TEXT_INDENT = 128;
+
+    private static final String TREE_DIR = "tvtree/";
+
     private int mCurId;
 
     @Override
@@ -51,10 +83,17 @@ public class TreeViewPlugin extends Plugin {
     @Override
     public void generate(Report br) {
         TraceReport rep = (TraceReport)br;
-        Chapter ch = new Chapter(rep, "Trace tree files (lim. levels)");
+        Chapter ch = new Chapter(rep, "Trace tree");
         rep.addChapter(ch);
 
-        // Save individual threads
+        String dir = br.getRelRawDir() + TREE_DIR;
+        new File(br.getBaseDir() + dir).mkdirs();
+        if (!saveMethodNames(rep, dir)) {
+            return;
+        }
+
+        // Save the text version and the first chunk of each thread, and collect the other chunks
+        Vector<ChunkWriter> writers = new Vector<ChunkWriter>();
         for (ThreadInfo t : rep.getThreadInfos()) {
             Chapter child = new Chapter(rep, t.getFullName());
             ch.addChapter(child);
@@ -63,107 +102,246 @@ public class TreeViewPlugin extends Plugin {
             saveTraceTree(rep, tid, fn);
             child.addLine("<div>Full trace: <a href=\"" + fn + "\">" + fn + "</a></div>");
 
-            child.addLine("<div class=\"traceview-tree\">");
-            saveTraceTreeHtml(rep, tid, child, MAX_LEVELS, 0);
-            child.addLine("</pre>");
+            CallTree tree = t.calls;
+            if (tree.isEmpty()) continue;
+            System.out.println("Writing call tree chunks of thread " + tid + "...");
+            ChunkWriter root = new ChunkWriter(rep, t, dir);
+            if (!root.writeChunk(tree.getFirstRoot())) continue;
+            for (int i = 0; i < root.mRefs.size(); i++) {
+                // Each referenced subtree (mostly the top level calls) is processed in parallel
+                ChunkWriter w = new ChunkWriter(rep, t, dir);
+                w.mRefs.add(root.mRefs.get(i));
+                writers.add(w);
+            }
+            addTreeView(rep, t, child, dir, tree.getFirstRoot());
         }
 
-        // Create another variant where the display limit is based on duration
-        ch = new Chapter(rep, "Trace tree files (lim. duration)");
-        rep.addChapter(ch);
-
-        // Save individual threads
-        for (ThreadInfo t : rep.getThreadInfos()) {
-            Chapter child = new Chapter(rep, t.getFullName());
-            ch.addChapter(child);
-            int tid = t.id;
-            String fn = "raw/thread_" + tid + ".tree.txt";
-            child.addLine("<div>Full trace: <a href=\"" + fn + "\">" + fn + "</a></div>");
-
-            child.addLine("<div class=\"traceview-tree\">");
-            saveTraceTreeHtml(rep, tid, child, MAX_LEVELS_W_DURATION, MIN_DURATION);
-            child.addLine("</pre>");
+        int nrWorkers = Math.max(1, Math.min(writers.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(nrWorkers);
+        try {
+            Vector<Future<Boolean>> results = new Vector<Future<Boolean>>();
+            for (ChunkWriter w : writers) {
+                results.add(executor.submit(w));
+            }
+            for (Future<Boolean> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
         }
     }
 
-    private void nextId() {
+    private void addTreeView(TraceReport rep, ThreadInfo thread, Chapter ch, String dir, int firstRun) {
         mCurId++;
+        String divId = "tv_tree_" + mCurId;
+        ch.addLine("<div>Method calls on Thread-" + thread.id + " (" + thread.name + "):</div>");
+        ch.addLine("<div>Note: you can collapse/expand items by clicking on them (the items are loaded when they are expanded first).</div>");
+        ch.addLine("<div><button onClick=\"tvtrHide('" + divId + "')\">Collapse all</button> " +
+                "<input type=\"checkbox\" onClick=\"tvtrFilter('" + divId + "', this.checked)\"/>" +
+                "Show only items with thread time duration above " + (MIN_DURATION / 1000) + "ms</div>");
+        ch.addLine("<div># [duration in proc time, duration in thread time, nr calls] method name</div>");
+        ch.addLine("<div class=\"traceview-tree tv_tree\" id=\"" + divId + "\" data-dir=\"" + dir + "\"" +
+                " data-prefix=\"" + getChunkPrefix(thread) + "\" data-root=\"" + getChunkId(thread, firstRun) + "\"" +
+                " data-mindur=\"" + MIN_DURATION + "\"></div>");
     }
 
-    private String getId() {
-        return "tv_tr_" + mCurId;
+    private static String getChunkPrefix(ThreadInfo thread) {
+        return "t" + thread.id + "_";
     }
 
-    private String getChildrenId() {
-        return "tv_tr_" + mCurId + "_c";
+    private static String getChunkId(ThreadInfo thread, int run) {
+        return getChunkPrefix(thread) + run;
     }
 
-    private void saveTraceTreeHtml(TraceReport rep, int tid, Chapter ch, int level, int mindur) {
-        ThreadInfo thread = rep.findThread(tid);
-        if (thread.calls.size() == 0) return;
-        nextId();
-        String divId = getChildrenId();
-        ch.addLine("<div>Method calls on Thread-" + tid + " (" + thread.name + "):</div>");
-        if (mindur == 0) {
-            ch.addLine("<div>(Maximum " + level + " levels)</div>");
-        } else {
-            ch.addLine("<div>(Maximum " + level + " levels, showing only items with thread time duration above " + (mindur / 1000) + "ms)</div>");
+    private boolean saveMethodNames(TraceReport rep, String dir) {
+        try {
+            FileOutputStream fos = new FileOutputStream(rep.getBaseDir() + dir + "methods.js");
+            PrintStream ps = new PrintStream(fos);
+            StringBuffer sb = new StringBuffer();
+            sb.append("tvtrChunk(\"methods\",[");
+            Vector<MethodInfo> methods = rep.getMethodInfos();
+            for (int i = 0; i < methods.size(); i++) {
+                if (i > 0) {
+                    sb.append(",\n");
+                }
+                appendString(sb, methods.get(i).name);
+            }
+            sb.append("]);");
+            ps.println(sb.toString());
+            ps.close();
+            fos.close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
         }
-        ch.addLine("<div>Note: you can collapse/expand items by clicking on them.</div>");
-        ch.addLine("<div><button onClick=\"tvtrShow('" + divId + "')\">Expand all</button> <button onClick=\"tvtrHide('" + divId + "')\">Collapse all</button></div>");
-        ch.addLine("<div># [duration in proc time, duration in thread time, nr calls] method name</div>");
+    }
 
-        printTraceTreeHtml(rep, ch, "", thread.calls, level, mindur);
+    private static void appendString(StringBuffer sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+                sb.append(c);
+            } else if (c < 0x20 || c == '<' || c == '>') {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
     }
 
-    private void printTraceTreeHtml(TraceReport rep, Chapter ch, String indent, Vector<MethodRun> calls, int level, int mindur) {
-        int cnt = calls.size();
-        if (cnt == 0) return;
-        String divId = getChildrenId();
-        String cssClass = "";
-        if (level != MAX_LEVELS) {
-            cssClass = "class=\"tv_tr_c\" ";
+    /**
+     * Saves the chunks of a subtree. Starting from the chunks in mRefs, it saves all
+     * the chunks which are referenced from them (directly or indirectly).
+     *
+     * Each chunk contains a list of siblings (at most PAGE_SIZE items, the rest is
+     * referenced as another chunk), and the children of the items are added as well
+     * (in breadth-first order), until the chunk is full. The items are encoded as
+     * [method idx, duration, thread duration, nr calls, children], where children
+     * is either null (no children), the list of the children, or the id (run index of the first
+     * child) of the chunk containing the children. If the last item of a list is a number,
+     * the rest of the list is stored in the chunk with that id.
+     */
+    private static class ChunkWriter implements Callable<Boolean> {
+
+        private TraceReport mRep;
+        private ThreadInfo mThread;
+        private CallTree mTree;
+        private String mDir;
+        private IntArray mRefs = new IntArray();
+        private IntIntMap mInline = new IntIntMap();
+
+        public ChunkWriter(TraceReport rep, ThreadInfo thread, String dir) {
+            mRep = rep;
+            mThread = thread;
+            mTree = thread.calls;
+            mDir = dir;
         }
-        ch.addLine("<div " + cssClass + " id=\"" + divId + "\">");
-        if (level <= 0) {
-            ch.addLine("<div>" + indent + "  ...</div>");
-        } else {
-            // If we have duration limit, thigs are a bit trickier
-            if (mindur > 0) {
-                // We need two runs. First, find out the last visible child
-                int lastIdx = -1;
-                for (int i = 0; i < cnt; i++) {
-                    MethodRun child = calls.get(i);
-                    int dur = child.endLocalTime - child.startLocalTime;
-                    if (dur >= mindur) {
-                        lastIdx = i;
-                    }
+
+        @Override
+        public Boolean call() {
+            while (!mRefs.isEmpty()) {
+                if (!writeChunk(mRefs.pop(CallTree.NONE))) {
+                    return false;
                 }
-                for (int i = 0; i < cnt; i++) {
-                    MethodRun child = calls.get(i);
-                    int dur = child.endLocalTime - child.startLocalTime;
-                    if (dur >= mindur) {
-                        printTraceTreeHtml(rep, ch, indent, calls.get(i), (i < lastIdx), level - 1, mindur);
-                    }
+            }
+            return true;
+        }
+
+        /**
+         * Saves a single chunk, and adds the referenced chunks to mRefs
+         * @param first The first method run to save in the chunk
+         */
+        public boolean writeChunk(int first) {
+            CallTree tree = mTree;
+
+            // Select which child lists to inline
+            mInline.clear();
+            int budget = CHUNK_SIZE;
+            int more = CallTree.NONE;
+            IntArray queue = new IntArray();
+            IntArray depth = new IntArray();
+            IntArray nesting = new IntArray();
+            for (int run = first; run != CallTree.NONE; run = tree.getNextSibling(run)) {
+                if (queue.size() == PAGE_SIZE) {
+                    more = run;
+                    break;
                 }
-            } else {
-                for (int i = 0; i < cnt; i++) {
-                    printTraceTreeHtml(rep, ch, indent, calls.get(i), (i < cnt - 1), level - 1, mindur);
+                queue.add(run);
+                depth.add(0);
+                nesting.add(0);
+                budget--;
+            }
+            for (int i = 0; i < queue.size(); i++) {
+                int run = queue.get(i);
+                int d = depth.get(i);
+                int n = nesting.get(i);
+                int firstChild = tree.getFirstChild(run);
+                if (firstChild == CallTree.NONE) continue;
+                int cnt = 0;
+                for (int ch = firstChild; ch != CallTree.NONE && cnt <= budget; ch = tree.getNextSibling(ch)) {
+                    cnt++;
+                }
+                if (cnt > budget) continue;
+                // A chain of single method calls would need a new chunk for every CHUNK_DEPTH levels,
+                // so only the levels with siblings are counted (MAX_CHUNK_NESTING still limits the depth)
+                int childDepth = (cnt > 1) ? d + 1 : d;
+                if (childDepth >= CHUNK_DEPTH && tree.getNrCalls(run) - 1 > SMALL_SUBTREE) continue;
+                if (n + 1 >= MAX_CHUNK_NESTING) continue;
+                budget -= cnt;
+                mInline.put(run, 1);
+                for (int ch = firstChild; ch != CallTree.NONE; ch = tree.getNextSibling(ch)) {
+                    queue.add(ch);
+                    depth.add(childDepth);
+                    nesting.add(n + 1);
                 }
             }
+
+            // Serialize
+            StringBuffer sb = new StringBuffer();
+            sb.append("tvtrChunk(\"");
+            sb.append(getChunkId(mThread, first));
+            sb.append("\",");
+            appendList(sb, first, more);
+            sb.append(");");
+
+            String fn = mDir + getChunkId(mThread, first) + ".js";
+            try {
+                FileOutputStream fos = new FileOutputStream(mRep.getBaseDir() + fn);
+                PrintStream ps = new PrintStream(fos);
+                ps.println(sb.toString());
+                ps.close();
+                fos.close();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        private void appendList(StringBuffer sb, int first, int more) {
+            CallTree tree = mTree;
+            sb.append('[');
+            for (int run = first; run != more; run = tree.getNextSibling(run)) {
+                if (run != first) {
+                    sb.append(",\n");
+                }
+                sb.append('[');
+                sb.append(mRep.findMethod(tree.getMid(run)).idx);
+                sb.append(',');
+                sb.append(tree.getDuration(run));
+                sb.append(',');
+                sb.append(tree.getLocalDuration(run));
+                sb.append(',');
+                sb.append(tree.getNrCalls(run));
+                sb.append(',');
+                int firstChild = tree.getFirstChild(run);
+                if (firstChild == CallTree.NONE) {
+                    sb.append("null");
+                } else if (mInline.containsKey(run)) {
+                    // The depth of the recursion is limited by MAX_CHUNK_NESTING
+                    appendList(sb, firstChild, CallTree.NONE);
+                } else {
+                    sb.append(firstChild);
+                    mRefs.add(firstChild);
+                }
+                sb.append(']');
+            }
+            if (more != CallTree.NONE) {
+                sb.append(",\n");
+                sb.append(more);
+                mRefs.add(more);
+            }
+            sb.append(']');
         }
-        ch.addLine("</div>");
-    }
 
-    private void printTraceTreeHtml(TraceReport rep, Chapter ch, String indent, MethodRun run, boolean last, int level, int mindur) {
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        String name = rep.findMethod(run.mid).name;
-        nextId();
-        String divId = getId();
-        ch.addLine("<div class=\"tv_tr\" id=\"" + divId + "\">" + indent + "+-[" + getDur(dur) + "," + getDur(durL) + "," + run.nrCalls + "] " + shadeName(name) + "</div>");
-        String pref = last ? "|&nbsp;" : "&nbsp;&nbsp;";
-        printTraceTreeHtml(rep, ch, indent + pref, run.calls, level, mindur);
     }
 
     private void saveTraceTree(TraceReport rep, int tid, String fn) {
@@ -177,7 +355,7 @@ public class TreeViewPlugin extends Plugin {
             ps.println("Method calls on Thread-" + tid + " (" + thread.name + "):");
             ps.println("# [duration in proc time, duration in thread time, nr calls] method name");
 
-            printTraceTree(rep, ps, "", thread.calls);
+            printTraceTree(rep, ps, thread.calls);
 
             ps.close();
             fos.close();
@@ -186,20 +364,40 @@ public class TreeViewPlugin extends Plugin {
         }
     }
 
-    private void printTraceTree(TraceReport rep, PrintStream ps, String indent, Vector<MethodRun> calls) {
-        int cnt = calls.size();
-        for (int i = 0; i < cnt; i++) {
-            printTraceTree(rep, ps, indent, calls.get(i), (i < cnt - 1));
-        }
-    }
+    private void printTraceTree(TraceReport rep, PrintStream ps, CallTree tree) {
+        // Walk the tree without recursion, since it can be very deep
+        // indentLen[d] is the length of the indentation used for the items on level d
+        int indentLen[] = new int[16];
+        StringBuffer indent = new StringBuffer();
+        int depth = 0;
+        CallTree.Cursor c = tree.cursor();
+        while (c.isValid()) {
+            int run = c.getRun();
+            String name = rep.findMethod(tree.getMid(run)).name;
+            indent.setLength(indentLen[Math.min(depth, MAX_TEXT_INDENT)]);
+            String prefix = (depth > MAX_TEXT_INDENT) ? indent + "(level " + depth + ") +-[" : indent + "+-[";
+            ps.println(prefix + getDur(tree.getDuration(run)) + "," + getDur(tree.getLocalDuration(run)) + "," + tree.getNrCalls(run) + "] " + name);
 
-    private void printTraceTree(TraceReport rep, PrintStream ps, String indent, MethodRun run, boolean last) {
-        int dur = run.endTime - run.startTime;
-        int durL = run.endLocalTime - run.startLocalTime;
-        String name = rep.findMethod(run.mid).name;
-        ps.println(indent + "+-[" + getDur(dur) + "," + getDur(durL) + "," + run.nrCalls + "] " + name);
-        String pref = last ? "| " : "  ";
-        printTraceTree(rep, ps, indent + pref, run.calls);
+            if (tree.getFirstChild(run) != CallTree.NONE) {
+                if (depth < MAX_TEXT_INDENT) {
+                    indent.append(tree.getNextSibling(run) != CallTree.NONE ? "| " : "  ");
+                    if (depth + 1 == indentLen.length) {
+                        indentLen = Arrays.copyOf(indentLen, indentLen.length * 2);
+                    }
+                    indentLen[depth + 1] = indent.length();
+                }
+                depth++;
+                c.next();
+            } else {
+                // Move to the next sibling, or the sibling of the closest parent which has one
+                while (tree.getNextSibling(run) == CallTree.NONE) {
+                    run = tree.getParent(run);
+                    depth--;
+                    if (run == CallTree.NONE) break;
+                }
+                c.moveTo(run == CallTree.NONE ? CallTree.NONE : tree.getNextSibling(run));
+            }
+        }
     }
 
     private String getDur(int dur) {
@@ -209,14 +407,4 @@ public class TreeViewPlugin extends Plugin {
         return Integer.toString(dur) + "us";
     }
 
-    private String shadeName(String name) {
-        int idx = name.lastIndexOf('.');
-        int idx2 = name.lastIndexOf('(');
-        if (idx < 0 || idx2 < 0) return name;
-        String cls = name.substring(0, idx + 1);
-        String param = name.substring(idx2);
-        name = name.substring(idx + 1, idx2);
-        return "<span class=\"traceview-name\">" + cls + "</span>" + name + "<span class=\"traceview-param\">" + param + "</span>";
-    }
-
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+/**
+ * Downsamples a signal to a fixed number of buckets (typically the pixel columns of a chart),
+ * collecting the minimum, maximum and average value in each bucket.
+ * The signal can be given either as intervals with constant value (a step signal, in which
+ * case the average is weighted by the time), or as individual samples.
+ * Each interval touches only the buckets it overlaps, so downsampling a step signal
+ * costs O(intervals + width), independently of how many values fall into a bucket.
+ */
+public class Downsampler {
+
+    private long mStart;
+    private long mDuration;
+    private int mWidth;
+    private long mMin[];
+    private long mMax[];
+    private double mSum[];
+    private long mWeight[];
+    private int mCount[];
+
+    /**
+     * Creates a new downsampler
+     * @param start The start of the time range (mapped to bucket 0)
+     * @param end The end of the time range (mapped to the last bucket)
+     * @param width The number of buckets
+     */
+    public Downsampler(long start, long end, int width) {
+        mStart = start;
+        mDuration = Math.max(1, end - start);
+        mWidth = width;
+        mMin = new long[width];
+        mMax = new long[width];
+        mSum = new double[width];
+        mWeight = new long[width];
+        mCount = new int[width];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the bucket of the given time (clamped to the valid range)
+     */
+    public int getX(long time) {
+        long x = (time - mStart) * mWidth / mDuration;
+        return (int)Math.max(0, Math.min(mWidth - 1, x));
+    }
+
+    /**
+     * Returns the time where the given bucket starts
+     */
+    public long getBucketStart(int x) {
+        return mStart + x * mDuration / mWidth;
+    }
+
+    /**
+     * Adds an interval during which the signal had a constant value.
+     * Zero length intervals (short spikes) are also recorded in the min/max values,
+     * but they don't affect the average.
+     */
+    public void addInterval(long from, long to, long value) {
+        if (to < from) {
+            long tmp = from;
+            from = to;
+            to = tmp;
+        }
+        if (to < mStart || from > mStart + mDuration) return;
+        from = Math.max(from, mStart);
+        to = Math.min(to, mStart + mDuration);
+        int x0 = getX(from);
+        int x1 = getX(to);
+        if (x1 > x0 && getBucketStart(x1) >= to) {
+            // The interval ends exactly at the bucket boundary
+            x1--;
+        }
+        for (int x = x0; x <= x1; x++) {
+            long s = Math.max(from, getBucketStart(x));
+            long e = Math.min(to, getBucketStart(x + 1));
+            add(x, value, Math.max(0, e - s));
+        }
+    }
+
+    /**
+     * Adds a single sample. Samples outside of the time range are ignored.
+     */
+    public void addSample(long time, long value) {
+        if (time < mStart || time > mStart + mDuration) return;
+        add(getX(time), value, 1);
+    }
+
+    private void add(int x, long value, long weight) {
+        if (mCount[x] == 0 || value < mMin[x]) {
+            mMin[x] = value;
+        }
+        if (mCount[x] == 0 || value > mMax[x]) {
+            mMax[x] = value;
+        }
+        mCount[x]++;
+        mSum[x] += (double)value * weight;
+        mWeight[x] += weight;
+    }
+
+    /**
+     * Returns true if at least one interval or sample falls into the bucket
+     */
+    public boolean hasData(int x) {
+        return mCount[x] > 0;
+    }
+
+    /**
+     * Returns the number of intervals and samples which fall into the bucket
+     */
+    public int getCount(int x) {
+        return mCount[x];
+    }
+
+    public long getMin(int x) {
+        return mMin[x];
+    }
+
+    public long getMax(int x) {
+        return mMax[x];
+    }
+
+    /**
+     * Returns the average value in the bucket (weighted by time in case of intervals)
+     */
+    public double getAvg(int x) {
+        if (mWeight[x] == 0) {
+            return (mMin[x] + mMax[x]) / 2.0;
+        }
+        return mSum[x] / mWeight[x];
+    }
+
+}
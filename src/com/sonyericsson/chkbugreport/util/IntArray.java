@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive int values.
+ * This is used instead of Vector&lt;Integer&gt; where many values are stored,
+ * to avoid creating an object for each item.
+ */
+public class IntArray {
+
+    private int mData[];
+    private int mSize;
+
+    public IntArray() {
+        this(16);
+    }
+
+    public IntArray(int capacity) {
+        mData = new int[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void add(int value) {
+        if (mSize == mData.length) {
+            mData = Arrays.copyOf(mData, mSize + (mSize >> 1) + 1);
+        }
+        mData[mSize++] = value;
+    }
+
+    public int get(int idx) {
+        if (idx >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(idx);
+        }
+        return mData[idx];
+    }
+
+    public void set(int idx, int value) {
+        if (idx >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(idx);
+        }
+        mData[idx] = value;
+    }
+
+    /**
+     * Returns the last item, or the specified default value if the array is empty
+     * @param def The value to return if the array is empty
+     * @return The last item or def
+     */
+    public int peek(int def) {
+        return mSize == 0 ? def : mData[mSize - 1];
+    }
+
+    /**
+     * Removes and returns the last item, or the specified default value if the array is empty
+     * @param def The value to return if the array is empty
+     * @return The removed item or def
+     */
+    public int pop(int def) {
+        return mSize == 0 ? def : mData[--mSize];
+    }
+
+    /**
+     * Returns a copy of the stored values, with the exact size
+     * @return A new array containing the values
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from int keys to int values, using open addressing (linear probing).
+ * Unlike HashMap&lt;Integer, Integer&gt;, it doesn't create any objects when adding
+ * or looking up items, and the memory used is proportional to the number of items.
+ */
+public class IntIntMap {
+
+    private static final int FREE = 0;
+    private static final int USED = 1;
+
+    private int mKeys[];
+    private int mValues[];
+    private byte mState[];
+    private int mSize;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int capacity) {
+        int cap = 4;
+        while (cap < capacity * 2) {
+            cap <<= 1;
+        }
+        mKeys = new int[cap];
+        mValues = new int[cap];
+        mState = new byte[cap];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mState, (byte)FREE);
+        mSize = 0;
+    }
+
+    public boolean containsKey(int key) {
+        return mState[find(key)] == USED;
+    }
+
+    /**
+     * Returns the value associated with the key
+     * @param key The key
+     * @param def The value to return if the key is not in the map
+     * @return The value or def
+     */
+    public int get(int key, int def) {
+        int pos = find(key);
+        return mState[pos] == USED ? mValues[pos] : def;
+    }
+
+    public void put(int key, int value) {
+        int pos = find(key);
+        if (mState[pos] == USED) {
+            mValues[pos] = value;
+            return;
+        }
+        if (2 * (mSize + 1) > mKeys.length) {
+            grow();
+            pos = find(key);
+        }
+        mKeys[pos] = key;
+        mValues[pos] = value;
+        mState[pos] = USED;
+        mSize++;
+    }
+
+    /**
+     * Adds delta to the value associated with key (a missing key has the value 0).
+     * @param key The key
+     * @param delta The value to add
+     * @return The new value
+     */
+    public int add(int key, int delta) {
+        int value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    public void remove(int key) {
+        int pos = find(key);
+        if (mState[pos] != USED) return;
+        mState[pos] = FREE;
+        mSize--;
+
+        // Move back the items following the removed one, so the probing sequences are not broken
+        int mask = mKeys.length - 1;
+        int free = pos;
+        pos = (pos + 1) & mask;
+        while (mState[pos] == USED) {
+            int home = hash(mKeys[pos]) & mask;
+            // The item can be moved to the free slot only if its home slot
+            // is not located (cyclically) between the free slot and its current position
+            boolean canMove = (free <= pos) ? (home <= free || home > pos) : (home <= free && home > pos);
+            if (canMove) {
+                mKeys[free] = mKeys[pos];
+                mValues[free] = mValues[pos];
+                mState[free] = USED;
+                mState[pos] = FREE;
+                free = pos;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    private int find(int key) {
+        int mask = mKeys.length - 1;
+        int pos = hash(key) & mask;
+        while (mState[pos] == USED && mKeys[pos] != key) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    private void grow() {
+        int keys[] = mKeys;
+        int values[] = mValues;
+        byte state[] = mState;
+        mKeys = new int[keys.length * 2];
+        mValues = new int[keys.length * 2];
+        mState = new byte[keys.length * 2];
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (state[i] == USED) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
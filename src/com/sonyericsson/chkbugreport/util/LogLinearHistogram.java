@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Sony Ericsson Mobile Communications AB
+ *
+ * This file is part of ChkBugReport.
+ *
+ * ChkBugReport is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * ChkBugReport is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ChkBugReport.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.sonyericsson.chkbugreport.util;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative long values, using log-linear buckets (similar to HdrHistogram).
+ * Every power of two range is split into the same number of linear sub-buckets, so
+ * the relative error of the reported values is bounded (1/8 with the default 3 bits),
+ * while the memory used is proportional to the logarithm of the largest value.
+ */
+public class LogLinearHistogram {
+
+    private int mSubBits;
+    private int mSubCount;
+    private int mCounts[];
+    private long mTotal;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    public LogLinearHistogram() {
+        this(3);
+    }
+
+    /**
+     * Creates a new histogram
+     * @param subBits The number of bits used for the linear sub-buckets (the precision)
+     */
+    public LogLinearHistogram(int subBits) {
+        mSubBits = subBits;
+        mSubCount = 1 << subBits;
+        mCounts = new int[4 * mSubCount];
+    }
+
+    public void add(long value) {
+        if (value < 0) value = 0;
+        int idx = getBucket(value);
+        if (idx >= mCounts.length) {
+            mCounts = Arrays.copyOf(mCounts, Math.max(idx + 1, mCounts.length * 2));
+        }
+        mCounts[idx]++;
+        mTotal++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Adds all the values from the other histogram (which must use the same precision)
+     */
+    public void add(LogLinearHistogram other) {
+        if (other.mCounts.length > mCounts.length) {
+            mCounts = Arrays.copyOf(mCounts, other.mCounts.length);
+        }
+        for (int i = 0; i < other.mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotal += other.mTotal;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    public long getMin() {
+        return mTotal == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mTotal == 0 ? 0 : mMax;
+    }
+
+    public long getMean() {
+        return mTotal == 0 ? 0 : mSum / mTotal;
+    }
+
+    /**
+     * Returns the (approximate) value below which the given percent of the values fall.
+     * The upper bound of the bucket is returned (but never more than the maximum value).
+     * @param percent The percentile (0-100)
+     */
+    public long getPercentile(double percent) {
+        if (mTotal == 0) return 0;
+        long limit = (long)Math.ceil(mTotal * percent / 100.0);
+        limit = Math.max(1, Math.min(mTotal, limit));
+        long cnt = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            cnt += mCounts[i];
+            if (cnt >= limit) {
+                return Math.min(mMax, Math.max(mMin, getBucketMax(i)));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Returns the number of buckets (some of them might be empty)
+     */
+    public int getBucketCount() {
+        int ret = mCounts.length;
+        while (ret > 0 && mCounts[ret - 1] == 0) ret--;
+        return ret;
+    }
+
+    public int getBucketValueCount(int bucket) {
+        return mCounts[bucket];
+    }
+
+    /**
+     * Returns the smallest value stored in the bucket
+     */
+    public long getBucketMin(int bucket) {
+        if (bucket < 2 * mSubCount) return bucket;
+        int exp = bucket / mSubCount - 1;
+        long m = bucket % mSubCount + mSubCount;
+        return m << exp;
+    }
+
+    /**
+     * Returns the largest value stored in the bucket
+     */
+    public long getBucketMax(int bucket) {
+        if (bucket < 2 * mSubCount) return bucket;
+        int exp = bucket / mSubCount - 1;
+        long m = bucket % mSubCount + mSubCount;
+        return ((m + 1) << exp) - 1;
+    }
+
+    private int getBucket(long value) {
+        if (value < mSubCount) return (int)value;
+        int exp = 63 - Long.numberOfLeadingZeros(value) - mSubBits;
+        return exp * mSubCount + (int)(value >> exp);
+    }
+
+}